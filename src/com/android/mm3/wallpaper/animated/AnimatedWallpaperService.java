@@ -22,6 +22,7 @@ public class AnimatedWallpaperService extends WallpaperService {
 	
 	@Override
 	public Engine onCreateEngine() {		
+		TrustedFileRegistry.setStore(new File(getCacheDir(), "trusted_files"));
 		return new WallpaperEngine();
 	}
 	
@@ -40,6 +41,10 @@ public class AnimatedWallpaperService extends WallpaperService {
 		private Runnable runnable = new Runnable(){ public void run() { nextFrame(); 	} };
 		private boolean visible = false;
 		private long time = 0;
+		private SurfaceHolder surfaceHolder = null; // last surface seen by onSurfaceChanged()
+		private int surfaceFormat = 0;
+		private int surfaceWidth = 0;
+		private int surfaceHeight = 0;
 
 		public WallpaperEngine()
 		{
@@ -107,6 +112,10 @@ public class AnimatedWallpaperService extends WallpaperService {
 				Log.w(TAG, "setup default animation");
 				animation = defaultAnimation;
 			}
+			if(surfaceHolder != null && !(animation instanceof GLAnimation)) {
+				// the surface already exists, so the new animation won't get onSurfaceChanged() on its own
+				animation.onSurfaceChanged(surfaceHolder, surfaceFormat, surfaceWidth, surfaceHeight);
+			}
 		}
 		
 
@@ -137,6 +146,10 @@ public class AnimatedWallpaperService extends WallpaperService {
 		public void onSurfaceChanged(SurfaceHolder holder, int format, int width, int height )
 		{
 			super.onSurfaceChanged(holder, format, width, height);
+			surfaceHolder = holder;
+			surfaceFormat = format;
+			surfaceWidth = width;
+			surfaceHeight = height;
 			animation.onSurfaceChanged(holder, format, width, height);
 			nextFrame();
 		}
@@ -153,6 +166,7 @@ public class AnimatedWallpaperService extends WallpaperService {
 		{
 			super.onSurfaceDestroyed(holder);
 			visible = false;
+			surfaceHolder = null;
 			animation.onSurfaceDestroyed(holder);
 			stopRunnable();
 		}
@@ -1,7 +1,10 @@
 package com.android.mm3.wallpaper.animated;
 
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
 import android.util.Log;
 import java.io.InputStream;
 
@@ -11,6 +14,7 @@ public class ApngAnimation extends GifAnimation
 	static final public String TAG = "ApngAnimation";
 	
 	protected Bitmap bitmap = null;
+	private volatile Bitmap preview = null; // coarse first frame of an interlaced file, shown while it loads
 	
 	public ApngAnimation(String s, int style) {
 		super(s, style);
@@ -18,23 +22,102 @@ public class ApngAnimation extends GifAnimation
 	
 	@Override
 	protected Decoder newDecoder(InputStream is) {
+		ApngFrameIndex index = ApngFrameIndex.scan(this.file);
+		long budget = Decoder.getMemoryBudget();
+		// frames kept as palette indices take a quarter of the memory
+		boolean quantize = index != null && index.getStoredSize() > budget;
+		if(quantize && index.getStoredSize() / 4 > budget) {
+			Log.d(TAG, "stream " + index.getFrameCount() + " frames, " + index.getStoredSize() + " bytes decoded");
+			ApngStreamDecoder stream = new ApngStreamDecoder(this.file, index);
+			stream.setTargetSize(this.targetWidth, this.targetHeight, this.filter);
+			long pixels = (long)(ApngStreamDecoder.DEFAULT_AHEAD + 1) * stream.getWidth() * stream.getHeight();
+			stream.setConfig(Decoder.selectConfig(index.hasAlpha(), index.hasAlphaGradient(), index.getPaletteSize(), pixels));
+			stream.start();
+			return stream;
+		}
+		// files decoded without errors before skip the chunk CRCs
+		boolean trusted = TrustedFileRegistry.isTrusted(this.file);
         try {
-			ApngDecoder decoder = new ApngDecoder(is);
+			PngPixelDecoder.PassListener listener = (index != null && index.isInterlaced()) ? newPreviewListener() : null;
+			if(quantize) {
+				Log.d(TAG, "quantized " + index.getFrameCount() + " frames, " + index.getStoredSize() / 4 + " bytes decoded");
+			}
+			long start = System.currentTimeMillis();
+			ApngDecoder decoder = new ApngDecoder(is, this.targetWidth, this.targetHeight, this.filter, !trusted, listener, quantize);
+			Log.d(TAG, "decoded " + decoder.getFrameCount() + " frames in " + (System.currentTimeMillis() - start) + " ms"
+					+ (trusted ? ", CRCs skipped" : ""));
+			if(!trusted) {
+				TrustedFileRegistry.markTrusted(this.file);
+			}
         	return decoder;
         }
         catch (Exception e) {
             Log.e(TAG, "ApngAnimation exeption" + e);
+            if(trusted) {
+            	TrustedFileRegistry.remove(this.file);
+            }
         }
         return null;
 	}
 	
+	/**
+	 * Turns every Adam7 pass of the first frame into a preview bitmap at the output size.
+	 */
+	private PngPixelDecoder.PassListener newPreviewListener() {
+		final int targetWidth = this.targetWidth;
+		final int targetHeight = this.targetHeight;
+		final int filter = this.filter;
+		return new PngPixelDecoder.PassListener() {
+			private Decoder scaler; // made on the first pass that has to be scaled down
+
+			public void onPass(int pass, int[] dest, int offset, int stride) {
+				int w = stride;
+				int h = (dest.length - offset) / stride;
+				int ow = Decoder.getScaledWidth(w, h, targetWidth, targetHeight);
+				int oh = Decoder.getScaledHeight(w, h, targetWidth, targetHeight);
+				if(ow == w && oh == h) {
+					preview = Bitmap.createBitmap(dest, offset, stride, w, h, Config.ARGB_8888);
+				} else if(offset == 0) {
+					if(scaler == null) {
+						scaler = new Decoder();
+						scaler.setTargetSize(targetWidth, targetHeight, filter);
+					}
+					preview = Bitmap.createBitmap(scaler.scalePixels(dest, w, h, ow, oh), ow, oh, Config.ARGB_8888);
+				}
+			}
+		};
+	}
+	
+	@Override
+	public void drawImage(Canvas c, int left, int top, int right, int bottom, Paint paint) {
+		Bitmap p = this.preview;
+		if(this.decoder != null || p == null) {
+			this.preview = null;
+			super.drawImage(c, left, top, right, bottom, paint);
+			return;
+		}
+		c.drawColor(Color.BLACK);
+		if(this.style == Animation.STYLE_RESIZED) {
+			this.dest.set(left, top, right, bottom);
+			c.drawBitmap(p, null, this.dest, paint);
+		} else {
+			c.drawBitmap(p, left, top, paint);
+		}
+	}
+	
 	@Override
 	public int getImageWidth(Canvas c) {
+		if(this.decoder == null && this.preview != null) {
+			return this.preview.getWidth();
+		}
 		return (this.decoder != null) ? this.decoder.getWidth() : c.getWidth();
 	}
 	
 	@Override
 	public int getImageHeight(Canvas c) {
+		if(this.decoder == null && this.preview != null) {
+			return this.preview.getHeight();
+		}
 		return (this.decoder != null) ? this.decoder.getHeight() : c.getHeight();
 	}
 	
@@ -0,0 +1,210 @@
+package com.android.mm3.wallpaper.animated;
+
+import java.util.Arrays;
+
+/**
+ * Composes APNG frames onto one reusable ARGB buffer following the dispose_op and
+ * blend_op rules of the APNG specification.
+ * <p>The dispose op of a frame is applied right before the next frame is drawn, so the
+ * buffer always holds the frame as it is displayed. Only fcTL rectangles are touched: a
+ * frame costs time proportional to its region, and for DISPOSE_OP_PREVIOUS only the area
+ * under the frame is saved. Nothing is allocated per frame once the save buffer has grown
+ * to the largest such region.</p>
+ */
+public class ApngCompositor {
+	public static final int DISPOSE_OP_NONE = 0;
+	public static final int DISPOSE_OP_BACKGROUND = 1;
+	public static final int DISPOSE_OP_PREVIOUS = 2;
+
+	public static final int BLEND_OP_SOURCE = 0;
+	public static final int BLEND_OP_OVER = 1;
+
+	private final int width;
+	private final int height;
+	private final int[] pixels;
+	private int[] saved = new int[0]; // area under the last frame, for DISPOSE_OP_PREVIOUS
+
+	private int count = 0; // frames composed since the last reset
+	private int lastDispose = DISPOSE_OP_NONE;
+	private int lastX, lastY, lastW, lastH;
+	private int dirtyLeft, dirtyTop, dirtyRight, dirtyBottom; // changed since clearDirty()
+
+	public ApngCompositor(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.pixels = new int[width * height];
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Gets the output buffer, width*height ARGB pixels, row by row.
+	 */
+	public int[] getPixels() {
+		return pixels;
+	}
+
+	/**
+	 * Gets the number of frames composed since the last reset.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Clears the buffer to transparent black, as before the first frame.
+	 */
+	public void reset() {
+		Arrays.fill(pixels, 0);
+		count = 0;
+		lastDispose = DISPOSE_OP_NONE;
+		markDirty(0, 0, width, height);
+	}
+
+	/**
+	 * Disposes the previous frame and draws the next one.
+	 *
+	 * @param src frame pixels, non-premultiplied ARGB
+	 * @param offset index of the frame's top left pixel in src
+	 * @param stride number of ints between rows in src
+	 * @param x x_offset of the fcTL chunk
+	 * @param y y_offset of the fcTL chunk
+	 * @param w width of the fcTL chunk
+	 * @param h height of the fcTL chunk
+	 * @param dispose dispose_op of the fcTL chunk
+	 * @param blend blend_op of the fcTL chunk
+	 * @throws IllegalArgumentException if the region is not inside the buffer
+	 */
+	public void compose(int[] src, int offset, int stride, int x, int y, int w, int h, int dispose, int blend) {
+		if(x < 0 || y < 0 || w <= 0 || h <= 0 || x + w > width || y + h > height) {
+			throw new IllegalArgumentException("Frame region outside the image");
+		}
+		dispose();
+		if(dispose == DISPOSE_OP_PREVIOUS && count == 0) {
+			// nothing to revert to before the first frame
+			dispose = DISPOSE_OP_BACKGROUND;
+		}
+		if(dispose == DISPOSE_OP_PREVIOUS) {
+			if(saved.length < w * h) {
+				saved = new int[w * h];
+			}
+			for(int row = 0; row < h; row++) {
+				System.arraycopy(pixels, (y + row) * width + x, saved, row * w, w);
+			}
+		}
+
+		final int[] dst = pixels;
+		for(int row = 0; row < h; row++) {
+			int s = offset + row * stride;
+			int d = (y + row) * width + x;
+			if(blend == BLEND_OP_SOURCE) {
+				System.arraycopy(src, s, dst, d, w);
+			} else {
+				for(int end = d + w; d < end; s++, d++) {
+					int c = src[s];
+					int a = c >>> 24;
+					if(a == 255) {
+						dst[d] = c;
+					} else if(a != 0) {
+						dst[d] = blendOver(c, dst[d]);
+					}
+				}
+			}
+		}
+
+		lastDispose = dispose;
+		lastX = x;
+		lastY = y;
+		lastW = w;
+		lastH = h;
+		count++;
+		markDirty(x, y, x + w, y + h);
+	}
+
+	/**
+	 * Applies the dispose op of the last frame composed.
+	 */
+	private void dispose() {
+		if(count == 0) {
+			return;
+		}
+		switch(lastDispose) {
+		case DISPOSE_OP_BACKGROUND:
+			for(int row = 0; row < lastH; row++) {
+				int d = (lastY + row) * width + lastX;
+				Arrays.fill(pixels, d, d + lastW, 0);
+			}
+			break;
+		case DISPOSE_OP_PREVIOUS:
+			for(int row = 0; row < lastH; row++) {
+				System.arraycopy(saved, row * lastW, pixels, (lastY + row) * width + lastX, lastW);
+			}
+			break;
+		default:
+			return;
+		}
+		markDirty(lastX, lastY, lastX + lastW, lastY + lastH);
+	}
+
+	/**
+	 * Composes a non-premultiplied ARGB color over another one.
+	 */
+	static int blendOver(int src, int dst) {
+		int sa = src >>> 24;
+		// weights scaled by 255 to keep precision at low alpha
+		int ws = sa * 255;
+		int wd = (dst >>> 24) * (255 - sa);
+		int wa = ws + wd;
+		int r = (((src >> 16) & 255) * ws + ((dst >> 16) & 255) * wd) / wa;
+		int g = (((src >> 8) & 255) * ws + ((dst >> 8) & 255) * wd) / wa;
+		int b = ((src & 255) * ws + (dst & 255) * wd) / wa;
+		return ((wa + 127) / 255 << 24) | (r << 16) | (g << 8) | b;
+	}
+
+	private void markDirty(int left, int top, int right, int bottom) {
+		if(!isDirty()) {
+			dirtyLeft = left;
+			dirtyTop = top;
+			dirtyRight = right;
+			dirtyBottom = bottom;
+		} else {
+			dirtyLeft = Math.min(dirtyLeft, left);
+			dirtyTop = Math.min(dirtyTop, top);
+			dirtyRight = Math.max(dirtyRight, right);
+			dirtyBottom = Math.max(dirtyBottom, bottom);
+		}
+	}
+
+	/**
+	 * Tells whether pixels changed since the last {@link #clearDirty()}.
+	 */
+	public boolean isDirty() {
+		return dirtyRight > dirtyLeft && dirtyBottom > dirtyTop;
+	}
+
+	public int getDirtyLeft() {
+		return dirtyLeft;
+	}
+
+	public int getDirtyTop() {
+		return dirtyTop;
+	}
+
+	public int getDirtyRight() {
+		return dirtyRight;
+	}
+
+	public int getDirtyBottom() {
+		return dirtyBottom;
+	}
+
+	public void clearDirty() {
+		dirtyLeft = dirtyTop = dirtyRight = dirtyBottom = 0;
+	}
+}
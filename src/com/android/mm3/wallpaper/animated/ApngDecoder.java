@@ -3,17 +3,19 @@ package com.android.mm3.wallpaper.animated;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.Vector;
-import java.util.zip.CRC32;
-import java.util.zip.DataFormatException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.zip.Inflater;
 
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
 
 /**
  * A PNGDecoder. The slick PNG decoder is based on this class :)
@@ -23,16 +25,14 @@ import android.graphics.Paint;
 
 public class ApngDecoder extends Decoder{
 
-    private static final byte[] SIGNATURE = {(byte)137, 80, 78, 71, 13, 10, 26, 10};
-
-    private static final int IHDR = 0x49484452;
-    private static final int PLTE = 0x504C5445;
-    private static final int tRNS = 0x74524E53;
-    private static final int IDAT = 0x49444154;
-    private static final int IEND = 0x49454E44;
-    private static final int acTL = 0x6163544C;
-    private static final int fcTL = 0x6663544C;
-    private static final int fdAT = 0x66644154;
+    private static final int IHDR = PngChunkReader.IHDR;
+    private static final int PLTE = PngChunkReader.PLTE;
+    private static final int tRNS = PngChunkReader.tRNS;
+    private static final int IDAT = PngChunkReader.IDAT;
+    private static final int IEND = PngChunkReader.IEND;
+    private static final int acTL = PngChunkReader.acTL;
+    private static final int fcTL = PngChunkReader.fcTL;
+    private static final int fdAT = PngChunkReader.fdAT;
     
     private static final byte COLOR_GREYSCALE = 0;
     private static final byte COLOR_TRUECOLOR = 2;
@@ -40,13 +40,11 @@ public class ApngDecoder extends Decoder{
     private static final byte COLOR_GREYALPHA = 4;
     private static final byte COLOR_TRUEALPHA = 6;  
     
-    private final InputStream input;
-    private final CRC32 crc;
-    private final byte[] buffer;
-    
-    private int chunkLength;
-    private int chunkType;
-    private int chunkRemaining;
+    /** delay in milliseconds of frames with a delay of 0, and of images without frames */
+    static final int DEFAULT_DELAY = 50;
+
+    private final PngChunkReader reader;
+    private final byte[] buffer = new byte[26]; // contents of the header chunks
     
     //private boolean animated = false;
     private int numFrames = 0;
@@ -62,13 +60,39 @@ public class ApngDecoder extends Decoder{
     private int delay_den = 0;
     private int dispose_op = 0;
     private int blend_op = 0;
+    private boolean clearsToBackground = false; // some frame is disposed to transparent black
+    private Config config = Config.ARGB_8888; // format of the frame bitmaps
+
+    private ExecutorService executor; // inflates frames in parallel, null when decoding in order
+    private int maxPending;
+    private LinkedList<ApngFrame> pendingFrames; // submitted frames, in file order
+    private final LinkedList<FrameWorker> workers = new LinkedList<FrameWorker>(); // idle worker contexts
+    private boolean workersClosed = false;
+    private ApngFrame readingFrame; // frame whose data chunks are being collected
+    private byte[] frameData = new byte[0]; // compressed data of readingFrame
+    private int frameDataLength = 0;
+    private final LinkedList<byte[]> dataBuffers = new LinkedList<byte[]>(); // frameData buffers back from the workers
+
+    private static final int SAMPLE_FRAMES = 8; // first frames the palette of quantized frames is built from
+    private static final int MAX_SAMPLES = 1 << 18; // pixels of those frames counted
+    private boolean quantize; // keep frames as palette indices
+    private int sampledFrames = 0;
+    private volatile ColorQuantizer quantizer; // set once the palette is built
+    private int[] framePalette; // colors of the frame indices
+    private int[] expandRegion = new int[0]; // indexed frame expanded for the compositor
+    private int[] scratchRegion = new int[0]; // frame decoded in order and indexed right away
     
+    /**
+     * One frame as stored in the file: only the fcTL region, composed at playback time.
+     */
     private static class ApngFrame {
-        public ApngFrame(Bitmap image) {
-        	this.image = image;
+        public ApngFrame(int[] pixels) {
+        	this.pixels = pixels;
         }
 
-        public Bitmap image;
+        public int[] pixels; // ch_width*ch_height ARGB pixels of the region
+        public byte[] indices; // the region as framePalette indices, instead of pixels
+        public Future<int[]> decoded; // pixels being decoded by the executor
         public int ch_width = 0;
         public int ch_height = 0;
         public int x_offset = 0;
@@ -83,75 +107,152 @@ public class ApngDecoder extends Decoder{
     
     private int width;
     private int height;
+    private int outWidth; // frame size after scaling to the target size
+    private int outHeight;
+    private ApngCompositor compositor; // playback canvas at full resolution
+    private int[] output; // canvas scaled to the output size, or the canvas itself
+    private Bitmap frameBitmap; // output shown on screen, reused for every frame
+    private int composed = -1; // frame currently in the canvas
+    private boolean animated = false; // acTL seen
+    private boolean frameControl = false; // fcTL seen, so IDAT is the first frame
+    private boolean frameDecoded = false; // data of the last fcTL decoded, more data chunks are leftovers
     private int bitdepth;
     private int colorType;
+    private boolean interlaced; // Adam7
+    private PngPixelDecoder.PassListener preview; // told about the passes of an interlaced first frame
     private int bytesPerPixel;
+    private PngPixelDecoder pixelDecoder;
+    private final Inflater inflater = new Inflater(); // reset for every frame decoded in order
     private byte[] palette;
     private byte[] paletteA;
     private byte[] transPixel;
     
-    private Paint paint = new Paint();
-    private Paint paintTransparentBlack = new Paint();
-
     
     public ApngDecoder(InputStream input) throws IOException {
-        this.input = input;
-        this.crc = new CRC32();
-        this.buffer = new byte[4096];
-        this.paint.setAntiAlias(true);
-        this.paintTransparentBlack.setAntiAlias(true);
-        this.paintTransparentBlack.setColor(Color.TRANSPARENT);
+        this(input, 0, 0, FILTER_BOX);
+    }
 
-        
-        readFully(buffer, 0, SIGNATURE.length);
-        if(!checkSignature(buffer)) {
-            throw new IOException("Not a valid PNG file");
-        }
-        
-        searchIEND: for(;;) {
-            openChunk();
-            switch (chunkType) {
-            case IHDR:
-            	readIHDR();
-            	break;
-            case IDAT:
-            	readIDAT();
-                break;
-            case PLTE:
-                readPLTE();
-                break;
-            case tRNS:
-                readtRNS();
-                break;
-            case acTL:
-            	readacTL();
-            	break;
-            case fcTL:
-            	readfcTL();
-            	break;
-            case fdAT:
-            	readfdAT();
-            	break;
-            case IEND:
-            	readIEND();
-            	break searchIEND;
+    /**
+     * Decodes the image with its frames scaled down to fit inside targetWidth*targetHeight.
+     * <p>Every frame is its own zlib stream, so on multi-core devices the chunks of a frame
+     * are only collected while the file is read and inflated on a worker pool; the frames
+     * are composed in order at playback time.</p>
+     *
+     * @see Decoder#setTargetSize(int, int, int)
+     */
+    public ApngDecoder(InputStream input, int targetWidth, int targetHeight, int filter) throws IOException {
+        this(input, targetWidth, targetHeight, filter, true);
+    }
+
+    /**
+     * @param verifyCrc false to skip the CRC32 of the chunks, for files known to be intact
+     * @see TrustedFileRegistry
+     */
+    public ApngDecoder(InputStream input, int targetWidth, int targetHeight, int filter, boolean verifyCrc) throws IOException {
+        this(input, targetWidth, targetHeight, filter, verifyCrc, null, false);
+    }
+
+    /**
+     * @param preview told about every Adam7 pass of the first frame of an interlaced file,
+     *          at full resolution, so a coarse image can be shown before the decode ends; may be null
+     */
+    public ApngDecoder(InputStream input, int targetWidth, int targetHeight, int filter, boolean verifyCrc,
+            PngPixelDecoder.PassListener preview) throws IOException {
+        this(input, targetWidth, targetHeight, filter, verifyCrc, preview, false);
+    }
+
+    /**
+     * @param preview Adam7 pass listener of the first frame, may be null
+     * @param quantize true to keep the frames as indices into one palette of at most 256
+     *          colors, built from the first frames; a quarter of the memory, some color loss
+     */
+    public ApngDecoder(InputStream input, int targetWidth, int targetHeight, int filter, boolean verifyCrc,
+            PngPixelDecoder.PassListener preview, boolean quantize) throws IOException {
+        setTargetSize(targetWidth, targetHeight, filter);
+        this.preview = preview;
+        this.quantize = quantize;
+        this.reader = new PngChunkReader(input, verifyCrc);
+
+        executor = getPool();
+        if(executor != null) {
+            maxPending = 2 * Runtime.getRuntime().availableProcessors();
+            pendingFrames = new LinkedList<ApngFrame>();
+        }
+        boolean complete = false;
+        try {
+            reader.readChunks(new PngChunkReader.Handler() {
+                public boolean onChunk(int type, int length) throws IOException {
+                    switch (type) {
+                    case IHDR:
+                    	readIHDR();
+                    	break;
+                    case IDAT:
+                    	readIDAT();
+                        break;
+                    case PLTE:
+                        readPLTE();
+                        break;
+                    case tRNS:
+                        readtRNS();
+                        break;
+                    case acTL:
+                    	readacTL();
+                    	break;
+                    case fcTL:
+                    	readfcTL();
+                    	break;
+                    case fdAT:
+                    	readfdAT();
+                    	break;
+                    case IEND:
+                    	readIEND();
+                    	return false;
+                    }
+                    return true;
+                }
+            });
+            while(pendingFrames != null && !pendingFrames.isEmpty()) {
+                finishNext();
+            }
+            if(quantize && quantizer == null && !frames.isEmpty()) {
+                // fewer frames than SAMPLE_FRAMES
+                buildFramePalette();
+            }
+            complete = true;
+        } finally {
+            if(executor != null) {
+                // the pool is shared, drop only the frames left after an error
+                for(ApngFrame f : pendingFrames) {
+                    f.decoded.cancel(true);
+                }
+                executor = null;
+                pendingFrames = null;
             }
-            closeChunk();
+            if(!complete) {
+                // no decoder is returned to be destroyed
+                releasePool();
+            }
+            endWorkers();
+            inflater.end();
+            frameData = null;
+            dataBuffers.clear();
         }
 
         if(colorType == COLOR_INDEXED && palette == null) {
+            releasePool();
             throw new IOException("Missing PLTE chunk");
         }
+        config = chooseConfig();
     }
 
     @Override
     public int getHeight() {
-        return height;
+        return outHeight;
     }
 
     @Override
     public int getWidth() {
-        return width;
+        return outWidth;
     }
     
     /**
@@ -178,6 +279,36 @@ public class ApngDecoder extends Decoder{
                 paletteA != null || transPixel != null;
     }
     
+    /**
+     * Checks if the image may have alpha values other than fully opaque and fully
+     * transparent. Images with an alpha channel are assumed to have them.
+     *
+     * @return true if the image has partial transparency
+     */
+    public boolean hasAlphaGradient() {
+        if(hasAlphaChannel()) {
+            return true;
+        }
+        if(paletteA != null) {
+            for(int i=0 ; i<paletteA.length ; i++) {
+                int a = paletteA[i] & 255;
+                if(a != 0 && a != 255) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Picks the frame bitmap format from the color type, the tRNS chunk and the dispose ops seen so far.
+     */
+    private Config chooseConfig() {
+        int paletteSize = (palette != null) ? palette.length/3 : 0;
+        long pixels = (long)Math.max(numFrames, 1) * width * height;
+        return Decoder.selectConfig(hasAlpha() || clearsToBackground, hasAlphaGradient(), paletteSize, pixels);
+    }
+
     public boolean isRGB() {
         return colorType == COLOR_TRUEALPHA ||
                 colorType == COLOR_TRUECOLOR ||
@@ -221,14 +352,15 @@ public class ApngDecoder extends Decoder{
      * @return delay in milliseconds
      */
     public int getDelay(int n) {
-    	if (numFrames <= 0) {
-    		return Integer.MAX_VALUE;
+    	if (frames == null || frames.isEmpty()) {
+    		return DEFAULT_DELAY;
     	}
-    	n = (n < 0) ? 0 : n % numFrames;
+    	// a truncated file has fewer frames than its acTL announced
+    	n = (n < 0) ? 0 : n % frames.size();
     	int den = frames.elementAt(n).delay_den;
     	int num = frames.elementAt(n).delay_num;
     	den = (den==0) ? 100 : den;
-    	int delay = (num==0) ? 50 : num * 1000 / den;
+    	int delay = (num==0) ? DEFAULT_DELAY : num * 1000 / den;
     	return delay;
     }
 
@@ -251,20 +383,86 @@ public class ApngDecoder extends Decoder{
 	}
 	
     /**
-     * Gets the image contents of frame n.
+     * Gets the image contents of frame n. Frames are composed from their stored regions
+     * into one canvas, so the returned bitmap is reused and only valid until the next call.
      * 
      * @return BufferedBitmap representation of frame, or null if n is invalid.
      */
     public Bitmap getFrame(int n) {
-        if (numFrames <= 0) {
-        	if(frames != null && frames.elementAt(0) != null) {
-        		return frames.elementAt(0).image;
-        	} else {
-        		return null;
-        	}
+        if (frames == null || frames.isEmpty()) {
+        	return null;
         }
-        n = n % numFrames;
-        return frames.elementAt(n).image;
+        n = (numFrames <= 0) ? 0 : n % numFrames;
+        if (n >= frames.size()) {
+        	n = frames.size() - 1;
+        }
+        if (n == composed) {
+        	return frameBitmap;
+        }
+        if (compositor == null) {
+        	compositor = new ApngCompositor(width, height);
+        	output = (outWidth == width && outHeight == height) ? compositor.getPixels() : new int[outWidth * outHeight];
+        	frameBitmap = Bitmap.createBitmap(outWidth, outHeight, config);
+        }
+        if (n < composed || composed < 0) {
+        	// going back, start over from the first frame
+        	compositor.reset();
+        	composed = -1;
+        }
+        while (composed < n) {
+        	composed++;
+        	ApngFrame f = frames.elementAt(composed);
+        	compositor.compose(framePixels(f), 0, f.ch_width, f.x_offset, f.y_offset, f.ch_width, f.ch_height, f.dispose_op, f.blend_op);
+        }
+        updateBitmap();
+        return frameBitmap;
+    }
+
+    /**
+     * Gets the region pixels of a frame, expanding indexed frames into a shared buffer.
+     */
+    private int[] framePixels(ApngFrame f) {
+        if (f.pixels != null) {
+        	return f.pixels;
+        }
+        final byte[] idx = f.indices;
+        final int[] pal = framePalette;
+        if (expandRegion.length < idx.length) {
+        	expandRegion = new int[idx.length];
+        }
+        final int[] region = expandRegion;
+        for (int i = 0, n = idx.length; i < n; i++) {
+        	region[i] = pal[idx[i] & 255];
+        }
+        return region;
+    }
+
+    /**
+     * Copies the changed part of the canvas into the frame bitmap, scaling it on the way.
+     */
+    private void updateBitmap() {
+        if (!compositor.isDirty()) {
+        	return;
+        }
+        int left = compositor.getDirtyLeft();
+        int top = compositor.getDirtyTop();
+        int right = compositor.getDirtyRight();
+        int bottom = compositor.getDirtyBottom();
+        if (output != compositor.getPixels()) {
+        	// output pixels whose source area touches the dirty rectangle
+        	left = (int)((long)left * outWidth / width);
+        	top = (int)((long)top * outHeight / height);
+        	right = Math.min(outWidth, (int)(((long)right * outWidth + width - 1) / width) + 1);
+        	bottom = Math.min(outHeight, (int)(((long)bottom * outHeight + height - 1) / height) + 1);
+        	scaleRect(compositor.getPixels(), width, height, output, outWidth, outHeight, left, top, right, bottom);
+        }
+        frameBitmap.setPixels(output, top * outWidth + left, outWidth, left, top, right - left, bottom - top);
+        compositor.clearDirty();
+    }
+
+    @Override
+    public boolean isFrameCacheable() {
+        return false;
     }
     
     
@@ -309,257 +507,72 @@ public class ApngDecoder extends Decoder{
 //    	return Bitmap.createBitmap(dest, width, height, Config.ARGB_8888);
 //    }
     
+    /**
+     * Decodes the data chunks of the current frame. Once the palette of quantized frames is
+     * known the pixels are only passed on to the quantizer, so they are decoded into a scratch
+     * region that grows to the largest fcTL and is reused by the next call; otherwise they
+     * get their own array, to be kept.
+     */
     public int[] decodeChunk(int type, int lwidth, int lheight) throws IOException {
-        final int lineSize = ((lwidth * bitdepth + 7) / 8) * bytesPerPixel;
-        int offset = 0;
-        byte[] curLine = new byte[lineSize+1];
-        byte[] prevLine = new byte[lineSize+1];
-        byte[] palLine = (bitdepth < 8) ? new byte[lwidth+1] : null;
-        
-        int[] dest = new int[lwidth * lheight];
-        
-        final Inflater inflater = new Inflater();
-        try {
-            for(int y=0 ; y<lheight ; y++) {
-                readChunkUnzip(inflater, curLine, 0, curLine.length, type);
-                unfilter(curLine, prevLine);
-
-                switch (colorType) {
-                case COLOR_TRUECOLOR:
-                    {
-	                    if(transPixel != null) {
-	                        byte tr = transPixel[1];
-	                        byte tg = transPixel[3];
-	                        byte tb = transPixel[5];
-	                        for(int i=1,n=curLine.length ; i<n ; i+=3) {
-	                            byte r = curLine[i];
-	                            byte g = curLine[i+1];
-	                            byte b = curLine[i+2];
-	                            byte a = (byte)0xFF;
-	                            if(r==tr && g==tg && b==tb) {
-	                                a = 0;
-	                            }
-	                            dest[offset++] = ARGBtoColor(a, r, g, b);
-	                        }
-	                    } else {
-	                        for(int i=1,n=curLine.length ; i<n ; i+=3) {
-	                        	dest[offset++] = ARGBtoColor((byte)0xFF, curLine[i], curLine[i+1], curLine[i+2]);
-	                        }
-	                    }
-                    }
-                    break;
-                case COLOR_TRUEALPHA:
-                    {
-	                    for(int i=1,n=curLine.length ; i<n ; i+=4) {
-	                    	dest[offset++] = ARGBtoColor(curLine[i+3], curLine[i], curLine[i+1], curLine[i+2]);
-	                    }
-                    }
-                    break;
-                case COLOR_GREYSCALE:
-                    {
-	                    for(int i=1,n=curLine.length ; i<n ; i+=1) {
-	                    	dest[offset++] = curLine[i] * 0x00010101;
-	                    }
-                    }
-                    break;
-                case COLOR_GREYALPHA:
-	                {
-	                    for(int i=1,n=curLine.length ; i<n ; i+=2) {
-	                    	dest[offset++] = curLine[i] * 0x00010101 + (curLine[i+1] << 6);
-	                    }
-	                }
-                    break;
-                case COLOR_INDEXED:
-                	{
-	                    switch(bitdepth) {
-	                        case 8: palLine = curLine; break;
-	                        case 4: expand4(curLine, palLine); break;
-	                        case 2: expand2(curLine, palLine); break;
-	                        case 1: expand1(curLine, palLine); break;
-	                        default: throw new UnsupportedOperationException("Unsupported bitdepth for this image");
-	                    }
-	                    if(paletteA != null) {
-	                        for(int i=1,n=curLine.length ; i<n ; i+=1) {
-	                            int idx = curLine[i] & 255;
-	                            byte r = palette[idx*3 + 0];
-	                            byte g = palette[idx*3 + 1];
-	                            byte b = palette[idx*3 + 2];
-	                            byte a = paletteA[idx];
-	                            dest[offset++] = ARGBtoColor(a, r, g, b);
-	                        }
-	                    } else {
-	                        for(int i=1,n=curLine.length ; i<n ; i+=1) {
-	                            int idx = curLine[i] & 255;
-	                            byte r = palette[idx*3 + 0];
-	                            byte g = palette[idx*3 + 1];
-	                            byte b = palette[idx*3 + 2];
-	                            byte a = (byte)0xFF;
-	                            dest[offset++] = ARGBtoColor(a, r, g, b);
-	                        }
-	                    }
-                	}
-                    break;
-                default:
-                    throw new UnsupportedOperationException("Not yet implemented");
-                }
-
-                byte[] tmp = curLine;
-                curLine = prevLine;
-                prevLine = tmp;
+        int[] dest;
+        if(quantizer != null) {
+            if(scratchRegion.length < lwidth * lheight) {
+                scratchRegion = new int[lwidth * lheight];
             }
-        } finally {
-            inflater.end();
-        }
+            dest = scratchRegion;
+        } else {
+            dest = new int[lwidth * lheight];
+        }
+        pixelDecoder.setPalette(palette, paletteA);
+        pixelDecoder.setTransparentPixel(transPixel);
+        inflater.reset();
+        PngPixelDecoder.PassListener listener = (frames == null || frames.isEmpty()) ? preview : null;
+        pixelDecoder.setPassListener(listener);
+        pixelDecoder.setProgressive(listener != null);
+        pixelDecoder.decode(inflater, reader.dataInput(type), lwidth, lheight, dest, 0, lwidth);
         return dest;
     }
     
-    private int ARGBtoColor(byte a, byte r, byte g, byte b) {
-    	return ((a      ) << 24) |
-                ((r & 255) << 16) |
-                ((g & 255) <<  8) |
-                ((b & 255)      );
-    }
-
-    private void expand4(byte[] src, byte[] dst) {
-        for(int i=1,n=dst.length ; i<n ; i+=2) {
-            int val = src[1 + (i >> 1)] & 255;
-            switch(n-i) {
-                default: dst[i+1] = (byte)(val & 15);
-                case 1:  dst[i  ] = (byte)(val >> 4);
-            }
-        }
-    }
-
-    private void expand2(byte[] src, byte[] dst) {
-        for(int i=1,n=dst.length ; i<n ; i+=4) {
-            int val = src[1 + (i >> 2)] & 255;
-            switch(n-i) {
-                default: dst[i+3] = (byte)((val     ) & 3);
-                case 3:  dst[i+2] = (byte)((val >> 2) & 3);
-                case 2:  dst[i+1] = (byte)((val >> 4) & 3);
-                case 1:  dst[i  ] = (byte)((val >> 6)    );
-            }
-        }
-    }
-
-    private void expand1(byte[] src, byte[] dst) {
-        for(int i=1,n=dst.length ; i<n ; i+=8) {
-            int val = src[1 + (i >> 3)] & 255;
-            switch(n-i) {
-                default: dst[i+7] = (byte)((val     ) & 1);
-                case 7:  dst[i+6] = (byte)((val >> 1) & 1);
-                case 6:  dst[i+5] = (byte)((val >> 2) & 1);
-                case 5:  dst[i+4] = (byte)((val >> 3) & 1);
-                case 4:  dst[i+3] = (byte)((val >> 4) & 1);
-                case 3:  dst[i+2] = (byte)((val >> 5) & 1);
-                case 2:  dst[i+1] = (byte)((val >> 6) & 1);
-                case 1:  dst[i  ] = (byte)((val >> 7)    );
-            }
-        }
-    }
-    
-    private void unfilter(byte[] curLine, byte[] prevLine) throws IOException {
-        switch (curLine[0]) {
-            case 0: // none
-                break;
-            case 1:
-                unfilterSub(curLine);
-                break;
-            case 2:
-                unfilterUp(curLine, prevLine);
-                break;
-            case 3:
-                unfilterAverage(curLine, prevLine);
-                break;
-            case 4:
-                unfilterPaeth(curLine, prevLine);
-                break;
-            default:
-                throw new IOException("invalide filter type in scanline: " + curLine[0]);
-        }
-    }
-    
-    private void unfilterSub(byte[] curLine) {
-        final int bpp = this.bytesPerPixel;
-        for(int i=bpp+1,n=curLine.length ; i<n ; ++i) {
-            curLine[i] += curLine[i-bpp];
-        }
-    }
-    
-    private void unfilterUp(byte[] curLine, byte[] prevLine) {
-        //final int bpp = this.bytesPerPixel;
-        for(int i=1,n=curLine.length ; i<n ; ++i) {
-            curLine[i] += prevLine[i];
-        }
-    }
-    
-    private void unfilterAverage(byte[] curLine, byte[] prevLine) {
-        final int bpp = this.bytesPerPixel;
-        
-        int i;
-        for(i=1 ; i<=bpp ; ++i) {
-            curLine[i] += (byte)((prevLine[i] & 0xFF) >>> 1);
-        }
-        for(int n=curLine.length ; i<n ; ++i) {
-            curLine[i] += (byte)(((prevLine[i] & 0xFF) + (curLine[i - bpp] & 0xFF)) >>> 1);
-        }
-    }
-    
-    private void unfilterPaeth(byte[] curLine, byte[] prevLine) {
-        final int bpp = this.bytesPerPixel;
-        
-        int i;
-        for(i=1 ; i<=bpp ; ++i) {
-            curLine[i] += prevLine[i];
-        }
-        for(int n=curLine.length ; i<n ; ++i) {
-            int a = curLine[i - bpp] & 255;
-            int b = prevLine[i] & 255;
-            int c = prevLine[i - bpp] & 255;
-            int p = a + b - c;
-            int pa = p - a; if(pa < 0) pa = -pa;
-            int pb = p - b; if(pb < 0) pb = -pb;
-            int pc = p - c; if(pc < 0) pc = -pc;
-            if(pa<=pb && pa<=pc)
-                c = a;
-            else if(pb<=pc)
-                c = b;
-            curLine[i] += (byte)c;
-        }
-    }
-      
     private void readIHDR() throws IOException {
-        checkChunkLength(13);
-        readChunk(buffer, 0, 13);
+        reader.checkChunkLength(13);
+        reader.readChunk(buffer, 0, 13);
         width = readInt(buffer, 0);
         height = readInt(buffer, 4);
+        outWidth = getScaledWidth(width, height);
+        outHeight = getScaledHeight(width, height);
         bitdepth = buffer[8] & 255;
         colorType = buffer[9] & 255;
         
         switch (colorType) {
         case COLOR_GREYSCALE:
-            if(bitdepth != 8) {
+            switch(bitdepth) {
+            case 16:
+                bytesPerPixel = 2;
+                break;
+            case 8: case 4: case 2: case 1:
+                bytesPerPixel = 1;
+                break;
+            default:
                 throw new IOException("Unsupported bit depth: " + bitdepth);
             }
-            bytesPerPixel = 1;
             break;
         case COLOR_GREYALPHA:
-            if(bitdepth != 8) {
+            if(bitdepth != 8 && bitdepth != 16) {
                 throw new IOException("Unsupported bit depth: " + bitdepth);
             }
-            bytesPerPixel = 2;
+            bytesPerPixel = 2 * bitdepth / 8;
             break;
         case COLOR_TRUECOLOR:
-            if(bitdepth != 8) {
+            if(bitdepth != 8 && bitdepth != 16) {
                 throw new IOException("Unsupported bit depth: " + bitdepth);
             }
-            bytesPerPixel = 3;
+            bytesPerPixel = 3 * bitdepth / 8;
             break;
         case COLOR_TRUEALPHA:
-            if(bitdepth != 8) {
+            if(bitdepth != 8 && bitdepth != 16) {
                 throw new IOException("Unsupported bit depth: " + bitdepth);
             }
-            bytesPerPixel = 4;
+            bytesPerPixel = 4 * bitdepth / 8;
             break;
         case COLOR_INDEXED:
             switch(bitdepth) {
@@ -580,31 +593,34 @@ public class ApngDecoder extends Decoder{
         if(buffer[11] != 0) {
             throw new IOException("unsupported filtering method");
         }
-        if(buffer[12] != 0) {
+        if(buffer[12] != 0 && buffer[12] != 1) {
             throw new IOException("unsupported interlace method");
         }
+        interlaced = buffer[12] == 1;
+        pixelDecoder = new PngPixelDecoder(colorType, bitdepth, interlaced);
     }
 
     private void readPLTE() throws IOException {
+        int chunkLength = reader.getChunkLength();
         int paletteEntries = chunkLength / 3;
         if(paletteEntries < 1 || paletteEntries > 256 || (chunkLength % 3) != 0) {
             throw new IOException("PLTE chunk has wrong length");
         }
         palette = new byte[paletteEntries*3];
-        readChunk(palette, 0, palette.length);
+        reader.readChunk(palette, 0, palette.length);
     }
 
     private void readtRNS() throws IOException {
         switch (colorType) {
         case COLOR_GREYSCALE:
-            checkChunkLength(2);
+            reader.checkChunkLength(2);
             transPixel = new byte[2];
-            readChunk(transPixel, 0, 2);
+            reader.readChunk(transPixel, 0, 2);
             break;
         case COLOR_TRUECOLOR:
-            checkChunkLength(6);
+            reader.checkChunkLength(6);
             transPixel = new byte[6];
-            readChunk(transPixel, 0, 6);
+            reader.readChunk(transPixel, 0, 6);
             break;
         case COLOR_INDEXED:
             if(palette == null) {
@@ -612,7 +628,7 @@ public class ApngDecoder extends Decoder{
             }
             paletteA = new byte[palette.length/3];
             Arrays.fill(paletteA, (byte)0xFF);
-            readChunk(paletteA, 0, paletteA.length);
+            reader.readChunk(paletteA, 0, paletteA.length);
             break;
         default:
             // just ignore it
@@ -620,17 +636,19 @@ public class ApngDecoder extends Decoder{
     }
     
     private void readacTL() throws IOException {
-        checkChunkLength(8);
-        readChunk(buffer, 0, 8);
+        reader.checkChunkLength(8);
+        reader.readChunk(buffer, 0, 8);
     	//animated = true;
     	numFrames = readInt(buffer, 0);
     	numPlays = readInt(buffer, 4);
+    	animated = true;
     }
 
 
     private void readfcTL() throws IOException {
-        checkChunkLength(26);
-        readChunk(buffer, 0, 26);
+        submitFrame();
+        reader.checkChunkLength(26);
+        reader.readChunk(buffer, 0, 26);
         //sequence_number = readInt(buffer, 0);
     	ch_width        = readInt(buffer, 4);
     	ch_height       = readInt(buffer, 8);
@@ -640,170 +658,336 @@ public class ApngDecoder extends Decoder{
     	delay_den       = readShort(buffer, 22);
     	dispose_op      = buffer[24];
     	blend_op        = buffer[25];
+    	if(dispose_op == 1) {
+    		clearsToBackground = true;
+    	}
+    	frameControl = true;
+    	frameDecoded = false;
     }
 
     private void readfdAT() throws IOException {
-        readChunk(buffer, 0, 4);
+        reader.readChunkFully(buffer, 0, 4);
         //int data_sequence_number = readInt(buffer, 0);
-    	int[] dest = decodeChunk(fdAT, ch_width, ch_height);
-    	Bitmap img = Bitmap.createBitmap(dest, ch_width, ch_height, Config.ARGB_8888);
-    	ApngFrame prev = frames.lastElement();
-    	Bitmap newimg = prev.image.copy(Config.ARGB_8888, true);
+    	if(frames == null) {
+    		throw new IOException("fdAT chunk before IDAT chunk");
+    	}
     	if(dispose_op != 0 && dispose_op != 1 && dispose_op != 2) {
     		throw new IOException("Incorrect frame dispose: " + Integer.toHexString(dispose_op));
     	}
-    	if(blend_op == 0) {
-    		if(dispose_op == 0) {
-    		} else if(dispose_op == 1) {
-    		} else if(dispose_op == 2) {
-    		}
-    		newimg.setPixels(dest, 0, ch_width, x_offset, y_offset, ch_width, ch_height);
-    	} else if(blend_op == 1){
-    		if(dispose_op == 0) {
-        		Canvas c = new Canvas(newimg);
-        		c.drawBitmap(img, x_offset, y_offset, this.paint);
-    		} else if(dispose_op == 1) {
-    			Arrays.fill(dest, 0);
-    			newimg.setPixels(dest, 0, ch_width, x_offset, y_offset, ch_width, ch_height);
-        		Canvas c = new Canvas(newimg);
-        		c.drawBitmap(img, x_offset, y_offset, this.paint);
-    		} else if(dispose_op == 2) {
-        		Canvas c = new Canvas(newimg);
-        		c.drawBitmap(img, x_offset, y_offset, this.paint);
-    		}
-    	} else {
+    	if(blend_op != 0 && blend_op != 1) {
     		throw new IOException("Incorrect frame blend: " + Integer.toHexString(blend_op));
     	}
-    	ApngFrame f = new ApngFrame(newimg);
-    	f.ch_width   = ch_width;
-    	f.ch_height  = ch_height;
-    	f.x_offset   = x_offset;
-    	f.y_offset   = y_offset;
-    	f.delay_num  = delay_num;
-    	f.delay_den  = delay_den;
-    	f.dispose_op = dispose_op;
-    	f.blend_op   = blend_op;
-    	frames.add(f);
+    	if(x_offset < 0 || y_offset < 0 || ch_width <= 0 || ch_height <= 0
+    			|| x_offset + ch_width > width || y_offset + ch_height > height) {
+    		throw new IOException("Frame region outside the image");
+    	}
+    	if(executor != null) {
+    		if(readingFrame == null) {
+    			readingFrame = newFrame(null, ch_width, ch_height, x_offset, y_offset);
+    			frames.add(readingFrame);
+    		}
+    		collectChunk();
+    		return;
+    	}
+    	if(frameDecoded) {
+    		// the frame ended before its last fdAT chunk; the reader skips the rest
+    		return;
+    	}
+    	int[] dest = decodeChunk(fdAT, ch_width, ch_height);
+    	addFrame(dest, ch_width, ch_height, x_offset, y_offset);
+    	frameDecoded = true;
     }
     
     private void readIDAT() throws IOException {
-    	int[] dest = decodeChunk(IDAT, width, height);
-    	Bitmap img = Bitmap.createBitmap(dest, width, height, Config.ARGB_8888);
+    	if(frameDecoded) {
+    		// the image ended before its last IDAT chunk; the reader skips the rest
+    		return;
+    	}
+    	if(readingFrame != null) {
+    		// next IDAT chunk of the frame being collected
+    		collectChunk();
+    		return;
+    	}
     	if(frames != null) {
     		frames.clear();
     	} else {
     		frames = new Vector<ApngFrame>();
     	}
-    	ApngFrame f = new ApngFrame(img);
-    	f.ch_width   = ch_width;
-    	f.ch_height  = ch_height;
-    	f.x_offset   = x_offset;
-    	f.y_offset   = y_offset;
+    	if(animated && !frameControl) {
+    		// default image without fcTL, not part of the animation; the reader skips it
+    		return;
+    	}
+    	if(executor != null) {
+    		readingFrame = newFrame(null, width, height, 0, 0);
+    		frames.add(readingFrame);
+    		collectChunk();
+    		return;
+    	}
+    	int[] dest = decodeChunk(IDAT, width, height);
+    	addFrame(dest, width, height, 0, 0);
+    	frameDecoded = true;
+    }
+
+    /**
+     * Adds a frame decoded in order by {@link #decodeChunk(int, int, int)}.
+     */
+    private void addFrame(int[] dest, int w, int h, int x, int y) throws IOException {
+    	if(dest == scratchRegion) {
+    		ApngFrame f = newFrame(null, w, h, x, y);
+    		f.indices = new byte[w * h];
+    		quantizer.map(dest, f.indices, f.indices.length);
+    		frames.add(f);
+    		return;
+    	}
+    	frames.add(newFrame(dest, w, h, x, y));
+    	frameDone(frames.lastElement());
+    }
+
+    private ApngFrame newFrame(int[] pixels, int w, int h, int x, int y) {
+    	ApngFrame f = new ApngFrame(pixels);
+    	f.ch_width   = w;
+    	f.ch_height  = h;
+    	f.x_offset   = x;
+    	f.y_offset   = y;
     	f.delay_num  = delay_num;
     	f.delay_den  = delay_den;
     	f.dispose_op = dispose_op;
     	f.blend_op   = blend_op;
-    	frames.add(f);
+    	return f;
     }
     
     private void readIEND() throws IOException {
+        submitFrame();
     }
-    
-    private void closeChunk() throws IOException {
-        if(chunkRemaining > 0) {
-            // just skip the rest and the CRC
-            skip(chunkRemaining + 4);
-        } else {
-            readFully(buffer, 0, 4);
-            int expectedCrc = readInt(buffer, 0);
-            int computedCrc = (int)crc.getValue();
-            if(computedCrc != expectedCrc) {
-                throw new IOException("Invalid CRC");
+
+    /**
+     * Appends the rest of the current chunk to the compressed data of readingFrame.
+     */
+    private void collectChunk() throws IOException {
+        int remaining = reader.getRemaining();
+        int needed = frameDataLength + remaining;
+        if(frameData.length < needed) {
+            byte[] data = new byte[Math.max(needed, frameData.length * 2)];
+            System.arraycopy(frameData, 0, data, 0, frameDataLength);
+            frameData = data;
+        }
+        frameDataLength += reader.readChunk(frameData, frameDataLength, remaining);
+    }
+
+    /**
+     * Submits the inflate of readingFrame to the executor. Finished frames at the head of
+     * the queue are taken right away; when too many are pending this waits for the oldest.
+     */
+    private void submitFrame() throws IOException {
+        final ApngFrame f = readingFrame;
+        if(f == null) {
+            return;
+        }
+        readingFrame = null;
+        // hand the buffer over to the task and collect the next frame into a returned one
+        final byte[] data = frameData;
+        final int length = frameDataLength;
+        final PngPixelDecoder.PassListener listener = (frames.size() == 1) ? preview : null;
+        synchronized(dataBuffers) {
+            frameData = dataBuffers.isEmpty() ? new byte[data.length] : dataBuffers.removeFirst();
+        }
+        frameDataLength = 0;
+        f.decoded = executor.submit(new Callable<int[]>() {
+            public int[] call() throws IOException {
+                FrameWorker w = takeWorker();
+                try {
+                    ColorQuantizer q = quantizer;
+                    int[] pixels = w.decode(data, length, f.ch_width, f.ch_height, listener, q != null);
+                    if(q != null) {
+                        byte[] idx = new byte[f.ch_width * f.ch_height];
+                        q.map(pixels, idx, idx.length);
+                        f.indices = idx;
+                        return null;
+                    }
+                    return pixels;
+                } finally {
+                    releaseWorker(w);
+                    synchronized(dataBuffers) {
+                        dataBuffers.addLast(data);
+                    }
+                }
             }
+        });
+        pendingFrames.addLast(f);
+        while(!pendingFrames.isEmpty()
+                && (pendingFrames.size() > maxPending || pendingFrames.getFirst().decoded.isDone())) {
+            finishNext();
         }
-        chunkRemaining = 0;
-        chunkLength = 0;
-        chunkType = 0;
     }
-    
-    private void openChunk() throws IOException {
-        readFully(buffer, 0, 8);
-        chunkLength = readInt(buffer, 0);
-        chunkType = readInt(buffer, 4);
-        chunkRemaining = chunkLength;
-        crc.reset();
-        crc.update(buffer, 4, 4);   // only chunkType
+
+    /**
+     * Waits for the oldest pending frame and keeps its pixels.
+     */
+    private void finishNext() throws IOException {
+        ApngFrame f = pendingFrames.removeFirst();
+        int[] pixels = waitFor(f.decoded);
+        if(pixels != null) {
+            f.pixels = pixels;
+        }
+        f.decoded = null;
+        frameDone(f);
     }
-    
-    private void openChunk(int expected) throws IOException {
-        openChunk();
-        if(chunkType != expected) {
-            throw new IOException("Expected chunk: " + Integer.toHexString(expected));
+
+    private static <T> T waitFor(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Frame data error: " + e.getCause());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
         }
     }
 
-    private void checkChunkLength(int expected) throws IOException {
-        if(chunkLength != expected) {
-            throw new IOException("Chunk has wrong size");
+    /**
+     * Moves a decoded frame to indexed storage once the palette is known. The palette is
+     * built when the first SAMPLE_FRAMES frames are in.
+     */
+    private void frameDone(ApngFrame f) throws IOException {
+        if(!quantize || f.pixels == null) {
+            return;
+        }
+        if(quantizer != null) {
+            indexFrame(f);
+        } else if(++sampledFrames >= SAMPLE_FRAMES) {
+            buildFramePalette();
         }
     }
-    
-    private int readChunk(byte[] buffer, int offset, int length) throws IOException {
-        if(length > chunkRemaining) {
-            length = chunkRemaining;
-        }
-        readFully(buffer, offset, length);
-        crc.update(buffer, offset, length);
-        chunkRemaining -= length;
-        return length;
-    }
-
-    private void refillInflater(Inflater inflater, int type) throws IOException {
-    	int offset = 0;
-        while(chunkRemaining == 0) {
-            closeChunk();
-            openChunk(type);
-            if(type == fdAT) {
-                offset = 4;
+
+    private void indexFrame(ApngFrame f) {
+        byte[] idx = new byte[f.pixels.length];
+        quantizer.map(f.pixels, idx, idx.length);
+        f.indices = idx;
+        f.pixels = null;
+    }
+
+    /**
+     * Builds the palette from samples of the frames decoded so far, one histogram per
+     * pool thread, and indexes those frames.
+     */
+    private void buildFramePalette() throws IOException {
+        final Vector<ApngFrame> sample = new Vector<ApngFrame>();
+        long total = 0;
+        for(int i=0 ; i<frames.size() ; i++) {
+            ApngFrame f = frames.elementAt(i);
+            if(f.pixels != null) {
+                sample.add(f);
+                total += f.pixels.length;
             }
         }
-        int read = readChunk(buffer, 0, buffer.length);
-        inflater.setInput(buffer, offset, read-offset);
-    }
-    
-    private void readChunkUnzip(Inflater inflater, byte[] buffer, int offset, int length, int type) throws IOException {
-        assert(buffer != this.buffer);
-        try {
-            do {
-                int read = inflater.inflate(buffer, offset, length);
-                if(read <= 0) {
-                    if(inflater.finished()) {
-                        throw new EOFException();
-                    }
-                    if(inflater.needsInput()) {
-                        refillInflater(inflater, type);
-                    } else {
-                        throw new IOException("Can't inflate " + length + " bytes");
+        final int step = (int)Math.max(1, total / MAX_SAMPLES);
+        final int tasks = (executor != null) ? Math.min(maxPending / 2, sample.size()) : 1;
+        ColorQuantizer q;
+        if(tasks <= 1) {
+            q = new ColorQuantizer();
+            for(int i=0 ; i<sample.size() ; i++) {
+                int[] px = sample.elementAt(i).pixels;
+                q.addSamples(px, 0, px.length, step);
+            }
+        } else {
+            Vector<Future<ColorQuantizer>> parts = new Vector<Future<ColorQuantizer>>();
+            for(int t=0 ; t<tasks ; t++) {
+                final int first = t;
+                parts.add(executor.submit(new Callable<ColorQuantizer>() {
+                    public ColorQuantizer call() {
+                        ColorQuantizer part = new ColorQuantizer();
+                        for(int i=first ; i<sample.size() ; i+=tasks) {
+                            int[] px = sample.elementAt(i).pixels;
+                            part.addSamples(px, 0, px.length, step);
+                        }
+                        return part;
                     }
-                } else {
-                    offset += read;
-                    length -= read;
-                }
-            } while(length > 0);
-        } catch (DataFormatException ex) {
-            throw (IOException)(new IOException("inflate error").initCause(ex));
+                }));
+            }
+            q = waitFor(parts.elementAt(0));
+            for(int t=1 ; t<tasks ; t++) {
+                q.merge(waitFor(parts.elementAt(t)));
+            }
+        }
+        if(q.getSampleCount() == 0) {
+            // nothing but transparent pixels to build the palette from
+            quantize = false;
+            return;
+        }
+        framePalette = q.buildPalette();
+        quantizer = q;
+        for(int i=0 ; i<sample.size() ; i++) {
+            indexFrame(sample.elementAt(i));
         }
     }
 
-    private void readFully(byte[] buffer, int offset, int length) throws IOException {
-        do {
-            int read = input.read(buffer, offset, length);
-            if(read < 0) {
-                throw new EOFException();
+    private FrameWorker takeWorker() {
+        synchronized(workers) {
+            if(!workers.isEmpty()) {
+                return workers.removeFirst();
             }
-            offset += read;
-            length -= read;
-        } while(length > 0);
+        }
+        return new FrameWorker();
+    }
+
+    private void releaseWorker(FrameWorker w) {
+        synchronized(workers) {
+            if(!workersClosed) {
+                workers.addLast(w);
+                return;
+            }
+        }
+        w.inflater.end();
+    }
+
+    private void endWorkers() {
+        synchronized(workers) {
+            workersClosed = true;
+            while(!workers.isEmpty()) {
+                workers.removeFirst().inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Inflater and pixel decoder of one pool thread. The whole zlib stream of a frame is
+     * given at once, so running out of input means the data is truncated.
+     */
+    private class FrameWorker implements PngPixelDecoder.Input {
+        final Inflater inflater = new Inflater();
+        final PngPixelDecoder pixelDecoder = new PngPixelDecoder(colorType, bitdepth, interlaced);
+        int[] scratch = new int[0]; // frames indexed right away, grows to the largest fcTL
+
+        FrameWorker() {
+            pixelDecoder.setPalette(palette, paletteA);
+            pixelDecoder.setTransparentPixel(transPixel);
+        }
+
+        /**
+         * @param temporary true if the pixels are only needed until the next decode, to be
+         *          indexed, so the worker's scratch region can take them
+         */
+        int[] decode(byte[] data, int length, int w, int h, PngPixelDecoder.PassListener listener,
+                boolean temporary) throws IOException {
+            int[] dest;
+            if(temporary) {
+                if(scratch.length < w * h) {
+                    scratch = new int[w * h];
+                }
+                dest = scratch;
+            } else {
+                dest = new int[w * h];
+            }
+            pixelDecoder.setPassListener(listener);
+            pixelDecoder.setProgressive(listener != null);
+            inflater.reset();
+            inflater.setInput(data, 0, length);
+            pixelDecoder.decode(inflater, this, w, h, dest, 0, w);
+            return dest;
+        }
+
+        public void refill(Inflater inflater) throws IOException {
+            throw new EOFException();
+        }
     }
     
     private int readInt(byte[] buffer, int offset) {
@@ -819,23 +1003,4 @@ public class ApngDecoder extends Decoder{
                 ((buffer[offset  ]      ) << 8) |
                 ((buffer[offset+1] & 255)      );
     }
-
-    private void skip(long amount) throws IOException {
-        while(amount > 0) {
-            long skipped = input.skip(amount);
-            if(skipped < 0) {
-                throw new EOFException();
-            }
-            amount -= skipped;
-        }
-    }
-    
-    private static boolean checkSignature(byte[] buffer) {
-        for(int i=0 ; i<SIGNATURE.length ; i++) {
-            if(buffer[i] != SIGNATURE[i]) {
-                return false;
-            }
-        }
-        return true;
-    }
 }
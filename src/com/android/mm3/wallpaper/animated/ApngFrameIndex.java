@@ -0,0 +1,412 @@
+package com.android.mm3.wallpaper.animated;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * Frame table of a PNG or APNG file built by walking its chunks.
+ * <p>Image data is skipped, not inflated: for every frame the index keeps its fcTL values
+ * and the file offset and length of each of its IDAT/fdAT data pieces (without the fdAT
+ * sequence number), so any frame can later be decoded by reading straight from those
+ * offsets. Per-frame values are kept in primitive arrays indexed by frame number.</p>
+ * <p>A plain PNG is indexed as a single frame covering the whole image. A default image
+ * that has no fcTL is not part of the animation and is left out.</p>
+ */
+public class ApngFrameIndex {
+	static final public String TAG = "ApngFrameIndex";
+
+	private static final int IHDR = PngChunkReader.IHDR;
+	private static final int PLTE = PngChunkReader.PLTE;
+	private static final int tRNS = PngChunkReader.tRNS;
+	private static final int IDAT = PngChunkReader.IDAT;
+	private static final int IEND = PngChunkReader.IEND;
+	private static final int acTL = PngChunkReader.acTL;
+	private static final int fcTL = PngChunkReader.fcTL;
+	private static final int fdAT = PngChunkReader.fdAT;
+
+	private int width;
+	private int height;
+	private int bitdepth;
+	private int colorType;
+	private int interlace;
+	private byte[] palette;
+	private byte[] paletteA; // tRNS of an indexed image
+	private byte[] transPixel; // tRNS of a greyscale or truecolor image
+	private boolean animated;
+	private int numPlays;
+	private boolean clearsToBackground;
+
+	private int count;
+	private int[] x = new int[16];
+	private int[] y = new int[16];
+	private int[] w = new int[16];
+	private int[] h = new int[16];
+	private int[] delay = new int[16]; // milliseconds
+	private byte[] dispose = new byte[16];
+	private byte[] blend = new byte[16];
+	private int[] firstData = new int[17]; // frame n owns data pieces firstData[n] .. firstData[n+1]-1
+
+	private int dataCount;
+	private long[] dataOffset = new long[16];
+	private int[] dataLength = new int[16];
+
+	private InputStream in; // stream while scanning
+	private boolean frameOpen = false; // fcTL read, data belongs to frame count-1
+
+	private ApngFrameIndex() {
+	}
+
+	/**
+	 * Scans a PNG file.
+	 *
+	 * @return the index, or null if the file can't be read or is not a PNG
+	 */
+	public static ApngFrameIndex scan(String path) {
+		InputStream is = null;
+		try {
+			is = new FileInputStream(path); // PngChunkReader buffers
+			return scan(is);
+		} catch (Exception e) {
+			Log.e(TAG, "scan exception " + e);
+			return null;
+		} finally {
+			try {
+				if(is != null) {
+					is.close();
+				}
+			} catch (Exception e) {}
+		}
+	}
+
+	/**
+	 * Scans a PNG stream from its first byte. The stream is not closed. A file cut off
+	 * after some complete frames is accepted with those frames.
+	 *
+	 * @throws IOException if the stream is not a PNG or has no image data
+	 */
+	public static ApngFrameIndex scan(InputStream is) throws IOException {
+		ApngFrameIndex index = new ApngFrameIndex();
+		index.in = is;
+		try {
+			index.readChunks();
+		} catch (EOFException e) {
+			Log.w(TAG, "PNG without IEND, " + index.count + " frames");
+			if(index.count > 0 && index.firstData[index.count] == index.firstData[index.count - 1]) {
+				index.count--; // last frame has no data
+			}
+		} finally {
+			index.in = null;
+		}
+		if(index.count == 0) {
+			throw new IOException("No image data");
+		}
+		return index;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getBitDepth() {
+		return bitdepth;
+	}
+
+	public int getColorType() {
+		return colorType;
+	}
+
+	public boolean isInterlaced() {
+		return interlace != 0;
+	}
+
+	public byte[] getPalette() {
+		return palette;
+	}
+
+	public byte[] getPaletteAlpha() {
+		return paletteA;
+	}
+
+	public byte[] getTransparentPixel() {
+		return transPixel;
+	}
+
+	public boolean isAnimated() {
+		return animated;
+	}
+
+	/**
+	 * Gets the number of plays. A count of 0 means repeat indefinitely.
+	 */
+	public int getLoopCount() {
+		return numPlays;
+	}
+
+	public int getFrameCount() {
+		return count;
+	}
+
+	public int getX(int n) {
+		return x[n];
+	}
+
+	public int getY(int n) {
+		return y[n];
+	}
+
+	public int getFrameWidth(int n) {
+		return w[n];
+	}
+
+	public int getFrameHeight(int n) {
+		return h[n];
+	}
+
+	public int getDelay(int n) {
+		return delay[n];
+	}
+
+	public int getDispose(int n) {
+		return dispose[n];
+	}
+
+	public int getBlend(int n) {
+		return blend[n];
+	}
+
+	/**
+	 * Gets the number of data pieces of frame n.
+	 */
+	public int getDataCount(int n) {
+		return firstData[n + 1] - firstData[n];
+	}
+
+	/**
+	 * Gets the file offset of the i-th data piece of frame n.
+	 */
+	public long getDataOffset(int n, int i) {
+		return dataOffset[firstData[n] + i];
+	}
+
+	/**
+	 * Gets the length of the i-th data piece of frame n.
+	 */
+	public int getDataLength(int n, int i) {
+		return dataLength[firstData[n] + i];
+	}
+
+	/**
+	 * Tells whether the composed frames may contain transparent pixels.
+	 */
+	public boolean hasAlpha() {
+		return colorType == PngPixelDecoder.COLOR_TRUEALPHA || colorType == PngPixelDecoder.COLOR_GREYALPHA
+				|| paletteA != null || transPixel != null || clearsToBackground;
+	}
+
+	/**
+	 * Tells whether the image may have alpha values other than fully opaque and fully transparent.
+	 */
+	public boolean hasAlphaGradient() {
+		if(colorType == PngPixelDecoder.COLOR_TRUEALPHA || colorType == PngPixelDecoder.COLOR_GREYALPHA) {
+			return true;
+		}
+		if(paletteA != null) {
+			for(int i = 0; i < paletteA.length; i++) {
+				int a = paletteA[i] & 255;
+				if(a != 0 && a != 255) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	public int getPaletteSize() {
+		return (palette != null) ? palette.length / 3 : 0;
+	}
+
+	/**
+	 * Gets the number of bytes ApngDecoder keeps for all frames, one int per pixel of
+	 * each frame region.
+	 */
+	public long getStoredSize() {
+		long size = 0;
+		for(int i = 0; i < count; i++) {
+			size += (long)w[i] * h[i] * 4;
+		}
+		return size;
+	}
+
+	/**
+	 * Tells whether frame n can be composed on a cleared canvas and give the same result
+	 * as composing all frames before it: it is the first frame, it replaces the whole
+	 * canvas, or the frame before it cleared the whole canvas.
+	 */
+	public boolean isKeyFrame(int n) {
+		if(n == 0) {
+			return true;
+		}
+		if(blend[n] == ApngCompositor.BLEND_OP_SOURCE && isFullFrame(n)) {
+			return true;
+		}
+		return dispose[n - 1] == ApngCompositor.DISPOSE_OP_BACKGROUND && isFullFrame(n - 1);
+	}
+
+	/**
+	 * Gets the frame to start composing from to show frame n: the closest key frame at or
+	 * before n. A key frame that disposes to the previous canvas only counts as frame n
+	 * itself, since the frames after it would go back to a canvas that was never composed.
+	 */
+	public int getSeekStart(int n) {
+		for(int k = n; k > 0; k--) {
+			if(isKeyFrame(k) && (k == n || dispose[k] != ApngCompositor.DISPOSE_OP_PREVIOUS)) {
+				return k;
+			}
+		}
+		return 0;
+	}
+
+	private boolean isFullFrame(int n) {
+		return x[n] == 0 && y[n] == 0 && w[n] == width && h[n] == height;
+	}
+
+	private void readChunks() throws IOException {
+		// CRCs are left to the decoders, the index only needs the layout
+		final PngChunkReader reader = new PngChunkReader(in, false);
+		final byte[] b = new byte[26];
+		reader.readChunks(new PngChunkReader.Handler() {
+			public boolean onChunk(int type, int length) throws IOException {
+				long at = reader.getChunkOffset();
+				switch(type) {
+				case IHDR:
+					reader.readChunkFully(b, 0, 13);
+					width = PngChunkReader.getInt(b, 0);
+					height = PngChunkReader.getInt(b, 4);
+					bitdepth = b[8] & 255;
+					colorType = b[9] & 255;
+					interlace = b[12] & 255;
+					break;
+				case PLTE:
+					palette = new byte[length - length % 3];
+					reader.readChunkFully(palette, 0, palette.length);
+					break;
+				case tRNS:
+					if(colorType == PngPixelDecoder.COLOR_INDEXED) {
+						int n = (palette != null) ? palette.length / 3 : 256;
+						paletteA = new byte[n];
+						Arrays.fill(paletteA, (byte)0xFF);
+						reader.readChunkFully(paletteA, 0, Math.min(length, n));
+					} else {
+						transPixel = new byte[length];
+						reader.readChunkFully(transPixel, 0, length);
+					}
+					break;
+				case acTL:
+					reader.readChunkFully(b, 0, 8);
+					animated = true;
+					numPlays = PngChunkReader.getInt(b, 4);
+					break;
+				case fcTL:
+					reader.readChunkFully(b, 0, 26);
+					addFrame(PngChunkReader.getInt(b, 12), PngChunkReader.getInt(b, 16), PngChunkReader.getInt(b, 4), PngChunkReader.getInt(b, 8),
+							PngChunkReader.getShort(b, 20), PngChunkReader.getShort(b, 22), b[24], b[25]);
+					break;
+				case IDAT:
+					if(!animated && count == 0) {
+						addFrame(0, 0, width, height, 0, 0, 0, 0);
+					}
+					reader.skipChunk(); // added only once the whole chunk is there
+					addData(at, length, type);
+					break;
+				case fdAT:
+					reader.skipChunk();
+					addData(at + 4, length - 4, type);
+					break;
+				case IEND:
+					return false;
+				}
+				return true;
+			}
+		});
+	}
+
+	private void addFrame(int fx, int fy, int fw, int fh, int delayNum, int delayDen, int disp, int bl) throws IOException {
+		if(fx < 0 || fy < 0 || fw <= 0 || fh <= 0 || fx + fw > width || fy + fh > height) {
+			throw new IOException("Frame region outside the image");
+		}
+		if(disp < 0 || disp > 2 || bl < 0 || bl > 1) {
+			throw new IOException("Incorrect frame dispose or blend");
+		}
+		if(count + 1 == x.length) {
+			grow(x.length * 2);
+		}
+		x[count] = fx;
+		y[count] = fy;
+		w[count] = fw;
+		h[count] = fh;
+		// same rule as ApngDecoder.getDelay()
+		int den = (delayDen == 0) ? 100 : delayDen;
+		delay[count] = (delayNum == 0) ? ApngDecoder.DEFAULT_DELAY : delayNum * 1000 / den;
+		dispose[count] = (byte)disp;
+		blend[count] = (byte)bl;
+		if(disp == ApngCompositor.DISPOSE_OP_BACKGROUND) {
+			clearsToBackground = true;
+		}
+		count++;
+		firstData[count] = dataCount;
+		frameOpen = true;
+	}
+
+	private void addData(long offset, int length, int type) throws IOException {
+		if(!frameOpen) {
+			if(type == fdAT) {
+				throw new IOException("fdAT chunk before fcTL chunk");
+			}
+			return; // default image, not part of the animation
+		}
+		if(dataCount == dataOffset.length) {
+			long[] o = new long[dataCount * 2];
+			int[] l = new int[dataCount * 2];
+			System.arraycopy(dataOffset, 0, o, 0, dataCount);
+			System.arraycopy(dataLength, 0, l, 0, dataCount);
+			dataOffset = o;
+			dataLength = l;
+		}
+		dataOffset[dataCount] = offset;
+		dataLength[dataCount] = length;
+		dataCount++;
+		firstData[count] = dataCount;
+	}
+
+	private void grow(int capacity) {
+		x = copyOf(x, capacity);
+		y = copyOf(y, capacity);
+		w = copyOf(w, capacity);
+		h = copyOf(h, capacity);
+		delay = copyOf(delay, capacity);
+		int[] f = new int[capacity + 1];
+		System.arraycopy(firstData, 0, f, 0, count + 1);
+		firstData = f;
+		byte[] d = new byte[capacity];
+		System.arraycopy(dispose, 0, d, 0, count);
+		dispose = d;
+		byte[] bl = new byte[capacity];
+		System.arraycopy(blend, 0, bl, 0, count);
+		blend = bl;
+	}
+
+	private int[] copyOf(int[] a, int capacity) {
+		int[] tmp = new int[capacity];
+		System.arraycopy(a, 0, tmp, 0, count);
+		return tmp;
+	}
+}
@@ -4,10 +4,16 @@ import java.io.*;
 import java.util.*;
 import android.graphics.*;
 
-import java.util.zip.CRC32;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
+	/**
+	 * Reads a PNG or APNG file in one pass. Chunks are framed and checked by
+	 * {@link PngChunkReader}, and the image data of the default image and of every frame
+	 * is turned into pixels by {@link PngPixelDecoder}, like in {@link ApngDecoder}.
+	 * Frames are returned as their fcTL regions; {@link #getFrameControl(int)} tells
+	 * where and how to draw them.
+	 */
 	public class ApngSinpleDecoder extends Decoder
 	{
 		public static final int acTL = 0x6163544C;
@@ -19,29 +25,38 @@ import java.util.zip.Inflater;
 		public static final int TRANSLUCENT 	= 3;
 
 		private static final PngConfig DEFAULT_CONFIG =
-		new PngConfig.Builder().readLimit(PngConfig.READ_EXCEPT_DATA).build();
+		new PngConfig.Builder().build();
 
 	    private final PngConfig config;
-		private final List chunks = new ArrayList();
-		private final List frames = new ArrayList();
-		private final Map frameData = new HashMap();
-		private final List defaultImageData = new ArrayList();
+		private final List<FrameControl> frames = new ArrayList<FrameControl>();
+		private final List<Bitmap> frameImages = new ArrayList<Bitmap>();
 		private Bitmap[] images = null;
+		private Bitmap defaultImage;
 
 		private Rectangle headerBounds;
 		private boolean animated;
 		private boolean sawData;
-		private boolean useDefaultImage;
 		private int numFrames;
 		private int numPlays;
-		private final Map props = new HashMap();
+		private int sequence; // sequence number of the last fcTL or fdAT chunk
+		private final Map<String, Object> props = new HashMap<String, Object>();
     	private boolean read = false;
 
+		private PngInputStream pin;
+		private PngPixelDecoder pixels;
+		private final Inflater inflater = new Inflater();
+		private int[] argb = new int[0];
+
 		public ApngSinpleDecoder ()
 		{
 			this.config = DEFAULT_CONFIG;
 		}
 
+		public ApngSinpleDecoder (PngConfig config)
+		{
+			this.config = config;
+		}
+
 		public static class Dimension {
 			public Dimension(int width, int height) {
 				this.width = width;
@@ -53,11 +68,12 @@ import java.util.zip.Inflater;
 
 		private void reset()
 		{
-			animated = sawData = useDefaultImage = false;
-			chunks.clear();
+			animated = sawData = false;
+			sequence = -1;
 			frames.clear();
-			frameData.clear();
-			defaultImageData.clear();
+			frameImages.clear();
+			images = null;
+			defaultImage = null;
 		}
 
 		public boolean isAnimated()
@@ -78,15 +94,36 @@ import java.util.zip.Inflater;
 			return animated ? numPlays : 1;
 		}
 
+		/**
+		 * Gets the image of a frame, the size of its fcTL region. For a still image
+		 * the only frame is the default image.
+		 *
+		 * @return the frame, or null if the image data was not read
+		 */
 		public Bitmap getFrame(int index)
 		{
 			assertRead();
-			return images[index];
+			return (images == null) ? null : images[index];
 		}
 		
+		/**
+		 * @return the fcTL of the frame, null for a still image
+		 */
 		public FrameControl getFrameControl(int index) {
 			assertRead();
-			return (FrameControl)frames.get(index);			
+			return frames.get(index);			
+		}
+
+		public int getFrameCount()
+		{
+			return frames.size();
+		}
+
+		public int getDelay(int n)
+		{
+			if (frames.isEmpty() || frames.get(0) == null)
+				return 0;
+			return Math.round(getFrameControl(n % frames.size()).getDelay() * 1000);
 		}
 
 		public boolean isClearRequired()
@@ -99,33 +136,27 @@ import java.util.zip.Inflater;
 				!first.getBounds().equals(new Rectangle(getWidth(), getHeight()));
 		}
 
+		/**
+		 * Reads the whole stream, which is closed.
+		 *
+		 * @return the images of all frames
+		 */
 		public Bitmap[] readAllFrames(InputStream in)
 		throws IOException
 		{
-			read(in);
-			images = new Bitmap[getNumFrames()];
-			for (int i = 0; i < images.length; i++)
-				images[i] = readFrame(in, getFrameControl(i));
+			read(in, true);
 			return images;
 		}
 
-		public Bitmap readFrame(InputStream in, FrameControl frame)
-		throws IOException
+		/**
+		 * Gets the default image, the one a decoder without APNG support shows.
+		 *
+		 * @return the image, or null if the image data was not read
+		 */
+		public Bitmap getDefaultImage()
 		{
 			assertRead();
-			if (frame == null)
-				return readImage(in, defaultImageData, new Dimension(getWidth(), getHeight()));
-			return readImage(in, (List)frameData.get(frame), frame.getBounds().getSize());
-		}
-
-		private Bitmap readImage(InputStream in, List data, Dimension size)
-		throws IOException
-		{
-			try {
-				return createImage(in, size);
-			} finally {
-				in.close();
-			}
+			return defaultImage;
 		}
 
 		private void assertRead()
@@ -162,18 +193,32 @@ import java.util.zip.Inflater;
 
 				case fcTL:
 					RegisteredChunks.checkLength(type, length, 26);
-					add(in.readInt(), readFrameControl(in));
+					nextSequence(in.readInt());
+					if (frameImages.size() < frames.size())
+						error("Missing data for frame");
+					frames.add(readFrameControl(in));
 					break;
 
 				case fdAT:
 					if (!sawData)
 						error("fdAT chunks cannot appear before IDAT");
-					add(in.readInt(), new FrameData(offset + 4, length - 4));
+					if (frames.isEmpty())
+						error("APNG chunks out of order");
+					nextSequence(in.readInt());
+					if (frameImages.size() < frames.size()) {
+						// the frame's later fdAT chunks are read along with this one
+						Rectangle bounds = frames.get(frames.size() - 1).bounds;
+						frameImages.add(readImage(fdAT, bounds.width, bounds.height));
+					}
 					break;
 
 				case PngConstants.IDAT:
-					sawData = true;
-					defaultImageData.add(new FrameData(offset, length));
+					if (!sawData) {
+						sawData = true;
+						defaultImage = readImage(PngConstants.IDAT, getWidth(), getHeight());
+						if (!frames.isEmpty())
+							frameImages.add(defaultImage);
+					}
 					break;
 
 				default:
@@ -191,13 +236,12 @@ import java.util.zip.Inflater;
 			return superisMultipleOK(type);
 		}
 
-		private void add(int seq, Object chunk)
+		private void nextSequence(int seq)
 		throws IOException
 		{
-			if (chunks.size() != seq ||
-				(seq == 0 && !(chunk instanceof FrameControl)))
+			if (seq <= sequence || (sequence < 0 && seq != 0))
 				error("APNG chunks out of order");
-			chunks.add(chunk);
+			sequence = seq;
 		}
 
 		private static void error(String message)
@@ -213,13 +257,12 @@ import java.util.zip.Inflater;
 			int h = in.readInt();
 			Rectangle bounds = new Rectangle(in.readInt(), in.readInt(), w, h);
 			if (!sawData) {
-				if (!chunks.isEmpty())
+				if (!frames.isEmpty())
 					error("Multiple fcTL chunks are not allowed before IDAT");
 				if (!bounds.equals(headerBounds))
 					error("Default image frame must match IHDR bounds");
-				useDefaultImage = true;
 			}
-			if (!headerBounds.contains(bounds))
+			if (w <= 0 || h <= 0 || !headerBounds.contains(bounds))
 				error("Frame bounds must fall within IHDR bounds");
 
 			int delayNum = in.readUnsignedShort();
@@ -233,7 +276,7 @@ import java.util.zip.Inflater;
 				case FrameControl.DISPOSE_BACKGROUND:
 					break;
 				case FrameControl.DISPOSE_PREVIOUS:
-					if (chunks.isEmpty())
+					if (frames.isEmpty())
 						disposeOp = FrameControl.DISPOSE_BACKGROUND;
 					break;
 				default:
@@ -251,44 +294,59 @@ import java.util.zip.Inflater;
 			return new FrameControl(bounds, (float)delayNum / delayDen, disposeOp, blendOp);
 		}
 
-		private void validate()
+		/**
+		 * Inflates and unfilters the image data starting in the open IDAT or fdAT chunk,
+		 * reading on through the chunks of the same type that follow it.
+		 *
+		 * @return the image, or null when the configuration skips image data
+		 */
+		private Bitmap readImage(int type, int width, int height)
 		throws IOException
 		{
-			if (!animated) {
-				frames.add(null);
-				return;
-			}
-			try {
-				if (chunks.isEmpty())
-					error("Found zero frames");
-
-				List list = null;
-				for (int i = 0; i < chunks.size(); i++) {
-					Object chunk = chunks.get(i);
-					if (chunk instanceof FrameControl) {
-						frames.add(chunk);
-						frameData.put(chunk, list = new ArrayList());
-					} else {
-						list.add(chunk);
+			if (config.getReadLimit() == PngConfig.READ_EXCEPT_DATA)
+				return null;
+			if (pixels == null) {
+				if (getColorType() == PngConstants.COLOR_TYPE_PALETTE && !props.containsKey(PngConstants.PALETTE))
+					error("Required PLTE chunk not found");
+				pixels = new PngPixelDecoder(getColorType(), getBitDepth(), isInterlaced());
+				pixels.setPalette((byte[])props.get(PngConstants.PALETTE), (byte[])props.get(PngConstants.PALETTE_ALPHA));
+				int[] trans = (int[])props.get(PngConstants.TRANSPARENCY);
+				if (trans != null) {
+					byte[] transPixel = new byte[trans.length * 2];
+					for (int i = 0; i < trans.length; i++) {
+						transPixel[2 * i] = (byte)(trans[i] >> 8);
+						transPixel[2 * i + 1] = (byte)trans[i];
 					}
+					pixels.setTransparentPixel(transPixel);
 				}
+			}
+			if (argb.length < width * height)
+				argb = new int[width * height];
+			inflater.reset();
+			pixels.decode(inflater, pin.dataInput(type), width, height, argb, 0, width);
+			return Bitmap.createBitmap(argb, width, height, (getTransparency() == OPAQUE) ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
+		}
 
+		private void validate()
+		throws IOException
+		{
+			if (!sawData)
+				error("Required data chunk(s) not found");
+			if (!animated || frames.isEmpty()) {
+				// fcTL chunks without acTL are ignored, like decoders without APNG support do
+				animated = false;
+				frames.clear();
+				frameImages.clear();
+				frames.add(null);
+				frameImages.add(defaultImage);
+			} else {
 				if (frames.size() != numFrames)
 					error("Found " + frames.size() + " frames, expected " + numFrames);
-
-				if (useDefaultImage)
-					((List)frameData.get(frames.get(0))).addAll(defaultImageData);
-
-				for (int i = 0; i < frames.size(); i++) {
-					if (((List)frameData.get(frames.get(i))).isEmpty())
-						error("Missing data for frame");
-				}
-				chunks.clear();
-
-			} catch (IOException e) {
-				animated = false;
-				throw e;
+				if (frameImages.size() < frames.size())
+					error("Missing data for frame");
 			}
+			if (config.getReadLimit() != PngConfig.READ_EXCEPT_DATA)
+				images = frameImages.toArray(new Bitmap[frameImages.size()]);
 		}
 	
 		
@@ -299,7 +357,11 @@ import java.util.zip.Inflater;
         return config;
     }
 	
-		
+	/**
+	 * Reads the chunks of the stream up to the configured read limit.
+	 *
+	 * @return the default image, or null if it was not read
+	 */
 	public Bitmap read(InputStream in, boolean close)
     throws IOException
     {
@@ -307,62 +369,35 @@ import java.util.zip.Inflater;
             throw new NullPointerException("InputStream is null");
         this.read = true;
         props.clear();
+        reset();
+        pixels = null;
 
         int readLimit = config.getReadLimit();
-        Bitmap image = null;
         StateMachine machine = new StateMachine(this);
         try {
-            PngInputStream pin = new PngInputStream(in);
-            Set seen = new HashSet();
+            pin = new PngInputStream(in, config.getVerifyCrc());
+            Set<Integer> seen = new HashSet<Integer>();
             while (machine.getState() != StateMachine.STATE_END) {
                 int type = pin.startChunk();
                 machine.nextState(type);
-                try {
-                    if (type == PngConstants.IDAT) {
-                        switch (readLimit) {
-							case PngConfig.READ_UNTIL_DATA:
-								return null;
-							case PngConfig.READ_EXCEPT_DATA:
-								break;
-							default:
-								ImageDataInputStream data = new ImageDataInputStream(pin, machine);
-								image = createImage(data, new Dimension(getWidth(), getHeight()));
-								while ((type = machine.getType()) == PngConstants.IDAT) {
-									skipFully(data, pin.getRemaining());
-								}
-                        }
-                    }
-                    if (!isMultipleOK(type) && !seen.add(Integers.valueOf(type)))
-                        throw new IOException("Multiple " + PngConstants.getChunkName(type) + " chunks are not allowed");
-                    try {
-                        readChunk(type, pin, pin.getOffset(), pin.getRemaining());
-                    } catch (IOException e) {
-                        throw e;
-                    }
-                    skipFully(pin, pin.getRemaining());
-                    if (type == PngConstants.IHDR && readLimit == PngConfig.READ_HEADER)
-                        return null;
-                } catch (IOException exception) {
-                        throw exception;
-                }
+                if (type == PngConstants.IDAT && readLimit == PngConfig.READ_UNTIL_DATA)
+                    return null;
+                if (!isMultipleOK(type) && !seen.add(Integer.valueOf(type)))
+                    throw new IOException("Multiple " + PngConstants.getChunkName(type) + " chunks are not allowed");
+                readChunk(type, pin, pin.getOffset(), pin.getRemaining());
+                skipFully(pin, pin.getRemaining());
+                if (type == PngConstants.IHDR && readLimit == PngConfig.READ_HEADER)
+                    return null;
                 pin.endChunk(type);
             }
-            return image;
+            return defaultImage;
         } finally {
+            pin = null;
             if (close)
                 in.close();
         }
     }
 
-    protected Bitmap createImage(InputStream in, Dimension size)
-    throws IOException
-    {
-    	return BitmapFactory.decodeStream(in);
-    	//throw new IOException("Could not implemented ImageFactory.createImage(this, in, size);");
-///////// !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!    	
-        //return ImageFactory.createImage(this, in, size);
-    }
-
     protected boolean handlePass(Bitmap image, int pass)
     {
         return true;
@@ -427,7 +462,7 @@ import java.util.zip.Inflater;
 
     public float getGamma()
     {
-        assertRead();
+        superassertRead();
         if (props.containsKey(PngConstants.GAMMA))
             return ((Number)getProperty(PngConstants.GAMMA, Number.class, true)).floatValue();
         return config.getDefaultGamma();
@@ -435,7 +470,7 @@ import java.util.zip.Inflater;
 
     public short[] getGammaTable()
     {
-        assertRead();
+        superassertRead();
         return createGammaTable(getGamma(),
                                 config.getDisplayExponent(),
                                 getBitDepth() == 16 && !config.getReduce16());
@@ -451,48 +486,41 @@ import java.util.zip.Inflater;
         return gammaTable;
     }
 
-    public Color getBackground()
+    /**
+     * @return the bKGD color as opaque ARGB, or 0 if there is none
+     */
+    public int getBackground()
     {
         int[] background = (int[])getProperty(PngConstants.BACKGROUND, int[].class, false);
         if (background == null)
-            return null;
+            return 0;
         switch (getColorType()) {
 			case PngConstants.COLOR_TYPE_PALETTE:
 				byte[] palette = (byte[])getProperty(PngConstants.PALETTE, byte[].class, true);
 				int index = background[0] * 3;
-				Color colorp = new Color();
-				colorp.rgb(0xFF & palette[index + 0], 
+				return Color.rgb(0xFF & palette[index + 0], 
 						 0xFF & palette[index + 1], 
 						 0xFF & palette[index + 2]);
-				return colorp;
 			case PngConstants.COLOR_TYPE_GRAY:
 			case PngConstants.COLOR_TYPE_GRAY_ALPHA:
 				int gray = background[0] * 255 / ((1 << getBitDepth()) - 1);
-				Color colorg = new Color();
-				colorg.rgb(gray, gray, gray);
-				return colorg;
+				return Color.rgb(gray, gray, gray);
 			default:
-				if (getBitDepth() == 16) {
-					Color color = new Color();
-					color.rgb(background[0] >> 8, background[1] >> 8, background[2] >> 8);
-					return color;
-				} else {
-					Color color = new Color();
-					color.rgb(background[0], background[1], background[2]);
-					return color;
-				}
+				if (getBitDepth() == 16)
+					return Color.rgb(background[0] >> 8, background[1] >> 8, background[2] >> 8);
+				return Color.rgb(background[0], background[1], background[2]);
         }
     }
 
     public Object getProperty(String name)
     {
-        assertRead();
+        superassertRead();
         return props.get(name);
     }
 
-    Object getProperty(String name, Class type, boolean required)
+    Object getProperty(String name, Class<?> type, boolean required)
     {
-        assertRead();
+        superassertRead();
         Object value = props.get(name);
         if (value == null) {
             if (required)
@@ -508,18 +536,17 @@ import java.util.zip.Inflater;
         return ((Number)getProperty(name, Number.class, true)).intValue();
     }
 
-    public Map getProperties()
+    public Map<String, Object> getProperties()
     {
         return props;
     }
 
     public TextChunk getTextChunk(String key)
     {
-        List list = (List)getProperty(PngConstants.TEXT_CHUNKS, List.class, false);
+        @SuppressWarnings("unchecked")
+        List<TextChunk> list = (List<TextChunk>)getProperty(PngConstants.TEXT_CHUNKS, List.class, false);
         if (key != null && list != null) {
-            for (Iterator it = list.iterator(); it.hasNext();) {
-                // TO-DO: check list value type before cast?
-                TextChunk chunk = (TextChunk)it.next();
+            for (TextChunk chunk : list) {
                 if (chunk.getKeyword().equals(key))
                     return chunk;
             }
@@ -660,9 +687,24 @@ import java.util.zip.Inflater;
 		}
 
 		public boolean contains(Rectangle bounds) {
-			Rect reg = new Rect(this.x, this.y, this.width, this.height);
-			Rect reg1 = new Rect(bounds.x, bounds.y, bounds.width, bounds.height);
-			return reg.contains(reg1);
+			return bounds.x >= x && bounds.y >= y &&
+				(long)bounds.x + bounds.width <= (long)x + width &&
+				(long)bounds.y + bounds.height <= (long)y + height;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Rectangle))
+				return false;
+			Rectangle r = (Rectangle)o;
+			return r.x == x && r.y == y && r.width == width && r.height == height;
+		}
+
+		public int hashCode() {
+			return ((x * 31 + y) * 31 + width) * 31 + height;
+		}
+
+		public String toString() {
+			return "Rectangle{" + x + "," + y + "," + width + "x" + height + "}";
 		}
 
 		public Dimension getSize() {
@@ -685,125 +727,6 @@ import java.util.zip.Inflater;
 		}
 		
 	}
-	
-	
-	class FrameDataInputStream
-	extends InputStream
-	{
-		private final RandomAccessFile file;
-		private final Iterator it;
-		private InputStream in;
-
-		public FrameDataInputStream(File file, List frameData)
-		throws IOException
-		{
-			this.file = new RandomAccessFile(file, "r");
-			this.it = frameData.iterator();
-			advance();
-		}
-
-		public void close()
-		throws IOException
-		{
-			if (in != null) {
-				in.close();
-				in = null;
-				while (it.hasNext())
-					it.next();
-			}
-			file.close();
-		}
-
-		private void advance()
-		throws IOException
-		{
-			if (in != null)
-				in.close();
-			in = null;
-			if (it.hasNext()) {
-				// TO-DO: enable streaming
-				FrameData data = (FrameData)it.next();
-				file.seek(data.getOffset());
-				byte[] bytes = new byte[data.getLength()];
-				file.readFully(bytes);
-				in = new ByteArrayInputStream(bytes);
-			}
-		}
-
-		public int available()
-		throws IOException
-		{
-			if (in == null)
-				return 0;
-			return in.available();
-		}
-
-		public boolean markSupported()
-		{
-			return false;
-		}
-
-		public int read()
-		throws IOException
-		{
-			if (in == null)
-				return -1;
-			int result = in.read();
-			if (result == -1) {
-				advance();
-				return read();
-			}
-			return result;
-		}
-
-		public int read(byte[] b, int off, int len)
-		throws IOException
-		{
-			if (in == null)
-				return -1;
-			int result = in.read(b, off, len);
-			if (result == -1) {
-				advance();
-				return read(b, off, len);
-			}
-			return result;
-		}
-
-		public long skip(long n)
-		throws IOException
-		{
-			if (in == null)
-				return 0;
-			long result = in.skip(n);
-			if (result != 0)
-				return result;
-			if (read() == -1)
-				return 0;
-			return 1;
-		}
-	}
-	
-	class FrameData
-	{
-		private final long offset;
-		private final int length;
-
-		public FrameData(long offset, int length)
-		{
-			this.offset = offset;
-			this.length = length;
-		}
-
-		public long getOffset()
-		{
-			return offset;
-		}
-
-		public int getLength()
-		{
-			return length;
-		}
-	}	
 
     public static class PngConstants
 	{
@@ -1069,35 +992,6 @@ import java.util.zip.Inflater;
 		public static final int STEREO_MODE_DIVERGING = 1;
 	}
 	
-    static class Integers
-    {
-        public static Integer valueOf(int i)
-        {
-            switch (i) {
-            case 0: return INT_0;
-            case 1: return INT_1;
-            case 2: return INT_2;
-            case 3: return INT_3;
-            case 4: return INT_4;
-            case 5: return INT_5;
-            case 6: return INT_6;
-            case 7: return INT_7;
-            case 8: return INT_8;
-            default:
-                return new Integer(i);
-            }
-        }
-
-        private static final Integer INT_0 = new Integer(0);
-        private static final Integer INT_1 = new Integer(1);
-        private static final Integer INT_2 = new Integer(2);
-        private static final Integer INT_3 = new Integer(3);
-        private static final Integer INT_4 = new Integer(4);
-        private static final Integer INT_5 = new Integer(5);
-        private static final Integer INT_6 = new Integer(6);
-        private static final Integer INT_7 = new Integer(7);
-        private static final Integer INT_8 = new Integer(8);
-    }	
 	static class RegisteredChunks
 {
     private static final TimeZone TIME_ZONE = TimeZone.getTimeZone("UTC");
@@ -1108,7 +1002,7 @@ import java.util.zip.Inflater;
     public static boolean read(int type, DataInput in, int length, ApngSinpleDecoder png)
     throws IOException
     {
-        Map props = png.getProperties();
+        Map<String, Object> props = png.getProperties();
         switch (type) {
         case PngConstants.IHDR: read_IHDR(in, length, props); break;
         case PngConstants.IEND: checkLength(PngConstants.IEND, length, 0); break;
@@ -1140,7 +1034,7 @@ import java.util.zip.Inflater;
         return true;
     }
 
-    private static void read_IHDR(DataInput in, int length, Map props)
+    private static void read_IHDR(DataInput in, int length, Map<String, Object> props)
     throws IOException
     {
         checkLength(PngConstants.IHDR, length, 13);
@@ -1191,16 +1085,16 @@ import java.util.zip.Inflater;
             throw new IOException("Unrecognized interlace method: " + interlace);
         }
 
-        props.put(PngConstants.WIDTH, Integers.valueOf(width));
-        props.put(PngConstants.HEIGHT, Integers.valueOf(height));
-        props.put(PngConstants.BIT_DEPTH, Integers.valueOf(bitDepth));
-        props.put(PngConstants.INTERLACE, Integers.valueOf(interlace));
-        props.put(PngConstants.COMPRESSION, Integers.valueOf(compression));
-        props.put(PngConstants.FILTER, Integers.valueOf(filter));
-        props.put(PngConstants.COLOR_TYPE, Integers.valueOf(colorType));
+        props.put(PngConstants.WIDTH, Integer.valueOf(width));
+        props.put(PngConstants.HEIGHT, Integer.valueOf(height));
+        props.put(PngConstants.BIT_DEPTH, Integer.valueOf(bitDepth));
+        props.put(PngConstants.INTERLACE, Integer.valueOf(interlace));
+        props.put(PngConstants.COMPRESSION, Integer.valueOf(compression));
+        props.put(PngConstants.FILTER, Integer.valueOf(filter));
+        props.put(PngConstants.COLOR_TYPE, Integer.valueOf(colorType));
     }
 
-    private static void read_PLTE(DataInput in, int length, Map props, ApngSinpleDecoder png)
+    private static void read_PLTE(DataInput in, int length, Map<String, Object> props, ApngSinpleDecoder png)
     throws IOException
     {
         if (length == 0)
@@ -1224,7 +1118,7 @@ import java.util.zip.Inflater;
         props.put(PngConstants.PALETTE, palette);
     }
 
-    private static void read_tRNS(DataInput in, int length, Map props, ApngSinpleDecoder png)
+    private static void read_tRNS(DataInput in, int length, Map<String, Object> props, ApngSinpleDecoder png)
     throws IOException
     {
         switch (png.getColorType()) {
@@ -1253,7 +1147,7 @@ import java.util.zip.Inflater;
         }
     }
 
-    private static void read_bKGD(DataInput in, int length, Map props, ApngSinpleDecoder png)
+    private static void read_bKGD(DataInput in, int length, Map<String, Object> props, ApngSinpleDecoder png)
     throws IOException
     {
         int[] background;
@@ -1279,7 +1173,7 @@ import java.util.zip.Inflater;
         props.put(PngConstants.BACKGROUND, background);
     }
 
-    private static void read_cHRM(DataInput in, int length, Map props)
+    private static void read_cHRM(DataInput in, int length, Map<String, Object> props)
     throws IOException
     {
         checkLength(PngConstants.cHRM, length, 32);
@@ -1290,7 +1184,7 @@ import java.util.zip.Inflater;
             props.put(PngConstants.CHROMATICITY, array);
     }
 
-    private static void read_gAMA(DataInput in, int length, Map props)
+    private static void read_gAMA(DataInput in, int length, Map<String, Object> props)
     throws IOException
     {
         checkLength(PngConstants.gAMA, length, 4);
@@ -1298,10 +1192,10 @@ import java.util.zip.Inflater;
         if (gamma == 0)
             throw new IOException("Meaningless zero gAMA chunk value");
         if (!props.containsKey(PngConstants.RENDERING_INTENT))
-            props.put(PngConstants.GAMMA, new Float(gamma / 100000f));
+            props.put(PngConstants.GAMMA, Float.valueOf(gamma / 100000f));
     }
 
-    private static void read_hIST(DataInput in, int length, Map props, ApngSinpleDecoder png)
+    private static void read_hIST(DataInput in, int length, Map<String, Object> props, ApngSinpleDecoder png)
     throws IOException
     {
         // TO-DO: ensure it is divisible by three
@@ -1313,7 +1207,7 @@ import java.util.zip.Inflater;
         props.put(PngConstants.HISTOGRAM, array);
     }
 
-    private static void read_iCCP(DataInput in, int length, Map props)
+    private static void read_iCCP(DataInput in, int length, Map<String, Object> props)
     throws IOException
     {
         String name = readKeyword(in, length);
@@ -1322,7 +1216,7 @@ import java.util.zip.Inflater;
         props.put(PngConstants.ICC_PROFILE, data);
     }
 
-    private static void read_pHYs(DataInput in, int length, Map props)
+    private static void read_pHYs(DataInput in, int length, Map<String, Object> props)
     throws IOException
     {
         checkLength(PngConstants.pHYs, length, 9);
@@ -1331,12 +1225,12 @@ import java.util.zip.Inflater;
         int unit = in.readUnsignedByte();
         if (unit != PngConstants.UNIT_UNKNOWN && unit != PngConstants.UNIT_METER)
             throw new IOException("Illegal pHYs chunk unit specifier: " + unit);
-        props.put(PngConstants.PIXELS_PER_UNIT_X, Integers.valueOf(pixelsPerUnitX));
-        props.put(PngConstants.PIXELS_PER_UNIT_Y, Integers.valueOf(pixelsPerUnitY));
-        props.put(PngConstants.UNIT, Integers.valueOf(unit));
+        props.put(PngConstants.PIXELS_PER_UNIT_X, Integer.valueOf(pixelsPerUnitX));
+        props.put(PngConstants.PIXELS_PER_UNIT_Y, Integer.valueOf(pixelsPerUnitY));
+        props.put(PngConstants.UNIT, Integer.valueOf(unit));
     }
 
-    private static void read_sBIT(DataInput in, int length, Map props, ApngSinpleDecoder png)
+    private static void read_sBIT(DataInput in, int length, Map<String, Object> props, ApngSinpleDecoder png)
     throws IOException
     {
         boolean paletted = png.getColorType() == PngConstants.COLOR_TYPE_PALETTE;
@@ -1353,19 +1247,19 @@ import java.util.zip.Inflater;
         props.put(PngConstants.SIGNIFICANT_BITS, array);
     }
 
-    private static void read_sRGB(DataInput in, int length, Map props)
+    private static void read_sRGB(DataInput in, int length, Map<String, Object> props)
     throws IOException
     {
         checkLength(PngConstants.sRGB, length, 1);
         int intent = in.readByte();
-        props.put(PngConstants.RENDERING_INTENT, Integers.valueOf(intent));
-        props.put(PngConstants.GAMMA, new Float(0.45455));
+        props.put(PngConstants.RENDERING_INTENT, Integer.valueOf(intent));
+        props.put(PngConstants.GAMMA, Float.valueOf(0.45455f));
         props.put(PngConstants.CHROMATICITY, new float[]{
             0.3127f, 0.329f, 0.64f, 0.33f, 0.3f, 0.6f, 0.15f, 0.06f,
         });
     }
 
-    private static void read_tIME(DataInput in, int length, Map props)
+    private static void read_tIME(DataInput in, int length, Map<String, Object> props)
     throws IOException
     {
         checkLength(PngConstants.tIME, length, 7);
@@ -1388,7 +1282,7 @@ import java.util.zip.Inflater;
         return value;
     }
 
-    private static void read_sPLT(DataInput in, int length, Map props, ApngSinpleDecoder png)
+    private static void read_sPLT(DataInput in, int length, Map<String, Object> props, ApngSinpleDecoder png)
     throws IOException
     {
         String name = readKeyword(in, length);
@@ -1402,17 +1296,18 @@ import java.util.zip.Inflater;
         byte[] bytes = new byte[length];
         in.readFully(bytes);
 
-        List palettes = (List)png.getProperty(PngConstants.SUGGESTED_PALETTES, List.class, false);
+        @SuppressWarnings("unchecked")
+        List<SuggestedPalette> palettes = (List<SuggestedPalette>)png.getProperty(PngConstants.SUGGESTED_PALETTES, List.class, false);
         if (palettes == null)
-            props.put(PngConstants.SUGGESTED_PALETTES, palettes = new ArrayList());
-        for (Iterator it = palettes.iterator(); it.hasNext();) {
-            if (name.equals(((SuggestedPalette)it.next()).getName()))
+            props.put(PngConstants.SUGGESTED_PALETTES, palettes = new ArrayList<SuggestedPalette>());
+        for (SuggestedPalette palette : palettes) {
+            if (name.equals(palette.getName()))
                 throw new IOException("Duplicate suggested palette name " + name);
         }
         palettes.add(new SuggestedPalette(name, sampleDepth, bytes));
     }
 
-    private static void readText(int type, DataInput in, int length, Map props, ApngSinpleDecoder png)
+    private static void readText(int type, DataInput in, int length, Map<String, Object> props, ApngSinpleDecoder png)
     throws IOException
     {
         byte[] bytes = new byte[length];
@@ -1457,25 +1352,26 @@ import java.util.zip.Inflater;
         }
         if (text.indexOf('\0') >= 0)
             throw new IOException("Text value contains null");
-        List chunks = (List)png.getProperty(PngConstants.TEXT_CHUNKS, List.class, false);
+        @SuppressWarnings("unchecked")
+        List<TextChunk> chunks = (List<TextChunk>)png.getProperty(PngConstants.TEXT_CHUNKS, List.class, false);
         if (chunks == null)
-            props.put(PngConstants.TEXT_CHUNKS, chunks = new ArrayList());
+            props.put(PngConstants.TEXT_CHUNKS, chunks = new ArrayList<TextChunk>());
         chunks.add(new TextChunk(keyword, text, language, translated, type));
     }
 
-    private static void read_gIFg(DataInput in, int length, Map props)
+    private static void read_gIFg(DataInput in, int length, Map<String, Object> props)
     throws IOException
     {
         checkLength(PngConstants.gIFg, length, 4);
         int disposalMethod = in.readUnsignedByte();
         int userInputFlag = in.readUnsignedByte();
         int delayTime = in.readUnsignedShort();
-        props.put(PngConstants.GIF_DISPOSAL_METHOD, Integers.valueOf(disposalMethod));
-        props.put(PngConstants.GIF_USER_INPUT_FLAG, Integers.valueOf(userInputFlag));
-        props.put(PngConstants.GIF_DELAY_TIME, Integers.valueOf(delayTime));
+        props.put(PngConstants.GIF_DISPOSAL_METHOD, Integer.valueOf(disposalMethod));
+        props.put(PngConstants.GIF_USER_INPUT_FLAG, Integer.valueOf(userInputFlag));
+        props.put(PngConstants.GIF_DELAY_TIME, Integer.valueOf(delayTime));
     }
 
-    private static void read_oFFs(DataInput in, int length, Map props)
+    private static void read_oFFs(DataInput in, int length, Map<String, Object> props)
     throws IOException
     {
         checkLength(PngConstants.oFFs, length, 9);
@@ -1485,12 +1381,12 @@ import java.util.zip.Inflater;
         if (unit != PngConstants.POSITION_UNIT_PIXEL &&
             unit != PngConstants.POSITION_UNIT_MICROMETER)
             throw new IOException("Illegal oFFs chunk unit specifier: " + unit);
-        props.put(PngConstants.POSITION_X, Integers.valueOf(x));
-        props.put(PngConstants.POSITION_Y, Integers.valueOf(y));
-        props.put(PngConstants.POSITION_UNIT, Integers.valueOf(unit));
+        props.put(PngConstants.POSITION_X, Integer.valueOf(x));
+        props.put(PngConstants.POSITION_Y, Integer.valueOf(y));
+        props.put(PngConstants.POSITION_UNIT, Integer.valueOf(unit));
     }
 
-    private static void read_sCAL(DataInput in, int length, Map props)
+    private static void read_sCAL(DataInput in, int length, Map<String, Object> props)
     throws IOException
     {
         byte[] bytes = new byte[length];
@@ -1504,12 +1400,12 @@ import java.util.zip.Inflater;
         double height = readFloatingPoint(data, data.available());
         if (width <= 0 || height <= 0)
             throw new IOException("sCAL measurements must be >= 0");
-        props.put(PngConstants.SCALE_UNIT, Integers.valueOf(unit));
-        props.put(PngConstants.PIXEL_WIDTH, new Double(width));
-        props.put(PngConstants.PIXEL_HEIGHT, new Double(height));
+        props.put(PngConstants.SCALE_UNIT, Integer.valueOf(unit));
+        props.put(PngConstants.PIXEL_WIDTH, Double.valueOf(width));
+        props.put(PngConstants.PIXEL_HEIGHT, Double.valueOf(height));
     }
 
-    private static void read_sTER(DataInput in, int length, Map props)
+    private static void read_sTER(DataInput in, int length, Map<String, Object> props)
     throws IOException
     {
         checkLength(PngConstants.sTER, length, 1);
@@ -1517,7 +1413,7 @@ import java.util.zip.Inflater;
         switch (mode) {
         case PngConstants.STEREO_MODE_CROSS:
         case PngConstants.STEREO_MODE_DIVERGING:
-            props.put(PngConstants.STEREO_MODE, Integers.valueOf(mode));
+            props.put(PngConstants.STEREO_MODE, Integer.valueOf(mode));
             break;
         default:
             throw new IOException("Unknown sTER mode: " + mode);
@@ -1799,121 +1695,53 @@ import java.util.zip.Inflater;
 	            throw new IOException("Required PLTE chunk not found");
 	    }
 	}
-	class ImageDataInputStream
-	extends InputStream
-	{
-	    private final PngInputStream in;
-	    private final StateMachine machine;
-	    private final byte[] onebyte = new byte[1];
-	    private boolean done;
-
-	    public ImageDataInputStream(PngInputStream in, StateMachine machine)
-	    {
-	        this.in = in;
-	        this.machine = machine;
-	    }
-	    
-	    public int read()
-	    throws IOException
-	    {
-	        return (read(onebyte, 0, 1) == -1) ? -1 : 0xFF & onebyte[0];
-	    }
-
-	    public int read(byte[] b, int off, int len)
-	    throws IOException
-	    {
-	        if (done)
-	            return -1;
-	        try {
-	            int total = 0;
-	            while ((total != len) && !done) {
-	                while ((total != len) && in.getRemaining() > 0) {
-	                    int amt = Math.min(len - total, in.getRemaining());
-	                    in.readFully(b, off + total, amt);
-	                    total += amt;
-	                }
-	                if (in.getRemaining() <= 0) {
-	                    in.endChunk(machine.getType());
-	                    machine.nextState(in.startChunk());
-	                    done = machine.getType() != PngConstants.IDAT;
-	                }
-	            }
-	            return total;
-	        } catch (EOFException e) {
-	            done = true;
-	            return -1;
-	        }
-	    }
-	}
 	
+	/**
+	 * DataInput over the data of one chunk at a time, framed and CRC checked by
+	 * {@link PngChunkReader}.
+	 */
 	final class PngInputStream
 	extends InputStream
 	implements DataInput
 	{
-	    private final CRC32 crc = new CRC32();
-	    private final InputStream in;
+	    private final PngChunkReader reader;
 	    private final DataInputStream data;
+	    private final byte[] onebyte = new byte[1];
 	    private final byte[] tmp = new byte[0x1000];
-	    private long total;
-	    private int length;
-	    private int left;
 
 	    public PngInputStream(InputStream in)
 	    throws IOException
 	    {
-	        this.in = in;
+	        this(in, true);
+	    }
+
+	    public PngInputStream(InputStream in, boolean verifyCrc)
+	    throws IOException
+	    {
+	        reader = new PngChunkReader(in, verifyCrc);
 	        data = new DataInputStream(this);
-	        left = 8;
-	        long sig = readLong();
-	        if (sig != PngConstants.SIGNATURE) {
-	            throw new IOException("Improper signature, expected 0x" +
-	                                   Long.toHexString(PngConstants.SIGNATURE) + ", got 0x" +
-	                                   Long.toHexString(sig));
-	        }
-	        total += 8;
 	    }
 
 	    public int startChunk()
 	    throws IOException
 	    {
-	        left = 8; // length, type
-	        length = readInt();
-	        if (length < 0)
-	            throw new IOException("Bad chunk length: " + (0xFFFFFFFFL & length));
-	        crc.reset();
-	        int type = readInt();
-	        left = length;
-	        total += 8;
-	        return type;
+	        return reader.openChunk();
 	    }
 	    
-	    public int endChunk(int type)
+	    public void endChunk(int type)
 	    throws IOException
 	    {
 	        if (getRemaining() != 0)
-	            throw new IOException(PngConstants.getChunkName(type) + " read " + (length - left) + " bytes, expected " + length);
-	        left = 4;
-	        int actual = (int)crc.getValue();
-	        int expect = readInt();
-	        if (actual != expect)
-	            throw new IOException("Bad CRC value for " + PngConstants.getChunkName(type) + " chunk");
-	        total += length + 4;
-	        return actual;
+	            throw new IOException(PngConstants.getChunkName(type) + " read " + (reader.getChunkLength() - getRemaining()) + " bytes, expected " + reader.getChunkLength());
+	        reader.closeChunk();
 	    }
 
-	    ////////// count/crc InputStream methods //////////
+	    ////////// chunk data InputStream methods //////////
 
 	    public int read()
 	    throws IOException
 	    {
-	        if (left == 0)
-	            return -1;
-	        int result = in.read();
-	        if (result != -1) {
-	            crc.update(result);
-	            left--;
-	        }
-	        return result;
+	        return (read(onebyte, 0, 1) == -1) ? -1 : 0xFF & onebyte[0];
 	    }
 	    
 	    public int read(byte[] b, int off, int len)
@@ -1921,19 +1749,19 @@ import java.util.zip.Inflater;
 	    {
 	        if (len == 0)
 	            return 0;
-	        if (left == 0)
+	        if (getRemaining() == 0)
 	            return -1;
-	        int result = in.read(b, off, Math.min(left, len));
-	        if (result != -1) {
-	            crc.update(b, off, result);
-	            left -= result;
-	        }
-	        return result;
+	        return reader.readChunk(b, off, len);
 	    }
 
 	    public long skip(long n)
 	    throws IOException
 	    {
+	        if (n >= getRemaining()) {
+	            n = getRemaining();
+	            reader.skipChunk();
+	            return n;
+	        }
 	        int result = read(tmp, 0, (int)Math.min(tmp.length, n));
 	        return (result < 0) ? 0 : result;
 	    }
@@ -2038,6 +1866,7 @@ import java.util.zip.Inflater;
 	        return data.skipBytes(n);
 	    }
 
+	    @SuppressWarnings("deprecation")
 	    public String readLine()
 	    throws IOException
 	    {
@@ -2060,13 +1889,21 @@ import java.util.zip.Inflater;
 	     */
 	    public int getRemaining()
 	    {
-	        return left;
+	        return reader.getRemaining();
 	    }
 
 	    public long getOffset()
 	    {
-	        return total;
-	    }    
+	        return reader.getChunkOffset();
+	    }
+
+	    /**
+	     * @see PngChunkReader#dataInput(int)
+	     */
+	    public PngPixelDecoder.Input dataInput(int type)
+	    {
+	        return reader.dataInput(type);
+	    }
 	}
 	
 	
@@ -2093,6 +1930,7 @@ import java.util.zip.Inflater;
 	    final Rectangle sourceRegion;
 	    final int[] subsampling;
 	    final boolean convertIndexed;
+	    final boolean verifyCrc;
 
 	    PngConfig(Builder builder)
 	    {
@@ -2106,6 +1944,7 @@ import java.util.zip.Inflater;
 	        this.sourceRegion = builder.sourceRegion;
 	        this.subsampling = builder.subsampling;
 	        this.convertIndexed = builder.convertIndexed;
+	        this.verifyCrc = builder.verifyCrc;
 	        
 	        boolean subsampleOn = getSourceXSubsampling() != 1 || getSourceYSubsampling() != 1;
 	        if (progressive && (subsampleOn || getSourceRegion() != null))
@@ -2137,6 +1976,7 @@ import java.util.zip.Inflater;
 	        Rectangle sourceRegion;
 	        int[] subsampling = DEFAULT_SUBSAMPLING;
 	        boolean convertIndexed;
+	        boolean verifyCrc = true;
 
 	        /**
 	         * Create a new builder using default values.
@@ -2159,6 +1999,7 @@ import java.util.zip.Inflater;
 	            this.reduce16 = cfg.reduce16;
 	            this.gammaCorrect = cfg.gammaCorrect;
 	            this.subsampling = cfg.subsampling;
+	            this.verifyCrc = cfg.verifyCrc;
 	        }
 
 	        public PngConfig build()
@@ -2208,6 +2049,16 @@ import java.util.zip.Inflater;
 	            return this;
 	        }
 
+	        /**
+	         * Set to false to skip the chunk CRCs of files known to be intact.
+	         * @see TrustedFileRegistry
+	         */
+	        public Builder verifyCrc(boolean verifyCrc)
+	        {
+	            this.verifyCrc = verifyCrc;
+	            return this;
+	        }
+
 	        public Builder sourceRegion(Rectangle sourceRegion)
 	        {
 	            if (sourceRegion != null) {
@@ -2245,6 +2096,11 @@ import java.util.zip.Inflater;
 	        return convertIndexed;
 	    }
 
+	    public boolean getVerifyCrc()
+	    {
+	        return verifyCrc;
+	    }
+
 	    public boolean getReduce16()
 	    {
 	        return reduce16;
@@ -2305,511 +2161,4 @@ import java.util.zip.Inflater;
 	        return subsampling[3];
 	    }
 	}
-	/*	
-	
-	public static class ImageFactory
-	{
-	    private static short[] GAMMA_TABLE_45455 =
-	    		ApngDecoder.createGammaTable(0.45455f, 2.2f, false);
-	    private static short[] GAMMA_TABLE_100000 =
-	    		ApngDecoder.createGammaTable(1f, 2.2f, false);
-
-	    public static Bitmap createImage(ApngDecoder png, InputStream in)
-	    throws IOException
-	    {
-	        return createImage(png, in, new Dimension(png.getWidth(), png.getHeight()));
-	    }
-
-	    // width and height are overridable for APNG
-	    public static Bitmap createImage(ApngDecoder png, InputStream in, Dimension size)
-	    throws IOException
-	    {
-	        PngConfig config = png.getConfig();
-
-	        int width     = size.width;
-	        int height    = size.height;
-	        int bitDepth  = png.getBitDepth();
-	        int samples   = png.getSamples();
-	        boolean interlaced = png.isInterlaced();
-
-	        boolean indexed = isIndexed(png);
-	        boolean convertIndexed = indexed && config.getConvertIndexed();
-	        short[] gammaTable = config.getGammaCorrect() ? getGammaTable(png) : null;
-	        ColorModel dstColorModel = createColorModel(png, gammaTable, convertIndexed);
-
-	        int dstWidth = width;
-	        int dstHeight = height;
-	        Rectangle sourceRegion = config.getSourceRegion();
-	        if (sourceRegion != null) {
-	            if (!new Rectangle(dstWidth, dstHeight).contains(sourceRegion))
-	                throw new IllegalStateException("Source region " + sourceRegion + " falls outside of " +
-	                                                width + "x" + height + " image");
-	            dstWidth = sourceRegion.width;
-	            dstHeight = sourceRegion.height;
-	        }
-
-	        Destination dst;
-	        int xsub = config.getSourceXSubsampling();
-	        int ysub = config.getSourceYSubsampling();
-	        if (xsub != 1 || ysub != 1) {
-	            int xoff = config.getSubsamplingXOffset();
-	            int yoff = config.getSubsamplingYOffset();
-	            int subw = calcSubsamplingSize(dstWidth, xsub, xoff, 'X');
-	            int subh = calcSubsamplingSize(dstHeight, ysub, yoff, 'Y');
-	            WritableRaster raster = dstColorModel.createCompatibleWritableRaster(subw, subh);
-	            dst = new SubsamplingDestination(raster, width, xsub, ysub, xoff, yoff);
-	        } else {
-	            dst = new RasterDestination(dstColorModel.createCompatibleWritableRaster(dstWidth, dstHeight), width);
-	        }
-	        if (sourceRegion != null)
-	            dst = new SourceRegionDestination(dst, sourceRegion);
-
-
-	        // Destination dst = createDestination(config, dstColorModel, size, interlaced);
-	        BufferedImage image = new BufferedImage(dstColorModel, dst.getRaster(), false, null);
-
-	        PixelProcessor pp = null;
-	        if (!indexed) {
-	            int[] trans = (int[])png.getProperty(PngConstants.TRANSPARENCY, int[].class, false);
-	            int shift = (bitDepth == 16 && config.getReduce16()) ? 8 : 0;
-	            if (shift != 0 || trans != null || gammaTable != null) {
-	                if (gammaTable == null)
-	                    gammaTable = getIdentityTable(bitDepth - shift);
-	                if (trans != null) {
-	                    pp = new TransGammaPixelProcessor(dst, gammaTable, trans, shift);
-	                } else {
-	                    pp = new GammaPixelProcessor(dst, gammaTable, shift);
-	                }
-	            }
-	        }
-	        if (convertIndexed) {
-	            IndexColorModel srcColorModel = (IndexColorModel)createColorModel(png, gammaTable, false);
-	            dst = new ConvertIndexedDestination(dst, width, srcColorModel, (ComponentColorModel)dstColorModel);
-	        }
-
-	        if (pp == null)
-	            pp = new BasicPixelProcessor(dst, samples);
-	        if (config.getProgressive() && interlaced && !convertIndexed)
-	            pp = new ProgressivePixelProcessor(dst, pp, width, height);
-	        pp = new ProgressUpdater(png, image, pp);
-
-	        InflaterInputStream inflate = new InflaterInputStream(in, new Inflater(), 0x1000);
-	        Defilterer d = new Defilterer(inflate, bitDepth, samples, width, pp);
-	        
-	        // TO-DO: if not progressive, initialize to fully transparent?
-	        boolean complete;
-	        if (interlaced) {
-	            complete =
-	                d.defilter(0, 0, 8, 8, (width + 7) / 8, (height + 7) / 8) &&
-	                png.handlePass(image, 0) &&
-	                d.defilter(4, 0, 8, 8, (width + 3) / 8, (height + 7) / 8) &&
-	                png.handlePass(image, 1) &&
-	                d.defilter(0, 4, 4, 8, (width + 3) / 4, (height + 3) / 8) &&
-	                png.handlePass(image, 2) &&
-	                d.defilter(2, 0, 4, 4, (width + 1) / 4, (height + 3) / 4) &&
-	                png.handlePass(image, 3) && 
-	                d.defilter(0, 2, 2, 4, (width + 1) / 2, (height + 1) / 4) &&
-	                png.handlePass(image, 4) &&
-	                d.defilter(1, 0, 2, 2, width / 2, (height + 1) / 2) &&
-	                png.handlePass(image, 5) &&
-	                d.defilter(0, 1, 1, 2, width, height / 2) &&
-	                png.handlePass(image, 6);
-	        } else {
-	            complete =
-	                d.defilter(0, 0, 1, 1, width, height) &&
-	                png.handlePass(image, 0);
-	        }
-	        // TO-DO: handle complete?
-	        dst.done();
-	        return image;
-	    }
-
-	    private static short[] getGammaTable(PngImage png)
-	    {
-	        PngConfig config = png.getConfig();
-	        if ((png.getBitDepth() != 16 || config.getReduce16()) &&
-	            config.getDisplayExponent() == 2.2f) {
-	            float gamma = png.getGamma();
-	            if (gamma == 0.45455f)
-	                return GAMMA_TABLE_45455;
-	            if (gamma == 1f)
-	                return GAMMA_TABLE_100000;
-	        }
-	        return png.getGammaTable();
-	    }
-
-	    private static int calcSubsamplingSize(int len, int sub, int off, char desc)
-	    {
-	        int size = (len - off + sub - 1) / sub;
-	        if (size == 0)
-	            throw new IllegalStateException("Source " + desc + " subsampling " + sub + ", offset " + off +
-	                                            " is invalid for image dimension " + len);
-	        return size;
-	    }
-
-	    private static boolean isIndexed(ApngDecoder png)
-	    {
-	        int colorType = png.getColorType();
-	        return colorType == PngConstants.COLOR_TYPE_PALETTE ||
-	            (colorType == PngConstants.COLOR_TYPE_GRAY && png.getBitDepth() < 16);
-	    }
-
-	    private static ColorModel createColorModel(ApngDecoder png, short[] gammaTable, boolean convertIndexed)
-	    throws IOException
-	    {
-	        Map props = png.getProperties();
-	        int colorType = png.getColorType();
-	        int bitDepth = png.getBitDepth();
-	        int outputDepth = (bitDepth == 16 && png.getConfig().getReduce16()) ? 8 : bitDepth;
-
-	        if (isIndexed(png) && !convertIndexed) {
-	            byte[] r, g, b;
-	            if (colorType == PngConstants.COLOR_TYPE_PALETTE) {
-	                byte[] palette = (byte[])png.getProperty(PngConstants.PALETTE, byte[].class, true);
-	                int paletteSize = palette.length / 3;
-	                r = new byte[paletteSize];
-	                g = new byte[paletteSize];
-	                b = new byte[paletteSize];
-	                for (int i = 0, p = 0; i < paletteSize; i++) {
-	                    r[i] = palette[p++];
-	                    g[i] = palette[p++];
-	                    b[i] = palette[p++];
-	                }
-	                applyGamma(r, gammaTable);
-	                applyGamma(g, gammaTable);
-	                applyGamma(b, gammaTable);
-	            } else {
-	                int paletteSize = 1 << bitDepth;
-	                r = g = b = new byte[paletteSize];
-	                for (int i = 0; i < paletteSize; i++) {
-	                    r[i] = (byte)(i * 255 / (paletteSize - 1));
-	                }
-	                applyGamma(r, gammaTable);
-	            }
-	            if (props.containsKey(PngConstants.PALETTE_ALPHA)) {
-	                byte[] trans = (byte[])png.getProperty(PngConstants.PALETTE_ALPHA, byte[].class, true);
-	                byte[] a = new byte[r.length];
-	                Arrays.fill(a, trans.length, r.length, (byte)0xFF);
-	                System.arraycopy(trans, 0, a, 0, trans.length);
-	                return new IndexColorModel(outputDepth, r.length, r, g, b, a);
-	            } else {
-	                int trans = -1;
-	                if (props.containsKey(PngConstants.TRANSPARENCY))
-	                    trans = ((int[])png.getProperty(PngConstants.TRANSPARENCY, int[].class, true))[0];
-	                return new IndexColorModel(outputDepth, r.length, r, g, b, trans);
-	            }
-	        } else {
-	            int dataType = (outputDepth == 16) ?
-	                DataBuffer.TYPE_USHORT : DataBuffer.TYPE_BYTE;
-	            int colorSpace =
-	                (colorType == PngConstants.COLOR_TYPE_GRAY ||
-	                 colorType == PngConstants.COLOR_TYPE_GRAY_ALPHA) ?
-	                ColorSpace.CS_GRAY :
-	                ColorSpace.CS_sRGB;
-	            int transparency = png.getTransparency();
-	            // TO-DO: cache/enumerate color models?
-	            return new ComponentColorModel(ColorSpace.getInstance(colorSpace),
-	                                           null,
-	                                           transparency != ApngDecoder.OPAQUE,
-	                                           false,
-	                                           transparency,
-	                                           dataType);
-	        }
-	    }
-
-	     private static void applyGamma(byte[] palette, short[] gammaTable)
-	     {
-	         if (gammaTable != null) {
-	             for (int i = 0; i < palette.length; i++)
-	                 palette[i] = (byte)gammaTable[0xFF & palette[i]];
-	         }
-	     }
-	    
-	    private static short[] getIdentityTable(int bitDepth)
-	    {
-	        // TO-DO: cache identity tables?
-	        int size = 1 << bitDepth;
-	        short[] table = new short[size];
-	        for (int i = 0; i < size; i++)
-	            table[i] = (short)i;
-	        return table;
-	    }
-	}
-
-	abstract class Destination
-	{
-	    abstract public void setPixels(int x, int y, int w, int[] pixels); // TO-DO: change to setRow(int y, int w, int[] pixels)
-	    abstract public void setPixel(int x, int y, int[] pixel);
-	    abstract public void getPixel(int x, int y, int[] pixel); // used only by ProgressivePixelProcessor
-	    abstract public WritableRaster getRaster();
-	    abstract public int getSourceWidth();
-	    abstract public void done();
-	}
-	
-	abstract class PixelProcessor
-	{
-	    abstract public boolean process(int[] row, int xOffset, int xStep, int yStep, int y, int width);
-	}
-	
-	 public class BasicPixelProcessor
-	extends PixelProcessor
-	{
-	    protected final Destination dst;
-	    protected final int samples;
-	    
-	    public BasicPixelProcessor(Destination dst, int samples)
-	    {
-	        this.dst = dst;
-	        this.samples = samples;
-	    }
-	    
-	    public boolean process(int[] row, int xOffset, int xStep, int yStep, int y, int width)
-	    {
-	        if (xStep == 1) {
-	            dst.setPixels(xOffset, y, width, row);
-	        } else {
-	            int dstX = xOffset;
-	            for (int index = 0, total = samples * width; index < total; index += samples) {
-	                for (int i = 0; i < samples; i++)
-	                    row[i] = row[index + i];
-	                dst.setPixel(dstX, y, row);
-	                dstX += xStep;
-	            }
-	        }
-	        return true;
-	    }
-	}
-	
-	 public static class Defilterer
-	{
-	    private final InputStream in;
-	    private final int width;
-	    private final int bitDepth;
-	    private final int samples;
-	    private final PixelProcessor pp;
-	    private final int bpp;
-	    private final int[] row;
-
-	    public Defilterer(InputStream in, int bitDepth, int samples, int width, PixelProcessor pp)
-	    {
-	        this.in = in;
-	        this.bitDepth = bitDepth;
-	        this.samples = samples;
-	        this.width = width;
-	        this.pp = pp;
-	        bpp = Math.max(1, (bitDepth * samples) >> 3);
-	        row = new int[samples * width];
-	    }
-
-	    public boolean defilter(int xOffset, int yOffset,
-	                            int xStep, int yStep,
-	                            int passWidth, int passHeight)
-	    throws IOException
-	    {
-	        if (passWidth == 0 || passHeight == 0)
-	            return true;
-
-	        int bytesPerRow = (bitDepth * samples * passWidth + 7) / 8;
-	        boolean isShort = bitDepth == 16;
-	        WritableRaster passRow = createInputRaster(bitDepth, samples, width);
-	        DataBuffer dbuf = passRow.getDataBuffer();
-	        byte[] byteData = isShort ? null : ((DataBufferByte)dbuf).getData();
-	        short[] shortData = isShort ? ((DataBufferUShort)dbuf).getData() : null;
-	        
-	        int rowSize = bytesPerRow + bpp;
-	        byte[] prev = new byte[rowSize];
-	        byte[] cur = new byte[rowSize];
-
-	        for (int srcY = 0, dstY = yOffset; srcY < passHeight; srcY++, dstY += yStep) {
-	            int filterType = in.read();
-	            if (filterType == -1)
-	                throw new EOFException("Unexpected end of image data");
-	            readFully(in, cur, bpp, bytesPerRow);
-	            defilter(cur, prev, bpp, filterType);
-	            if (isShort) {
-	                for (int c = 0, i = bpp; i < rowSize; c++, i += 2)
-	                    shortData[c] = (short)((cur[i] << 8) | (0xFF & cur[i + 1]));
-	            } else {
-	                System.arraycopy(cur, bpp, byteData, 0, bytesPerRow);
-	            }
-	            passRow.getPixels(0, 0, passWidth, 1, row);
-	            if (!pp.process(row, xOffset, xStep, yStep, dstY, passWidth))
-	                return false;
-	            byte[] tmp = cur;
-	            cur = prev;
-	            prev = tmp;
-	        }
-	        return true;
-	    }
-
-	    private static void defilter(byte[] cur, byte[] prev, int bpp, int filterType)
-	    throws IOException
-	    {
-	        int rowSize = cur.length;
-	        int xc, xp;
-	        switch (filterType) {
-	        case 0: // None
-	            break;
-	        case 1: // Sub
-	            for (xc = bpp, xp = 0; xc < rowSize; xc++, xp++)
-	                cur[xc] = (byte)(cur[xc] + cur[xp]);
-	            break;
-	        case 2: // Up
-	            for (xc = bpp; xc < rowSize; xc++)
-	                cur[xc] = (byte)(cur[xc] + prev[xc]);
-	            break;
-	        case 3: // Average
-	            for (xc = bpp, xp = 0; xc < rowSize; xc++, xp++)
-	                cur[xc] = (byte)(cur[xc] + ((0xFF & cur[xp]) + (0xFF & prev[xc])) / 2);
-	            break;
-	        case 4: // Paeth
-	            for (xc = bpp, xp = 0; xc < rowSize; xc++, xp++) {
-	                byte L = cur[xp];
-	                byte u = prev[xc];
-	                byte nw = prev[xp];
-	                int a = 0xFF & L; //  inline byte->int
-	                int b = 0xFF & u; 
-	                int c = 0xFF & nw; 
-	                int p = a + b - c;
-	                int pa = p - a; if (pa < 0) pa = -pa; // inline Math.abs
-	                int pb = p - b; if (pb < 0) pb = -pb; 
-	                int pc = p - c; if (pc < 0) pc = -pc;
-	                int result;
-	                if (pa <= pb && pa <= pc) {
-	                    result = a;
-	                } else if (pb <= pc) {
-	                    result = b;
-	                } else {
-	                    result = c;
-	                }
-	                cur[xc] = (byte)(cur[xc] + result);
-	            }
-	            break;
-	        default:
-	            throw new IOException("Unrecognized filter type " + filterType);
-	        }
-	    }
-
-	    private static int[][] bandOffsets = {
-	        null,
-	        { 0 },
-	        { 0, 1 },
-	        { 0, 1, 2 },
-	        { 0, 1, 2, 3 },
-	    };
-
-	    private static WritableRaster createInputRaster(int bitDepth, int samples, int width)
-	    {
-	        int rowSize = (bitDepth * samples * width + 7) / 8;
-	        Point origin = new Point(0, 0);
-	        if ((bitDepth < 8) && (samples == 1)) {
-	            DataBuffer dbuf = new DataBufferByte(rowSize);
-	            return Raster.createPackedRaster(dbuf, width, 1, bitDepth, origin);
-	        } else if (bitDepth <= 8) {
-	            DataBuffer dbuf = new DataBufferByte(rowSize);
-	            return Raster.createInterleavedRaster(dbuf, width, 1, rowSize, samples,
-	                                                  bandOffsets[samples], origin);
-	        } else {
-	            DataBuffer dbuf = new DataBufferUShort(rowSize / 2);
-	            return Raster.createInterleavedRaster(dbuf, width, 1, rowSize / 2, samples,
-	                                                  bandOffsets[samples], origin);
-	        }
-	    }
-
-	    private static void readFully(InputStream in, byte[] b, int off, int len)
-	    throws IOException
-	    {
-	        int total = 0;
-	        while (total < len) {
-	            int result = in.read(b, off + total, len - total);
-	            if (result == -1)
-	                throw new EOFException("Unexpected end of image data");
-	            total += result;
-	        }
-	    }
-	}
-	
-	final public static class GammaPixelProcessor
-	extends BasicPixelProcessor
-	{
-	    final private short[] gammaTable;
-	    final private int shift;
-	    final private int samplesNoAlpha;
-	    final private boolean hasAlpha;
-	    final private boolean shiftAlpha;
-	    
-	    public GammaPixelProcessor(Destination dst, short[] gammaTable, int shift)
-	    {
-	        super(dst, dst.getRaster().getNumBands());
-	        this.gammaTable = gammaTable;
-	        this.shift = shift;
-	        hasAlpha = samples % 2 == 0;
-	        samplesNoAlpha = hasAlpha ? samples - 1 : samples; // don't change alpha channel
-	        shiftAlpha = hasAlpha && shift > 0;
-	    }
-	    
-	    public boolean process(int[] row, int xOffset, int xStep, int yStep, int y, int width)
-	    {
-	        int total = samples * width;
-	        for (int i = 0; i < samplesNoAlpha; i++)
-	            for (int index = i; index < total; index += samples)
-	                row[index] = 0xFFFF & gammaTable[row[index] >> shift];
-	        if (shiftAlpha)
-	            for (int index = samplesNoAlpha; index < total; index += samples)
-	                row[index] >>= shift;
-	        return super.process(row, xOffset, xStep, yStep, y, width);
-	    }
-	}
-	
-	final public static class TransGammaPixelProcessor
-	extends BasicPixelProcessor
-	{
-	    final private short[] gammaTable;
-	    final private int[] trans;
-	    final private int shift;
-	    final private int max;
-	    final private int samplesNoAlpha;
-	    final private int[] temp;
-	    
-	    public TransGammaPixelProcessor(Destination dst, short[] gammaTable, int[] trans, int shift)
-	    {
-	        super(dst, dst.getRaster().getNumBands());
-	        this.gammaTable = gammaTable;
-	        this.trans = trans;
-	        this.shift = shift;
-	        max = gammaTable.length - 1;
-	        samplesNoAlpha = samples - 1;
-	        temp = new int[samples * dst.getSourceWidth()];
-	    }
-	    
-	    public boolean process(int[] row, int xOffset, int xStep, int yStep, int y, int width)
-	    {
-	        int total = width * samplesNoAlpha;
-	        for (int i1 = 0, i2 = 0; i1 < total; i1 += samplesNoAlpha, i2 += samples) {
-	            boolean opaque = false;
-	            for (int j = 0; j < samplesNoAlpha; j++) {
-	                int sample = row[i1 + j];
-	                opaque = opaque || (sample != trans[j]);
-	                temp[i2 + j] = 0xFFFF & gammaTable[sample >> shift];
-	            }
-	            temp[i2 + samplesNoAlpha] = opaque ? max : 0;
-	        }
-	        return super.process(temp, xOffset, xStep, yStep, y, width);
-	    }
-	}
-	
-	class RasterDestination
-	extends Destination
-	{
-	    protected final WritableRaster raster;
-	    protected final int sourceWidth;
-	    public RasterDestination(WritableRaster raster, int sourceWidth) { this.raster = raster; this.sourceWidth = sourceWidth; }
- 	    public void setPixels(int x, int y, int w, int[] pixels) { raster.setPixels(x, y, w, 1, pixels); }
- 	    public void setPixel(int x, int y, int[] pixel) { raster.setPixel(x, y, pixel); }
- 	    public void getPixel(int x, int y, int[] pixel) { raster.getPixel(x, y, pixel); }
- 	    public WritableRaster getRaster() { return raster; }
-	    public void done() { }    
-	}
-	
-*/	
 }
@@ -0,0 +1,341 @@
+package com.android.mm3.wallpaper.animated;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Inflater;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.util.Log;
+
+/**
+ * APNG player for files too large to keep decoded in memory.
+ * <p>The file is indexed once with {@link ApngFrameIndex} and mapped in memory. A
+ * background thread inflates each frame straight from its fcTL/fdAT data offsets, composes
+ * it with {@link ApngCompositor} and keeps only a small ring of finished frames (the one
+ * on screen plus a few decoded ahead), so memory stays the same however long the
+ * animation is.</p>
+ * <p>{@link #seek(int)} jumps to any frame by composing from the closest key frame before
+ * it, see {@link ApngFrameIndex#getSeekStart(int)}.</p>
+ */
+public class ApngStreamDecoder extends Decoder {
+	static final public String TAG = "ApngStreamDecoder";
+
+	/** frames decoded ahead of the one on screen */
+	public static final int DEFAULT_AHEAD = 3;
+
+	private final String path;
+	private ApngFrameIndex index;
+	private final Bitmap[] ring;
+	private final int[] ringFrame; // frame number in each slot
+	private long produced = 0; // sequence number of the next frame to publish
+	private long shown = -1; // sequence number of the frame on screen
+	private int seekTo = -1; // frame asked for by seek(), -1 if none
+	private int generation = 0; // bumped by seek(), frames of an older generation are dropped
+	private volatile boolean running = false;
+	private Thread worker = null;
+	private Config config = Config.ARGB_8888;
+
+	// used by the worker thread only
+	private ApngCompositor compositor;
+	private PngPixelDecoder pixelDecoder;
+	private final Inflater inflater = new Inflater();
+	private final MapInput mapInput = new MapInput();
+	private int[] region = new int[0];
+	private int[] output;
+	private int start; // frame the compositor started from after its last reset
+
+	public ApngStreamDecoder(String path) {
+		this(path, null, DEFAULT_AHEAD);
+	}
+
+	/**
+	 * @param index frame index of the file, or null to build it in {@link #read(InputStream)}
+	 */
+	public ApngStreamDecoder(String path, ApngFrameIndex index) {
+		this(path, index, DEFAULT_AHEAD);
+	}
+
+	public ApngStreamDecoder(String path, ApngFrameIndex index, int ahead) {
+		this.path = path;
+		this.index = index;
+		this.ring = new Bitmap[ahead + 1];
+		this.ringFrame = new int[ahead + 1];
+	}
+
+	/**
+	 * Sets the format of the frame bitmaps. Must be called before the decoding starts.
+	 */
+	public void setConfig(Config config) {
+		this.config = config;
+	}
+
+	/**
+	 * Indexes the file and starts the decoding thread.
+	 */
+	@Override
+	public int read(InputStream is) {
+		if(index == null) {
+			index = ApngFrameIndex.scan(path);
+		}
+		if(index == null) {
+			return 1;
+		}
+		start();
+		return 0;
+	}
+
+	/**
+	 * Starts the decoding thread.
+	 */
+	public void start() {
+		if(running || index == null || index.getFrameCount() <= 0) {
+			return;
+		}
+		running = true;
+		worker = new Thread() {
+			@Override
+			public void run() {
+				decodeLoop();
+			}
+		};
+		worker.start();
+	}
+
+	/**
+	 * Makes frame n the next frame shown. Frames already decoded ahead are dropped.
+	 */
+	public synchronized void seek(int n) {
+		int total = getFrameCount();
+		if(total <= 0) {
+			return;
+		}
+		seekTo = ((n % total) + total) % total;
+		generation++;
+		produced = shown + 1;
+		notifyAll();
+	}
+
+	private void decodeLoop() {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(path, "r");
+			FileChannel channel = file.getChannel();
+			mapInput.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			compositor = new ApngCompositor(index.getWidth(), index.getHeight());
+			pixelDecoder = new PngPixelDecoder(index.getColorType(), index.getBitDepth(), index.isInterlaced());
+			pixelDecoder.setPalette(index.getPalette(), index.getPaletteAlpha());
+			pixelDecoder.setTransparentPixel(index.getTransparentPixel());
+			int width = index.getWidth();
+			int height = index.getHeight();
+			int outWidth = getWidth();
+			int outHeight = getHeight();
+			output = (outWidth == width && outHeight == height) ? compositor.getPixels() : new int[outWidth * outHeight];
+
+			int current = -1; // frame in the compositor
+			while(running) {
+				int target;
+				int slot;
+				int gen;
+				synchronized(this) {
+					while(running && seekTo < 0 && produced - shown >= ring.length) {
+						wait();
+					}
+					if(!running) {
+						break;
+					}
+					if(seekTo >= 0) {
+						target = seekTo;
+						seekTo = -1;
+					} else {
+						target = (current + 1) % index.getFrameCount();
+					}
+					slot = (int)(produced % ring.length);
+					gen = generation;
+				}
+				current = moveTo(current, target);
+
+				Bitmap b = ring[slot];
+				if(b == null || b.getWidth() != outWidth || b.getHeight() != outHeight || b.getConfig() != config) {
+					b = Bitmap.createBitmap(outWidth, outHeight, config);
+				}
+				updateOutput(width, height, outWidth, outHeight);
+				b.setPixels(output, 0, outWidth, 0, 0, outWidth, outHeight);
+				synchronized(this) {
+					if(gen == generation) {
+						ring[slot] = b;
+						ringFrame[slot] = target;
+						produced++;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+		} catch (Exception e) {
+			Log.e(TAG, "decode exception " + e);
+		} finally {
+			running = false;
+			mapInput.map = null;
+			inflater.end();
+			try {
+				if(file != null) {
+					file.close();
+				}
+			} catch (Exception e) {}
+		}
+	}
+
+	/**
+	 * Brings the compositor from frame current to frame target, composing forward when
+	 * that is possible and from the closest key frame otherwise.
+	 *
+	 * @return target
+	 */
+	private int moveTo(int current, int target) throws IOException {
+		boolean forward = current >= 0 && target > current;
+		if(forward && current == start && start > 0 && index.getDispose(start) == ApngCompositor.DISPOSE_OP_PREVIOUS) {
+			// the canvas before the seek start was never composed, it can't be restored
+			forward = false;
+		}
+		int from = current + 1;
+		int seekStart = index.getSeekStart(target);
+		if(!forward || seekStart > from) {
+			compositor.reset();
+			start = seekStart;
+			from = seekStart;
+		}
+		for(int n = from; n <= target; n++) {
+			composeFrame(n);
+		}
+		return target;
+	}
+
+	/**
+	 * Inflates frame n straight from the mapped file and composes it.
+	 */
+	private void composeFrame(int n) throws IOException {
+		int fw = index.getFrameWidth(n);
+		int fh = index.getFrameHeight(n);
+		if(region.length < fw * fh) {
+			region = new int[fw * fh];
+		}
+		mapInput.start(n);
+		inflater.reset();
+		pixelDecoder.decode(inflater, mapInput, fw, fh, region, 0, fw);
+		compositor.compose(region, 0, fw, index.getX(n), index.getY(n), fw, fh, index.getDispose(n), index.getBlend(n));
+	}
+
+	/**
+	 * Rescales the part of the output that changed since the last frame.
+	 */
+	private void updateOutput(int width, int height, int outWidth, int outHeight) {
+		if(!compositor.isDirty()) {
+			return;
+		}
+		if(output != compositor.getPixels()) {
+			// output pixels whose source area touches the dirty rectangle
+			int left = (int)((long)compositor.getDirtyLeft() * outWidth / width);
+			int top = (int)((long)compositor.getDirtyTop() * outHeight / height);
+			int right = Math.min(outWidth, (int)(((long)compositor.getDirtyRight() * outWidth + width - 1) / width) + 1);
+			int bottom = Math.min(outHeight, (int)(((long)compositor.getDirtyBottom() * outHeight + height - 1) / height) + 1);
+			scaleRect(compositor.getPixels(), width, height, output, outWidth, outHeight, left, top, right, bottom);
+		}
+		compositor.clearDirty();
+	}
+
+	/**
+	 * Feeds the inflater with the data pieces of one frame, read from the mapped file.
+	 */
+	private class MapInput implements PngPixelDecoder.Input {
+		MappedByteBuffer map;
+		final byte[] buffer = new byte[8192];
+		int frame;
+		int piece;
+		int pieceLeft;
+
+		void start(int n) {
+			frame = n;
+			piece = 0;
+			pieceLeft = 0;
+		}
+
+		public void refill(Inflater inflater) throws IOException {
+			while(pieceLeft == 0) {
+				if(piece >= index.getDataCount(frame)) {
+					throw new EOFException();
+				}
+				map.position((int)index.getDataOffset(frame, piece));
+				pieceLeft = index.getDataLength(frame, piece);
+				piece++;
+			}
+			int n = Math.min(pieceLeft, buffer.length);
+			map.get(buffer, 0, n);
+			pieceLeft -= n;
+			inflater.setInput(buffer, 0, n);
+		}
+	}
+
+	/**
+	 * Gets the frame on screen. When n differs from it and the next frame is already decoded
+	 * the player moves on to that frame, otherwise the current one is shown again.
+	 */
+	@Override
+	public synchronized Bitmap getFrame(int n) {
+		int total = getFrameCount();
+		if(total <= 0 || produced == 0) {
+			return null;
+		}
+		if(shown < 0 || ((n % total) != ringFrame[(int)(shown % ring.length)] && shown + 1 < produced)) {
+			shown++;
+			notifyAll();
+		}
+		return ring[(int)(shown % ring.length)];
+	}
+
+	@Override
+	public synchronized int getDelay(int n) {
+		if(shown < 0) {
+			return 100;
+		}
+		return index.getDelay(ringFrame[(int)(shown % ring.length)]);
+	}
+
+	@Override
+	public int getFrameCount() {
+		return (index != null) ? index.getFrameCount() : 0;
+	}
+
+	@Override
+	public int getWidth() {
+		return (index != null) ? getScaledWidth(index.getWidth(), index.getHeight()) : 0;
+	}
+
+	@Override
+	public int getHeight() {
+		return (index != null) ? getScaledHeight(index.getWidth(), index.getHeight()) : 0;
+	}
+
+	public int getLoopCount() {
+		return (index != null) ? index.getLoopCount() : 1;
+	}
+
+	@Override
+	public boolean isFrameCacheable() {
+		return false;
+	}
+
+	@Override
+	public void onDestroy() {
+		running = false;
+		synchronized(this) {
+			notifyAll();
+		}
+		if(worker != null) {
+			worker.interrupt();
+			worker = null;
+		}
+	}
+}
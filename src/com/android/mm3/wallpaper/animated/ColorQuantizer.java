@@ -0,0 +1,335 @@
+package com.android.mm3.wallpaper.animated;
+
+/**
+ * Builds one palette of at most 256 colors for a whole animation and maps ARGB pixels to
+ * it, so frames can be kept at one byte per pixel.
+ * <p>Samples are counted in a histogram with 5 bits of red, green and blue and 3 bits of
+ * alpha, then split with median cut. When the samples hold no more than 255 distinct
+ * colors, those colors are used as they are and nothing is lost. Index 0 is always
+ * transparent black and stands for every pixel with alpha 0.</p>
+ * <p>Histograms filled on different threads are combined with {@link #merge(ColorQuantizer)}.
+ * Once the palette is built, {@link #map(int[], byte[], int)} may be called from several
+ * threads at once.</p>
+ */
+public class ColorQuantizer {
+	private static final int CELLS = 1 << 18; // alpha 3 bits, red, green, blue 5 bits each
+	private static final int MAX_EXACT = 255; // index 0 is taken by transparent black
+	private static final int EXACT_HASH = 1024; // power of 2, four times MAX_EXACT
+
+	private int[] counts = new int[CELLS];
+	private int samples = 0;
+
+	// distinct colors seen, while there are no more than MAX_EXACT
+	private int[] exactKeys = new int[EXACT_HASH];
+	private int[] exactSlots = new int[EXACT_HASH]; // palette index of the key, 0 if empty
+	private int exactCount = 0;
+	private boolean exactOverflow = false;
+
+	private int[] palette;
+	private int[] inverse; // palette index of each cell, 0 until known
+
+	/**
+	 * Counts every step-th pixel of argb. Transparent pixels are not counted.
+	 */
+	public void addSamples(int[] argb, int offset, int length, int step) {
+		final int[] counts = this.counts;
+		int last = 0;
+		for(int i = offset, end = offset + length; i < end; i += step) {
+			int c = argb[i];
+			if((c >>> 24) == 0) {
+				continue;
+			}
+			counts[cell(c)]++;
+			samples++;
+			if(!exactOverflow && c != last) {
+				addExact(c);
+				last = c;
+			}
+		}
+	}
+
+	/**
+	 * Adds the samples of another histogram to this one.
+	 */
+	public void merge(ColorQuantizer other) {
+		for(int i = 0; i < CELLS; i++) {
+			counts[i] += other.counts[i];
+		}
+		samples += other.samples;
+		if(other.exactOverflow) {
+			exactOverflow = true;
+		}
+		for(int i = 0; i < EXACT_HASH && !exactOverflow; i++) {
+			if(other.exactSlots[i] != 0) {
+				addExact(other.exactKeys[i]);
+			}
+		}
+	}
+
+	private void addExact(int c) {
+		int h = (c * 0x9E3779B1) >>> 22;
+		while(exactSlots[h] != 0) {
+			if(exactKeys[h] == c) {
+				return;
+			}
+			h = (h + 1) & (EXACT_HASH - 1);
+		}
+		if(exactCount == MAX_EXACT) {
+			exactOverflow = true;
+			return;
+		}
+		exactKeys[h] = c;
+		exactSlots[h] = ++exactCount;
+	}
+
+	/**
+	 * Builds the palette from the samples counted so far and drops the histogram.
+	 *
+	 * @return the palette, index 0 being transparent black
+	 */
+	public int[] buildPalette() {
+		inverse = new int[CELLS];
+		if(!exactOverflow) {
+			palette = new int[exactCount + 1];
+			for(int i = 0; i < EXACT_HASH; i++) {
+				if(exactSlots[i] != 0) {
+					palette[exactSlots[i]] = exactKeys[i];
+				}
+			}
+		} else {
+			exactKeys = null;
+			exactSlots = null;
+			medianCut();
+		}
+		counts = null;
+		return palette;
+	}
+
+	/**
+	 * Gets the number of pixels counted, transparent ones excepted.
+	 */
+	public int getSampleCount() {
+		return samples;
+	}
+
+	public int[] getPalette() {
+		return palette;
+	}
+
+	/**
+	 * Splits the occupied cells into boxes, each box becoming one palette entry.
+	 */
+	private void medianCut() {
+		int n = 0;
+		for(int i = 0; i < CELLS; i++) {
+			if(counts[i] != 0) {
+				n++;
+			}
+		}
+		int[] cells = new int[n];
+		for(int i = 0, k = 0; i < CELLS; i++) {
+			if(counts[i] != 0) {
+				cells[k++] = i;
+			}
+		}
+		int[] tmp = new int[n];
+		int[] boxLo = new int[MAX_EXACT];
+		int[] boxHi = new int[MAX_EXACT];
+		long[] boxScore = new long[MAX_EXACT]; // samples times widest side, 0 if it can't be split
+		int[] boxChannel = new int[MAX_EXACT];
+		int boxes = 0;
+		if(n > 0) {
+			boxHi[0] = n;
+			scoreBox(cells, 0, boxLo, boxHi, boxScore, boxChannel);
+			boxes = 1;
+		}
+		while(boxes < MAX_EXACT) {
+			int best = -1;
+			for(int b = 0; b < boxes; b++) {
+				if(boxScore[b] > 0 && (best < 0 || boxScore[b] > boxScore[best])) {
+					best = b;
+				}
+			}
+			if(best < 0) {
+				break;
+			}
+			int lo = boxLo[best];
+			int hi = boxHi[best];
+			sortByChannel(cells, tmp, lo, hi, boxChannel[best]);
+			long half = population(cells, lo, hi) / 2;
+			long sum = 0;
+			int split = lo + 1;
+			for(int i = lo; i < hi - 1; i++) {
+				sum += counts[cells[i]];
+				split = i + 1;
+				if(sum >= half) {
+					break;
+				}
+			}
+			boxHi[best] = split;
+			boxLo[boxes] = split;
+			boxHi[boxes] = hi;
+			scoreBox(cells, best, boxLo, boxHi, boxScore, boxChannel);
+			scoreBox(cells, boxes, boxLo, boxHi, boxScore, boxChannel);
+			boxes++;
+		}
+
+		palette = new int[boxes + 1];
+		for(int b = 0; b < boxes; b++) {
+			long a = 0, r = 0, g = 0, bl = 0, w = 0;
+			for(int i = boxLo[b]; i < boxHi[b]; i++) {
+				int c = cells[i];
+				int k = counts[c];
+				a += (long)expandAlpha(c >> 15) * k;
+				r += (long)expand5((c >> 10) & 31) * k;
+				g += (long)expand5((c >> 5) & 31) * k;
+				bl += (long)expand5(c & 31) * k;
+				w += k;
+				inverse[c] = b + 1;
+			}
+			palette[b + 1] = (int)((a + w / 2) / w) << 24 | (int)((r + w / 2) / w) << 16
+					| (int)((g + w / 2) / w) << 8 | (int)((bl + w / 2) / w);
+		}
+	}
+
+	private void scoreBox(int[] cells, int b, int[] boxLo, int[] boxHi, long[] boxScore, int[] boxChannel) {
+		int[] range = new int[4];
+		int channel = widestChannel(cells, boxLo[b], boxHi[b], range);
+		boxChannel[b] = channel;
+		boxScore[b] = (boxHi[b] - boxLo[b] < 2) ? 0 : population(cells, boxLo[b], boxHi[b]) * range[channel];
+	}
+
+	private long population(int[] cells, int lo, int hi) {
+		long p = 0;
+		for(int i = lo; i < hi; i++) {
+			p += counts[cells[i]];
+		}
+		return p;
+	}
+
+	/**
+	 * Gets the channel (0 alpha, 1 red, 2 green, 3 blue) the box is widest along. Alpha
+	 * cells are 4 times wider than color cells.
+	 */
+	private static int widestChannel(int[] cells, int lo, int hi, int[] range) {
+		int best = 0;
+		for(int ch = 0; ch < 4; ch++) {
+			int min = Integer.MAX_VALUE, max = -1;
+			for(int i = lo; i < hi; i++) {
+				int v = channel(cells[i], ch);
+				if(v < min) min = v;
+				if(v > max) max = v;
+			}
+			range[ch] = (max - min) * (ch == 0 ? 4 : 1);
+			if(range[ch] > range[best]) {
+				best = ch;
+			}
+		}
+		return best;
+	}
+
+	private static int channel(int cell, int ch) {
+		switch(ch) {
+		case 0: return cell >> 15;
+		case 1: return (cell >> 10) & 31;
+		case 2: return (cell >> 5) & 31;
+		default: return cell & 31;
+		}
+	}
+
+	/**
+	 * Counting sort of cells[lo..hi) by one channel.
+	 */
+	private static void sortByChannel(int[] cells, int[] tmp, int lo, int hi, int ch) {
+		int[] start = new int[33];
+		for(int i = lo; i < hi; i++) {
+			start[channel(cells[i], ch) + 1]++;
+		}
+		for(int v = 1; v < 33; v++) {
+			start[v] += start[v - 1];
+		}
+		for(int i = lo; i < hi; i++) {
+			int c = cells[i];
+			tmp[lo + start[channel(c, ch)]++] = c;
+		}
+		System.arraycopy(tmp, lo, cells, lo, hi - lo);
+	}
+
+	/**
+	 * Maps argb pixels to palette indices.
+	 */
+	public void map(int[] argb, byte[] dest, int length) {
+		final int[] keys = exactKeys;
+		final int[] slots = exactSlots;
+		int last = 0;
+		int lastIndex = 0;
+		for(int i = 0; i < length; i++) {
+			int c = argb[i];
+			if(c != last) {
+				last = c;
+				if((c >>> 24) == 0) {
+					lastIndex = 0;
+				} else {
+					lastIndex = -1;
+					if(keys != null) {
+						int h = (c * 0x9E3779B1) >>> 22;
+						while(slots[h] != 0) {
+							if(keys[h] == c) {
+								lastIndex = slots[h];
+								break;
+							}
+							h = (h + 1) & (EXACT_HASH - 1);
+						}
+					}
+					if(lastIndex < 0) {
+						int cell = cell(c);
+						lastIndex = inverse[cell];
+						if(lastIndex == 0) {
+							// a color the samples missed; threads racing here store the same value
+							lastIndex = nearest(cell);
+							inverse[cell] = lastIndex;
+						}
+					}
+				}
+			}
+			dest[i] = (byte)lastIndex;
+		}
+	}
+
+	/**
+	 * Finds the palette entry closest to the center of a cell.
+	 */
+	private int nearest(int cell) {
+		int a = expandAlpha(cell >> 15);
+		int r = expand5((cell >> 10) & 31);
+		int g = expand5((cell >> 5) & 31);
+		int b = expand5(cell & 31);
+		int best = 1;
+		int bestDistance = Integer.MAX_VALUE;
+		for(int i = 1; i < palette.length; i++) {
+			int p = palette[i];
+			int da = (p >>> 24) - a;
+			int dr = ((p >> 16) & 255) - r;
+			int dg = ((p >> 8) & 255) - g;
+			int db = (p & 255) - b;
+			int d = da * da + dr * dr + dg * dg + db * db;
+			if(d < bestDistance) {
+				best = i;
+				bestDistance = d;
+			}
+		}
+		return best;
+	}
+
+	private static int cell(int c) {
+		return ((c >>> 29) << 15) | ((c >> 9) & 0x7C00) | ((c >> 6) & 0x3E0) | ((c >> 3) & 0x1F);
+	}
+
+	private static int expand5(int v) {
+		return (v << 3) | (v >> 2);
+	}
+
+	private static int expandAlpha(int v) {
+		return v * 255 / 7;
+	}
+}
@@ -1,11 +1,192 @@
 package com.android.mm3.wallpaper.animated;
 
 import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
 
 
 public class Decoder
 {
+	/** scale with the nearest source pixel: fastest, keeps palette colors */
+	public static final int FILTER_NEAREST = 0;
+	/** scale by averaging all source pixels under a target pixel: smoother, slower */
+	public static final int FILTER_BOX = 1;
+
+	private static long memoryBudget = 0; // 0 = derive from the heap size
+	private static ExecutorService pool = null; // frame work of all decoders, one thread per processor
+	private static int poolUsers = 0; // live decoders that took the pool, the last one shuts it down
+	private boolean poolUser = false;
+
+	protected int targetWidth = 0; // 0 = keep source resolution
+	protected int targetHeight = 0;
+	protected int filter = FILTER_BOX;
+	private int[] scaleBuffer;
+	private int[] scaleColumns;
+
+	/**
+	 * Overrides the memory frames may take before decoders fall back to cheaper storage.
+	 *
+	 * @param bytes budget in bytes, or 0 to use a quarter of the heap
+	 */
+	public static void setMemoryBudget(long bytes) {
+		memoryBudget = bytes;
+	}
+
+	/**
+	 * Gets the memory decoded frames of one animation may take.
+	 *
+	 * @return budget in bytes
+	 */
+	public static long getMemoryBudget() {
+		return (memoryBudget > 0) ? memoryBudget : Runtime.getRuntime().maxMemory() / 4;
+	}
+
+	/**
+	 * Picks the cheapest bitmap format that still shows the image without visible loss:
+	 * RGB_565 for opaque images, ARGB_4444 for palette images with on/off transparency
+	 * and ARGB_8888 for real alpha gradients or transparent truecolor. ARGB_8888 drops to
+	 * ARGB_4444 when the frames would not fit in the memory budget.
+	 *
+	 * @param alpha true if any pixel may be transparent
+	 * @param alphaGradient true if alpha values other than 0 and 255 occur
+	 * @param paletteSize number of palette colors, 0 for truecolor images
+	 * @param pixels number of pixels kept for all frames together
+	 */
+	public static Config selectConfig(boolean alpha, boolean alphaGradient, int paletteSize, long pixels) {
+		Config config;
+		if(!alpha) {
+			config = Config.RGB_565;
+		} else if(alphaGradient || paletteSize == 0) {
+			config = Config.ARGB_8888;
+		} else {
+			config = Config.ARGB_4444;
+		}
+		if(config == Config.ARGB_8888 && pixels * 4 > getMemoryBudget()) {
+			config = Config.ARGB_4444;
+		}
+		return config;
+	}
+
+	/**
+	 * Makes the decoder produce frames already scaled down to fit inside the given size,
+	 * keeping the aspect ratio. Frames smaller than the target are left as they are.
+	 * Must be called before decoding starts.
+	 *
+	 * @param width target width, 0 to keep the source resolution
+	 * @param height target height
+	 * @param filter FILTER_NEAREST or FILTER_BOX
+	 */
+	public void setTargetSize(int width, int height, int filter) {
+		this.targetWidth = width;
+		this.targetHeight = height;
+		this.filter = filter;
+	}
+
+	/**
+	 * Gets the width of a w*h source image after scaling to the target size.
+	 */
+	public int getScaledWidth(int w, int h) {
+		return getScaledWidth(w, h, targetWidth, targetHeight);
+	}
+
+	/**
+	 * Gets the height of a w*h source image after scaling to the target size.
+	 */
+	public int getScaledHeight(int w, int h) {
+		return getScaledHeight(w, h, targetWidth, targetHeight);
+	}
+
+	/**
+	 * Gets the width of a w*h source image after scaling to fit inside targetWidth*targetHeight,
+	 * as setTargetSize would scale it.
+	 */
+	public static int getScaledWidth(int w, int h, int targetWidth, int targetHeight) {
+		return Math.max(1, Math.round(w * getTargetScale(w, h, targetWidth, targetHeight)));
+	}
+
+	/**
+	 * Gets the height of a w*h source image after scaling to fit inside targetWidth*targetHeight,
+	 * as setTargetSize would scale it.
+	 */
+	public static int getScaledHeight(int w, int h, int targetWidth, int targetHeight) {
+		return Math.max(1, Math.round(h * getTargetScale(w, h, targetWidth, targetHeight)));
+	}
+
+	private static float getTargetScale(int w, int h, int targetWidth, int targetHeight) {
+		if(targetWidth <= 0 || targetHeight <= 0 || w <= 0 || h <= 0) {
+			return 1f;
+		}
+		float scale = Math.min((float)targetWidth / w, (float)targetHeight / h);
+		return (scale < 1f) ? scale : 1f;
+	}
+
+	/**
+	 * Scales ARGB pixels down with the selected filter. The result lives in a buffer that
+	 * is reused by the next call; src itself is returned when the sizes are equal.
+	 */
+	protected int[] scalePixels(int[] src, int sw, int sh, int dw, int dh) {
+		if(dw == sw && dh == sh) {
+			return src;
+		}
+		if(scaleBuffer == null || scaleBuffer.length < dw * dh) {
+			scaleBuffer = new int[dw * dh];
+		}
+		scaleRect(src, sw, sh, scaleBuffer, dw, dh, 0, 0, dw, dh);
+		return scaleBuffer;
+	}
+
+	/**
+	 * Scales the part of src that maps to the destination rectangle [left, right) x [top, bottom)
+	 * and writes it into dst, leaving the rest of dst alone.
+	 */
+	protected void scaleRect(int[] src, int sw, int sh, int[] dst, int dw, int dh, int left, int top, int right, int bottom) {
+		if(scaleColumns == null || scaleColumns.length < dw + 1) {
+			scaleColumns = new int[dw + 1];
+		}
+		final int[] cols = scaleColumns;
+		for(int x = left; x <= right; x++) {
+			cols[x] = (int)((long)x * sw / dw);
+		}
+		if(filter == FILTER_NEAREST) {
+			for(int y = top; y < bottom; y++) {
+				int row = (int)((long)y * sh / dh) * sw;
+				for(int x = left, d = y * dw + left; x < right; x++) {
+					dst[d++] = src[row + cols[x]];
+				}
+			}
+			return;
+		}
+		for(int y = top; y < bottom; y++) {
+			int y0 = (int)((long)y * sh / dh);
+			int y1 = Math.max(y0 + 1, (int)((long)(y + 1) * sh / dh));
+			for(int x = left, d = y * dw + left; x < right; x++) {
+				int x0 = cols[x];
+				int x1 = Math.max(x0 + 1, cols[x + 1]);
+				// alpha weighted average, so transparent pixels don't darken the edges
+				long sa = 0, sr = 0, sg = 0, sb = 0;
+				for(int yy = y0; yy < y1; yy++) {
+					for(int k = yy * sw + x0, end = yy * sw + x1; k < end; k++) {
+						int c = src[k];
+						int a = c >>> 24;
+						sa += a;
+						sr += ((c >> 16) & 0xff) * a;
+						sg += ((c >> 8) & 0xff) * a;
+						sb += (c & 0xff) * a;
+					}
+				}
+				if(sa == 0) {
+					dst[d++] = 0;
+				} else {
+					int n = (y1 - y0) * (x1 - x0);
+					dst[d++] = (int)(sa / n) << 24 | (int)(sr / sa) << 16 | (int)(sg / sa) << 8 | (int)(sb / sa);
+				}
+			}
+		}
+	}
+
 	public int read(InputStream is) {
 		return 0;
 	}
@@ -29,7 +210,62 @@ public class Decoder
     public int getWidth() {
         return 0;
     }
+
+    /**
+     * Tells whether callers may keep references to the bitmaps returned by getFrame().
+     * Decoders that hold only a few frames at a time return false.
+     */
+    public boolean isFrameCacheable() {
+        return true;
+    }
+    
+	/**
+	 * Gets the pool decoders run frame work on in parallel, with a thread for each processor.
+	 * It is made on first use and kept for the next decodings, until every decoder that took
+	 * it is destroyed.
+	 *
+	 * @return null on a single processor
+	 */
+	protected ExecutorService getPool() {
+		int threads = Runtime.getRuntime().availableProcessors();
+		if(threads <= 1) {
+			return null;
+		}
+		synchronized(Decoder.class) {
+			if(pool == null) {
+				pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Decoder");
+						// idle workers must not keep the process alive
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+			if(!this.poolUser) {
+				this.poolUser = true;
+				poolUsers++;
+			}
+			return pool;
+		}
+	}
+	
+	/**
+	 * Gives the pool back, shutting it down when no other decoder holds it.
+	 */
+	protected void releasePool() {
+		synchronized(Decoder.class) {
+			if(this.poolUser) {
+				this.poolUser = false;
+				if(--poolUsers == 0) {
+					pool.shutdown();
+					pool = null;
+				}
+			}
+		}
+	}
     
 	public void onDestroy() {
+		releasePool();
 	}
 }
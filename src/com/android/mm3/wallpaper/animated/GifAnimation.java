@@ -4,13 +4,17 @@ package com.android.mm3.wallpaper.animated;
 import android.content.res.Resources;
 import android.graphics.Canvas;
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
 import android.util.Log;
 import java.io.InputStream;
 import java.io.FileInputStream;
+import java.util.Arrays;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Rect;
+import android.view.SurfaceHolder;
 
 
 public class GifAnimation extends Animation
@@ -22,6 +26,12 @@ public class GifAnimation extends Animation
 	protected int counter = 0;
 	protected int maxCount = 0;
 	protected Drawable[] drawables = null;
+	protected String file = null;
+	protected int targetWidth = 0; // surface size the frames are decoded for
+	protected int targetHeight = 0;
+	protected int filter = Decoder.FILTER_BOX;
+	protected final Rect dest = new Rect(); // set again for every scaled draw
+	private int generation = 0; // bumped on every (re)start of the decoding
 	
 	public GifAnimation(String s)
 	{
@@ -32,11 +42,18 @@ public class GifAnimation extends Animation
 	public GifAnimation(String s, int style)
 	{
 		super(style);
-		init(s);
+		if(style == Animation.STYLE_RESIZED) {
+			// decoded when the surface size is known, see onSurfaceChanged()
+			this.file = s;
+		} else {
+			init(s);
+		}
 	}
 	
 	public void init(final String s) 
 	{
+		this.file = s;
+		final int gen = ++this.generation;
 		Thread t = new Thread() {
 			@Override
 			public void run() {
@@ -44,7 +61,7 @@ public class GifAnimation extends Animation
 				InputStream is = null;
 		        try {
 		            is = new FileInputStream(s);
-					setDecoder(newDecoder(is));
+					setDecoder(newDecoder(is), gen);
 		        }
 		        catch (Exception e) {
 		            Log.e(TAG, "GifAnimation exeption" + e);
@@ -64,16 +81,79 @@ public class GifAnimation extends Animation
 	}
 	
 	protected Decoder newDecoder(InputStream is) {
+		boolean indexed = false;
+		GifFrameIndex index = GifFrameIndex.scan(this.file);
+		long budget = Decoder.getMemoryBudget();
+		Config config = Config.ARGB_4444;
+		long pixels = 0;
+		if(index != null) {
+			// sizes as decoded, after scaling to the surface
+			int w = index.getWidth();
+			int h = index.getHeight();
+			pixels = (long)index.getFrameCount() * Decoder.getScaledWidth(w, h, this.targetWidth, this.targetHeight)
+					* Decoder.getScaledHeight(w, h, this.targetWidth, this.targetHeight);
+			config = Decoder.selectConfig(index.hasTransparency(), false, 256, pixels);
+		}
+		if(index != null && pixels * 2 > budget) {
+			if(pixels > budget) {
+				Log.d(TAG, "stream " + index.getFrameCount() + " frames, " + pixels * 2 + " bytes decoded");
+				GifStreamDecoder stream = new GifStreamDecoder(this.file, index);
+				stream.setTargetSize(this.targetWidth, this.targetHeight, this.filter);
+				stream.setConfig(config);
+				stream.start();
+				return stream;
+			}
+			Log.d(TAG, "indexed " + index.getFrameCount() + " frames, " + pixels + " bytes decoded");
+			indexed = true;
+		}
         GifDecoder decoder = new GifDecoder();
+        decoder.setTargetSize(this.targetWidth, this.targetHeight, this.filter);
+        decoder.setIndexedStorage(indexed);
+        decoder.setConfig(config);
 		decoder.read(is);
 		return decoder;
 	}
 
 	
-	private void setDecoder(Decoder decoder) {
+	private synchronized void setDecoder(Decoder decoder, int gen) {
+		if(gen != this.generation) {
+			// a newer decoding was started meanwhile
+			if(decoder != null) {
+				decoder.onDestroy();
+			}
+			return;
+		}
+		Decoder old = this.decoder;
 		this.maxCount = decoder.getFrameCount();
+		this.drawables = null;
 		this.decoder = decoder;
 		this.counter = 0;
+		if(old != null) {
+			old.onDestroy();
+		}
+	}
+
+	/**
+	 * In resized style the frames are decoded already scaled to the surface, so a new
+	 * surface size restarts the decoding.
+	 */
+	@Override
+	public synchronized void onSurfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+		if(this.style != Animation.STYLE_RESIZED || width <= 0 || height <= 0) {
+			return;
+		}
+		if(width == this.targetWidth && height == this.targetHeight) {
+			return;
+		}
+		this.targetWidth = width;
+		this.targetHeight = height;
+		init(this.file);
+	}
+
+	@Override
+	public synchronized void onDestroy() {
+		this.generation++;
+		super.onDestroy();
 	}
 
 	@Override
@@ -88,11 +168,15 @@ public class GifAnimation extends Animation
 		
 		this.bitmap = this.decoder.getFrame(this.counter);
 		
-		if (this.style == Animation.STYLE_RESIZED) {
+		if (this.style == Animation.STYLE_RESIZED && this.bitmap != null && !isTargetSize(this.bitmap)) {
 			if(this.drawables == null) 
 			{
 				this.drawables = new Drawable[this.maxCount];
 			}
+			if(!this.decoder.isFrameCacheable()) {
+				// the decoder drops old frames, so only the current one may be wrapped
+				Arrays.fill(this.drawables, null);
+			}
 			if(this.drawables[this.counter] == null)
 			{
 				this.drawables[this.counter] = new BitmapDrawable(Resources.getSystem(), this.bitmap);
@@ -101,6 +185,10 @@ public class GifAnimation extends Animation
 		
 	}
 	
+	private boolean isTargetSize(Bitmap b) {
+		return b.getWidth() == this.targetWidth || b.getHeight() == this.targetHeight;
+	}
+	
 	@Override
 	public int getImageWidth(Canvas c) {
 		return (this.bitmap != null) ? this.bitmap.getWidth() : c.getWidth();
@@ -119,9 +207,17 @@ public class GifAnimation extends Animation
 		}
 		switch(this.style) {
 			case Animation.STYLE_RESIZED:
-				if(this.drawables != null && this.drawables[this.counter] != null) {
+				if(this.bitmap != null && Math.abs(right - left - this.bitmap.getWidth()) <= 1
+						&& Math.abs(bottom - top - this.bitmap.getHeight()) <= 1) {
+					// decoded at the surface size, no scaling on every draw
+					c.drawBitmap(this.bitmap, left, top, paint);
+				} else if(this.drawables != null && this.drawables[this.counter] != null) {
 					this.drawables[this.counter].setBounds(left,top,right,bottom);
 					this.drawables[this.counter].draw(c);
+				} else if(this.bitmap != null) {
+					// decoded at the surface size but drawn into a rect of another size
+					this.dest.set(left, top, right, bottom);
+					c.drawBitmap(this.bitmap, null, this.dest, paint);
 				}
 				break;
 			case Animation.STYLE_CENTRED:
@@ -1,7 +1,12 @@
 package com.android.mm3.wallpaper.animated;
 
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
@@ -19,12 +24,14 @@ public class GifDecoder extends Decoder{
          * File read status: Unable to open source.
          */
         public static final int STATUS_OPEN_ERROR = 2;
-        /** max decoder pixel stack size */
-        protected static final int MAX_STACK_SIZE = 4096;
+        /** size of the color to palette index hash, a power of two well above 256 */
+        protected static final int COLOR_HASH_SIZE = 1024;
         protected InputStream in;
         protected int status;
         protected int width; // full image width
         protected int height; // full image height
+        protected int outWidth; // frame width after scaling to the target size
+        protected int outHeight;
         protected boolean gctFlag; // global color table used
         protected int gctSize; // size of global color table
         protected int loopCount = 1; // iterations; 0 = repeat forever
@@ -33,6 +40,7 @@ public class GifDecoder extends Decoder{
         protected int[] act; // active color table
         protected int bgIndex; // background color index
         protected int bgColor; // background color
+        protected int screenBgColor; // background color of the logical screen, from the global table
         protected int lastBgColor; // previous bg color
         protected int pixelAspect; // pixel aspect ratio
         protected boolean lctFlag; // local color table flag
@@ -41,7 +49,8 @@ public class GifDecoder extends Decoder{
         protected int ix, iy, iw, ih; // current image rectangle
         protected int lrx, lry, lrw, lrh;
         protected Bitmap image; // current frame
-        protected Bitmap lastBitmap; // previous frame
+        protected int[] canvas; // composed pixels, kept between frames
+        protected int[] restorePixels; // area under the current frame, saved for dispose=3
         protected byte[] block = new byte[256]; // current data block
         protected int blockSize = 0; // block size last graphic control extension info
         protected int dispose = 0; // 0=no action; 1=leave in place; 2=restore to bg; 3=restore to prev
@@ -50,12 +59,32 @@ public class GifDecoder extends Decoder{
         protected int delay = 0; // delay in milliseconds
         protected int transIndex; // transparent color index
         // LZW decoder working arrays
-        protected short[] prefix;
-        protected byte[] suffix;
-        protected byte[] pixelStack;
+        protected GifLzwDecoder lzw;
+        protected byte[] lzwData; // image data of the current frame without block headers
         protected byte[] pixels;
         protected Vector<GifFrame> frames; // frames read from current file
         protected int frameCount;
+        protected boolean indexedStorage = false; // keep frames as palette indices
+        protected Config config = Config.ARGB_4444; // format of the frame bitmaps
+        // indexed storage working arrays
+        protected int[] colorKeys;
+        protected int[] colorSlots; // palette index + 1, 0 = empty
+        protected int[] paletteScratch;
+        protected int[] expandLine;
+        protected Bitmap expandBitmap; // shared bitmap indexed frames are expanded into
+        protected int expandedFrame = -1;
+        // two-stage decode: LZW on a thread pool, composition in file order on the reading thread
+        protected boolean parallel = true;
+        protected ExecutorService executor;
+        protected int maxPending;
+        protected LinkedList<ImageBlock> pendingImages;
+
+        private static final ThreadLocal<GifLzwDecoder> workerLzw = new ThreadLocal<GifLzwDecoder>() {
+                @Override
+                protected GifLzwDecoder initialValue() {
+                        return new GifLzwDecoder();
+                }
+        };
 
         private static class GifFrame {
                 public GifFrame(Bitmap im, int del) {
@@ -63,8 +92,71 @@ public class GifDecoder extends Decoder{
                         delay = del;
                 }
 
+                public GifFrame(byte[] idx, int[] pal, int del) {
+                        indices = idx;
+                        palette = pal;
+                        delay = del;
+                }
+
                 public Bitmap image;
+                public byte[] indices; // composed frame as palette indices, when image is null
+                public int[] palette;
+                public int delay;
+        }
+
+        /**
+         * Image data and descriptor state of one frame, waiting for its LZW decode to finish.
+         */
+        protected static class ImageBlock {
+                public int ix, iy, iw, ih;
+                public boolean interlace;
+                public boolean transparency;
+                public int dispose;
+                public int bgColor;
                 public int delay;
+                public int[] act;
+                public byte[] pixels;
+                public Future<byte[]> decoded;
+        }
+
+        /**
+         * Selects how decoded frames are kept. Indexed frames take one byte per pixel and are expanded into a single
+         * shared Bitmap when requested, so the Bitmap returned by {@link #getFrame(int)} is only valid until the next
+         * call. Frames with more than 256 colors are still stored as Bitmaps. Must be called before
+         * {@link #read(InputStream)}.
+         * 
+         * @param indexed
+         *          true to store frames as palette indices
+         */
+        public void setIndexedStorage(boolean indexed) {
+                indexedStorage = indexed;
+        }
+
+        /**
+         * Sets the format of the frame bitmaps. RGB_565 must only be used when no frame has transparent pixels, see
+         * {@link GifFrameIndex#hasTransparency()}. Must be called before {@link #read(InputStream)}.
+         * 
+         * @param config
+         *          bitmap format, ARGB_4444 by default
+         */
+        public void setConfig(Config config) {
+                this.config = config;
+        }
+
+        /**
+         * Enables decoding the LZW data of several frames at once on all cores. Frames are still composed one after
+         * the other in file order. Enabled by default; has no effect on single core devices.
+         * 
+         * @param enable
+         *          false to decode everything on the calling thread
+         */
+        public void setParallel(boolean enable) {
+                parallel = enable;
+        }
+
+        @Override
+        public boolean isFrameCacheable() {
+                return !indexedStorage;
         }
 
         /**
@@ -109,50 +201,44 @@ public class GifDecoder extends Decoder{
 
         @Override
         public int getHeight() {
-            return height;
+            return outHeight;
         }
 
         @Override
         public int getWidth() {
-            return width;
+            return outWidth;
         }
      
         
         /**
-         * Creates new frame image from current data (and previous frames as specified by their disposition codes).
+         * Composes the current frame into the canvas. Only the previous frame's rectangle is disposed and only the
+         * current frame's rectangle is drawn; dispose=3 restores from a copy of the area the frame covered.
          */
         protected void setPixels() {
-                // expose destination image's pixels as int array
-                int[] dest = new int[width * height];
-                // fill in starting image contents based on last image's dispose code
-                if (lastDispose > 0) {
-                        if (lastDispose == 3) {
-                                // use image before last
-                                int n = frameCount - 2;
-                                if (n > 0) {
-                                        lastBitmap = getFrame(n - 1);
-                                } else {
-                                        lastBitmap = null;
-                                }
+                if ((canvas == null) || (canvas.length != width * height)) {
+                        canvas = new int[width * height];
+                } else if (frameCount == 1) {
+                        Arrays.fill(canvas, 0);
+                }
+                final int[] dest = canvas;
+                // undo the last image inside its rect area based on its dispose code
+                if (lastDispose == 2) {
+                        // fill last image rect area with background color
+                        int c = 0;
+                        if (!transparency) {
+                                c = lastBgColor;
                         }
-                        if (lastBitmap != null) {
-                                lastBitmap.getPixels(dest, 0, width, 0, 0, width, height);
-                                // copy pixels
-                                if (lastDispose == 2) {
-                                        // fill last image rect area with background color
-                                        int c = 0;
-                                        if (!transparency) {
-                                                c = lastBgColor;
-                                        }
-                                        for (int i = 0; i < lrh; i++) {
-                                                int n1 = (lry + i) * width + lrx;
-                                                int n2 = n1 + lrw;
-                                                for (int k = n1; k < n2; k++) {
-                                                        dest[k] = c;
-                                                }
-                                        }
-                                }
+                        fillRect(dest, lrx, lry, lrw, lrh, c);
+                } else if (lastDispose == 3) {
+                        // put back what was under the last image
+                        copyRect(restorePixels, dest, lrx, lry, lrw, lrh, false);
+                }
+                if (dispose == 3) {
+                        int size = iw * ih;
+                        if ((restorePixels == null) || (restorePixels.length < size)) {
+                                restorePixels = new int[size];
                         }
+                        copyRect(restorePixels, dest, ix, iy, iw, ih, true);
                 }
                 // copy each source line to the appropriate place in the destination
                 int pass = 1;
@@ -202,7 +288,154 @@ public class GifDecoder extends Decoder{
                                 }
                         }
                 }
-                image = Bitmap.createBitmap(dest, width, height, Config.ARGB_4444);
+        }
+
+        /**
+         * Fills a rectangle of the canvas, clipped to the image bounds.
+         */
+        protected void fillRect(int[] dest, int x, int y, int w, int h, int c) {
+                int x0 = Math.max(x, 0);
+                int x1 = Math.min(x + w, width);
+                int y1 = Math.min(y + h, height);
+                if (x1 <= x0) {
+                        return;
+                }
+                for (int line = Math.max(y, 0); line < y1; line++) {
+                        int k = line * width;
+                        Arrays.fill(dest, k + x0, k + x1, c);
+                }
+        }
+
+        /**
+         * Copies a rectangle of the canvas to (save) or from (!save) a packed buffer of w*h pixels, clipped to the
+         * image bounds.
+         */
+        protected void copyRect(int[] buf, int[] dest, int x, int y, int w, int h, boolean save) {
+                if (buf == null) {
+                        return;
+                }
+                int x0 = Math.max(x, 0);
+                int y0 = Math.max(y, 0);
+                int cw = Math.min(x + w, width) - x0;
+                int y1 = Math.min(y + h, height);
+                if (cw <= 0) {
+                        return;
+                }
+                for (int line = y0, b = (y0 - y) * w + x0 - x; line < y1; line++, b += w) {
+                        int k = line * width + x0;
+                        if (save) {
+                                System.arraycopy(dest, k, buf, b, cw);
+                        } else {
+                                System.arraycopy(buf, b, dest, k, cw);
+                        }
+                }
+        }
+
+        /**
+         * Converts composed frame pixels to palette indices. The palette of the previous frame is tried first so that
+         * frames with the same colors share one table.
+         * 
+         * @return indexed frame, or null if the frame has more than 256 colors
+         */
+        protected GifFrame indexFrame(int[] argb, int del) {
+                int[] seed = frames.isEmpty() ? null : frames.lastElement().palette;
+                byte[] idx = new byte[argb.length];
+                int[] pal = buildIndices(argb, seed, idx);
+                if (pal == null && seed != null) {
+                        pal = buildIndices(argb, null, idx);
+                }
+                if (pal == null) {
+                        return null;
+                }
+                return new GifFrame(idx, pal, del);
+        }
+
+        /**
+         * Fills idx with palette indices of argb, starting from the seed palette.
+         * 
+         * @return palette (the seed itself if no color was added), or null if more than 256 colors are needed
+         */
+        protected int[] buildIndices(int[] argb, int[] seed, byte[] idx) {
+                if (colorKeys == null) {
+                        colorKeys = new int[COLOR_HASH_SIZE];
+                        colorSlots = new int[COLOR_HASH_SIZE];
+                        paletteScratch = new int[256];
+                }
+                final int[] keys = colorKeys;
+                final int[] slots = colorSlots;
+                final int[] pal = paletteScratch;
+                final int mask = COLOR_HASH_SIZE - 1;
+                for (int i = 0; i < COLOR_HASH_SIZE; i++) {
+                        slots[i] = 0;
+                }
+                int count = 0;
+                if (seed != null) {
+                        for (int i = 0; i < seed.length; i++) {
+                                int c = seed[i];
+                                int h = (c * 0x9E3779B1) >>> 22;
+                                while (slots[h] != 0 && keys[h] != c) {
+                                        h = (h + 1) & mask;
+                                }
+                                if (slots[h] == 0) {
+                                        keys[h] = c;
+                                        slots[h] = i + 1;
+                                }
+                                pal[i] = c;
+                        }
+                        count = seed.length;
+                }
+                int lastColor = 0;
+                int lastIndex = -1;
+                for (int i = 0, n = argb.length; i < n; i++) {
+                        int c = argb[i];
+                        if (c != lastColor || lastIndex < 0) {
+                                int h = (c * 0x9E3779B1) >>> 22;
+                                while (slots[h] != 0 && keys[h] != c) {
+                                        h = (h + 1) & mask;
+                                }
+                                if (slots[h] == 0) {
+                                        if (count == 256) {
+                                                return null;
+                                        }
+                                        keys[h] = c;
+                                        slots[h] = count + 1;
+                                        pal[count++] = c;
+                                }
+                                lastColor = c;
+                                lastIndex = slots[h] - 1;
+                        }
+                        idx[i] = (byte) lastIndex;
+                }
+                if (seed != null && count == seed.length) {
+                        return seed;
+                }
+                int[] tab = new int[count];
+                System.arraycopy(pal, 0, tab, 0, count);
+                return tab;
+        }
+
+        /**
+         * Expands an indexed frame into the shared bitmap, one line at a time.
+         */
+        protected Bitmap expandFrame(int n, GifFrame f) {
+                if (expandedFrame == n && expandBitmap != null) {
+                        return expandBitmap;
+                }
+                if (expandBitmap == null) {
+                        expandBitmap = Bitmap.createBitmap(outWidth, outHeight, config);
+                        expandLine = new int[outWidth];
+                }
+                final byte[] idx = f.indices;
+                final int[] pal = f.palette;
+                final int[] line = expandLine;
+                for (int y = 0, k = 0; y < outHeight; y++) {
+                        for (int x = 0; x < outWidth; x++) {
+                                line[x] = pal[idx[k++] & 0xff];
+                        }
+                        expandBitmap.setPixels(line, 0, outWidth, 0, y, outWidth, 1);
+                }
+                expandedFrame = n;
+                return expandBitmap;
         }
 
         /**
@@ -214,7 +447,8 @@ public class GifDecoder extends Decoder{
                 if (frameCount <= 0)
                         return null;
                 n = n % frameCount;
-                return ((GifFrame) frames.elementAt(n)).image;
+                GifFrame f = frames.elementAt(n);
+                return (f.image != null) ? f.image : expandFrame(n, f);
         }
 
         /**
@@ -228,11 +462,33 @@ public class GifDecoder extends Decoder{
                 init();
                 if (is != null) {
                         in = is;
-                        readHeader();
-                        if (!err()) {
-                                readContents();
-                                if (frameCount < 0) {
-                                        status = STATUS_FORMAT_ERROR;
+                        executor = parallel ? getPool() : null;
+                        if (executor != null) {
+                                maxPending = 2 * Runtime.getRuntime().availableProcessors();
+                                pendingImages = new LinkedList<ImageBlock>();
+                        }
+                        try {
+                                readHeader();
+                                if (!err()) {
+                                        readContents();
+                                        // compose whatever was read before the end or an error
+                                        while ((pendingImages != null) && !pendingImages.isEmpty()) {
+                                                if (!composeNext()) {
+                                                        break;
+                                                }
+                                        }
+                                        if (frameCount < 0) {
+                                                status = STATUS_FORMAT_ERROR;
+                                        }
+                                }
+                        } finally {
+                                if (executor != null) {
+                                        // the pool is shared, drop only the frames left after an error
+                                        for (ImageBlock b : pendingImages) {
+                                                b.decoded.cancel(true);
+                                        }
+                                        executor = null;
+                                        pendingImages = null;
                                 }
                         }
                 } else {
@@ -246,110 +502,61 @@ public class GifDecoder extends Decoder{
         }
 
         /**
-         * Decodes LZW image data into pixel array. Adapted from John Cristy's BitmapMagick.
+         * Decodes LZW image data into pixel array. The whole image data is read into lzwData first and then handed to
+         * the LZW decoder in one piece.
          */
         protected void decodeBitmapData() {
-                int nullCode = -1;
                 int npix = iw * ih;
-                int available, clear, code_mask, code_size, end_of_information, in_code, old_code, bits, code, count, i, datum, data_size, first, top, bi, pi;
                 if ((pixels == null) || (pixels.length < npix)) {
                         pixels = new byte[npix]; // allocate new pixel array
                 }
-                if (prefix == null) {
-                        prefix = new short[MAX_STACK_SIZE];
-                }
-                if (suffix == null) {
-                        suffix = new byte[MAX_STACK_SIZE];
-                }
-                if (pixelStack == null) {
-                        pixelStack = new byte[MAX_STACK_SIZE + 1];
-                }
-                // Initialize GIF data stream decoder.
-                data_size = read();
-                clear = 1 << data_size;
-                end_of_information = clear + 1;
-                available = clear + 2;
-                old_code = nullCode;
-                code_size = data_size + 1;
-                code_mask = (1 << code_size) - 1;
-                for (code = 0; code < clear; code++) {
-                        prefix[code] = 0; // XXX ArrayIndexOutOfBoundsException
-                        suffix[code] = (byte) code;
-                }
-                // Decode GIF pixel stream.
-                datum = bits = count = first = top = pi = bi = 0;
-                for (i = 0; i < npix;) {
-                        if (top == 0) {
-                                if (bits < code_size) {
-                                        // Load bytes until there are enough bits for a code.
-                                        if (count == 0) {
-                                                // Read a new data block.
-                                                count = readBlock();
-                                                if (count <= 0) {
-                                                        break;
-                                                }
-                                                bi = 0;
+                if (lzw == null) {
+                        lzw = new GifLzwDecoder();
+                }
+                int dataSize = read();
+                int n = readImageData();
+                lzw.decode(lzwData, n, dataSize, pixels, npix);
+        }
+
+        /**
+         * Reads all data sub-blocks of an image up to and including the terminating zero length block, without the
+         * length bytes.
+         * 
+         * @return number of bytes stored in lzwData
+         */
+        protected int readImageData() {
+                if (lzwData == null) {
+                        lzwData = new byte[16 * 1024];
+                }
+                int n = 0;
+                for (;;) {
+                        blockSize = read();
+                        if (blockSize <= 0) {
+                                break;
+                        }
+                        if (lzwData.length < n + blockSize) {
+                                byte[] tmp = new byte[Math.max(lzwData.length * 2, n + blockSize)];
+                                System.arraycopy(lzwData, 0, tmp, 0, n);
+                                lzwData = tmp;
+                        }
+                        int end = n + blockSize;
+                        try {
+                                while (n < end) {
+                                        int count = in.read(lzwData, n, end - n);
+                                        if (count == -1) {
+                                                break;
                                         }
-                                        datum += (((int) block[bi]) & 0xff) << bits;
-                                        bits += 8;
-                                        bi++;
-                                        count--;
-                                        continue;
-                                }
-                                // Get the next code.
-                                code = datum & code_mask;
-                                datum >>= code_size;
-                                bits -= code_size;
-                                // Interpret the code
-                                if ((code > available) || (code == end_of_information)) {
-                                        break;
-                                }
-                                if (code == clear) {
-                                        // Reset decoder.
-                                        code_size = data_size + 1;
-                                        code_mask = (1 << code_size) - 1;
-                                        available = clear + 2;
-                                        old_code = nullCode;
-                                        continue;
-                                }
-                                if (old_code == nullCode) {
-                                        pixelStack[top++] = suffix[code];
-                                        old_code = code;
-                                        first = code;
-                                        continue;
-                                }
-                                in_code = code;
-                                if (code == available) {
-                                        pixelStack[top++] = (byte) first;
-                                        code = old_code;
-                                }
-                                while (code > clear) {
-                                        pixelStack[top++] = suffix[code];
-                                        code = prefix[code];
-                                }
-                                first = ((int) suffix[code]) & 0xff;
-                                // Add a new string to the string table,
-                                if (available >= MAX_STACK_SIZE) {
-                                        break;
-                                }
-                                pixelStack[top++] = (byte) first;
-                                prefix[available] = (short) old_code;
-                                suffix[available] = (byte) first;
-                                available++;
-                                if (((available & code_mask) == 0) && (available < MAX_STACK_SIZE)) {
-                                        code_size++;
-                                        code_mask += available;
+                                        n += count;
                                 }
-                                old_code = in_code;
+                        } catch (Exception e) {
+                                e.printStackTrace();
+                        }
+                        if (n < end) {
+                                status = STATUS_FORMAT_ERROR;
+                                break;
                         }
-                        // Pop a pixel off the pixel stack.
-                        top--;
-                        pixels[pi++] = pixelStack[top];
-                        i++;
-                }
-                for (i = pi; i < npix; i++) {
-                        pixels[i] = 0; // clear missing pixels
                 }
+                return n;
         }
 
         /**
@@ -368,6 +575,9 @@ public class GifDecoder extends Decoder{
                 frames = new Vector<GifFrame>();
                 gct = null;
                 lct = null;
+                lastDispose = 0;
+                screenBgColor = 0;
+                expandedFrame = -1;
         }
 
         /**
@@ -525,7 +735,8 @@ public class GifDecoder extends Decoder{
                 readLSD();
                 if (gctFlag && !err()) {
                         gct = readColorTable(gctSize);
-                        bgColor = gct[bgIndex];
+                        screenBgColor = gct[bgIndex];
+                        bgColor = screenBgColor;
                 }
         }
 
@@ -549,10 +760,8 @@ public class GifDecoder extends Decoder{
                         act = lct; // make local table active
                 } else {
                         act = gct; // make global table active
-                        if (bgIndex == transIndex) {
-                                bgColor = 0;
-                        }
                 }
+                setBackground(lctFlag);
                 int save = 0;
                 if (transparency) {
                         save = act[transIndex];
@@ -564,23 +773,142 @@ public class GifDecoder extends Decoder{
                 if (err()) {
                         return;
                 }
+                if (executor != null) {
+                        queueImage(); // decode on the pool, compose later
+                        if (transparency) {
+                                act[transIndex] = save;
+                        }
+                        clearControl();
+                        return;
+                }
                 decodeBitmapData(); // decode pixel data
-                skip();
                 if (err()) {
                         return;
                 }
                 frameCount++;
-                // create new image to receive frame data
-                image = Bitmap.createBitmap(width, height, Config.ARGB_4444);
-                setPixels(); // transfer pixel data to image
-                frames.addElement(new GifFrame(image, delay)); // add image to frame
-                // list
+                setPixels(); // transfer pixel data to canvas
+                addFrame(delay); // add image to frame list
                 if (transparency) {
                         act[transIndex] = save;
                 }
                 resetFrame();
         }
 
+        /**
+         * Sets the color the current frame is disposed to: transparent when it is drawn with the global table and
+         * its own transparent index is the background index, the background of the logical screen otherwise. The
+         * transparent index of an earlier graphic control extension does not count.
+         */
+        protected void setBackground(boolean localTable) {
+                bgColor = (!localTable && transparency && bgIndex == transIndex) ? 0 : screenBgColor;
+        }
+
+        /**
+         * Reads the image data of the current frame and submits its LZW decode to the executor. Finished frames at
+         * the head of the queue are composed right away; when too many are pending this waits for the oldest.
+         */
+        protected void queueImage() {
+                final int dataSize = read();
+                final int n = readImageData();
+                if (err()) {
+                        return;
+                }
+                final byte[] data = new byte[n];
+                System.arraycopy(lzwData, 0, data, 0, n);
+                final ImageBlock b = new ImageBlock();
+                b.ix = ix;
+                b.iy = iy;
+                b.iw = iw;
+                b.ih = ih;
+                b.interlace = interlace;
+                b.transparency = transparency;
+                b.dispose = dispose;
+                b.bgColor = bgColor;
+                b.delay = delay;
+                b.act = new int[act.length];
+                System.arraycopy(act, 0, b.act, 0, act.length);
+                final int npix = iw * ih;
+                b.decoded = executor.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() {
+                                byte[] out = new byte[npix];
+                                workerLzw.get().decode(data, n, dataSize, out, npix);
+                                return out;
+                        }
+                });
+                pendingImages.addLast(b);
+                while (!pendingImages.isEmpty()
+                                && ((pendingImages.size() > maxPending) || pendingImages.getFirst().decoded.isDone())) {
+                        if (!composeNext()) {
+                                break;
+                        }
+                }
+        }
+
+        /**
+         * Waits for the oldest pending frame and composes it. The descriptor fields of the frame being read are
+         * swapped out while the pending one is composed and swapped back afterwards.
+         * 
+         * @return false if the decode failed
+         */
+        protected boolean composeNext() {
+                ImageBlock b = pendingImages.removeFirst();
+                try {
+                        b.pixels = b.decoded.get();
+                } catch (Exception e) {
+                        status = STATUS_FORMAT_ERROR;
+                        pendingImages.clear();
+                        return false;
+                }
+                swapImage(b);
+                frameCount++;
+                setPixels();
+                addFrame(b.delay);
+                rememberFrame();
+                swapImage(b);
+                return true;
+        }
+
+        private void swapImage(ImageBlock b) {
+                int t;
+                t = ix; ix = b.ix; b.ix = t;
+                t = iy; iy = b.iy; b.iy = t;
+                t = iw; iw = b.iw; b.iw = t;
+                t = ih; ih = b.ih; b.ih = t;
+                t = dispose; dispose = b.dispose; b.dispose = t;
+                t = bgColor; bgColor = b.bgColor; b.bgColor = t;
+                boolean f;
+                f = interlace; interlace = b.interlace; b.interlace = f;
+                f = transparency; transparency = b.transparency; b.transparency = f;
+                int[] a = act; act = b.act; b.act = a;
+                byte[] p = pixels; pixels = b.pixels; b.pixels = p;
+        }
+
+        /**
+         * Gets the canvas scaled to the output size.
+         * 
+         * @return outWidth*outHeight pixels, valid until the next frame
+         */
+        protected int[] outputPixels() {
+                return scalePixels(canvas, width, height, outWidth, outHeight);
+        }
+
+        /**
+         * Stores the frame just composed into the canvas. Subclasses may override to keep frames elsewhere.
+         */
+        protected void addFrame(int delay) {
+                int[] out = outputPixels();
+                GifFrame f = null;
+                if (indexedStorage) {
+                        f = indexFrame(out, delay);
+                }
+                if (f == null) {
+                        image = Bitmap.createBitmap(out, outWidth, outHeight, config);
+                        f = new GifFrame(image, delay);
+                }
+                frames.addElement(f);
+        }
+
         /**
          * Reads Logical Screen Descriptor
          */
@@ -588,6 +916,8 @@ public class GifDecoder extends Decoder{
                 // logical screen size
                 width = readShort();
                 height = readShort();
+                outWidth = getScaledWidth(width, height);
+                outHeight = getScaledHeight(width, height);
                 // packed fields
                 int packed = read();
                 gctFlag = (packed & 0x80) != 0; // 1 : global color table flag
@@ -625,13 +955,26 @@ public class GifDecoder extends Decoder{
          * Resets frame state for reading next image.
          */
         protected void resetFrame() {
+                rememberFrame();
+                clearControl();
+        }
+
+        /**
+         * Remembers the frame just composed so the next one can dispose it.
+         */
+        protected void rememberFrame() {
                 lastDispose = dispose;
                 lrx = ix;
                 lry = iy;
                 lrw = iw;
                 lrh = ih;
-                lastBitmap = image;
                 lastBgColor = bgColor;
+        }
+
+        /**
+         * Clears graphic control values that apply to one image only.
+         */
+        protected void clearControl() {
                 dispose = 0;
                 transparency = false;
                 delay = 0;
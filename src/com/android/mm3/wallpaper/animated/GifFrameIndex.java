@@ -0,0 +1,448 @@
+package com.android.mm3.wallpaper.animated;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import android.util.Log;
+
+/**
+ * Frame table of a GIF file built by walking its block structure.
+ * <p>LZW data is skipped, not decompressed, so frame count, delays and loop count are
+ * known after reading little more than the file's headers. Per-frame values are kept in
+ * primitive arrays indexed by frame number, and any frame's palette and pixel indices can
+ * later be read by seeking straight to its data, see {@link GifStreamDecoder}.</p>
+ */
+public class GifFrameIndex {
+	static final public String TAG = "GifFrameIndex";
+
+	/** transparent index value of frames without transparency */
+	public static final int NO_TRANSPARENCY = -1;
+
+	private int width;
+	private int height;
+	private long gctOffset = -1; // file offset of the global color table
+	private int gctSize;
+	private int bgIndex;
+	private int bgColor; // global color table entry of bgIndex, 0 without a table
+	private int loopCount = 1; // iterations; 0 = repeat forever
+	private int maxDataLength = 0;
+
+	private int count;
+	private long[] dataOffset = new long[16]; // LZW minimum code size byte
+	private int[] dataLength = new int[16]; // from dataOffset to the end of the last sub-block
+	private int[] x = new int[16];
+	private int[] y = new int[16];
+	private int[] w = new int[16];
+	private int[] h = new int[16];
+	private byte[] dispose = new byte[16]; // as GifDecoder uses it: 0 = no control block
+	private int[] transIndex = new int[16];
+	private long[] paletteOffset = new long[16]; // local color table, -1 for the global one
+	private int[] paletteSize = new int[16];
+	private int[] delay = new int[16]; // milliseconds
+	private boolean[] interlace = new boolean[16];
+
+	// stream position while scanning
+	private InputStream in;
+	private long pos;
+
+	private GifFrameIndex() {
+	}
+
+	/**
+	 * Scans a GIF file.
+	 *
+	 * @return the index, or null if the file can't be read or is not a GIF
+	 */
+	public static GifFrameIndex scan(String path) {
+		InputStream is = null;
+		try {
+			is = new BufferedInputStream(new FileInputStream(path));
+			return scan(is);
+		} catch (Exception e) {
+			Log.e(TAG, "scan exception " + e);
+			return null;
+		} finally {
+			try {
+				if(is != null) {
+					is.close();
+				}
+			} catch (Exception e) {}
+		}
+	}
+
+	/**
+	 * Scans a GIF stream from its first byte. The stream is not closed. A file cut off
+	 * between two frames is accepted with the frames before the cut.
+	 *
+	 * @throws IOException if the stream is not a GIF or ends inside the header
+	 */
+	public static GifFrameIndex scan(InputStream is) throws IOException {
+		GifFrameIndex index = new GifFrameIndex();
+		index.in = is;
+		try {
+			index.readHeader();
+			try {
+				index.readContents();
+			} catch (EOFException e) {
+				Log.w(TAG, "GIF without trailer, " + index.count + " frames");
+			}
+		} finally {
+			index.in = null;
+		}
+		return index;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getFrameCount() {
+		return count;
+	}
+
+	/**
+	 * Gets the "Netscape" iteration count. A count of 0 means repeat indefinitely.
+	 */
+	public int getLoopCount() {
+		return loopCount;
+	}
+
+	public int getBackgroundIndex() {
+		return bgIndex;
+	}
+
+	/**
+	 * Gets the background color as GifDecoder sets it from the global color table.
+	 */
+	public int getBackgroundColor() {
+		return bgColor;
+	}
+
+	public int getX(int n) {
+		return x[n];
+	}
+
+	public int getY(int n) {
+		return y[n];
+	}
+
+	public int getImageWidth(int n) {
+		return w[n];
+	}
+
+	public int getImageHeight(int n) {
+		return h[n];
+	}
+
+	public int getDispose(int n) {
+		return dispose[n];
+	}
+
+	public int getTransparentIndex(int n) {
+		return transIndex[n];
+	}
+
+	public boolean isInterlaced(int n) {
+		return interlace[n];
+	}
+
+	public int getDelay(int n) {
+		return delay[n];
+	}
+
+	public boolean hasLocalPalette(int n) {
+		return paletteOffset[n] >= 0;
+	}
+
+	/**
+	 * Gets the size of the buffer {@link #readPalette} and {@link #readIndices} need.
+	 */
+	public int getBufferSize() {
+		return Math.max(3 * 256, maxDataLength);
+	}
+
+	/**
+	 * Tells whether the composed frames may contain transparent pixels: the first frame
+	 * leaves part of the canvas empty or has a transparent color, the first frame is
+	 * disposed to the empty canvas under it, or an area disposed to the background may be
+	 * cleared to transparent. Transparent colors in later frames alone don't count, they
+	 * only let earlier frames show through.
+	 */
+	public boolean hasTransparency() {
+		if(count == 0) {
+			return false;
+		}
+		if(x[0] != 0 || y[0] != 0 || w[0] < width || h[0] < height || transIndex[0] != NO_TRANSPARENCY) {
+			return true;
+		}
+		if(count > 1 && dispose[0] == 3) {
+			return true;
+		}
+		boolean background = false;
+		boolean transparent = (bgColor == 0); // no background color in the global table
+		for(int i = 0; i < count; i++) {
+			background |= (dispose[i] == 2);
+			transparent |= (transIndex[i] != NO_TRANSPARENCY);
+		}
+		return background && transparent;
+	}
+
+	/**
+	 * Reads the color table of frame n, with its transparent entry cleared.
+	 *
+	 * @param buf at least {@link #getBufferSize()} bytes, overwritten
+	 * @param tab receives the colors as packed ARGB, as GifDecoder.readColorTable() returns them
+	 */
+	public void readPalette(RandomAccessFile f, int n, byte[] buf, int[] tab) throws IOException {
+		long at = (paletteOffset[n] >= 0) ? paletteOffset[n] : gctOffset;
+		int ncolors = (paletteOffset[n] >= 0) ? paletteSize[n] : gctSize;
+		if(at < 0) {
+			throw new IOException("No color table for frame " + n);
+		}
+		f.seek(at);
+		f.readFully(buf, 0, 3 * ncolors);
+		for(int i = 0, j = 0; i < ncolors; i++) {
+			int r = buf[j++] & 0xff;
+			int g = buf[j++] & 0xff;
+			int b = buf[j++] & 0xff;
+			tab[i] = 0xff000000 | (r << 16) | (g << 8) | b;
+		}
+		if(transIndex[n] != NO_TRANSPARENCY) {
+			tab[transIndex[n]] = 0;
+		}
+	}
+
+	/**
+	 * Decodes the pixels of frame n by seeking straight to its image data. Only the
+	 * frame's own rectangle is decoded; disposal and composition are up to the caller.
+	 *
+	 * @param buf at least {@link #getBufferSize()} bytes, overwritten
+	 * @param out receives getImageWidth(n)*getImageHeight(n) palette indices
+	 * @return number of pixels actually decoded
+	 */
+	public int readIndices(RandomAccessFile f, int n, GifLzwDecoder lzw, byte[] buf, byte[] out) throws IOException {
+		int length = dataLength[n];
+		f.seek(dataOffset[n]);
+		f.readFully(buf, 0, length);
+		int dataSize = buf[0] & 0xff;
+		// drop the sub-block sizes, moving the data down in place
+		int len = 0;
+		for(int p = 1; p < length;) {
+			int size = buf[p++] & 0xff;
+			if(size == 0 || p + size > length) {
+				break;
+			}
+			System.arraycopy(buf, p, buf, len, size);
+			len += size;
+			p += size;
+		}
+		return lzw.decode(buf, len, dataSize, out, w[n] * h[n]);
+	}
+
+	private void readHeader() throws IOException {
+		String id = "";
+		for(int i = 0; i < 6; i++) {
+			id += (char)read();
+		}
+		if(!id.startsWith("GIF")) {
+			throw new IOException("Not a valid GIF file");
+		}
+		width = readShort();
+		height = readShort();
+		int packed = read();
+		bgIndex = read();
+		read(); // pixel aspect ratio
+		if((packed & 0x80) != 0) {
+			gctSize = 2 << (packed & 7);
+			gctOffset = pos;
+			if(bgIndex < gctSize) {
+				skip(3 * bgIndex);
+				bgColor = 0xff000000 | (read() << 16) | (read() << 8) | read();
+				skip(3 * (gctSize - bgIndex - 1));
+			} else {
+				skip(3 * gctSize);
+			}
+		}
+	}
+
+	private void readContents() throws IOException {
+		// graphic control values for the next image
+		int nextDispose = 0;
+		int nextTrans = NO_TRANSPARENCY;
+		int nextDelay = 0;
+		for(;;) {
+			int code = read();
+			switch(code) {
+			case 0x2C: // image separator
+				readImage(nextDispose, nextTrans, nextDelay);
+				nextDispose = 0;
+				nextTrans = NO_TRANSPARENCY;
+				nextDelay = 0;
+				break;
+			case 0x21: // extension
+				code = read();
+				if(code == 0xf9) {
+					read(); // block size
+					int packed = read();
+					nextDispose = (packed & 0x1c) >> 2;
+					if(nextDispose == 0) {
+						nextDispose = 1; // elect to keep old image if discretionary
+					}
+					nextDelay = readShort() * 10;
+					int t = read();
+					nextTrans = ((packed & 1) != 0) ? t : NO_TRANSPARENCY;
+					skipBlocks();
+				} else if(code == 0xff) {
+					readApplication();
+				} else {
+					skipBlocks();
+				}
+				break;
+			case 0x3b: // terminator
+				return;
+			case 0x00: // stray padding byte
+				break;
+			default:
+				throw new IOException("Unknown GIF block 0x" + Integer.toHexString(code));
+			}
+		}
+	}
+
+	private void readImage(int disp, int trans, int del) throws IOException {
+		int ix = readShort();
+		int iy = readShort();
+		int iw = readShort();
+		int ih = readShort();
+		int packed = read();
+		long pal = -1;
+		int palSize = 0;
+		if((packed & 0x80) != 0) {
+			palSize = 2 << (packed & 7);
+			pal = pos;
+			skip(3 * palSize);
+		}
+		long data = pos;
+		read(); // LZW minimum code size
+		skipBlocks();
+
+		if(count == dataOffset.length) {
+			grow(count * 2);
+		}
+		dataOffset[count] = data;
+		dataLength[count] = (int)(pos - data);
+		maxDataLength = Math.max(maxDataLength, dataLength[count]);
+		x[count] = ix;
+		y[count] = iy;
+		w[count] = iw;
+		h[count] = ih;
+		dispose[count] = (byte)disp;
+		transIndex[count] = trans;
+		paletteOffset[count] = pal;
+		paletteSize[count] = palSize;
+		delay[count] = del;
+		interlace[count] = (packed & 0x40) != 0;
+		count++;
+	}
+
+	private void readApplication() throws IOException {
+		int size = read();
+		String app = "";
+		for(int i = 0; i < size; i++) {
+			app += (char)read();
+		}
+		if(!app.equals("NETSCAPE2.0")) {
+			skipBlocks();
+			return;
+		}
+		for(;;) {
+			size = read();
+			if(size == 0) {
+				break;
+			}
+			int id = read();
+			if(id == 1 && size >= 3) {
+				loopCount = readShort();
+				skip(size - 3);
+			} else {
+				skip(size - 1);
+			}
+		}
+	}
+
+	private void grow(int capacity) {
+		dataOffset = copyOf(dataOffset, capacity);
+		dataLength = copyOf(dataLength, capacity);
+		paletteOffset = copyOf(paletteOffset, capacity);
+		x = copyOf(x, capacity);
+		y = copyOf(y, capacity);
+		w = copyOf(w, capacity);
+		h = copyOf(h, capacity);
+		transIndex = copyOf(transIndex, capacity);
+		paletteSize = copyOf(paletteSize, capacity);
+		delay = copyOf(delay, capacity);
+		byte[] d = new byte[capacity];
+		System.arraycopy(dispose, 0, d, 0, count);
+		dispose = d;
+		boolean[] b = new boolean[capacity];
+		System.arraycopy(interlace, 0, b, 0, count);
+		interlace = b;
+	}
+
+	private long[] copyOf(long[] a, int capacity) {
+		long[] tmp = new long[capacity];
+		System.arraycopy(a, 0, tmp, 0, count);
+		return tmp;
+	}
+
+	private int[] copyOf(int[] a, int capacity) {
+		int[] tmp = new int[capacity];
+		System.arraycopy(a, 0, tmp, 0, count);
+		return tmp;
+	}
+
+	/**
+	 * Skips variable length blocks up to and including next zero length block.
+	 */
+	private void skipBlocks() throws IOException {
+		int size;
+		while((size = read()) > 0) {
+			skip(size);
+		}
+	}
+
+	private int read() throws IOException {
+		int b = in.read();
+		if(b < 0) {
+			throw new EOFException();
+		}
+		pos++;
+		return b;
+	}
+
+	private int readShort() throws IOException {
+		// read 16-bit value, LSB first
+		return read() | (read() << 8);
+	}
+
+	private void skip(long amount) throws IOException {
+		while(amount > 0) {
+			long skipped = in.skip(amount);
+			if(skipped <= 0) {
+				if(in.read() < 0) {
+					throw new EOFException();
+				}
+				skipped = 1;
+			}
+			pos += skipped;
+			amount -= skipped;
+		}
+	}
+}
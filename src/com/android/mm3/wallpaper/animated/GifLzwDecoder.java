@@ -0,0 +1,132 @@
+package com.android.mm3.wallpaper.animated;
+
+import java.util.Arrays;
+
+/**
+ * LZW decoder for GIF image data.
+ * <p>Works on the image data with the sub-block length bytes already removed. Every
+ * table entry remembers where its string was first written to the output and how long
+ * it is, so a code is emitted with one System.arraycopy instead of walking the prefix
+ * chain pixel by pixel.</p>
+ * <p>An instance holds only its string table and may be reused for any number of
+ * frames, but not from two threads at once.</p>
+ */
+public class GifLzwDecoder {
+	/** max number of LZW codes */
+	public static final int MAX_CODES = 4096;
+
+	private final int[] position = new int[MAX_CODES]; // output offset of the string
+	private final short[] length = new short[MAX_CODES]; // string length
+	private final byte[] first = new byte[MAX_CODES]; // first byte of the string
+
+	/**
+	 * Decodes one image into palette indices.
+	 *
+	 * @param data LZW data with sub-block headers removed
+	 * @param dataLen number of valid bytes in data
+	 * @param dataSize LZW minimum code size from the image descriptor
+	 * @param out receives npix indices; pixels missing from the data are set to 0
+	 * @param npix number of pixels in the image
+	 * @return number of pixels actually decoded
+	 */
+	public int decode(byte[] data, int dataLen, int dataSize, byte[] out, int npix) {
+		if(dataSize < 1 || dataSize > 11) {
+			Arrays.fill(out, 0, npix, (byte)0);
+			return 0;
+		}
+		final int[] position = this.position;
+		final short[] length = this.length;
+		final byte[] first = this.first;
+		final int clear = 1 << dataSize;
+		final int endOfInformation = clear + 1;
+		for(int code = 0; code < clear; code++) {
+			length[code] = 1;
+			first[code] = (byte)code;
+		}
+		int codeSize = dataSize + 1;
+		int codeMask = (1 << codeSize) - 1;
+		int available = clear + 2;
+		int oldCode = -1;
+		int oldStart = 0;
+		int datum = 0;
+		int bits = 0;
+		int bi = 0;
+		int pi = 0;
+
+		decode: while(pi < npix) {
+			// load bytes until there are enough bits for a code
+			while(bits < codeSize) {
+				if(bi >= dataLen) {
+					break decode;
+				}
+				datum |= (data[bi++] & 0xff) << bits;
+				bits += 8;
+			}
+			int code = datum & codeMask;
+			datum >>>= codeSize;
+			bits -= codeSize;
+
+			if(code == clear) {
+				codeSize = dataSize + 1;
+				codeMask = (1 << codeSize) - 1;
+				available = clear + 2;
+				oldCode = -1;
+				continue;
+			}
+			if(code == endOfInformation || code > available || (code == available && oldCode < 0)) {
+				break;
+			}
+
+			final int start = pi;
+			if(code < clear) {
+				out[pi++] = (byte)code;
+			} else if(code < available) {
+				int len = length[code];
+				if(len > npix - pi) {
+					len = npix - pi;
+				}
+				int src = position[code];
+				if(len < 16) {
+					// short strings are cheaper to copy inline
+					for(int end = pi + len; pi < end; ) {
+						out[pi++] = out[src++];
+					}
+				} else {
+					System.arraycopy(out, src, out, pi, len);
+					pi += len;
+				}
+			} else {
+				// code not in the table yet: previous string plus its own first byte
+				int len = length[oldCode];
+				if(len > npix - pi) {
+					len = npix - pi;
+				}
+				System.arraycopy(out, oldStart, out, pi, len);
+				pi += len;
+				if(pi < npix) {
+					out[pi++] = first[oldCode];
+				}
+			}
+
+			// the new entry is the previous string followed by the first byte of this one,
+			// which is exactly what now sits in the output at oldStart
+			if(oldCode >= 0 && available < MAX_CODES) {
+				position[available] = oldStart;
+				length[available] = (short)(length[oldCode] + 1);
+				first[available] = first[oldCode];
+				available++;
+				if(((available & codeMask) == 0) && (available < MAX_CODES)) {
+					codeSize++;
+					codeMask += available;
+				}
+			}
+			oldCode = code;
+			oldStart = start;
+		}
+
+		if(pi < npix) {
+			Arrays.fill(out, pi, npix, (byte)0); // clear missing pixels
+		}
+		return pi;
+	}
+}
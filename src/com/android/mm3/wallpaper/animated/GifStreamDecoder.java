@@ -0,0 +1,240 @@
+package com.android.mm3.wallpaper.animated;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * GIF decoder for files too large to keep fully decoded in memory.
+ * A background thread decodes the frames one after the other by seeking to them through the
+ * {@link GifFrameIndex}, and keeps only a small ring of composited frames (the one on screen
+ * plus a few decoded ahead). The file is opened once, and the buffers are sized for the
+ * largest frame and reused on every loop.
+ */
+public class GifStreamDecoder extends GifDecoder {
+	static final public String TAG = "GifStreamDecoder";
+
+	/** frames decoded ahead of the one on screen */
+	public static final int DEFAULT_AHEAD = 3;
+
+	private final String path;
+	private final Bitmap[] ring;
+	private final int[] ringDelay;
+	private GifFrameIndex index = null;
+	private long produced = 0; // sequence number of the next frame to decode
+	private long shown = -1; // sequence number of the frame on screen
+	private volatile boolean running = false;
+	private Thread worker = null;
+
+	public GifStreamDecoder(String path) {
+		this(path, null, DEFAULT_AHEAD);
+	}
+
+	/**
+	 * @param index frame index of the file, or null to build it in {@link #read(InputStream)}
+	 */
+	public GifStreamDecoder(String path, GifFrameIndex index) {
+		this(path, index, DEFAULT_AHEAD);
+	}
+
+	public GifStreamDecoder(String path, GifFrameIndex index, int ahead) {
+		this.path = path;
+		this.index = index;
+		this.ring = new Bitmap[ahead + 1];
+		this.ringDelay = new int[ahead + 1];
+	}
+
+	/**
+	 * Indexes the file and starts the decoding thread.
+	 */
+	@Override
+	public int read(InputStream is) {
+		index = GifFrameIndex.scan(path);
+		if(index == null) {
+			status = STATUS_OPEN_ERROR;
+			return status;
+		}
+		start();
+		return status;
+	}
+
+	/**
+	 * Starts the decoding thread.
+	 */
+	public void start() {
+		if(running || index == null || index.getFrameCount() <= 0) {
+			return;
+		}
+		running = true;
+		worker = new Thread() {
+			@Override
+			public void run() {
+				decodeLoop();
+			}
+		};
+		worker.start();
+	}
+
+	private void decodeLoop() {
+		RandomAccessFile f = null;
+		try {
+			f = new RandomAccessFile(path, "r");
+			width = index.getWidth();
+			height = index.getHeight();
+			outWidth = getScaledWidth(width, height);
+			outHeight = getScaledHeight(width, height);
+			int total = index.getFrameCount();
+			int npix = 0;
+			for(int n = 0; n < total; n++) {
+				npix = Math.max(npix, index.getImageWidth(n) * index.getImageHeight(n));
+			}
+			pixels = new byte[npix];
+			act = new int[256];
+			lzw = new GifLzwDecoder();
+			byte[] data = new byte[index.getBufferSize()];
+			while(running) {
+				frameCount = 0;
+				lastDispose = 0;
+				bgIndex = index.getBackgroundIndex();
+				screenBgColor = index.getBackgroundColor();
+				for(int n = 0; n < total && running; n++) {
+					decodeFrame(f, n, data);
+				}
+			}
+		} catch (Exception e) {
+			// the file went bad after the scan, keep what is already in the ring
+			Log.e(TAG, "decode exception " + e);
+			status = STATUS_FORMAT_ERROR;
+		} finally {
+			try {
+				if(f != null) {
+					f.close();
+				}
+			} catch (Exception e) {}
+		}
+	}
+
+	/**
+	 * Reads frame n into the canvas the way GifDecoder.readBitmap() does, and queues it.
+	 */
+	private void decodeFrame(RandomAccessFile f, int n, byte[] data) throws IOException {
+		ix = index.getX(n);
+		iy = index.getY(n);
+		iw = index.getImageWidth(n);
+		ih = index.getImageHeight(n);
+		interlace = index.isInterlaced(n);
+		dispose = index.getDispose(n);
+		transIndex = index.getTransparentIndex(n);
+		transparency = (transIndex != GifFrameIndex.NO_TRANSPARENCY);
+		setBackground(index.hasLocalPalette(n));
+		index.readPalette(f, n, data, act);
+		index.readIndices(f, n, lzw, data, pixels);
+		frameCount++;
+		setPixels();
+		addFrame(index.getDelay(n));
+		rememberFrame();
+	}
+
+	/**
+	 * Copies the canvas into the next free ring slot. The slot bitmaps are allocated once
+	 * and reused on every loop.
+	 */
+	@Override
+	protected void addFrame(int delay) {
+		int slot;
+		synchronized(this) {
+			while(running && produced - shown >= ring.length) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					running = false;
+				}
+			}
+			if(!running) {
+				return;
+			}
+			slot = (int)(produced % ring.length);
+		}
+		// the slot is neither on screen nor published yet, so it can be written unlocked
+		Bitmap b = ring[slot];
+		if(b == null || b.getWidth() != outWidth || b.getHeight() != outHeight || b.getConfig() != config) {
+			if(b != null) {
+				// made for another size or config, its pixels are not coming back
+				b.recycle();
+			}
+			b = Bitmap.createBitmap(outWidth, outHeight, config);
+		}
+		b.setPixels(outputPixels(), 0, outWidth, 0, 0, outWidth, outHeight);
+		synchronized(this) {
+			ring[slot] = b;
+			ringDelay[slot] = delay;
+			produced++;
+		}
+	}
+
+	/**
+	 * Gets the frame on screen. When n differs from it and the next frame is already decoded
+	 * the decoder moves on to that frame, otherwise the current one is shown again.
+	 */
+	@Override
+	public synchronized Bitmap getFrame(int n) {
+		int total = getFrameCount();
+		if(total <= 0 || produced == 0) {
+			return null;
+		}
+		if(shown < 0 || ((n % total) != (shown % total) && shown + 1 < produced)) {
+			shown++;
+			notifyAll();
+		}
+		return ring[(int)(shown % ring.length)];
+	}
+
+	@Override
+	public synchronized int getDelay(int n) {
+		if(shown < 0) {
+			return 100;
+		}
+		return ringDelay[(int)(shown % ring.length)];
+	}
+
+	@Override
+	public int getFrameCount() {
+		return (index != null) ? index.getFrameCount() : 0;
+	}
+
+	@Override
+	public int getWidth() {
+		return (index != null) ? getScaledWidth(index.getWidth(), index.getHeight()) : 0;
+	}
+
+	@Override
+	public int getHeight() {
+		return (index != null) ? getScaledHeight(index.getWidth(), index.getHeight()) : 0;
+	}
+
+	@Override
+	public int getLoopCount() {
+		return (index != null) ? index.getLoopCount() : 1;
+	}
+
+	@Override
+	public boolean isFrameCacheable() {
+		return false;
+	}
+
+	@Override
+	public void onDestroy() {
+		running = false;
+		synchronized(this) {
+			notifyAll();
+		}
+		if(worker != null) {
+			worker.interrupt();
+			worker = null;
+		}
+		super.onDestroy();
+	}
+}
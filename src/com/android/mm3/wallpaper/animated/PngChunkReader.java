@@ -0,0 +1,311 @@
+package com.android.mm3.wallpaper.animated;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a PNG or APNG stream chunk by chunk: signature, chunk framing, CRC32 and the
+ * zlib data spread over consecutive IDAT or fdAT chunks. The decoders only deal with the
+ * contents of the chunks they know, through a {@link Handler}, and turn image data into
+ * pixels with {@link PngPixelDecoder}.
+ * <p>The stream is read in blocks through an internal buffer, and image data goes from
+ * that buffer straight into the inflater. CRCs may be skipped for files known to be
+ * intact, see {@link TrustedFileRegistry}.</p>
+ */
+public class PngChunkReader {
+	public static final int IHDR = 0x49484452;
+	public static final int PLTE = 0x504C5445;
+	public static final int tRNS = 0x74524E53;
+	public static final int IDAT = 0x49444154;
+	public static final int IEND = 0x49454E44;
+	public static final int acTL = 0x6163544C;
+	public static final int fcTL = 0x6663544C;
+	public static final int fdAT = 0x66644154;
+
+	private static final byte[] SIGNATURE = {(byte)137, 80, 78, 71, 13, 10, 26, 10};
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Gets the chunks of a stream from {@link PngChunkReader#readChunks(Handler)}.
+	 */
+	public interface Handler {
+		/**
+		 * Called for every chunk, which is open on the reader. Whatever part of it the
+		 * handler doesn't read is skipped.
+		 *
+		 * @return false to stop reading, leaving the chunk open
+		 */
+		boolean onChunk(int type, int length) throws IOException;
+	}
+
+	private final InputStream input;
+	private final boolean verifyCrc;
+	private final CRC32 crc = new CRC32();
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private final byte[] header = new byte[8];
+	private int bufferPos = 0;
+	private int bufferEnd = 0;
+	private long position = 0; // stream offset of buffer[bufferPos]
+
+	private int chunkType;
+	private int chunkLength;
+	private int chunkRemaining;
+	private long chunkOffset; // stream offset of the chunk data
+
+	private int dataType; // chunk type read by dataInput
+	private final PngPixelDecoder.Input dataInput = new PngPixelDecoder.Input() {
+		public void refill(Inflater inflater) throws IOException {
+			refillInflater(inflater);
+		}
+	};
+
+	/**
+	 * Reads and checks the signature.
+	 *
+	 * @param verifyCrc false to skip the CRC32 of the chunks
+	 * @throws IOException if the stream is not a PNG
+	 */
+	public PngChunkReader(InputStream input, boolean verifyCrc) throws IOException {
+		this.input = input;
+		this.verifyCrc = verifyCrc;
+		readFully(header, 0, SIGNATURE.length);
+		for(int i = 0; i < SIGNATURE.length; i++) {
+			if(header[i] != SIGNATURE[i]) {
+				throw new IOException("Not a valid PNG file");
+			}
+		}
+	}
+
+	/**
+	 * Hands every chunk to the handler until it returns false.
+	 */
+	public void readChunks(Handler handler) throws IOException {
+		for(;;) {
+			int type = openChunk();
+			if(!handler.onChunk(type, chunkLength)) {
+				return;
+			}
+			closeChunk();
+		}
+	}
+
+	/**
+	 * Reads the length and type of the next chunk.
+	 *
+	 * @return the chunk type
+	 */
+	public int openChunk() throws IOException {
+		readFully(header, 0, 8);
+		chunkLength = getInt(header, 0);
+		chunkType = getInt(header, 4);
+		if(chunkLength < 0) {
+			throw new IOException("Invalid chunk length");
+		}
+		chunkRemaining = chunkLength;
+		chunkOffset = position;
+		if(verifyCrc) {
+			crc.reset();
+			crc.update(header, 4, 4);   // only chunkType
+		}
+		return chunkType;
+	}
+
+	public void openChunk(int expected) throws IOException {
+		if(openChunk() != expected) {
+			throw new IOException("Expected chunk: " + chunkName(expected));
+		}
+	}
+
+	/**
+	 * Skips the rest of the chunk and checks its CRC.
+	 */
+	public void closeChunk() throws IOException {
+		skipChunk();
+		readFully(header, 0, 4);
+		if(verifyCrc && getInt(header, 0) != (int)crc.getValue()) {
+			throw new IOException("Invalid CRC in " + chunkName(chunkType) + " chunk");
+		}
+		chunkRemaining = 0;
+		chunkLength = 0;
+		chunkType = 0;
+	}
+
+	/**
+	 * Skips the rest of the chunk data. It is still read when the CRC is verified.
+	 */
+	public void skipChunk() throws IOException {
+		if(!verifyCrc) {
+			skip(chunkRemaining);
+			chunkRemaining = 0;
+			return;
+		}
+		while(chunkRemaining > 0) {
+			if(bufferPos == bufferEnd) {
+				fill();
+			}
+			int n = Math.min(chunkRemaining, bufferEnd - bufferPos);
+			crc.update(buffer, bufferPos, n);
+			bufferPos += n;
+			position += n;
+			chunkRemaining -= n;
+		}
+	}
+
+	public void checkChunkLength(int expected) throws IOException {
+		if(chunkLength != expected) {
+			throw new IOException("Chunk has wrong size");
+		}
+	}
+
+	public int getChunkType() {
+		return chunkType;
+	}
+
+	public int getChunkLength() {
+		return chunkLength;
+	}
+
+	/**
+	 * Gets the number of bytes of the chunk data not read yet.
+	 */
+	public int getRemaining() {
+		return chunkRemaining;
+	}
+
+	/**
+	 * Gets the offset of the chunk data from the start of the stream.
+	 */
+	public long getChunkOffset() {
+		return chunkOffset;
+	}
+
+	/**
+	 * Reads up to length bytes of the chunk data.
+	 *
+	 * @return the bytes read, 0 at the end of the chunk
+	 */
+	public int readChunk(byte[] b, int offset, int length) throws IOException {
+		if(length > chunkRemaining) {
+			length = chunkRemaining;
+		}
+		readFully(b, offset, length);
+		if(verifyCrc) {
+			crc.update(b, offset, length);
+		}
+		chunkRemaining -= length;
+		return length;
+	}
+
+	/**
+	 * Reads exactly length bytes of the chunk data.
+	 *
+	 * @throws IOException if the chunk is shorter
+	 */
+	public void readChunkFully(byte[] b, int offset, int length) throws IOException {
+		if(length > chunkRemaining) {
+			throw new IOException(chunkName(chunkType) + " chunk too short");
+		}
+		readChunk(b, offset, length);
+	}
+
+	/**
+	 * Gets the zlib data of the current chunk and the following chunks of the same type,
+	 * without the sequence numbers of fdAT chunks. The sequence number of the current
+	 * chunk must have been read already.
+	 */
+	public PngPixelDecoder.Input dataInput(int type) {
+		dataType = type;
+		return dataInput;
+	}
+
+	private void refillInflater(Inflater inflater) throws IOException {
+		while(chunkRemaining == 0) {
+			closeChunk();
+			openChunk(dataType);
+			if(dataType == fdAT) {
+				readChunkFully(header, 0, 4);
+			}
+		}
+		if(bufferPos == bufferEnd) {
+			fill();
+		}
+		// the inflater asks for more only once it used up this part of the buffer
+		int n = Math.min(chunkRemaining, bufferEnd - bufferPos);
+		if(verifyCrc) {
+			crc.update(buffer, bufferPos, n);
+		}
+		inflater.setInput(buffer, bufferPos, n);
+		bufferPos += n;
+		position += n;
+		chunkRemaining -= n;
+	}
+
+	private void fill() throws IOException {
+		int n = input.read(buffer, 0, buffer.length);
+		if(n < 0) {
+			throw new EOFException();
+		}
+		bufferPos = 0;
+		bufferEnd = n;
+	}
+
+	private void readFully(byte[] b, int offset, int length) throws IOException {
+		while(length > 0) {
+			int n;
+			if(bufferPos < bufferEnd) {
+				n = Math.min(length, bufferEnd - bufferPos);
+				System.arraycopy(buffer, bufferPos, b, offset, n);
+				bufferPos += n;
+			} else if(length >= buffer.length) {
+				// large reads bypass the buffer
+				n = input.read(b, offset, length);
+				if(n < 0) {
+					throw new EOFException();
+				}
+			} else {
+				fill();
+				continue;
+			}
+			position += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	private void skip(long amount) throws IOException {
+		int n = (int)Math.min(amount, bufferEnd - bufferPos);
+		bufferPos += n;
+		position += n;
+		amount -= n;
+		while(amount > 0) {
+			long skipped = input.skip(amount);
+			if(skipped <= 0) {
+				if(input.read() < 0) {
+					throw new EOFException();
+				}
+				skipped = 1;
+			}
+			position += skipped;
+			amount -= skipped;
+		}
+	}
+
+	public static int getInt(byte[] b, int offset) {
+		return ((b[offset] & 255) << 24) | ((b[offset + 1] & 255) << 16) | ((b[offset + 2] & 255) << 8) | (b[offset + 3] & 255);
+	}
+
+	public static int getShort(byte[] b, int offset) {
+		return ((b[offset] & 255) << 8) | (b[offset + 1] & 255);
+	}
+
+	public static String chunkName(int type) {
+		char[] name = new char[4];
+		for(int i = 0; i < 4; i++) {
+			name[i] = (char)((type >>> (24 - 8 * i)) & 255);
+		}
+		return new String(name);
+	}
+}
@@ -0,0 +1,538 @@
+package com.android.mm3.wallpaper.animated;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Turns the zlib stream of a PNG image (IDAT) or APNG frame (fdAT) into ARGB pixels:
+ * inflates one scanline at a time, reverses the line filters and converts the samples
+ * straight into the destination int[]. Adam7 interlaced data is decoded pass by pass
+ * into the same destination, and 16 bit samples are cut to 8 bits while converting.
+ * <p>Where the compressed bytes come from is up to the caller, through {@link Input}, so
+ * the same code decodes from a chunk stream or from a file mapped in memory. Line
+ * buffers are kept and reused between images; an instance must not be used from two
+ * threads at once.</p>
+ * 
+ * @author Matthias Mann
+ */
+public class PngPixelDecoder {
+
+    public static final byte COLOR_GREYSCALE = 0;
+    public static final byte COLOR_TRUECOLOR = 2;
+    public static final byte COLOR_INDEXED = 3;
+    public static final byte COLOR_GREYALPHA = 4;
+    public static final byte COLOR_TRUEALPHA = 6;
+
+    /**
+     * Source of compressed image data.
+     */
+    public interface Input {
+        /**
+         * Gives the inflater its next piece of input.
+         *
+         * @throws EOFException if there is no more data
+         */
+        void refill(Inflater inflater) throws IOException;
+    }
+
+    /**
+     * Told about every finished Adam7 pass but the last, to show the image early.
+     */
+    public interface PassListener {
+        /**
+         * @param pass number of the pass finished, 1 to 6
+         * @param dest pixels decoded so far, see {@link #setProgressive(boolean)}
+         */
+        void onPass(int pass, int[] dest, int offset, int stride);
+    }
+
+    // Adam7 pass origins and steps, and the block each pass pixel stands for until the
+    // later passes fill it in
+    private static final int[] PASS_X = { 0, 4, 0, 2, 0, 1, 0 };
+    private static final int[] PASS_Y = { 0, 0, 4, 0, 2, 0, 1 };
+    private static final int[] PASS_DX = { 8, 8, 4, 4, 2, 2, 1 };
+    private static final int[] PASS_DY = { 8, 8, 8, 4, 4, 2, 2 };
+    private static final int[] BLOCK_W = { 8, 4, 4, 2, 2, 1, 1 };
+    private static final int[] BLOCK_H = { 8, 8, 4, 4, 2, 2, 1 };
+
+    private final int colorType;
+    private final int bitdepth;
+    private final int samples; // samples per pixel
+    private final int bytesPerPixel; // filter distance, at least 1
+    private final boolean interlaced; // Adam7
+    private boolean progressive = false;
+    private PassListener passListener;
+    private byte[] palette;
+    private byte[] paletteA;
+    private byte[] transPixel;
+    private int[] colorTable; // ARGB of each index or grey level, null until needed
+
+    private byte[] curLine = new byte[0];
+    private byte[] prevLine = new byte[0];
+    private int[] passRow = new int[0]; // pixels of one interlaced line before they are spread out
+
+    public PngPixelDecoder(int colorType, int bitdepth) {
+        this(colorType, bitdepth, false);
+    }
+
+    /**
+     * @param colorType color type from the IHDR chunk
+     * @param bitdepth bit depth from the IHDR chunk
+     * @param interlaced true for interlace method 1 (Adam7)
+     */
+    public PngPixelDecoder(int colorType, int bitdepth, boolean interlaced) {
+        this.colorType = colorType;
+        this.bitdepth = bitdepth;
+        this.interlaced = interlaced;
+        switch (colorType) {
+        case COLOR_GREYALPHA:
+            samples = 2;
+            break;
+        case COLOR_TRUECOLOR:
+            samples = 3;
+            break;
+        case COLOR_TRUEALPHA:
+            samples = 4;
+            break;
+        default:
+            samples = 1;
+        }
+        bytesPerPixel = Math.max(1, samples * bitdepth / 8);
+    }
+
+    /**
+     * @param palette PLTE entries, 3 bytes each
+     * @param paletteA tRNS alpha values of the palette entries, or null
+     */
+    public void setPalette(byte[] palette, byte[] paletteA) {
+        if(palette != this.palette || paletteA != this.paletteA) {
+            this.palette = palette;
+            this.paletteA = paletteA;
+            colorTable = null;
+        }
+    }
+
+    /**
+     * @param transPixel tRNS color of a greyscale or truecolor image, or null
+     */
+    public void setTransparentPixel(byte[] transPixel) {
+        if(transPixel != this.transPixel) {
+            this.transPixel = transPixel;
+            colorTable = null;
+        }
+    }
+
+    /**
+     * Makes every pixel of an interlaced pass stand for the block of pixels the later
+     * passes fill in, so the image looks complete, only coarse, after each pass.
+     */
+    public void setProgressive(boolean progressive) {
+        this.progressive = progressive;
+    }
+
+    /**
+     * @param listener told about the finished passes of interlaced images, or null
+     */
+    public void setPassListener(PassListener listener) {
+        this.passListener = listener;
+    }
+
+    /**
+     * Decodes lwidth*lheight pixels.
+     *
+     * @param inflater inflater positioned at the start of the image data
+     * @param input supplies the inflater with compressed data
+     * @param dest receives ARGB pixels
+     * @param offset index in dest of the top left pixel
+     * @param stride number of ints between rows in dest
+     */
+    public void decode(Inflater inflater, Input input, int lwidth, int lheight, int[] dest, int offset, int stride) throws IOException {
+        if(colorTable == null && (colorType == COLOR_INDEXED || colorType == COLOR_GREYSCALE)) {
+            colorTable = buildColorTable();
+        }
+        if(!interlaced) {
+            decodePass(inflater, input, lwidth, lheight, dest, offset, stride, -1);
+            return;
+        }
+        for(int pass=0 ; pass<7 ; pass++) {
+            decodePass(inflater, input, lwidth, lheight, dest, offset, stride, pass);
+            if(passListener != null && pass < 6) {
+                passListener.onPass(pass + 1, dest, offset, stride);
+            }
+        }
+    }
+
+    /**
+     * Decodes the lines of one Adam7 pass, or of the whole image for pass -1.
+     */
+    private void decodePass(Inflater inflater, Input input, int lwidth, int lheight, int[] dest, int offset, int stride, int pass) throws IOException {
+        int x0 = 0, y0 = 0, dx = 1, dy = 1;
+        if(pass >= 0) {
+            x0 = PASS_X[pass];
+            y0 = PASS_Y[pass];
+            dx = PASS_DX[pass];
+            dy = PASS_DY[pass];
+        }
+        final int pw = (lwidth - x0 + dx - 1) / dx;
+        final int ph = (lheight - y0 + dy - 1) / dy;
+        if(pw <= 0 || ph <= 0) {
+            // empty passes have no lines at all, not even filter bytes
+            return;
+        }
+        final int lineSize = (pw * samples * bitdepth + 7) / 8 + 1;
+        if(curLine.length < lineSize) {
+            curLine = new byte[lineSize];
+            prevLine = new byte[lineSize];
+        } else {
+            Arrays.fill(prevLine, 0, lineSize, (byte)0);
+        }
+        if(dx > 1 && passRow.length < pw) {
+            passRow = new int[pw];
+        }
+        final boolean fill = progressive && pass >= 0;
+        byte[] curLine = this.curLine;
+        byte[] prevLine = this.prevLine;
+
+        for(int row=0 ; row<ph ; row++) {
+            readChunkUnzip(inflater, input, curLine, 0, lineSize);
+            unfilter(curLine, prevLine, lineSize);
+            int y = y0 + row * dy;
+            int line = offset + y * stride;
+            if(dx == 1) {
+                convert(curLine, dest, line, pw);
+            } else {
+                convert(curLine, passRow, 0, pw);
+                if(fill) {
+                    int bw = BLOCK_W[pass];
+                    for(int k=0, x=x0 ; k<pw ; k++, x+=dx) {
+                        Arrays.fill(dest, line + x, line + Math.min(x + bw, lwidth), passRow[k]);
+                    }
+                } else {
+                    for(int k=0, d=line+x0 ; k<pw ; k++, d+=dx) {
+                        dest[d] = passRow[k];
+                    }
+                }
+            }
+            if(fill) {
+                // rows of the block are equal above this pass, copying whole rows is safe
+                for(int yy=y+1, end=Math.min(y + BLOCK_H[pass], lheight) ; yy<end ; yy++) {
+                    System.arraycopy(dest, line, dest, offset + yy * stride, lwidth);
+                }
+            }
+
+            byte[] tmp = curLine;
+            curLine = prevLine;
+            prevLine = tmp;
+        }
+        this.curLine = curLine;
+        this.prevLine = prevLine;
+    }
+
+    /**
+     * Converts one unfiltered line into ARGB pixels.
+     */
+    private void convert(byte[] line, int[] dest, int offset, int lwidth) {
+        if(bitdepth == 16) {
+            convert16(line, dest, offset, lwidth);
+            return;
+        }
+        final int end = offset + lwidth;
+        switch (colorType) {
+        case COLOR_TRUEALPHA:
+            for(int i=1, d=offset ; d<end ; i+=4) {
+                dest[d++] = (line[i+3] << 24) | ((line[i] & 255) << 16) | ((line[i+1] & 255) << 8) | (line[i+2] & 255);
+            }
+            break;
+        case COLOR_TRUECOLOR:
+            if(transPixel != null) {
+                final int trans = ((transPixel[1] & 255) << 16) | ((transPixel[3] & 255) << 8) | (transPixel[5] & 255);
+                for(int i=1, d=offset ; d<end ; i+=3) {
+                    int rgb = ((line[i] & 255) << 16) | ((line[i+1] & 255) << 8) | (line[i+2] & 255);
+                    dest[d++] = (rgb == trans) ? rgb : 0xFF000000 | rgb;
+                }
+            } else {
+                for(int i=1, d=offset ; d<end ; i+=3) {
+                    dest[d++] = 0xFF000000 | ((line[i] & 255) << 16) | ((line[i+1] & 255) << 8) | (line[i+2] & 255);
+                }
+            }
+            break;
+        case COLOR_GREYALPHA:
+            for(int i=1, d=offset ; d<end ; i+=2) {
+                dest[d++] = (line[i+1] << 24) | ((line[i] & 255) * 0x010101);
+            }
+            break;
+        case COLOR_GREYSCALE:
+        case COLOR_INDEXED:
+            {
+                final int[] table = colorTable;
+                switch (bitdepth) {
+                case 8:
+                    for(int i=1, d=offset ; d<end ; i++) {
+                        dest[d++] = table[line[i] & 255];
+                    }
+                    break;
+                case 4:
+                    for(int i=1, d=offset ; d<end ; i++) {
+                        int v = line[i];
+                        dest[d++] = table[(v >> 4) & 15];
+                        if(d < end) dest[d++] = table[v & 15];
+                    }
+                    break;
+                case 2:
+                case 1:
+                    {
+                        final int mask = (1 << bitdepth) - 1;
+                        for(int i=1, d=offset ; d<end ; i++) {
+                            int v = line[i] & 255;
+                            for(int shift = 8 - bitdepth ; shift >= 0 && d < end ; shift -= bitdepth) {
+                                dest[d++] = table[(v >> shift) & mask];
+                            }
+                        }
+                    }
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Unsupported bitdepth for this image");
+                }
+            }
+            break;
+        default:
+            throw new UnsupportedOperationException("Not yet implemented");
+        }
+    }
+
+    /**
+     * Converts one unfiltered line of 16 bit samples, keeping the high byte of each. The
+     * tRNS color is compared at full precision.
+     */
+    private void convert16(byte[] line, int[] dest, int offset, int lwidth) {
+        final int end = offset + lwidth;
+        switch (colorType) {
+        case COLOR_TRUEALPHA:
+            for(int i=1, d=offset ; d<end ; i+=8) {
+                dest[d++] = (line[i+6] << 24) | ((line[i] & 255) << 16) | ((line[i+2] & 255) << 8) | (line[i+4] & 255);
+            }
+            break;
+        case COLOR_TRUECOLOR:
+            {
+                final byte[] t = transPixel;
+                for(int i=1, d=offset ; d<end ; i+=6) {
+                    int rgb = ((line[i] & 255) << 16) | ((line[i+2] & 255) << 8) | (line[i+4] & 255);
+                    if(t != null && line[i] == t[0] && line[i+1] == t[1] && line[i+2] == t[2]
+                            && line[i+3] == t[3] && line[i+4] == t[4] && line[i+5] == t[5]) {
+                        dest[d++] = rgb;
+                    } else {
+                        dest[d++] = 0xFF000000 | rgb;
+                    }
+                }
+            }
+            break;
+        case COLOR_GREYALPHA:
+            for(int i=1, d=offset ; d<end ; i+=4) {
+                dest[d++] = (line[i+2] << 24) | ((line[i] & 255) * 0x010101);
+            }
+            break;
+        case COLOR_GREYSCALE:
+            {
+                final byte[] t = transPixel;
+                final int[] table = colorTable;
+                for(int i=1, d=offset ; d<end ; i+=2) {
+                    int argb = table[line[i] & 255];
+                    if(t != null && line[i] == t[0] && line[i+1] == t[1]) {
+                        argb &= 0x00FFFFFF;
+                    }
+                    dest[d++] = argb;
+                }
+            }
+            break;
+        default:
+            throw new UnsupportedOperationException("Unsupported bitdepth for this image");
+        }
+    }
+
+    /**
+     * Builds the ARGB color of every palette index, or of every grey level of a greyscale
+     * image, including tRNS transparency.
+     */
+    private int[] buildColorTable() {
+        int[] table = new int[256];
+        if(colorType == COLOR_INDEXED) {
+            Arrays.fill(table, 0xFF000000); // out of range indices show black
+            int n = (palette != null) ? palette.length / 3 : 0;
+            for(int i=0 ; i<n ; i++) {
+                int a = (paletteA != null && i < paletteA.length) ? paletteA[i] & 255 : 255;
+                table[i] = (a << 24) | ((palette[i*3] & 255) << 16) | ((palette[i*3+1] & 255) << 8) | (palette[i*3+2] & 255);
+            }
+        } else {
+            int levels = 1 << Math.min(bitdepth, 8);
+            int scale = 255 / (levels - 1);
+            // 16 bit levels are compared with the tRNS value while converting
+            int trans = (transPixel != null && bitdepth < 16) ? ((transPixel[0] & 255) << 8 | (transPixel[1] & 255)) : -1;
+            for(int i=0 ; i<levels ; i++) {
+                int grey = (i * scale) * 0x010101;
+                table[i] = (i == trans) ? grey : 0xFF000000 | grey;
+            }
+        }
+        return table;
+    }
+
+    private void readChunkUnzip(Inflater inflater, Input input, byte[] buffer, int offset, int length) throws IOException {
+        try {
+            do {
+                int read = inflater.inflate(buffer, offset, length);
+                if(read <= 0) {
+                    if(inflater.finished()) {
+                        throw new EOFException();
+                    }
+                    if(inflater.needsInput()) {
+                        input.refill(inflater);
+                    } else {
+                        throw new IOException("Can't inflate " + length + " bytes");
+                    }
+                } else {
+                    offset += read;
+                    length -= read;
+                }
+            } while(length > 0);
+        } catch (DataFormatException ex) {
+            throw (IOException)(new IOException("inflate error").initCause(ex));
+        }
+    }
+
+    /**
+     * Reverses the filter of a line. Only the first n bytes of the buffers, filter type
+     * included, belong to the line.
+     */
+    private void unfilter(byte[] curLine, byte[] prevLine, int n) throws IOException {
+        switch (curLine[0]) {
+            case 0: // none
+                break;
+            case 1:
+                unfilterSub(curLine, n, bytesPerPixel);
+                break;
+            case 2:
+                unfilterUp(curLine, prevLine, n);
+                break;
+            case 3:
+                switch (bytesPerPixel) {
+                    case 4: unfilterAverage4(curLine, prevLine, n); break;
+                    case 3: unfilterAverage3(curLine, prevLine, n); break;
+                    default: unfilterAverage(curLine, prevLine, n, bytesPerPixel);
+                }
+                break;
+            case 4:
+                switch (bytesPerPixel) {
+                    case 4: unfilterPaeth4(curLine, prevLine, n); break;
+                    case 3: unfilterPaeth3(curLine, prevLine, n); break;
+                    default: unfilterPaeth(curLine, prevLine, n, bytesPerPixel);
+                }
+                break;
+            default:
+                throw new IOException("invalide filter type in scanline: " + curLine[0]);
+        }
+    }
+    
+    private static void unfilterSub(byte[] curLine, int n, int bpp) {
+        for(int i=bpp+1 ; i<n ; ++i) {
+            curLine[i] += curLine[i-bpp];
+        }
+    }
+    
+    private static void unfilterUp(byte[] curLine, byte[] prevLine, int n) {
+        for(int i=1 ; i<n ; ++i) {
+            curLine[i] += prevLine[i];
+        }
+    }
+    
+    private static void unfilterAverage(byte[] curLine, byte[] prevLine, int n, int bpp) {
+        int i;
+        for(i=1 ; i<=bpp && i<n ; ++i) {
+            curLine[i] += (byte)((prevLine[i] & 0xFF) >>> 1);
+        }
+        for( ; i<n ; ++i) {
+            curLine[i] += (byte)(((prevLine[i] & 0xFF) + (curLine[i - bpp] & 0xFF)) >>> 1);
+        }
+    }
+
+    // The bpp 3 and 4 kernels keep the left pixel in locals instead of reading it back
+    // from the line, so every byte is loaded once.
+
+    private static void unfilterAverage4(byte[] curLine, byte[] prevLine, int n) {
+        int a0 = 0, a1 = 0, a2 = 0, a3 = 0;
+        for(int i=1 ; i<n ; i+=4) {
+            a0 = (curLine[i  ] + ((a0 + (prevLine[i  ] & 255)) >>> 1)) & 255; curLine[i  ] = (byte)a0;
+            a1 = (curLine[i+1] + ((a1 + (prevLine[i+1] & 255)) >>> 1)) & 255; curLine[i+1] = (byte)a1;
+            a2 = (curLine[i+2] + ((a2 + (prevLine[i+2] & 255)) >>> 1)) & 255; curLine[i+2] = (byte)a2;
+            a3 = (curLine[i+3] + ((a3 + (prevLine[i+3] & 255)) >>> 1)) & 255; curLine[i+3] = (byte)a3;
+        }
+    }
+
+    private static void unfilterAverage3(byte[] curLine, byte[] prevLine, int n) {
+        int a0 = 0, a1 = 0, a2 = 0;
+        for(int i=1 ; i<n ; i+=3) {
+            a0 = (curLine[i  ] + ((a0 + (prevLine[i  ] & 255)) >>> 1)) & 255; curLine[i  ] = (byte)a0;
+            a1 = (curLine[i+1] + ((a1 + (prevLine[i+1] & 255)) >>> 1)) & 255; curLine[i+1] = (byte)a1;
+            a2 = (curLine[i+2] + ((a2 + (prevLine[i+2] & 255)) >>> 1)) & 255; curLine[i+2] = (byte)a2;
+        }
+    }
+    
+    private static void unfilterPaeth(byte[] curLine, byte[] prevLine, int n, int bpp) {
+        int i;
+        for(i=1 ; i<=bpp && i<n ; ++i) {
+            curLine[i] += prevLine[i];
+        }
+        for( ; i<n ; ++i) {
+            curLine[i] += (byte)paeth(curLine[i - bpp] & 255, prevLine[i] & 255, prevLine[i - bpp] & 255);
+        }
+    }
+
+    private static void unfilterPaeth4(byte[] curLine, byte[] prevLine, int n) {
+        int a0 = 0, a1 = 0, a2 = 0, a3 = 0;
+        int c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+        for(int i=1 ; i<n ; i+=4) {
+            int b0 = prevLine[i  ] & 255;
+            int b1 = prevLine[i+1] & 255;
+            int b2 = prevLine[i+2] & 255;
+            int b3 = prevLine[i+3] & 255;
+            a0 = (curLine[i  ] + paeth(a0, b0, c0)) & 255; curLine[i  ] = (byte)a0;
+            a1 = (curLine[i+1] + paeth(a1, b1, c1)) & 255; curLine[i+1] = (byte)a1;
+            a2 = (curLine[i+2] + paeth(a2, b2, c2)) & 255; curLine[i+2] = (byte)a2;
+            a3 = (curLine[i+3] + paeth(a3, b3, c3)) & 255; curLine[i+3] = (byte)a3;
+            c0 = b0; c1 = b1; c2 = b2; c3 = b3;
+        }
+    }
+
+    private static void unfilterPaeth3(byte[] curLine, byte[] prevLine, int n) {
+        int a0 = 0, a1 = 0, a2 = 0;
+        int c0 = 0, c1 = 0, c2 = 0;
+        for(int i=1 ; i<n ; i+=3) {
+            int b0 = prevLine[i  ] & 255;
+            int b1 = prevLine[i+1] & 255;
+            int b2 = prevLine[i+2] & 255;
+            a0 = (curLine[i  ] + paeth(a0, b0, c0)) & 255; curLine[i  ] = (byte)a0;
+            a1 = (curLine[i+1] + paeth(a1, b1, c1)) & 255; curLine[i+1] = (byte)a1;
+            a2 = (curLine[i+2] + paeth(a2, b2, c2)) & 255; curLine[i+2] = (byte)a2;
+            c0 = b0; c1 = b1; c2 = b2;
+        }
+    }
+
+    /**
+     * Paeth predictor of left a, up b and upper left c. Written without branches: on
+     * photographic content the choice is close to random and mispredictions dominate.
+     */
+    private static int paeth(int a, int b, int c) {
+        int pa = b - c; // p - a
+        int pb = a - c; // p - b
+        int pc = pa + pb; // p - c
+        pa = (pa ^ (pa >> 31)) - (pa >> 31);
+        pb = (pb ^ (pb >> 31)) - (pb >> 31);
+        pc = (pc ^ (pc >> 31)) - (pc >> 31);
+        int t = (pc - pb) >> 31; // -1 when c is closer than b
+        int bc = b ^ ((b ^ c) & t);
+        int pbc = pb ^ ((pb ^ pc) & t);
+        int u = (pbc - pa) >> 31; // -1 when b or c is closer than a
+        return a ^ ((a ^ bc) & u);
+    }
+}
@@ -7,11 +7,13 @@ import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Paint.Align;
 import android.graphics.Path;
+import android.graphics.PathMeasure;
 import android.graphics.Picture;
 import android.graphics.RadialGradient;
 import android.graphics.RectF;
 import android.graphics.Shader;
 import android.graphics.Typeface;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Xml;
 
@@ -20,6 +22,7 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Vector;
 import java.util.ArrayList;
@@ -37,6 +40,19 @@ public class SvgDecoder extends Decoder {
 	private int height = 0;
 	private float scale = 1f;
 	private boolean scaling = false;
+	private boolean cacheStatic = false; // static parts are drawn from pictures, once the animations are known
+	private boolean recording = false;   // a static part is being recorded
+
+	// number tokenizer shared by the parse methods, the document is built and animated by one thread at a time
+	private final ParserHelper parser = new ParserHelper();
+	private float[] numberBuffer = new float[32];
+	private final float[] transformValues = new float[9];
+	private final Matrix transformMatrix = new Matrix();
+
+	// paths parsed once for each distinct path data, at the scale they were parsed with
+	private final HashMap<String, SharedPath> paths = new HashMap<String, SharedPath>();
+	private float pathsScale = 1f;
+	private int initPass = 0; // counts the builds of the document, for gradients built ahead of their turn
 	
 	// structural elements
 	public static final String TAG_SVG                   = "svg";
@@ -71,6 +87,7 @@ public class SvgDecoder extends Decoder {
 	public static final String TAG_SVG_ANIMATE_MONITOR   = "animateMotion";
 	public static final String TAG_SVG_ANIMATE_TRANSFORM = "animateTransform";
 	public static final String TAG_SVG_SET               = "set";
+	public static final String TAG_SVG_MPATH             = "mpath";
 	
 	// other
 	public static final String TAG_SVG_STOP              = "stop";
@@ -148,6 +165,7 @@ public class SvgDecoder extends Decoder {
 		tags.add(SvgDecoder.TAG_SVG_ANIMATE_MONITOR);
 		tags.add(SvgDecoder.TAG_SVG_ANIMATE_TRANSFORM);
 		tags.add(SvgDecoder.TAG_SVG_SET);
+		tags.add(SvgDecoder.TAG_SVG_MPATH);
 		tags.add(SvgDecoder.TAG_SVG_ALT_GLYPH_DEF);
 		tags.add(SvgDecoder.TAG_SVG_COLOR_PROFILE);
 		tags.add(SvgDecoder.TAG_SVG_CURSOR);
@@ -191,6 +209,46 @@ public class SvgDecoder extends Decoder {
 		tags.add(SvgDecoder.TAG_SVG_STOP);
 	}
 	
+	// animation timing, in ms
+	protected static final long INDEFINITE = Long.MAX_VALUE;
+	protected static final int FRAME_DELAY = 33; // between redraws while a value is interpolated
+	
+	// what an animated attribute invalidates in its element, see SVGElement#update(int)
+	protected static final int INVALID_FILL = 1;
+	protected static final int INVALID_STROKE = 2;
+	protected static final int INVALID_GEOMETRY = 4;
+	protected static final int INVALID_TRANSFORM = 8;            // the transform attribute
+	protected static final int INVALID_DISPLAY = 16;
+	protected static final int INVALID_STYLE = 32;               // the style attribute, anything of a figure
+	protected static final int INVALID_ANIMATED_TRANSFORM = 64;  // the matrix of an animateTransform or animateMotion
+	
+	// attributes that change something else than the geometry of their element
+	protected static final HashMap<String, Integer> attrChanges = new HashMap<String, Integer>();
+	static {
+		attrChanges.put("fill", INVALID_FILL);
+		attrChanges.put("fill-opacity", INVALID_FILL);
+		attrChanges.put("stroke", INVALID_STROKE);
+		attrChanges.put("stroke-opacity", INVALID_STROKE);
+		attrChanges.put("stroke-width", INVALID_STROKE);
+		attrChanges.put("stroke-linecap", INVALID_STROKE);
+		attrChanges.put("stroke-linejoin", INVALID_STROKE);
+		attrChanges.put("opacity", INVALID_FILL | INVALID_STROKE);
+		attrChanges.put("display", INVALID_DISPLAY);
+		attrChanges.put("transform", INVALID_TRANSFORM);
+		attrChanges.put("style", INVALID_STYLE);
+	}
+	
+	// attributes animated as colors
+	protected static final HashSet<String> colorAttrs = new HashSet<String>();
+	static {
+		colorAttrs.add("fill");
+		colorAttrs.add("stroke");
+		colorAttrs.add("color");
+		colorAttrs.add("stop-color");
+		colorAttrs.add("flood-color");
+		colorAttrs.add("lighting-color");
+	}
+	
     protected boolean isValidTag(String tag) {
 		return tags.contains(tag);
 	}
@@ -220,6 +278,7 @@ public class SvgDecoder extends Decoder {
     
 	public void onDestroy() {
 		frame.clean();
+		paths.clear();
 	}
 
     
@@ -284,6 +343,7 @@ public class SvgDecoder extends Decoder {
     }
     
     public void draw(Canvas c) {
+    	frame.animate(SystemClock.uptimeMillis());
     	frame.draw(c);
     }
 
@@ -334,15 +394,6 @@ public class SvgDecoder extends Decoder {
         return result;
     }
     
-	private static String escape (String s) {
-		return s
-			.replaceAll("\"", "&quot;")
-			.replaceAll("'", "&apos")
-			.replaceAll("<", "&lt;")
-			.replaceAll(">", "&gt;")
-			.replaceAll("&", "&amp;");
-	}
-
 	protected void parseAttrs(SVGElement element, XmlPullParser parser) throws XmlPullParserException, IOException {
     	int num = parser.getAttributeCount();
     	for(int i = 0; i < num; i++) {
@@ -350,6 +401,7 @@ public class SvgDecoder extends Decoder {
     		String value = parser.getAttributeValue(i);
     		element.setAttr(name, value);
     	}
+    	frame.addId(element);
 	}
 
     private void parseElements(String tag, SVGElement element, XmlPullParser parser) throws XmlPullParserException, IOException {
@@ -369,151 +421,126 @@ public class SvgDecoder extends Decoder {
         }  
     }
     
-    private NumberParse parseNumbers(String s) {
-        //Util.debug("Parsing numbers from: '" + s + "'");
-        int n = s.length();
-        int p = 0;
-        ArrayList<Float> numbers = new ArrayList<Float>();
-        boolean skipChar = false;
-        for (int i = 1; i < n; i++) {
-            if (skipChar) {
-                skipChar = false;
-                continue;
-            }
-            char c = s.charAt(i);
-            switch (c) {
-                // This ends the parsing, as we are on the next element
-                case 'M': case 'm': case 'Z': case 'z':
-                case 'L': case 'l': case 'H': case 'h':
-                case 'V': case 'v': case 'C': case 'c':
-                case 'S': case 's': case 'Q': case 'q':
-                case 'T': case 't': case 'a': case 'A':
-                case ')': {
-                    String str = s.substring(p, i);
-                    if (str.trim().length() > 0) {
-                        //Util.debug("  Last: " + str);
-                        Float f = Float.parseFloat(str);
-                        f = f * getScale();
-                        numbers.add(f);
-                    }
-                    p = i;
-                    return new NumberParse(numbers);
-                }
-                //case '-':
-                case '\n': case '\t': case ' ': case ',':
-                {
-                    String str = s.substring(p, i);
-                    // Just keep moving if multiple whitespace
-                    if (str.trim().length() > 0) {
-                        //Util.debug("  Next: " + str);
-                        Float f = Float.parseFloat(str);
-                        f = f * getScale();
-                        numbers.add(f);
-                        if (c == '-') {
-                            p = i;
-                        } else {
-                            p = i + 1;
-                            skipChar = true;
-                        }
-                    } else {
-                        p++;
-                    }
-                    break;
-                }
-            }
-        }
-        String last = s.substring(p);
-        if (last.length() > 0) {
-            //Util.debug("  Last: " + last);
-            try {
-            	Float f = Float.parseFloat(last);
-            	f = f * getScale();
-                numbers.add(f);
-            } catch (NumberFormatException nfe) {
-                // Just white-space, forget it
-            }
-            p = s.length();
-        }
-        return new NumberParse(numbers);
+    /**
+     * Reads a list of numbers separated by whitespace or commas into {@link #numberBuffer},
+     * up to the first character that can't start a number. The numbers are not scaled.
+     *
+     * @return how many numbers were read, the parser is left after the last one
+     */
+    private int readNumbers(String s, int start) {
+    	ParserHelper ph = this.parser;
+    	ph.reset(s, start);
+    	ph.skipWhitespace();
+    	int count = 0;
+    	while (ph.pos < s.length()) {
+    		float f = ph.parseFloat();
+    		if (Float.isNaN(f)) {
+    			break;
+    		}
+    		if (count == numberBuffer.length) {
+    			float[] grown = new float[count * 2];
+    			System.arraycopy(numberBuffer, 0, grown, 0, count);
+    			numberBuffer = grown;
+    		}
+    		numberBuffer[count++] = f;
+    		ph.skipWhitespace();
+    		ph.skipNumberSeparator();
+    	}
+    	return count;
     }
 
 	// Process a list of transforms
 	// foo(n,n,n...) bar(n,n,n..._ ...)
 	// delims are whitespace or ,'s
 
-	private Matrix parseTransform(String s) {
+	/**
+	 * Applies a transform list to a matrix, so an element can parse a changing transform
+	 * into the same matrix.
+	 *
+	 * @return the matrix
+	 */
+	private Matrix parseTransform(String s, Matrix matrix) {
 		//Log.d(TAG, s);
-		Matrix matrix = new Matrix();
-		while (true) {
-			parseTransformItem(s, matrix);
-			// Log.i(TAG, "Transformed: (" + s + ") " + matrix);
-			int rparen = s.indexOf(")");
-			if (rparen > 0 && s.length() > rparen + 1) {
-				s = s.substring(rparen + 1).replaceFirst("[\\s,]*", "");
-			} else {
+		int n = s.length();
+		int i = 0;
+		while (i < n) {
+			char c = s.charAt(i);
+			if (c == ',' || Character.isWhitespace(c)) {
+				i++;
+				continue;
+			}
+			int open = s.indexOf('(', i);
+			if (open < 0) {
+				Log.i(TAG, "Invalid transform (" + s + ")");
 				break;
 			}
+			int nameEnd = open;
+			while (nameEnd > i && Character.isWhitespace(s.charAt(nameEnd - 1))) {
+				nameEnd--;
+			}
+			int count = readNumbers(s, open + 1);
+			parseTransformItem(s, i, nameEnd, count, matrix);
+			int close = s.indexOf(')', parser.pos);
+			if (close < 0) {
+				break;
+			}
+			i = close + 1;
 		}
 		//Log.d(TAG, matrix.toShortString());
 		return matrix;
 	}
 
-	private Matrix parseTransformItem(String s, Matrix matrix) {
-        if (s.startsWith("matrix(")) {
-            NumberParse np = parseNumbers(s.substring("matrix(".length()));
-            if (np.numbers.size() == 6) {
-				Matrix mat = new Matrix();
-				mat.setValues(new float[] {
-                        // Row 1
-                        np.numbers.get(0), np.numbers.get(2), np.numbers.get(4),
-                        // Row 2
-                        np.numbers.get(1), np.numbers.get(3), np.numbers.get(5),
-                        // Row 3
-                        0,                 0,                 1,
-                });
-				matrix.preConcat(mat);
+	private static boolean isName(String s, int start, int end, String name) {
+		return end - start == name.length() && s.startsWith(name, start);
+	}
+
+	/**
+	 * Applies the transform named by s[start, end) with the first count {@link #numberBuffer}.
+	 * Lengths are scaled like the rest of the document, angles and factors are not.
+	 */
+	private Matrix parseTransformItem(String s, int start, int end, int count, Matrix matrix) {
+		float[] v = this.numberBuffer;
+		float scale = getScale();
+        if (isName(s, start, end, "matrix")) {
+            if (count == 6) {
+            	float[] values = this.transformValues;
+            	// Row 1
+            	values[0] = v[0]; values[1] = v[2]; values[2] = v[4] * scale;
+            	// Row 2
+            	values[3] = v[1]; values[4] = v[3]; values[5] = v[5] * scale;
+            	// Row 3
+            	values[6] = 0;    values[7] = 0;    values[8] = 1;
+            	transformMatrix.setValues(values);
+				matrix.preConcat(transformMatrix);
             }
-        } else if (s.startsWith("translate(")) {
-            NumberParse np = parseNumbers(s.substring("translate(".length()));
-            if (np.numbers.size() > 0) {
-                float tx = np.numbers.get(0);
-                float ty = 0;
-                if (np.numbers.size() > 1) {
-                    ty = np.numbers.get(1);
-                }
+        } else if (isName(s, start, end, "translate")) {
+            if (count > 0) {
+                float tx = v[0] * scale;
+                float ty = (count > 1) ? v[1] * scale : 0;
 				matrix.preTranslate(tx, ty);
             }
-        } else if (s.startsWith("scale(")) {
-            NumberParse np = parseNumbers(s.substring("scale(".length()));
-            if (np.numbers.size() > 0) {
-                float sx = np.numbers.get(0);
-				float sy = sx;
-                if (np.numbers.size() > 1) {
-                    sy = np.numbers.get(1);
-                }
+        } else if (isName(s, start, end, "scale")) {
+            if (count > 0) {
+                float sx = v[0];
+				float sy = (count > 1) ? v[1] : sx;
 				matrix.preScale(sx, sy);
             }
-        } else if (s.startsWith("skewX(")) {
-            NumberParse np = parseNumbers(s.substring("skewX(".length()));
-            if (np.numbers.size() > 0) {
-                float angle = np.numbers.get(0);
-				matrix.preSkew((float) Math.tan(angle), 0);
+        } else if (isName(s, start, end, "skewX")) {
+            if (count > 0) {
+				matrix.preSkew((float) Math.tan(Math.toRadians(v[0])), 0);
             }
-        } else if (s.startsWith("skewY(")) {
-            NumberParse np = parseNumbers(s.substring("skewY(".length()));
-            if (np.numbers.size() > 0) {
-                float angle = np.numbers.get(0);
-				matrix.preSkew(0, (float) Math.tan(angle));
+        } else if (isName(s, start, end, "skewY")) {
+            if (count > 0) {
+				matrix.preSkew(0, (float) Math.tan(Math.toRadians(v[0])));
             }
-        } else if (s.startsWith("rotate(")) {
-            NumberParse np = parseNumbers(s.substring("rotate(".length()));
-            if (np.numbers.size() > 0) {
-                float angle = np.numbers.get(0);
+        } else if (isName(s, start, end, "rotate")) {
+            if (count > 0) {
+                float angle = v[0];
                 float cx = 0;
                 float cy = 0;
-                if (np.numbers.size() > 2) {
-                    cx = np.numbers.get(1);
-                    cy = np.numbers.get(2);
+                if (count > 2) {
+                    cx = v[1] * scale;
+                    cy = v[2] * scale;
                 }
 				matrix.preTranslate(cx, cy);
 				matrix.preRotate(angle);
@@ -525,6 +552,24 @@ public class SvgDecoder extends Decoder {
 		return matrix;
     }
 
+    /**
+     * Gets the path of some path data, parsing it only the first time it is seen, so
+     * figures repeated with the same data share one Path.
+     */
+    private SharedPath getSharedPath(String d) {
+    	float scale = getScale();
+    	if (scale != pathsScale) {
+    		paths.clear();
+    		pathsScale = scale;
+    	}
+    	SharedPath p = paths.get(d);
+    	if (p == null) {
+    		p = new SharedPath(parsePath(d));
+    		paths.put(d, p);
+    	}
+    	return p;
+    }
+
     /**
      * This is where the hard-to-parse paths are handled.
      * Uppercase rules are absolute positions, lowercase are relative.
@@ -548,14 +593,14 @@ public class SvgDecoder extends Decoder {
      */
     private Path parsePath(String s) {
         int n = s.length();
-        ParserHelper ph = new ParserHelper(s, 0);
+        ParserHelper ph = this.parser;
+        ph.reset(s, 0);
         ph.skipWhitespace();
         Path p = new Path();
         float lastX = 0;
         float lastY = 0;
         float lastX1 = 0;
         float lastY1 = 0;
-		RectF r = new RectF();
 		char cmd = 'x';
         while (ph.pos < n) {
 			char next = s.charAt(ph.pos);
@@ -569,8 +614,6 @@ public class SvgDecoder extends Decoder {
 			} else { // implied command
 				// Log.d(TAG, "Implied command: " + cmd);
                 }
-			p.computeBounds(r, true);
-			// Log.d(TAG, "  " + cmd + " " + r);
 			// Util.debug("* Commands remaining: '" + path + "'.");
 
             boolean wasCurve = false;
@@ -809,33 +852,97 @@ public class SvgDecoder extends Decoder {
 			ret = new SVGTagRadialGradient(tag, parent);
 		} else if(tag.equalsIgnoreCase(SvgDecoder.TAG_SVG_STOP)) {
 			ret = new SVGTagStop(tag, parent);
-		} else if(tag.equalsIgnoreCase(SvgDecoder.TAG_SVG_ANIMATE)) {
+		} else if(tag.equalsIgnoreCase(SvgDecoder.TAG_SVG_ANIMATE)
+				|| tag.equalsIgnoreCase(SvgDecoder.TAG_SVG_ANIMATE_COLOR)
+				|| tag.equalsIgnoreCase(SvgDecoder.TAG_SVG_SET)) {
 			ret = new SVGTagAnimate(tag, parent);
+		} else if(tag.equalsIgnoreCase(SvgDecoder.TAG_SVG_ANIMATE_TRANSFORM)) {
+			ret = new SVGTagAnimateTransform(tag, parent);
+		} else if(tag.equalsIgnoreCase(SvgDecoder.TAG_SVG_ANIMATE_MONITOR)) {
+			ret = new SVGTagAnimateMotion(tag, parent);
+		} else if(tag.equalsIgnoreCase(SvgDecoder.TAG_SVG_USE)) {
+			ret = new SVGTagUse(tag, parent);
+		} else if(tag.equalsIgnoreCase(SvgDecoder.TAG_SVG_DEFS)
+				|| tag.equalsIgnoreCase(SvgDecoder.TAG_SVG_SYMBOL)) {
+			ret = new SVGTagDefs(tag, parent);
 		} else {
 			ret = new SVGElement(tag, parent);
 		}
 		return ret;
     }
 
-    public Float strToColor(String str) {
-        try {
-        	Float f = Float.parseFloat(str);
-        	return f;
-        } catch (Exception nfe) {
-            return null;
-        }
+    /**
+     * Reads a number that is the whole of a value, as the opacities are.
+     *
+     * @return NaN if the value is null or not a number
+     */
+    private float parseNumber(String str) {
+    	if(str == null) {
+    		return Float.NaN;
+    	}
+    	ParserHelper ph = this.parser;
+    	try {
+    		ph.reset(str, 0);
+    		ph.skipWhitespace();
+    		float f = ph.parseFloat();
+    		ph.skipWhitespace();
+    		return (ph.pos == str.length()) ? f : Float.NaN;
+    	} catch (RuntimeException e) {
+    		return Float.NaN;
+    	}
     }
     
-    public Float strToFloat(String str) {
-        try {
-        	Float f = Float.parseFloat(str);
-        	f = f * getScale();
-        	return f;
-        } catch (Exception nfe) {
-            return null;
-        }
+    /**
+     * Reads a length, a number in px or in % of bound, scaled like the rest of the document.
+     * Does the same as {@link #attrToFloat(String, Float)} without boxing or substrings.
+     *
+     * @return NaN if the value is not a length
+     */
+    private float parseLength(String str, float bound) {
+    	ParserHelper ph = this.parser;
+    	try {
+    		ph.reset(str, 0);
+    		ph.skipWhitespace();
+    		float f = ph.parseFloat();
+    		if(str.startsWith("%", ph.pos)) {
+    			f = f * bound / 100f;
+    			ph.reset(str, ph.pos + 1);
+    		} else if(str.startsWith("px", ph.pos)) {
+    			ph.reset(str, ph.pos + 2);
+    		}
+    		ph.skipWhitespace();
+    		return (ph.pos == str.length()) ? f * getScale() : Float.NaN;
+    	} catch (RuntimeException e) {
+    		return Float.NaN;
+    	}
     }
-
+    
+    /**
+     * Reads a paint color: a color name, "#rgb" or "#rrggbb".
+     *
+     * @return the color without alpha, Color.TRANSPARENT if it is none of them
+     */
+    private static int parsePaintColor(String str) {
+    	Integer color = colors.get(str);
+    	if(color != null) {
+    		return color;
+    	}
+    	int n = str.length();
+    	if(n < 2 || str.charAt(0) != '#') {
+    		return Color.TRANSPARENT;
+    	}
+    	int rgb = 0;
+    	for(int i = 1; i < n; i++) {
+    		int digit = Character.digit(str.charAt(i), 16);
+    		if(digit < 0 || i > 8) {
+    			return Color.TRANSPARENT;
+    		}
+    		rgb = (rgb << 4) | digit;
+    	}
+    	// convert 0xRGB into 0xRRGGBB
+    	return (n == 4) ? (rgb & 0xF00) * 0x1100 | (rgb & 0xF0) * 0x110 | (rgb & 0xF) * 0x11 : rgb;
+    }
+    
     public Float attrToFloat(String str, Float bound) {
         try {
         	boolean percent = false;
@@ -885,12 +992,104 @@ public class SvgDecoder extends Decoder {
 		return ret;			
 	}
 
+	/**
+	 * Parses a clock value: "2s", "150ms", "1.5min", "0:01:30" or a number of seconds.
+	 *
+	 * @return the time in ms, INDEFINITE for anything else
+	 */
+	public static long parseClock(String value) {
+		if(value == null) {
+			return INDEFINITE;
+		}
+		String v = value.trim();
+		try {
+			if(v.endsWith("ms")) {
+				return Math.round(Double.parseDouble(v.substring(0, v.length() - 2)));
+			} else if(v.endsWith("min")) {
+				return Math.round(Double.parseDouble(v.substring(0, v.length() - 3)) * 60000);
+			} else if(v.endsWith("h")) {
+				return Math.round(Double.parseDouble(v.substring(0, v.length() - 1)) * 3600000);
+			} else if(v.endsWith("s")) {
+				return Math.round(Double.parseDouble(v.substring(0, v.length() - 1)) * 1000);
+			} else if(v.indexOf(':') >= 0) {
+				String[] parts = v.split(":");
+				double seconds = 0;
+				for(int i = 0; i < parts.length; i++) {
+					seconds = seconds * 60 + Double.parseDouble(parts[i]);
+				}
+				return Math.round(seconds * 1000);
+			}
+			return Math.round(Double.parseDouble(v) * 1000);
+		} catch (NumberFormatException e) {
+			return INDEFINITE;
+		}
+	}
+	
+	/**
+	 * Splits a list separated by semicolons, as in values, keyTimes or begin.
+	 */
+	public static String[] splitList(String value) {
+		String[] parts = value.split(";");
+		int n = 0;
+		for(int i = 0; i < parts.length; i++) {
+			parts[i] = parts[i].trim();
+			if(parts[i].length() > 0) {
+				parts[n++] = parts[i];
+			}
+		}
+		String[] ret = new String[n];
+		System.arraycopy(parts, 0, ret, 0, n);
+		return ret;
+	}
+	
+	public static String formatNumber(float f) {
+		if(f == (int)f) {
+			return Integer.toString((int)f);
+		}
+		return Float.toString(f);
+	}
+	
+	/**
+	 * Parses a color name, "#rgb", "#rrggbb" or "rgb(r, g, b)".
+	 *
+	 * @return the color without alpha, null if it is not one
+	 */
+	public static Integer parseColor(String value) {
+		String v = value.trim();
+		Integer color = colors.get(v.toLowerCase());
+		if(color != null) {
+			return color;
+		}
+		try {
+			if(v.startsWith("#") && v.length() == 4) {
+				int x = Integer.parseInt(v.substring(1), 16);
+				return (x & 0xF00) * 0x1100 | (x & 0xF0) * 0x110 | (x & 0xF) * 0x11;
+			} else if(v.startsWith("#") && v.length() == 7) {
+				return Integer.parseInt(v.substring(1), 16);
+			} else if(v.startsWith("rgb(") && v.endsWith(")")) {
+				String[] c = v.substring(4, v.length() - 1).split(",");
+				if(c.length == 3) {
+					int rgb = 0;
+					for(int i = 0; i < 3; i++) {
+						String p = c[i].trim();
+						int x = p.endsWith("%") 
+								? Math.round(Float.parseFloat(p.substring(0, p.length() - 1)) * 2.55f) 
+								: Integer.parseInt(p);
+						rgb = (rgb << 8) | Math.max(0, Math.min(255, x));
+					}
+					return rgb;
+				}
+			}
+		} catch (NumberFormatException e) {}
+		return null;
+	}
+
     public class SVGTagLine extends SVGFigure{
 
-    	private Float x1 = null;
-    	private Float x2 = null;
-    	private Float y1 = null;
-    	private Float y2 = null;
+    	private float x1 = 0f;
+    	private float x2 = 0f;
+    	private float y1 = 0f;
+    	private float y2 = 0f;
 
     	public SVGTagLine(String tag, SVGElement parent) {
 			// "line"
@@ -898,23 +1097,20 @@ public class SvgDecoder extends Decoder {
 		}
 
     	@Override
-    	public void init() {
-    		Float widthcanvas = (float)getWidth();
-    		Float heightcanvas = (float)getHeight();
-    		this.x1 = getFloatAttr("x1", widthcanvas);
-    		this.x2 = getFloatAttr("x2", widthcanvas);
-    		this.y1 = getFloatAttr("y1", heightcanvas);
-    		this.y2 = getFloatAttr("y2", heightcanvas);
+    	protected void build() {
+    		float widthcanvas = getWidth();
+    		float heightcanvas = getHeight();
+    		this.x1 = getLength("x1", widthcanvas);
+    		this.x2 = getLength("x2", widthcanvas);
+    		this.y1 = getLength("y1", heightcanvas);
+    		this.y2 = getLength("y2", heightcanvas);
     		setBounds(this.x1, this.y1, this.x2, this.y2);
-			super.init();
 		}
 
 		@Override
     	public void drawData(Canvas c) {
-			if(this.x1 != null && this.x2 != null && this.y1 != null && this.y2 != null) {
-				if(this.paintStroke != null) {
-					c.drawLine(this.x1, this.y1, this.x2, this.y2, this.paintStroke);
-				}
+			if(this.paintStroke != null) {
+				c.drawLine(this.x1, this.y1, this.x2, this.y2, this.paintStroke);
 			}
     	}
     }
@@ -922,6 +1118,7 @@ public class SvgDecoder extends Decoder {
     public class SVGTagPolyline extends SVGFigure{
 
     	private Path path = null;
+    	private final RectF rect = new RectF();
 
     	public SVGTagPolyline(String tag, SVGElement parent) {
 			// "polyline"
@@ -929,30 +1126,8 @@ public class SvgDecoder extends Decoder {
 		}
 
     	@Override
-    	public void init() {
-            NumberParse numbers = null;
-            String pointstr = getAttr("points");
-            if(pointstr != null) {
-            	numbers = parseNumbers("points");
-            }
-            if (numbers != null) {
-                Path p = new Path();
-                ArrayList<Float> points = numbers.numbers;
-                if (points.size() > 1) {
-                    p.moveTo(points.get(0), points.get(1));
-                    for (int i = 2; i < points.size(); i += 2) {
-                        float x = points.get(i);
-                        float y = points.get(i + 1);
-                        p.lineTo(x, y);
-                    }
-                    this.path = p;
-                    RectF rect = new RectF();
-                    this.path.computeBounds(rect, false);
-                    setBounds(rect.left, rect.top, rect.right, rect.bottom);
-                }
-            }
-
-			super.init();
+    	protected void build() {
+    		this.path = buildPoints(this.path, false, this.rect);
 		}
 
 		@Override
@@ -972,6 +1147,7 @@ public class SvgDecoder extends Decoder {
     public class SVGTagPolygon extends SVGFigure{
 
     	private Path path = null;
+    	private final RectF rect = new RectF();
 
     	public SVGTagPolygon(String tag, SVGElement parent) {
 			// "polygon"
@@ -979,31 +1155,8 @@ public class SvgDecoder extends Decoder {
 		}
 
     	@Override
-    	public void init() {
-            NumberParse numbers = null;
-            String pointstr = getAttr("points");
-            if(pointstr != null) {
-            	numbers = parseNumbers(pointstr);
-            }
-            if (numbers != null) {
-                Path p = new Path();
-                ArrayList<Float> points = numbers.numbers;
-                if (points.size() > 1) {
-                    p.moveTo(points.get(0), points.get(1));
-                    for (int i = 2; i < points.size(); i += 2) {
-                        float x = points.get(i);
-                        float y = points.get(i + 1);
-                        p.lineTo(x, y);
-                    }
-                    p.close();
-                    this.path = p;
-                    RectF rect = new RectF();
-                    this.path.computeBounds(rect, false);
-                    setBounds(rect.left, rect.top, rect.right, rect.bottom);
-                }
-            }
-
-			super.init();
+    	protected void build() {
+    		this.path = buildPoints(this.path, true, this.rect);
 		}
 
 		@Override
@@ -1022,9 +1175,9 @@ public class SvgDecoder extends Decoder {
     
     public class SVGTagCircle extends SVGFigure{
 
-    	private Float centerX = null;
-    	private Float centerY = null;
-    	private Float radius = null;
+    	private float centerX = 0f;
+    	private float centerY = 0f;
+    	private float radius = 0f;
 
     	public SVGTagCircle(String tag, SVGElement parent) {
 			// "circle"
@@ -1032,17 +1185,16 @@ public class SvgDecoder extends Decoder {
 		}
 
     	@Override
-    	public void init() {
-    		Float widthcanvas = (float)getWidth();
-    		Float heightcanvas = (float)getHeight();
-    		this.centerX = getFloatAttr("cx", widthcanvas);
-    		this.centerY = getFloatAttr("cy", heightcanvas);
-    		this.radius = getFloatAttr("r", widthcanvas);
+    	protected void build() {
+    		float widthcanvas = getWidth();
+    		float heightcanvas = getHeight();
+    		this.centerX = getLength("cx", widthcanvas);
+    		this.centerY = getLength("cy", heightcanvas);
+    		this.radius = getLength("r", widthcanvas);
     		setBounds(this.centerX - this.radius, 
     	    		  this.centerY - this.radius, 
     	    		  this.centerX + this.radius, 
     	    		  this.centerY + this.radius);
-			super.init();
 		}
 
 		@Override
@@ -1061,7 +1213,7 @@ public class SvgDecoder extends Decoder {
 
     public class SVGTagEllipse extends SVGFigure{
 
-    	private RectF rect = null;
+    	private final RectF rect = new RectF();
 
     	public SVGTagEllipse(String tag, SVGElement parent) {
 			// "ellipse"
@@ -1069,44 +1221,33 @@ public class SvgDecoder extends Decoder {
 		}
 
     	@Override
-    	public void init() {
-    		Float widthcanvas = (float)getWidth();
-    		Float heightcanvas = (float)getHeight();
-    		Float centerX = getFloatAttr("cx", widthcanvas);
-    		Float centerY = getFloatAttr("cy", heightcanvas);
-    		Float radiusX = getFloatAttr("rx", widthcanvas);
-    		Float radiusY = getFloatAttr("ry", heightcanvas);
-    		if (centerX != null && centerY != null && radiusX != null && radiusY != null) {
-    			this.rect = new RectF();
-    			this.rect.set(centerX - radiusX, centerY - radiusY, centerX + radiusX, centerY + radiusY);
-    			setBounds(centerX - radiusX, centerY - radiusY, centerX + radiusX, centerY + radiusY);
-    		}
-
-			super.init();
+    	protected void build() {
+    		float widthcanvas = getWidth();
+    		float heightcanvas = getHeight();
+    		float centerX = getLength("cx", widthcanvas);
+    		float centerY = getLength("cy", heightcanvas);
+    		float radiusX = getLength("rx", widthcanvas);
+    		float radiusY = getLength("ry", heightcanvas);
+    		this.rect.set(centerX - radiusX, centerY - radiusY, centerX + radiusX, centerY + radiusY);
+    		setBounds(centerX - radiusX, centerY - radiusY, centerX + radiusX, centerY + radiusY);
 		}
 
 		@Override
     	public void drawData(Canvas c) {
-			if(this.rect != null) {
-				if(this.paintFill != null) {
-					c.drawOval(this.rect, this.paintFill);
-				}
-				if(this.paintStroke != null) {
-					c.drawOval(this.rect, this.paintStroke);
-				}
+			if(this.paintFill != null) {
+				c.drawOval(this.rect, this.paintFill);
+			}
+			if(this.paintStroke != null) {
+				c.drawOval(this.rect, this.paintStroke);
 			}
     	}
     }
 
     
     public class SVGTagRect extends SVGFigure{
-    	private Float x = null;
-    	private Float y = null;
-    	private Float rx = null;
-    	private Float ry = null;
-    	private Float width = null;
-    	private Float height = null;
-    	private RectF bounds = null;
+    	private float rx = 0f;
+    	private float ry = 0f;
+    	private final RectF bounds = new RectF();
 
     	public SVGTagRect(String tag, SVGElement parent) {
 			// "rect"
@@ -1118,40 +1259,34 @@ public class SvgDecoder extends Decoder {
     	}
 
     	@Override
-    	public void init() {
-    		Float widthcanvas = (float)getWidth();
-    		Float heightcanvas = (float)getHeight();
-            this.x = getFloatAttr("x", widthcanvas);
-    		this.y = getFloatAttr("y", heightcanvas);
-    		this.rx = getFloatAttr("rx", widthcanvas);
-    		this.ry = getFloatAttr("ry", heightcanvas);
-    		this.width = getFloatAttr("width", widthcanvas);
-    		this.height = getFloatAttr("height", heightcanvas);
-    		this.bounds = new RectF(this.x, this.y, this.x + this.width, this.y + this.width);
-    		setBounds(this.x, this.y, this.x + this.width, this.y + this.width);
-			super.init();
+    	protected void build() {
+    		float widthcanvas = getWidth();
+    		float heightcanvas = getHeight();
+    		float x = getLength("x", widthcanvas);
+    		float y = getLength("y", heightcanvas);
+    		this.rx = getLength("rx", widthcanvas);
+    		this.ry = getLength("ry", heightcanvas);
+    		float width = getLength("width", widthcanvas);
+    		float height = getLength("height", heightcanvas);
+    		this.bounds.set(x, y, x + width, y + height);
+    		setBounds(x, y, x + width, y + height);
 		}
 
 		@Override
     	public void drawData(Canvas c) {
+			RectF r = this.bounds;
 			if(this.paintFill != null) {
 				if (this.rx <= 0f && this.ry <= 0f) {
-					c.drawRect(this.x, this.y,
-							   this.x + this.width, 
-							   this.y + this.height, 
-							   this.paintFill);
+					c.drawRect(r.left, r.top, r.right, r.bottom, this.paintFill);
 				} else {
-					c.drawRoundRect(this.bounds, this.rx, this.ry, this.paintFill);
+					c.drawRoundRect(r, this.rx, this.ry, this.paintFill);
 				}
 			}
 			if(this.paintStroke != null) {
 				if (this.rx <= 0f && this.ry <= 0f) {
-					c.drawRect(this.x, this.y, 
-							   this.x + this.width, 
-							   this.y + this.height, 
-							   this.paintStroke);
+					c.drawRect(r.left, r.top, r.right, r.bottom, this.paintStroke);
 				} else {
-					c.drawRoundRect(this.bounds, this.rx, this.ry, this.paintStroke);
+					c.drawRoundRect(r, this.rx, this.ry, this.paintStroke);
 				}
 			}
     	}
@@ -1168,15 +1303,16 @@ public class SvgDecoder extends Decoder {
 		}
 
     	@Override
-    	public void init() {
+    	protected void build() {
 			final String d = getAttr("d");
 			if(d != null) {
-				this.path = parsePath(d);
-                RectF rect = new RectF();
-                this.path.computeBounds(rect, false);
-                setBounds(rect.left, rect.top, rect.right, rect.bottom);
+				// an animation steps through its own values, they are kept like static data
+				AnimatedValue animated = getAnimatedValue("d");
+				SharedPath p = (animated == null || animated.kind == AnimatedValue.TEXT) 
+						? getSharedPath(d) : new SharedPath(parsePath(d));
+				this.path = p.path;
+                setBounds(p.bounds.left, p.bounds.top, p.bounds.right, p.bounds.bottom);
 			}
-			super.init();
 		}
 
 		@Override
@@ -1200,6 +1336,11 @@ public class SvgDecoder extends Decoder {
     	protected Paint paintFill = null;
     	protected Paint paintStroke = null;
     	protected StyleSet styles = null;
+    	// the paints are set up again in place when animations change them
+    	private final Paint fill = new Paint();
+    	private final Paint stroke = new Paint();
+    	private String shaderUrl = null; // the fill the shader was looked up for
+    	private Shader shader = null;
 
 		public SVGFigure(String tag, SVGElement parent) {
 			super(tag, parent);
@@ -1207,29 +1348,35 @@ public class SvgDecoder extends Decoder {
 
 		@Override
     	public void init() {
+			build();
 			initParams();
 			super.init();
 		}
 		
+		/**
+		 * Reads the geometry of the figure from its attributes.
+		 */
+		protected void build() {
+		}
+		
 		protected void initParams() {
-            final String transform = getAttr("transform");
-            if(transform != null) {
-            	this.matrix = parseTransform(transform);
-            }
             final String styleAttr = getAttr("style");
             if(styleAttr != null) {
             	this.styles = new StyleSet(styleAttr);
             }
             
-            if ("none".equals(getAttr("display"))) {
-            	this.display = false;
-            }
+            this.matrix = readTransform(false);
+            this.display = !"none".equals(getAttr("display"));
             
             this.paintFill = getFillPaint();
             this.paintStroke = getStrokePaint();
 		}
 		
 		private String getStyleAttr(String name) {
+			AnimatedValue animated = getAnimatedValue(name);
+			if(animated != null) {
+				return animated.toString();
+			}
             if(this.styles != null) {
             	return styles.getStyle(name);
             } else {
@@ -1237,119 +1384,144 @@ public class SvgDecoder extends Decoder {
             }
 		}
 		
+		/**
+		 * Tells if a paint color is animated, so it is taken as it is without its string.
+		 */
+		private boolean isColorAnimated(String name) {
+			AnimatedValue animated = getAnimatedValue(name);
+			return animated != null && animated.kind == AnimatedValue.COLOR;
+		}
+		
+		/**
+		 * Gets a number, an opacity or a stroke width, an animated number as it is.
+		 *
+		 * @return NaN if the attribute is not set or not a number
+		 */
+		private float getNumberStyle(String name) {
+			AnimatedValue animated = getAnimatedValue(name);
+			if(animated != null && animated.kind == AnimatedValue.NUMBERS && animated.count == 1 && animated.unit.length() == 0) {
+				return animated.numbers[0];
+			}
+			return parseNumber(getStyleAttr(name));
+		}
+		
+		private int getColorStyle(String name) {
+			return isColorAnimated(name) ? getAnimatedValue(name).color : parsePaintColor(getStyleAttr(name));
+		}
+		
+		private void setOpacity(Paint paint, String name) {
+			float opacity = getNumberStyle("opacity");
+            if (Float.isNaN(opacity)) {
+                opacity = getNumberStyle(name);
+            }
+            paint.setAlpha(Float.isNaN(opacity) ? 255 : (int) (255 * opacity));
+		}
+		
 		protected Paint getFillPaint() {
-			Paint paint = new Paint();
+			Paint paint = this.fill;
+			paint.reset();
 			paint.setAntiAlias(true);
 			paint.setAlpha(255);
-            
-            Shader shader = null;
-            String fillString = getStyleAttr("fill");
-            if (fillString != null && fillString.startsWith("url(#")) {
-                String id = fillString.substring("url(#".length(), fillString.length() - 1);
-                SVGElement root = getRoot();
-                if(root instanceof SVG) {
-                    shader = ((SVG)root).getGradientById(id);
-                }
-            }
-            paint.setShader(shader);
             paint.setStyle(Paint.Style.FILL);
-            if (fillString != null) {
-            	if(fillString.equalsIgnoreCase("none")) {
-            		paint.setShader(null);
+            if (!isColorAnimated("fill")) {
+            	String fillString = getStyleAttr("fill");
+            	if (fillString == null) {
+            		return paint;
+            	}
+            	if (fillString.equalsIgnoreCase("none")) {
             		paint.setColor(Color.TRANSPARENT);
-            	} else {
-            		Integer color = colors.get(fillString);
-            		if(color == null) {
-		                try {
-		                	color = Integer.parseInt(fillString.substring(1), 16);
-		                	color = (fillString.length() == 4) ? hex3Tohex6(color) : color;
-		                } catch (NumberFormatException nfe) {
-		                	color = Color.TRANSPARENT;
-		                }
-            		}
-                    int c = (0xFFFFFF & color) | 0xFF000000;
-                    paint.setColor(c);
-                    String opacitystr = getStyleAttr("opacity");
-                    Float opacity = strToColor(opacitystr);
-
-                    if (opacity == null) {
-                        opacity = strToColor(getStyleAttr("fill-opacity"));
-                    }
-                    if (opacity == null) {
-                    	paint.setAlpha(255);
-                    } else {
-                    	paint.setAlpha((int) (255 * opacity));
-                    }
+            		return paint;
+            	}
+            	if (fillString.startsWith("url(#")) {
+            		paint.setShader(getShader(fillString));
             	}
             }
+            paint.setColor((0xFFFFFF & getColorStyle("fill")) | 0xFF000000);
+            setOpacity(paint, "fill-opacity");
 			return paint;
 		}
 		
-		// convert 0xRGB into 0xRRGGBB
-		private int hex3Tohex6(int x) {
-			return  (x & 0xF00) << 8 | (x & 0xF00) << 12 |
-			(x & 0xF0) << 4 | (x & 0xF0) << 8 |
-			(x & 0xF) << 4 | (x & 0xF);
+		/**
+		 * Gets the gradient of a fill, looked up again only when the fill changes.
+		 */
+		private Shader getShader(String fillString) {
+			if (!fillString.equals(this.shaderUrl)) {
+                String id = fillString.substring("url(#".length(), fillString.length() - 1);
+                SVGElement root = getRoot();
+                this.shader = (root instanceof SVG) ? ((SVG)root).getGradientById(id) : null;
+                this.shaderUrl = fillString;
+			}
+			return this.shader;
 		}
 
-
 		protected Paint getStrokePaint() {
-			Paint paint = new Paint();
+			if (!isColorAnimated("stroke") && getStyleAttr("stroke") == null) {
+				return null;
+			}
+			Paint paint = this.stroke;
+			paint.reset();
 			paint.setAntiAlias(true);
-			paint.setAlpha(255);
-			String strokeString = getStyleAttr("stroke");
-    		Integer color = colors.get(strokeString);
-    		if(color == null && strokeString != null) {
-                try {
-                	color = Integer.parseInt(strokeString.substring(1), 16);
-                	color = (strokeString.length() == 4) ? hex3Tohex6(color) : color;
-                } catch (NumberFormatException nfe) {
-                	color = Color.TRANSPARENT;
-                }
-    		}
-            if (color != null) {
-                int c = (0xFFFFFF & color) | 0xFF000000;
-                paint.setColor(c);
-                String opacitystr = getStyleAttr("opacity");
-                Float opacity = strToColor(opacitystr);
-
-                if (opacity == null) {
-                    opacity = strToColor(getStyleAttr("stroke-opacity"));
-                }
-                if (opacity == null) {
-                	paint.setAlpha(255);
-                } else {
-                	paint.setAlpha((int) (255 * opacity));
-                }
-                // Check for other stroke attributes
-                Float width = strToFloat(getStyleAttr("stroke-width"));
-                // Set defaults
-
-                if (width != null) {
-                    paint.setStrokeWidth(width);
-                }
-                String linecap = getStyleAttr("stroke-linecap");
-                if ("round".equals(linecap)) {
-                    paint.setStrokeCap(Paint.Cap.ROUND);
-                } else if ("square".equals(linecap)) {
-                    paint.setStrokeCap(Paint.Cap.SQUARE);
-                } else if ("butt".equals(linecap)) {
-                    paint.setStrokeCap(Paint.Cap.BUTT);
-                }
-                String linejoin = getStyleAttr("stroke-linejoin");
-                if ("miter".equals(linejoin)) {
-                    paint.setStrokeJoin(Paint.Join.MITER);
-                } else if ("round".equals(linejoin)) {
-                    paint.setStrokeJoin(Paint.Join.ROUND);
-                } else if ("bevel".equals(linejoin)) {
-                    paint.setStrokeJoin(Paint.Join.BEVEL);
-                }
-                paint.setStyle(Paint.Style.STROKE);
-                return paint;
+            paint.setColor((0xFFFFFF & getColorStyle("stroke")) | 0xFF000000);
+            setOpacity(paint, "stroke-opacity");
+            // Check for other stroke attributes
+            float width = getNumberStyle("stroke-width");
+            if (!Float.isNaN(width)) {
+                paint.setStrokeWidth(width * getScale());
             }
-			return null;
+            String linecap = getStyleAttr("stroke-linecap");
+            if ("round".equals(linecap)) {
+                paint.setStrokeCap(Paint.Cap.ROUND);
+            } else if ("square".equals(linecap)) {
+                paint.setStrokeCap(Paint.Cap.SQUARE);
+            } else if ("butt".equals(linecap)) {
+                paint.setStrokeCap(Paint.Cap.BUTT);
+            }
+            String linejoin = getStyleAttr("stroke-linejoin");
+            if ("miter".equals(linejoin)) {
+                paint.setStrokeJoin(Paint.Join.MITER);
+            } else if ("round".equals(linejoin)) {
+                paint.setStrokeJoin(Paint.Join.ROUND);
+            } else if ("bevel".equals(linejoin)) {
+                paint.setStrokeJoin(Paint.Join.BEVEL);
+            }
+            paint.setStyle(Paint.Style.STROKE);
+            return paint;
 		}
 
+		/**
+		 * Reads the points of a polyline or polygon into a path, reusing the one it had.
+		 *
+		 * @return the path, null if there are not two numbers
+		 */
+		protected Path buildPoints(Path path, boolean close, RectF rect) {
+			float[] points;
+			int count;
+			AnimatedValue animated = getAnimatedValue("points");
+			if(animated != null && animated.kind == AnimatedValue.NUMBERS) {
+				points = animated.numbers;
+				count = animated.count;
+			} else {
+				String pointstr = getAttr("points");
+				count = (pointstr != null) ? readNumbers(pointstr, 0) : 0;
+				points = numberBuffer;
+			}
+			if (count < 2) {
+				return null;
+			}
+			float scale = getScale();
+			Path p = (path != null) ? path : new Path();
+			p.reset();
+			p.moveTo(points[0] * scale, points[1] * scale);
+			for (int i = 2; i + 1 < count; i += 2) {
+				p.lineTo(points[i] * scale, points[i + 1] * scale);
+			}
+			if (close) {
+				p.close();
+			}
+			p.computeBounds(rect, false);
+			setBounds(rect.left, rect.top, rect.right, rect.bottom);
+			return p;
+		}
 		
 		@Override
     	public void draw(Canvas c) {
@@ -1357,23 +1529,50 @@ public class SvgDecoder extends Decoder {
 				return;
 			}
 
-			if(this.matrix != null) {
+			Matrix m = getTransform();
+			if(m != null) {
                 c.save();
-                c.concat(this.matrix);
+                c.concat(m);
 			}
 			
 			drawData(c);
 			
-			if(this.matrix != null) {
+			if(m != null) {
                 c.restore();
 			}
 			super.draw(c);
 		}
 
     	public void drawData(Canvas c) {
+    	}
+    	
+		@Override
+    	protected Matrix getBaseTransform() {
+    		return this.matrix;
     	}
 
-		
+		@Override
+		protected void update(int changed) {
+			if((changed & INVALID_GEOMETRY) != 0) {
+				build();
+			}
+			if((changed & INVALID_STYLE) != 0) {
+				initParams();
+				return;
+			}
+			if((changed & INVALID_TRANSFORM) != 0) {
+				this.matrix = readTransform(false);
+			}
+			if((changed & INVALID_DISPLAY) != 0) {
+				this.display = !"none".equals(getAttr("display"));
+			}
+			if((changed & INVALID_FILL) != 0) {
+				this.paintFill = getFillPaint();
+			}
+			if((changed & INVALID_STROKE) != 0) {
+				this.paintStroke = getStrokePaint();
+			}
+		}
     }
 
     public class SVGTagLinearGradient extends SVGGradient{
@@ -1384,8 +1583,7 @@ public class SvgDecoder extends Decoder {
 		}
 
 		@Override
-    	public void init() {
-			super.init();
+    	protected void build() {
 			
     		Float widthcanvas = (float)getWidth();
     		Float heightcanvas = (float)getHeight();
@@ -1399,7 +1597,7 @@ public class SvgDecoder extends Decoder {
             gradient.y2 = getFloatAttr("y2", heightcanvas);
             String transform = getAttr("gradientTransform");
             if (transform != null) {
-                gradient.matrix = parseTransform(transform);
+                gradient.matrix = parseTransform(transform, new Matrix());
             }
             String xlink = getAttr("href");
             if(xlink == null) {
@@ -1476,8 +1674,7 @@ public class SvgDecoder extends Decoder {
 		}
 
 		@Override
-    	public void init() {
-			super.init();
+    	protected void build() {
 
 			Float widthcanvas = (float)getWidth();
     		Float heightcanvas = (float)getHeight();
@@ -1495,7 +1692,7 @@ public class SvgDecoder extends Decoder {
    			
             String transform = getAttr("gradientTransform");
             if (transform != null) {
-                gradient.matrix = parseTransform(transform);
+                gradient.matrix = parseTransform(transform, new Matrix());
             }
             String xlink = getAttr("href");
             if (xlink == null) {
@@ -1569,11 +1766,32 @@ public class SvgDecoder extends Decoder {
     public class SVGGradient extends SVGElement{
     	protected Gradient gradientRef = null;
     	protected Shader gradientAnd = null;
+    	private int pass = -1;
     	
 		public SVGGradient(String tag, SVGElement parent) {
 			super(tag, parent);
 		}
 		
+		/**
+		 * Builds the gradient once for each build of the document. A gradient used before
+		 * its place in the document is built at its first use.
+		 */
+		@Override
+    	public void init() {
+			if(this.pass == initPass) {
+				return;
+			}
+			this.pass = initPass;
+			super.init();
+			build();
+		}
+		
+		/**
+		 * Builds the shader from the attributes and the stops, which are ready.
+		 */
+		protected void build() {
+		}
+		
 		public Shader getGradient(String id) {
 			if(this.gradientRef != null && this.gradientRef.id != null && this.gradientRef.id.equals(id)) {
 				return this.gradientAnd;
@@ -1589,44 +1807,961 @@ public class SvgDecoder extends Decoder {
 		}
     }
 
-    public class SVGTagAnimate extends SVGElement{
-
-    	public SVGTagAnimate(String tag, SVGElement parent) {
-			// "animate"
-			super(SvgDecoder.TAG_SVG_ANIMATE, parent);
-		}
-
-		@Override
-    	public void init() {
-			String attributeName = getAttr("attributeName");
-			String from = getAttr("from");
-			String to = getAttr("to");
-			String dur = getAttr("dur");
-			String repeatCount = getAttr("repeatCount");
-			super.init();
-		}
-    }
-
-    public class SVGTagText extends SVGFigure{
-
-    	private Float x = 0f;
-    	private Float y = 0f;
+    /**
+     * A value an animation gives to an attribute, kept as the track works it out: a color,
+     * numbers with their unit, or the text of a value that is neither. The tracks and the
+     * elements each keep theirs and copy between them, so a step allocates nothing; the
+     * text of a color or numbers is only made for readers that ask for a string.
+     */
+    public static class AnimatedValue {
+    	public static final int NONE = 0;     // no value, the attribute shows through
+    	public static final int TEXT = 1;
+    	public static final int COLOR = 2;    // rgb without alpha
+    	public static final int NUMBERS = 3;  // count numbers, with the unit if there is one
     	
-    	public SVGTagText(String tag, SVGElement parent) {
-			// "text"
-			super(SvgDecoder.TAG_SVG_TEXT, parent);
-		}
-
-		@Override
-    	public void init() {
-			super.init();
-			Float widthcanvas = (float)getWidth();
-    		Float heightcanvas = (float)getHeight();
-    		this.x = getFloatAttr("x", widthcanvas);
-    		this.y = getFloatAttr("y", heightcanvas);
-    		String valign = getAttr("alignment-baseline");
+    	public int kind = NONE;
+    	public String text = null;
+    	public int color = 0;
+    	public float[] numbers = new float[1];
+    	public int count = 0;
+    	public String unit = "";
+    	
+    	public void clear() {
+    		this.kind = NONE;
+    		this.text = null;
+    	}
+    	
+    	public void setText(String text) {
+    		this.kind = TEXT;
+    		this.text = text;
+    	}
+    	
+    	public void setColor(int color) {
+    		this.kind = COLOR;
+    		this.color = color;
+    		this.text = null;
+    	}
+    	
+    	/**
+    	 * Makes the value count numbers, to be written into the returned array.
+    	 */
+    	public float[] setNumbers(int count, String unit) {
+    		if(this.numbers.length < count) {
+    			this.numbers = new float[count];
+    		}
+    		this.kind = NUMBERS;
+    		this.count = count;
+    		this.unit = unit;
+    		this.text = null;
+    		return this.numbers;
+    	}
+    	
+    	public void set(AnimatedValue v) {
+    		switch(v.kind) {
+    		case COLOR:
+    			setColor(v.color);
+    			break;
+    		case NUMBERS:
+    			System.arraycopy(v.numbers, 0, setNumbers(v.count, v.unit), 0, v.count);
+    			break;
+    		case TEXT:
+    			setText(v.text);
+    			break;
+    		default:
+    			clear();
+    		}
+    	}
+    	
+    	public boolean same(AnimatedValue v) {
+    		if(this.kind != v.kind) {
+    			return false;
+    		}
+    		switch(this.kind) {
+    		case COLOR:
+    			return this.color == v.color;
+    		case NUMBERS:
+    			if(this.count != v.count || !this.unit.equals(v.unit)) {
+    				return false;
+    			}
+    			for(int i = 0; i < this.count; i++) {
+    				if(this.numbers[i] != v.numbers[i]) {
+    					return false;
+    				}
+    			}
+    			return true;
+    		case TEXT:
+    			return this.text.equals(v.text);
+    		default:
+    			return true;
+    		}
+    	}
+    	
+    	/**
+    	 * Gets the value as an attribute string, made once for a color or numbers.
+    	 */
+    	@Override
+    	public String toString() {
+    		if(this.text == null && this.kind == COLOR) {
+    			this.text = "#" + Integer.toHexString(0x1000000 | this.color).substring(1);
+    		} else if(this.text == null && this.kind == NUMBERS) {
+    			StringBuilder sb = new StringBuilder();
+    			for(int i = 0; i < this.count; i++) {
+    				if(i > 0) {
+    					sb.append(' ');
+    				}
+    				sb.append(formatNumber(this.numbers[i]));
+    			}
+    			this.text = sb.append(this.unit).toString();
+    		}
+    		return this.text;
+    	}
+    }
+
+    /**
+     * An animate, animateColor or set element. Compiled once into a track of values over
+     * time for one attribute of its target, which is evaluated by {@link SVG#animate(long)}.
+     * <p>Numbers, lists of numbers and colors are interpolated, anything else changes in
+     * discrete steps. keySplines and calcMode="spline" or "paced" are run as linear,
+     * additive and accumulate are not supported.</p>
+     */
+    public class SVGTagAnimate extends SVGElement{
+    	private boolean compiled = false;
+    	protected SVGElement target = null;
+    	protected String attributeName = null;
+    	private SVGTagAnimate next = null; // next track on the same attribute, it takes precedence
+    	private boolean first = true;      // first track on its attribute
+    	
+    	private long begin = INDEFINITE;   // from the start of the document
+    	private long dur = INDEFINITE;     // simple duration
+    	private long end = INDEFINITE;     // end of the active duration, from the start of the document
+    	private boolean freeze = false;
+    	protected boolean discrete = false;
+    	
+    	protected String[] values = null;
+    	protected float[][] numbers = null; // values as numbers, null if they are not
+    	private int[] colors = null;        // values as colors, null if they are not
+    	protected float[] keyTimes = null;
+    	private String unit = "";
+    	
+    	private final AnimatedValue value = new AnimatedValue(); // value for the current time
+
+    	public SVGTagAnimate(String tag, SVGElement parent) {
+			// "animate", "animateColor" or "set"
+			super(tag, parent);
+		}
+    	
+    	public SVGElement getTarget() {
+    		return this.target;
+    	}
+
+		@Override
+    	public void init() {
+			if(!this.compiled) {
+				this.compiled = true;
+				compile();
+			}
+			super.init();
+		}
+		
+		private void compile() {
+			this.attributeName = getAttr("attributeName");
+			String href = getAttr("xlink:href");
+			if(href == null) {
+				href = getAttr("href");
+			}
+			if(href != null && href.startsWith("#")) {
+				SVGElement root = getRoot();
+				if(root instanceof SVG) {
+					this.target = ((SVG)root).getElementById(href.substring(1));
+				}
+			} else {
+				this.target = getParent();
+			}
+			if(this.target == null || !compileValues()) {
+				return;
+			}
+			
+			String keyTimesAttr = getAttr("keyTimes");
+			if(keyTimesAttr != null) {
+				String[] k = splitList(keyTimesAttr);
+				if(k.length == this.values.length) {
+					try {
+						this.keyTimes = new float[k.length];
+						for(int i = 0; i < k.length; i++) {
+							this.keyTimes[i] = Float.parseFloat(k[i]);
+						}
+					} catch (NumberFormatException e) {
+						this.keyTimes = null;
+					}
+				}
+			}
+			if(this.keyTimes == null) {
+				int n = this.values.length;
+				this.keyTimes = new float[n];
+				for(int i = 0; i < n; i++) {
+					this.keyTimes[i] = (this.discrete) ? (float)i / n : (n > 1) ? (float)i / (n - 1) : 0f;
+				}
+			}
+			
+			this.begin = 0;
+			String beginAttr = getAttr("begin");
+			if(beginAttr != null) {
+				// the first offset of the list, events and syncbases never happen here
+				this.begin = INDEFINITE;
+				String[] b = splitList(beginAttr);
+				for(int i = 0; i < b.length && this.begin == INDEFINITE; i++) {
+					this.begin = parseClock(b[i]);
+				}
+			}
+			this.dur = parseClock(getAttr("dur"));
+			if(this.dur <= 0) {
+				this.dur = INDEFINITE;
+			}
+			
+			long active = this.dur;
+			String repeatCount = getAttr("repeatCount");
+			long repeatDur = parseClock(getAttr("repeatDur"));
+			if(repeatCount != null || "indefinite".equals(getAttr("repeatDur"))) {
+				active = INDEFINITE;
+			}
+			if(repeatCount != null && this.dur != INDEFINITE && !"indefinite".equals(repeatCount)) {
+				try {
+					active = (long)(this.dur * Float.parseFloat(repeatCount));
+				} catch (NumberFormatException e) {
+					active = this.dur;
+				}
+			}
+			if(repeatDur != INDEFINITE) {
+				active = (repeatCount == null) ? repeatDur : Math.min(active, repeatDur);
+			}
+			if(this.begin != INDEFINITE && active != INDEFINITE) {
+				this.end = this.begin + active;
+			}
+			long endAttr = parseClock(getAttr("end"));
+			if(endAttr < this.end) {
+				this.end = endAttr;
+			}
+			this.freeze = "freeze".equals(getAttr("fill"));
+		}
+		
+		/**
+		 * Reads the values of the animation.
+		 *
+		 * @return false if there is nothing to animate
+		 */
+		protected boolean compileValues() {
+			if(this.attributeName == null) {
+				return false;
+			}
+			boolean set = SvgDecoder.TAG_SVG_SET.equals(getName());
+			String valuesAttr = getAttr("values");
+			if(valuesAttr != null && !set) {
+				this.values = splitList(valuesAttr);
+			} else {
+				String to = getAttr("to");
+				String from = set ? null : getAttr("from");
+				String by = getAttr("by");
+				if(from == null && !set) {
+					// to and by animations start from the value of the target
+					from = (this.target instanceof SVGFigure) 
+							? ((SVGFigure)this.target).getStyleAttr(this.attributeName) 
+							: this.target.getAttr(this.attributeName);
+				}
+				if(to == null && by != null && from != null) {
+					float[] f = parseNumbers(from, null);
+					float[] b = parseNumbers(by, null);
+					if(f != null && b != null && f.length == 1 && b.length == 1) {
+						to = formatNumber(f[0] + b[0]) + this.unit;
+					}
+				}
+				if(to == null) {
+					return false;
+				}
+				this.values = (from == null) ? new String[] { to } : new String[] { from, to };
+			}
+			if(this.values.length == 0) {
+				return false;
+			}
+			
+			this.discrete = set || "discrete".equals(getAttr("calcMode"));
+			if(colorAttrs.contains(this.attributeName)) {
+				this.colors = new int[this.values.length];
+				for(int i = 0; i < this.values.length && this.colors != null; i++) {
+					Integer color = parseColor(this.values[i]);
+					if(color == null) {
+						this.colors = null;
+					} else {
+						this.colors[i] = color;
+					}
+				}
+			} else {
+				this.numbers = new float[this.values.length][];
+				for(int i = 0; i < this.values.length && this.numbers != null; i++) {
+					float[] f = parseNumbers(this.values[i], this.numbers[0]);
+					if(f == null) {
+						this.numbers = null;
+					} else {
+						this.numbers[i] = f;
+					}
+				}
+			}
+			if(this.colors == null && this.numbers == null) {
+				this.discrete = true;
+			}
+			return true;
+		}
+		
+		/**
+		 * Links this track to a later one animating the same attribute of the same element.
+		 */
+		public boolean chain(SVGTagAnimate later) {
+			if(isTransform() || later.isTransform() 
+					|| later.target != this.target || !this.attributeName.equals(later.attributeName)) {
+				return false;
+			}
+			later.first = false;
+			if(this.next == null) {
+				this.next = later;
+			} else {
+				this.next.chain(later);
+			}
+			return true;
+		}
+		
+		/**
+		 * Tells if the animation gives a matrix rather than an attribute value.
+		 */
+		public boolean isTransform() {
+			return false;
+		}
+		
+		public boolean isValid() {
+			return this.target != null && this.keyTimes != null;
+		}
+		
+		/**
+		 * Works out the value of the attribute at a time.
+		 *
+		 * @param time from the start of the document
+		 * @return the next time the value changes, INDEFINITE if it doesn't any more
+		 */
+		public long animate(long time) {
+			if(time < this.begin) {
+				setProgress(-1f);
+				return this.begin;
+			}
+			if(time >= this.end) {
+				if(!this.freeze) {
+					setProgress(-1f);
+				} else if(this.dur == INDEFINITE) {
+					setProgress(0f);
+				} else {
+					long active = this.end - this.begin;
+					long local = active % this.dur;
+					setProgress((local == 0 && active > 0) ? 1f : (float)local / this.dur);
+				}
+				return INDEFINITE;
+			}
+			if(this.dur == INDEFINITE) {
+				setProgress(0f);
+				return this.end;
+			}
+			long local = (time - this.begin) % this.dur;
+			float progress = (float)local / this.dur;
+			setProgress(progress);
+			
+			int i = keyIndex(progress);
+			long next;
+			if(!this.discrete && i + 1 < this.values.length && !sameValues(i, i + 1)) {
+				next = time + FRAME_DELAY;
+			} else {
+				// the value holds until the next key time or the next iteration
+				float key = (i + 1 < this.keyTimes.length) ? this.keyTimes[i + 1] : 1f;
+				next = time - local + (long)Math.ceil(key * this.dur);
+				if(next <= time) {
+					next = time + 1;
+				}
+			}
+			return Math.min(next, this.end);
+		}
+		
+		/**
+		 * Takes the value at a point of the simple duration.
+		 *
+		 * @param progress from 0 to 1, negative when the animation has no effect
+		 */
+		protected void setProgress(float progress) {
+			if(progress < 0f) {
+				this.value.clear();
+			} else {
+				valueAt(progress);
+			}
+		}
+		
+		/**
+		 * Sets the value for the current time on the target, the last track with a value
+		 * winning. Called on the first track of every attribute.
+		 */
+		public void apply() {
+			if(!this.first) {
+				return;
+			}
+			AnimatedValue v = null;
+			for(SVGTagAnimate a = this; a != null; a = a.next) {
+				if(a.value.kind != AnimatedValue.NONE) {
+					v = a.value;
+				}
+			}
+			this.target.setAnimatedValue(this.attributeName, v);
+		}
+		
+		protected int keyIndex(float progress) {
+			int i = 0;
+			while(i + 1 < this.keyTimes.length && this.keyTimes[i + 1] <= progress) {
+				i++;
+			}
+			return i;
+		}
+		
+		private boolean sameValues(int i, int j) {
+			if(this.colors != null) {
+				return this.colors[i] == this.colors[j];
+			}
+			if(this.numbers != null) {
+				return Arrays.equals(this.numbers[i], this.numbers[j]);
+			}
+			return this.values[i].equals(this.values[j]);
+		}
+		
+		/**
+		 * Sets {@link #value} to the value at a point of the simple duration.
+		 */
+		private void valueAt(float progress) {
+			int n = this.values.length;
+			if(progress >= 1f && !this.discrete) {
+				setValue(n - 1);
+				return;
+			}
+			int i = keyIndex(progress);
+			if(this.discrete || i + 1 >= n || sameValues(i, i + 1)) {
+				setValue(i);
+				return;
+			}
+			float span = this.keyTimes[i + 1] - this.keyTimes[i];
+			float t = (span > 0f) ? (progress - this.keyTimes[i]) / span : 0f;
+			if(this.colors != null) {
+				int a = this.colors[i];
+				int b = this.colors[i + 1];
+				int r = mix((a >> 16) & 0xFF, (b >> 16) & 0xFF, t);
+				int g = mix((a >> 8) & 0xFF, (b >> 8) & 0xFF, t);
+				int bl = mix(a & 0xFF, b & 0xFF, t);
+				this.value.setColor((r << 16) | (g << 8) | bl);
+				return;
+			}
+			float[] a = this.numbers[i];
+			float[] b = this.numbers[i + 1];
+			float[] out = this.value.setNumbers(a.length, this.unit);
+			for(int k = 0; k < a.length; k++) {
+				out[k] = a[k] + (b[k] - a[k]) * t;
+			}
+		}
+		
+		/**
+		 * Sets {@link #value} to one of the values, as a color or numbers when it is one.
+		 */
+		private void setValue(int i) {
+			if(this.colors != null) {
+				this.value.setColor(this.colors[i]);
+			} else if(this.numbers != null) {
+				float[] a = this.numbers[i];
+				System.arraycopy(a, 0, this.value.setNumbers(a.length, this.unit), 0, a.length);
+			} else {
+				this.value.setText(this.values[i]);
+			}
+		}
+		
+		/**
+		 * Interpolates the numbers of the values at a point of the simple duration.
+		 */
+		protected void interpolate(float progress, float[] out) {
+			int n = this.numbers.length;
+			int i = keyIndex(progress);
+			float[] a = this.numbers[i];
+			if(this.discrete || i + 1 >= n) {
+				System.arraycopy(a, 0, out, 0, a.length);
+				return;
+			}
+			float[] b = this.numbers[i + 1];
+			float span = this.keyTimes[i + 1] - this.keyTimes[i];
+			float t = (span > 0f) ? (progress - this.keyTimes[i]) / span : 0f;
+			for(int k = 0; k < a.length; k++) {
+				out[k] = a[k] + (b[k] - a[k]) * t;
+			}
+		}
+		
+		private int mix(int a, int b, float t) {
+			return Math.round(a + (b - a) * t);
+		}
+		
+		/**
+		 * Parses a number or a list of numbers, with the same unit and length as the first
+		 * value if there is one.
+		 *
+		 * @return the numbers, null if the value is something else
+		 */
+		protected float[] parseNumbers(String v, float[] first) {
+			v = v.trim();
+			String u = "";
+			if(v.endsWith("px")) {
+				u = "px";
+			} else if(v.endsWith("%")) {
+				u = "%";
+			}
+			v = v.substring(0, v.length() - u.length());
+			if(v.length() == 0 || (first != null && !this.unit.equals(u))) {
+				return null;
+			}
+			int count;
+			try {
+				count = readNumbers(v, 0);
+			} catch (RuntimeException e) {
+				return null;
+			}
+			if(parser.pos < v.length() || count == 0 || (first != null && first.length != count) || (count > 1 && u.length() > 0)) {
+				return null;
+			}
+			this.unit = u;
+			float[] f = new float[count];
+			System.arraycopy(numberBuffer, 0, f, 0, count);
+			return f;
+		}
+    }
+
+    /**
+     * An animateTransform element. The values are kept as translate, scale, rotate or skew
+     * parameters, so a step interpolates at most three numbers and sets a Matrix.
+     */
+    public class SVGTagAnimateTransform extends SVGTagAnimate{
+    	private static final int TRANSLATE = 0;
+    	private static final int SCALE = 1;
+    	private static final int ROTATE = 2;
+    	private static final int SKEW_X = 3;
+    	private static final int SKEW_Y = 4;
+    	
+    	protected final Matrix matrix = new Matrix();
+    	protected float progress = -1f;
+    	protected boolean active = false;
+    	private boolean additive = false;
+    	private int type = TRANSLATE;
+    	private final float[] params = new float[3];
+
+    	public SVGTagAnimateTransform(String tag, SVGElement parent) {
+			// "animateTransform" or "animateMotion"
+			super(tag, parent);
+		}
+    	
+    	public boolean isActive() {
+    		return this.active;
+    	}
+    	
+    	public boolean isAdditive() {
+    		return this.additive;
+    	}
+    	
+    	public Matrix getMatrix() {
+    		return this.matrix;
+    	}
+    	
+    	@Override
+    	public boolean isTransform() {
+    		return true;
+    	}
+    	
+    	@Override
+    	public void init() {
+    		super.init();
+    		prepare();
+    		if(this.active) {
+    			// the scale may have changed
+    			updateMatrix();
+    			this.target.invalidateTransform();
+    		}
+    	}
+    	
+    	/**
+    	 * Builds what depends on the scale of the document.
+    	 */
+    	protected void prepare() {
+    	}
+    	
+    	@Override
+		protected boolean compileValues() {
+			String t = getAttr("type");
+			if(t == null || "translate".equals(t)) {
+				this.type = TRANSLATE;
+			} else if("scale".equals(t)) {
+				this.type = SCALE;
+			} else if("rotate".equals(t)) {
+				this.type = ROTATE;
+			} else if("skewX".equals(t)) {
+				this.type = SKEW_X;
+			} else if("skewY".equals(t)) {
+				this.type = SKEW_Y;
+			} else {
+				return false;
+			}
+			this.additive = "sum".equals(getAttr("additive"));
+			this.discrete = "discrete".equals(getAttr("calcMode"));
+			
+			String valuesAttr = getAttr("values");
+			if(valuesAttr != null) {
+				this.values = splitList(valuesAttr);
+				this.numbers = new float[this.values.length][];
+				for(int i = 0; i < this.values.length; i++) {
+					this.numbers[i] = toParams(this.values[i]);
+					if(this.numbers[i] == null) {
+						return false;
+					}
+				}
+				return this.values.length > 0;
+			}
+			String to = getAttr("to");
+			String by = getAttr("by");
+			float[] last = toParams((to != null) ? to : by);
+			if(last == null) {
+				return false;
+			}
+			String fromAttr = getAttr("from");
+			float[] from = (fromAttr != null) ? toParams(fromAttr) : null;
+			if(from == null) {
+				// from the identity, turning around the same center
+				from = new float[] { (this.type == SCALE) ? 1f : 0f, (this.type == SCALE) ? 1f : 0f, 0f };
+				if(this.type == ROTATE) {
+					from[1] = last[1];
+					from[2] = last[2];
+				}
+			}
+			if(to == null) {
+				// by turns further around its own center, only the angle adds up
+				int n = (this.type == ROTATE) ? 1 : 3;
+				for(int i = 0; i < n; i++) {
+					last[i] += from[i];
+				}
+			}
+			this.numbers = new float[][] { from, last };
+			this.values = new String[] { fromAttr, (to != null) ? to : by };
+			return true;
+		}
+    	
+    	/**
+    	 * Parses the parameters of one value: tx ty, sx sy, angle cx cy or angle.
+    	 */
+    	private float[] toParams(String value) {
+    		float[] v = parseNumbers(value, null);
+    		if(v == null) {
+    			return null;
+    		}
+    		float[] p = new float[3];
+    		p[0] = v[0];
+    		switch(this.type) {
+    		case TRANSLATE:
+    			p[1] = (v.length > 1) ? v[1] : 0f;
+    			break;
+    		case SCALE:
+    			p[1] = (v.length > 1) ? v[1] : v[0];
+    			break;
+    		case ROTATE:
+    			if(v.length > 2) {
+    				p[1] = v[1];
+    				p[2] = v[2];
+    			}
+    			break;
+    		}
+    		return p;
+    	}
+    	
+    	@Override
+		protected void setProgress(float progress) {
+    		if(progress == this.progress) {
+    			return;
+    		}
+    		this.progress = progress;
+    		this.active = progress >= 0f;
+    		if(this.active) {
+    			updateMatrix();
+    		}
+    		this.target.invalidateTransform();
+    	}
+    	
+    	/**
+    	 * Sets the matrix for the current progress.
+    	 */
+    	protected void updateMatrix() {
+    		interpolate(this.progress, this.params);
+    		float[] p = this.params;
+    		// the document is drawn scaled, lengths are too
+    		float scale = getScale();
+    		switch(this.type) {
+    		case TRANSLATE:
+    			this.matrix.setTranslate(p[0] * scale, p[1] * scale);
+    			break;
+    		case SCALE:
+    			this.matrix.setScale(p[0], p[1]);
+    			break;
+    		case ROTATE:
+    			this.matrix.setRotate(p[0], p[1] * scale, p[2] * scale);
+    			break;
+    		case SKEW_X:
+    			this.matrix.setSkew((float)Math.tan(Math.toRadians(p[0])), 0f);
+    			break;
+    		case SKEW_Y:
+    			this.matrix.setSkew(0f, (float)Math.tan(Math.toRadians(p[0])));
+    			break;
+    		}
+    	}
+    	
+    	@Override
+    	public void apply() {
+    		// the matrix goes to the target in setProgress
+    	}
+    }
+    
+    /**
+     * An animateMotion element. The motion path is sampled once at equal distances into a
+     * table of positions and tangent angles, so a step is a table lookup and a Matrix set,
+     * without measuring the path again.
+     */
+    public class SVGTagAnimateMotion extends SVGTagAnimateTransform{
+    	private static final int MIN_SAMPLES = 16;
+    	private static final int MAX_SAMPLES = 1024;
+    	
+    	private String pathData = null;
+    	private float[] points = null;  // x, y of the values, when there is no path
+    	private float[] table = null;   // x, y and angle of every sample
+    	private int samples = 0;
+    	private float tableScale = 0f;
+    	private boolean autoRotate = false;
+    	private float rotate = 0f;      // fixed angle, or added to the tangent angle
+    	private final float[] distance = new float[1];
+
+    	public SVGTagAnimateMotion(String tag, SVGElement parent) {
+			// "animateMotion"
+			super(SvgDecoder.TAG_SVG_ANIMATE_MONITOR, parent);
+		}
+    	
+    	@Override
+		protected boolean compileValues() {
+    		String r = getAttr("rotate");
+    		if("auto".equals(r)) {
+    			this.autoRotate = true;
+    		} else if("auto-reverse".equals(r)) {
+    			this.autoRotate = true;
+    			this.rotate = 180f;
+    		} else if(r != null) {
+    			try {
+    				this.rotate = Float.parseFloat(r);
+    			} catch (NumberFormatException e) {}
+    		}
     		
-    		Float fontSize = getFloatAttr("font-size", heightcanvas);
+    		this.pathData = getAttr("path");
+    		int size = getElementsSize();
+    		for(int i = 0; i < size && this.pathData == null; i++) {
+    			SVGElement e = getElement(i);
+    			String href = e.getAttr("xlink:href");
+    			if(href == null) {
+    				href = e.getAttr("href");
+    			}
+    			if(SvgDecoder.TAG_SVG_MPATH.equals(e.getName()) && href != null && href.startsWith("#")) {
+    				SVGElement p = ((SVG)getRoot()).getElementById(href.substring(1));
+    				if(p != null) {
+    					this.pathData = p.getAttr("d");
+    				}
+    			}
+    		}
+    		String calcMode = getAttr("calcMode");
+    		this.discrete = "discrete".equals(calcMode);
+    		boolean paced = calcMode == null || "paced".equals(calcMode);
+    		if(this.pathData == null && !readPoints()) {
+    			return false;
+    		}
+    		
+    		String keyPoints = getAttr("keyPoints");
+    		if(keyPoints != null) {
+    			this.values = splitList(keyPoints);
+    			this.numbers = new float[this.values.length][];
+    			try {
+    				for(int i = 0; i < this.values.length; i++) {
+    					this.numbers[i] = new float[] { Float.parseFloat(this.values[i]) };
+    				}
+    			} catch (NumberFormatException e) {
+    				return false;
+    			}
+    			return this.values.length > 0;
+    		}
+    		if(this.points != null && !paced) {
+    			// every value takes the same time, whatever its distance
+    			int n = this.points.length / 2;
+    			float[] length = new float[n];
+    			for(int i = 1; i < n; i++) {
+    				float dx = this.points[2 * i] - this.points[2 * i - 2];
+    				float dy = this.points[2 * i + 1] - this.points[2 * i - 1];
+    				length[i] = length[i - 1] + (float)Math.sqrt(dx * dx + dy * dy);
+    			}
+    			this.numbers = new float[n][];
+    			for(int i = 0; i < n; i++) {
+    				this.numbers[i] = new float[] { (length[n - 1] > 0f) ? length[i] / length[n - 1] : 0f };
+    			}
+    			return true;
+    		}
+    		// paced, at the same speed all along the path
+    		this.values = new String[] { "0", "1" };
+    		this.numbers = new float[][] { { 0f }, { 1f } };
+    		return true;
+    	}
+    	
+    	/**
+    	 * Reads the points of values, or from, to and by.
+    	 */
+    	private boolean readPoints() {
+    		String valuesAttr = getAttr("values");
+    		if(valuesAttr != null) {
+    			this.values = splitList(valuesAttr);
+    		} else {
+    			String from = getAttr("from");
+    			String to = getAttr("to");
+    			String by = getAttr("by");
+    			if(to == null && by == null) {
+    				return false;
+    			}
+    			this.values = new String[] { (from != null) ? from : "0,0", (to != null) ? to : by };
+    		}
+    		int n = this.values.length;
+    		if(n == 0) {
+    			return false;
+    		}
+    		this.points = new float[2 * n];
+    		for(int i = 0; i < n; i++) {
+    			float[] v = parseNumbers(this.values[i], null);
+    			if(v == null || v.length != 2) {
+    				return false;
+    			}
+    			this.points[2 * i] = v[0];
+    			this.points[2 * i + 1] = v[1];
+    		}
+    		if(valuesAttr == null && getAttr("to") == null) {
+    			this.points[2] += this.points[0];
+    			this.points[3] += this.points[1];
+    		}
+    		return true;
+    	}
+    	
+    	/**
+    	 * Samples the motion path at the current scale.
+    	 */
+    	@Override
+    	protected void prepare() {
+    		float scale = getScale();
+    		if(!isValid() || scale == this.tableScale) {
+    			return;
+    		}
+    		this.tableScale = scale;
+    		Path path;
+    		if(this.pathData != null) {
+    			path = parsePath(this.pathData);
+    		} else {
+    			path = new Path();
+    			path.moveTo(this.points[0] * scale, this.points[1] * scale);
+    			for(int i = 2; i < this.points.length; i += 2) {
+    				path.lineTo(this.points[i] * scale, this.points[i + 1] * scale);
+    			}
+    		}
+    		
+    		PathMeasure measure = new PathMeasure(path, false);
+    		float total = 0f;
+    		do {
+    			total += measure.getLength();
+    		} while(measure.nextContour());
+    		
+    		int n = (int)Math.max(MIN_SAMPLES, Math.min(MAX_SAMPLES, total));
+    		float[] table = new float[3 * (n + 1)];
+    		float[] pos = new float[2];
+    		float[] tan = new float[2];
+    		measure.setPath(path, false);
+    		float start = 0f;
+    		float length = measure.getLength();
+    		for(int i = 0; i <= n; i++) {
+    			float d = total * i / n;
+    			while(d > start + length && measure.nextContour()) {
+    				start += length;
+    				length = measure.getLength();
+    			}
+    			measure.getPosTan(Math.min(d - start, length), pos, tan);
+    			table[3 * i] = pos[0];
+    			table[3 * i + 1] = pos[1];
+    			table[3 * i + 2] = (float)Math.toDegrees(Math.atan2(tan[1], tan[0]));
+    		}
+    		this.table = table;
+    		this.samples = n;
+    	}
+    	
+    	@Override
+    	protected void updateMatrix() {
+    		if(this.table == null) {
+    			return;
+    		}
+    		interpolate(this.progress, this.distance);
+    		float at = Math.max(0f, Math.min(1f, this.distance[0])) * this.samples;
+    		int i = Math.min((int)at, this.samples - 1);
+    		float t = at - i;
+    		float[] s = this.table;
+    		int k = 3 * i;
+    		float x = s[k] + (s[k + 3] - s[k]) * t;
+    		float y = s[k + 1] + (s[k + 4] - s[k + 1]) * t;
+    		float angle = this.rotate;
+    		if(this.autoRotate) {
+    			float a = s[k + 2];
+    			float b = s[k + 5];
+    			if(b - a > 180f) {
+    				b -= 360f;
+    			} else if(a - b > 180f) {
+    				b += 360f;
+    			}
+    			angle += a + (b - a) * t;
+    		}
+    		this.matrix.setRotate(angle);
+    		this.matrix.postTranslate(x, y);
+    	}
+    }
+
+    public class SVGTagText extends SVGFigure{
+
+    	private float x = 0f;
+    	private float y = 0f;
+    	
+    	public SVGTagText(String tag, SVGElement parent) {
+			// "text"
+			super(SvgDecoder.TAG_SVG_TEXT, parent);
+		}
+
+		@Override
+    	public void init() {
+			super.init();
+			applyFont();
+		}
+		
+		@Override
+		protected void build() {
+			float widthcanvas = getWidth();
+    		float heightcanvas = getHeight();
+    		this.x = getLength("x", widthcanvas);
+    		this.y = getLength("y", heightcanvas);
+		}
+		
+		/**
+		 * Sets the text size, face and alignment on the paints, after they are set up.
+		 */
+		private void applyFont() {
+    		float fontSize = getLength("font-size", getHeight());
     		if(fontSize != 0f) { //10f
 				if(this.paintFill != null) {
 					this.paintFill.setTextSize(fontSize);
@@ -1676,7 +2811,15 @@ public class SvgDecoder extends Decoder {
 					this.paintStroke.setTextAlign(align);
 				}
 			}
-
+		}
+		
+		@Override
+		protected void update(int changed) {
+			super.update(changed);
+			// the paints were set up again, or a font attribute changed with the geometry
+			if((changed & (INVALID_FILL | INVALID_STROKE | INVALID_STYLE | INVALID_GEOMETRY)) != 0) {
+				applyFont();
+			}
 		}
 		
 		@Override
@@ -1694,7 +2837,15 @@ public class SvgDecoder extends Decoder {
     }
 
     
+    /**
+     * A use element. The referenced element is not copied, it is drawn again through the
+     * matrix of the use, so all the instances share its paths and recorded pictures.
+     */
     public class SVGTagUse extends SVGElement{
+    	private SVGElement ref = null;
+    	private Matrix matrix = null;
+    	private boolean display = true;
+    	private boolean busy = false; // set while drawing the reference, in case it leads back here
 
     	public SVGTagUse(String tag, SVGElement parent) {
 			// "use"
@@ -1704,37 +2855,103 @@ public class SvgDecoder extends Decoder {
 		@Override
     	public void init() {
 			String href = getAttr("xlink:href");
-			String attTransform = getAttr("transform");
-			String attX = getAttr("x");
-			String attY = getAttr("y");
-			String attWidth = getAttr("width");
-			String attHeight = getAttr("height");
-			String transform = null;
-			if (attTransform != null || attX != null || attY != null) {
-				transform = "";
-				if (attTransform != null) {
-					transform = transform + escape(attTransform);
-				}
-				if (attX != null || attY != null) {
-					transform = transform + "translate("+ (attX != null ? escape(attX) : "0") + ","+ (attY != null ? escape(attY) : "0")+")";
+			SVGElement root = getRoot();
+			this.ref = null;
+			if(href != null && href.startsWith("#") && root instanceof SVG) {
+				this.ref = ((SVG)root).getElementById(href.substring(1));
+			}
+			for(SVGElement p = this; p != null && this.ref != null; p = p.getParent()) {
+				if(p == this.ref) {
+					// a use inside what it references
+					this.ref = null;
 				}
 			}
-			HashMap<String,String> a = (HashMap<String, String>) this.attrs.clone();
-			a.remove("x");
-			a.remove("y");
-			a.remove("width");
-			a.remove("height");
-			a.remove("xlink:href");
-			a.remove("transform");
-			SVGElement e = new SVGTagG("g", this);
-			e.setAttrs(a);
-			if(transform != null) {
-				e.setAttr("transform", transform);
-			}
-			SVGElement t = ((SVG)getRoot()).getElementById(href.substring(1));
-			e.addElement(t);
+			update(INVALID_DISPLAY | INVALID_TRANSFORM);
 			super.init();
 		}
+
+		@Override
+		protected void update(int changed) {
+			if((changed & INVALID_DISPLAY) != 0) {
+				this.display = !"none".equals(getAttr("display"));
+			}
+			// x and y are a translation after the transform
+			float x = getLength("x", getWidth());
+			float y = getLength("y", getHeight());
+			boolean offset = x != 0f || y != 0f;
+			this.matrix = readTransform(offset);
+			if(offset) {
+				this.matrix.preTranslate(x, y);
+			}
+		}
+
+		@Override
+    	protected Matrix getBaseTransform() {
+    		return this.matrix;
+    	}
+
+		@Override
+		public boolean isAnimated() {
+			if(super.isAnimated()) {
+				return true;
+			}
+			if(this.ref == null || this.busy) {
+				return false;
+			}
+			this.busy = true;
+			try {
+				return this.ref.isAnimated();
+			} finally {
+				this.busy = false;
+			}
+		}
+
+		@Override
+    	public void draw(Canvas c) {
+			if(!this.display || this.ref == null || this.busy) {
+				return;
+			}
+			Matrix m = getTransform();
+			if(m != null) {
+                c.save();
+                c.concat(m);
+			}
+			this.busy = true;
+			try {
+				if(this.ref instanceof SVGTagDefs) {
+					((SVGTagDefs)this.ref).drawContent(c);
+				} else {
+					this.ref.draw(c);
+				}
+			} finally {
+				this.busy = false;
+			}
+			if(m != null) {
+                c.restore();
+			}
+		}
+    }
+
+    /**
+     * A defs or symbol element. Its content is only drawn through use elements.
+     */
+    public class SVGTagDefs extends SVGElement{
+
+    	public SVGTagDefs(String tag, SVGElement parent) {
+			// "defs" or "symbol"
+			super(tag, parent);
+		}
+
+		@Override
+    	public void draw(Canvas c) {
+		}
+
+		/**
+		 * Draws the content of a symbol for a use element.
+		 */
+		public void drawContent(Canvas c) {
+			super.draw(c);
+		}
     }
     
     public class SVGTagStop extends SVGElement{
@@ -1779,6 +2996,7 @@ public class SvgDecoder extends Decoder {
     public class SVGTagG extends SVGElement{
     	private boolean display = true;
     	private boolean boundsMode = true;
+    	private Matrix matrix = null;
     	
 		public SVGTagG(String tag, SVGElement parent) {
 			// "g"
@@ -1791,9 +3009,8 @@ public class SvgDecoder extends Decoder {
 
 		@Override
     	public void init() {
-            if ("none".equals(getAttr("display"))) {
-            	this.display = false;
-            }
+            this.display = !"none".equals(getAttr("display"));
+            this.matrix = readTransform(false);
             
             if ("bounds".equalsIgnoreCase(getAttr("id"))) {
                 boundsMode = true;
@@ -1801,14 +3018,37 @@ public class SvgDecoder extends Decoder {
 			
 			super.init();
 		}
+		
+		@Override
+		protected void update(int changed) {
+			if((changed & INVALID_DISPLAY) != 0) {
+				this.display = !"none".equals(getAttr("display"));
+			}
+			if((changed & INVALID_TRANSFORM) != 0) {
+				this.matrix = readTransform(false);
+			}
+		}
+		
+		@Override
+    	protected Matrix getBaseTransform() {
+    		return this.matrix;
+    	}
 
 		@Override
     	public void draw(Canvas c) {
 			if(!this.display) {
 				return;
 			}
-
+			
+			Matrix m = getTransform();
+			if(m != null) {
+                c.save();
+                c.concat(m);
+			}
 			super.draw(c);
+			if(m != null) {
+                c.restore();
+			}
 		}
     }
     
@@ -1822,68 +3062,45 @@ public class SvgDecoder extends Decoder {
     	private float x2 = Float.NEGATIVE_INFINITY;
     	private float y2 = Float.NEGATIVE_INFINITY;
     	
-    	private Vector<SVGElement> animation = null;
+    	private Vector<SVGTagAnimate> animation = null;
+    	private long start = -1;          // uptime of the start of the document
+    	private long next = INDEFINITE;   // uptime of the next change
+    	private HashMap<String, SVGElement> ids = new HashMap<String, SVGElement>();
     	
 		public SVG(String tag, SVGElement parent) {
 			super(SvgDecoder.TAG_SVG, parent);
 		}
 		
 		public Shader getGradientById(String id) {
-			SVGElement ret = searchGradientById(id, this);
-			if(ret != null) {
-    			if(ret instanceof SVGGradient) {
-    				return ((SVGGradient)ret).getGradient(id);
-    			}
+			SVGElement ret = this.ids.get(id);
+			if(ret instanceof SVGGradient) {
+				ret.init();
+				return ((SVGGradient)ret).getGradient(id);
 			}
 			return null;
 		}
 		
 		public Gradient getGradientRefById(String id) {
-			SVGElement ret = searchGradientById(id, this);
-			if(ret != null) {
-    			if(ret instanceof SVGGradient) {
-    				return ((SVGGradient)ret).getGradientRef(id);
-    			}
+			SVGElement ret = this.ids.get(id);
+			if(ret instanceof SVGGradient) {
+				ret.init();
+				return ((SVGGradient)ret).getGradientRef(id);
 			}
 			return null;
 		}
 		
 		public SVGElement getElementById(String id) {
-			return searchElementById(id, this);
-		}
-		
-		private SVGElement searchElementById(String id, SVGElement element) {
-			int size = element.getElementsSize();
-    		for(int i = 0; i < size; i++) {
-    			SVGElement e = element.getElement(i);
-    			String attr = e.getAttr("id");
-    			if(attr != null && attr.equals(id)) {
-    				return e;
-    			}
-    			SVGElement ret = searchElementById(id, e);
-    			if(ret != null) {
-    				return ret;
-    			}
-    		}
-    		return null;
+			return this.ids.get(id);
 		}
-
 		
-		private SVGElement searchGradientById(String id, SVGElement element) {
-			int size = element.getElementsSize();
-    		for(int i = 0; i < size; i++) {
-    			SVGElement e = element.getElement(i);
-    			if(e instanceof SVGGradient) {
-    				if(((SVGGradient)e).getGradientRef(id) != null) {
-    					return e;
-    				}
-    			}
-    			SVGElement ret = searchGradientById(id, e);
-    			if(ret != null) {
-    				return ret;
-    			}
-    		}
-    		return null;
+		/**
+		 * Indexes an element by its id, as it is parsed. The first element with an id keeps it.
+		 */
+		public void addId(SVGElement e) {
+			String id = e.getAttr("id");
+			if(id != null && !this.ids.containsKey(id)) {
+				this.ids.put(id, e);
+			}
 		}
 		
 		public int getWidth() {
@@ -1896,27 +3113,76 @@ public class SvgDecoder extends Decoder {
 		
 		public void clean() {
 			super.clean();
-			this.animation.clear();
-			this.animation = null;
+			this.ids.clear();
+			if(this.animation != null) {
+				this.animation.clear();
+				this.animation = null;
+			}
 		}
 		
+		/**
+		 * Gets the time until the next animated value changes.
+		 *
+		 * @return Integer.MAX_VALUE if nothing is animated any more
+		 */
 		public int getDelay() {
+			if(this.next == INDEFINITE) {
+				return Integer.MAX_VALUE;
+			}
+			long delay = this.next - SystemClock.uptimeMillis();
+			return (int)Math.max(0, Math.min(delay, Integer.MAX_VALUE));
+		}
+		
+		/**
+		 * Sets the animated attributes to their values at a time and rebuilds the figures
+		 * they belong to. The document starts at the first call.
+		 *
+		 * @param now uptime in ms
+		 */
+		public void animate(long now) {
 			if(this.animation == null) {
-				this.animation = new Vector<SVGElement>();
-				searchAnimation(this, animation);
+				this.animation = new Vector<SVGTagAnimate>();
+				searchAnimation(this, this.animation);
+				// what no animation changes can be recorded from now on
+				cacheStatic = true;
+			}
+			int size = this.animation.size();
+			if(size == 0) {
+				return;
 			}
-			if(animation.size() > 0) {
-				return 300;
+			if(this.start < 0) {
+				this.start = now;
 			}
-			return Integer.MAX_VALUE;
+			long time = now - this.start;
+			long next = INDEFINITE;
+			for(int i = 0; i < size; i++) {
+				next = Math.min(next, this.animation.get(i).animate(time));
+			}
+			for(int i = 0; i < size; i++) {
+				this.animation.get(i).apply();
+			}
+			for(int i = 0; i < size; i++) {
+				this.animation.get(i).getTarget().refresh();
+			}
+			this.next = (next == INDEFINITE) ? INDEFINITE : this.start + next;
 		}
 		
-		private void searchAnimation(SVGElement element, Vector<SVGElement> anim) {
+		private void searchAnimation(SVGElement element, Vector<SVGTagAnimate> anim) {
 			int size = element.getElementsSize();
     		for(int i = 0; i < size; i++) {
     			SVGElement e = element.getElement(i);
-    			if(e instanceof SVGTagAnimate) {
-    				anim.add(e);
+    			if(e instanceof SVGTagAnimate && ((SVGTagAnimate)e).isValid() && !anim.contains(e)) {
+    				SVGTagAnimate a = (SVGTagAnimate)e;
+    				a.getTarget().markAnimated();
+    				if(a.isTransform()) {
+    					a.getTarget().addTransformAnimation((SVGTagAnimateTransform)a);
+    				}
+    				for(int k = 0; k < anim.size(); k++) {
+    					if(anim.get(k).chain(a)) {
+    						break;
+    					}
+    				}
+    				anim.add(a);
     			}
     			searchAnimation(e, anim);
     		}
@@ -1951,6 +3217,7 @@ public class SvgDecoder extends Decoder {
             	this.height = (int) Math.ceil((double)heightf);
 			}
 			
+			initPass++;
 			super.init();
 		}
 		
@@ -1966,6 +3233,15 @@ public class SvgDecoder extends Decoder {
     	private SVGElement parent = null;
     	protected String data = null;
     	private String name = null;
+    	private HashMap<String,AnimatedValue> animated = null; // values set by animations, over attrs
+    	private int invalid = 0; // what animations changed, INVALID_ bits
+    	private Matrix baseMatrix = null; // the transform attribute, kept to parse it again into
+    	private Vector<SVGTagAnimateTransform> transforms = null; // animateTransform and animateMotion on this element
+    	private Matrix animatedMatrix = null; // the transform with its animations, if one is active
+    	private boolean transformed = false;
+    	private boolean animationTarget = false;
+    	private Vector<Object> runs = null; // the children: Picture of static ones in a row, or SVGElement drawn live
+    	private int runsMargin = 0;
     	
 		public SVGElement(String tag, SVGElement parent) {
 			this.name = tag;
@@ -1988,9 +3264,187 @@ public class SvgDecoder extends Decoder {
 		}
     	
     	public String getAttr(String attr) {
+    		AnimatedValue value = getAnimatedValue(attr);
+    		if(value != null) {
+    			return value.toString();
+    		}
     		return this.attrs.get(attr);
     	}
     	
+    	/**
+    	 * Gets the value an animation gave to the attribute, null if it has none.
+    	 */
+    	public AnimatedValue getAnimatedValue(String attr) {
+    		AnimatedValue value = (this.animated != null) ? this.animated.get(attr) : null;
+    		return (value != null && value.kind != AnimatedValue.NONE) ? value : null;
+    	}
+    	
+    	/**
+    	 * Overrides the attribute with a copy of an animated value, or restores it with null.
+    	 * Only what the attribute changes is invalidated, and only if the value changed.
+    	 */
+    	public void setAnimatedValue(String attr, AnimatedValue value) {
+    		AnimatedValue current = (this.animated != null) ? this.animated.get(attr) : null;
+    		if(value == null) {
+    			if(current == null || current.kind == AnimatedValue.NONE) {
+    				return;
+    			}
+    			current.clear();
+    		} else {
+    			if(current == null) {
+    				if(this.animated == null) {
+    					this.animated = new HashMap<String,AnimatedValue>();
+    				}
+    				current = new AnimatedValue();
+    				this.animated.put(attr, current);
+    			} else if(current.same(value)) {
+    				return;
+    			}
+    			current.set(value);
+    		}
+    		Integer changes = attrChanges.get(attr);
+    		this.invalid |= (changes != null) ? changes : INVALID_GEOMETRY;
+    	}
+    	
+    	public void addTransformAnimation(SVGTagAnimateTransform a) {
+    		if(this.transforms == null) {
+    			this.transforms = new Vector<SVGTagAnimateTransform>();
+    		}
+    		this.transforms.add(a);
+    	}
+    	
+    	/**
+    	 * Tells that the matrix of an animateTransform or animateMotion changed.
+    	 */
+    	public void invalidateTransform() {
+    		this.invalid |= INVALID_ANIMATED_TRANSFORM;
+    	}
+    	
+    	/**
+    	 * Rebuilds what the animations changed since the last call.
+    	 */
+    	public void refresh() {
+    		if(this.invalid != 0) {
+    			if((this.invalid & ~INVALID_ANIMATED_TRANSFORM) != 0) {
+    				update(this.invalid);
+    			}
+    			if(this.transforms != null) {
+    				composeTransform();
+    			}
+    			this.invalid = 0;
+    		}
+    	}
+    	
+    	/**
+    	 * Gets the transform attribute as a matrix, null if there is none.
+    	 */
+    	protected Matrix getBaseTransform() {
+    		return null;
+    	}
+    	
+    	/**
+    	 * Gets the matrix to draw the element with, its animations included.
+    	 */
+    	public Matrix getTransform() {
+    		return (this.transformed) ? this.animatedMatrix : getBaseTransform();
+    	}
+    	
+    	/**
+    	 * Multiplies the active animateMotion, the transform attribute and the active
+    	 * animateTransform matrices in SVG order. A non additive animateTransform
+    	 * replaces the transform attribute and the animations before it.
+    	 */
+    	private void composeTransform() {
+    		SVGTagAnimateTransform motion = null;
+    		int replace = -1;
+    		int active = 0;
+    		int size = this.transforms.size();
+    		for(int i = 0; i < size; i++) {
+    			SVGTagAnimateTransform a = this.transforms.get(i);
+    			if(!a.isActive()) {
+    				continue;
+    			}
+    			if(a instanceof SVGTagAnimateMotion) {
+    				motion = a;
+    			} else {
+    				active++;
+    				if(!a.isAdditive()) {
+    					replace = i;
+    				}
+    			}
+    		}
+    		this.transformed = motion != null || active > 0;
+    		if(!this.transformed) {
+    			return;
+    		}
+    		if(this.animatedMatrix == null) {
+    			this.animatedMatrix = new Matrix();
+    		}
+    		Matrix m = this.animatedMatrix;
+    		if(motion != null) {
+    			m.set(motion.getMatrix());
+    		} else {
+    			m.reset();
+    		}
+    		Matrix base = getBaseTransform();
+    		if(replace < 0 && base != null) {
+    			m.preConcat(base);
+    		}
+    		for(int i = Math.max(replace, 0); i < size; i++) {
+    			SVGTagAnimateTransform a = this.transforms.get(i);
+    			if(a.isActive() && !(a instanceof SVGTagAnimateMotion)) {
+    				m.preConcat(a.getMatrix());
+    			}
+    		}
+    	}
+    	
+    	/**
+    	 * Rebuilds what animated attributes changed in the element, without its children.
+    	 *
+    	 * @param changed INVALID_ bits
+    	 */
+    	protected void update(int changed) {
+    	}
+    	
+    	/**
+    	 * Parses the transform attribute into the matrix the element had before.
+    	 *
+    	 * @param always give an identity matrix rather than null if there is no transform
+    	 * @return the matrix, null if there is no transform attribute
+    	 */
+    	protected Matrix readTransform(boolean always) {
+    		String transform = getAttr("transform");
+    		if(transform == null && !always) {
+    			return null;
+    		}
+    		if(this.baseMatrix == null) {
+    			this.baseMatrix = new Matrix();
+    		} else {
+    			this.baseMatrix.reset();
+    		}
+    		return (transform != null) ? parseTransform(transform, this.baseMatrix) : this.baseMatrix;
+    	}
+    	
+    	/**
+    	 * Gets a length attribute, in px or in % of bound, scaled like the rest of the
+    	 * document. An animated length is taken as it is, without its string.
+    	 *
+    	 * @return 0 if the attribute is not set or not a length
+    	 */
+    	public float getLength(String attr, float bound) {
+    		AnimatedValue value = getAnimatedValue(attr);
+    		if(value != null && value.kind == AnimatedValue.NUMBERS && value.count == 1) {
+    			float f = value.numbers[0];
+    			if("%".equals(value.unit)) {
+    				f = f * bound / 100f;
+    			}
+    			return f * getScale();
+    		}
+    		String str = getAttr(attr);
+    		float f = (str != null) ? parseLength(str, bound) : 0f;
+    		return Float.isNaN(f) ? 0f : f;
+    	}
+    	
     	public Float getFloatAttr(String attr, Float bound) {
     		String str = getAttr(attr);
     		if(str != null) {
@@ -2044,6 +3498,9 @@ public class SvgDecoder extends Decoder {
     		this.attrs.clear();
     		this.elements.clear();
     		this.attrs = null;
+    		this.animated = null;
+    		this.transforms = null;
+    		this.runs = null;
     		this.elements = null;
     		this.parent = null;
         	this.data = null;
@@ -2051,25 +3508,111 @@ public class SvgDecoder extends Decoder {
     	}
     	
     	public void init() {
+    		this.runs = null;
     		int size = this.elements.size();
     		for(int i = 0; i < size; i++) {
     			this.elements.get(i).init();
     		}
     	}
+    	
+    	public void markAnimated() {
+    		this.animationTarget = true;
+    	}
+    	
+    	/**
+    	 * Tells if an animation changes the element or one of its children.
+    	 */
+    	public boolean isAnimated() {
+    		if(this.animationTarget) {
+    			return true;
+    		}
+    		int size = this.elements.size();
+    		for(int i = 0; i < size; i++) {
+    			if(this.elements.get(i).isAnimated()) {
+    				return true;
+    			}
+    		}
+    		return false;
+    	}
 
     	public void draw(Canvas c) {
-    		int size = this.elements.size();
+    		if(!cacheStatic || recording) {
+    			int size = this.elements.size();
+    			for(int i = 0; i < size; i++) {
+    				this.elements.get(i).draw(c);
+    			}
+    			return;
+    		}
+    		if(this.runs == null) {
+    			recordRuns();
+    		}
+    		int size = this.runs.size();
     		for(int i = 0; i < size; i++) {
-    			this.elements.get(i).draw(c);
+    			Object run = this.runs.get(i);
+    			if(run instanceof Picture) {
+    				c.save();
+    				c.translate(-this.runsMargin, -this.runsMargin);
+    				c.drawPicture((Picture)run);
+    				c.restore();
+    			} else {
+    				((SVGElement)run).draw(c);
+    			}
     		}
     	}
+    	
+    	/**
+    	 * Records the children no animation changes into pictures, one for each run of
+    	 * them between animated children, which keep being drawn live in between.
+    	 */
+    	private void recordRuns() {
+    		// children may draw at negative coordinates, the pictures are recorded shifted
+    		int margin = Math.max(SvgDecoder.this.getWidth(), SvgDecoder.this.getHeight());
+    		Vector<Object> runs = new Vector<Object>();
+    		Picture picture = null;
+    		Canvas rc = null;
+    		recording = true;
+    		try {
+	    		int size = this.elements.size();
+	    		for(int i = 0; i < size; i++) {
+	    			SVGElement e = this.elements.get(i);
+	    			if(e instanceof SVGTagAnimate) {
+	    				// draws nothing
+	    				continue;
+	    			}
+	    			if(e.isAnimated()) {
+	    				if(picture != null) {
+	    					picture.endRecording();
+	    					picture = null;
+	    				}
+	    				runs.add(e);
+	    			} else {
+	    				if(picture == null) {
+	    					picture = new Picture();
+	    					rc = picture.beginRecording(3 * margin, 3 * margin);
+	    					rc.translate(margin, margin);
+	    					runs.add(picture);
+	    				}
+	    				e.draw(rc);
+	    			}
+	    		}
+	    		if(picture != null) {
+	    			picture.endRecording();
+	    		}
+    		} finally {
+    			recording = false;
+    		}
+    		this.runsMargin = margin;
+    		this.runs = runs;
+    	}
     }
     
-    private class NumberParse {
-        private ArrayList<Float> numbers;
+    private class SharedPath {
+        Path path;
+        RectF bounds = new RectF();
 
-        public NumberParse(ArrayList<Float> numbers) {
-            this.numbers = numbers;
+        public SharedPath(Path path) {
+            this.path = path;
+            path.computeBounds(this.bounds, false);
         }
     }
 
@@ -2137,11 +3680,22 @@ public class SvgDecoder extends Decoder {
 		public int pos;
 		private int n;
 
+		public ParserHelper() {
+			reset("", 0);
+		}
+
 		public ParserHelper(CharSequence s, int pos) {
+			reset(s, pos);
+		}
+
+		/**
+		 * Moves the parser to pos in another string, so one instance serves a whole document.
+		 */
+		public void reset(CharSequence s, int pos) {
 			this.s = s;
 			this.pos = pos;
 			n = s.length();
-			current = s.charAt(pos);
+			current = (pos < n) ? s.charAt(pos) : '\0';
 		}
 
 		private char read() {
@@ -2188,6 +3742,7 @@ public class SvgDecoder extends Decoder {
 		/**
 		 * Parses the content of the buffer and converts it to a float.
 		 */
+		@SuppressWarnings("fallthrough")
 		public float parseFloat() {
 			int     mant     = 0;
 			int     mantDig  = 0;
@@ -2393,17 +3948,6 @@ public class SvgDecoder extends Decoder {
 			return (float) ((exp > 0) ? mant * pow10[exp] : mant / pow10[-exp]);
 		}
 
-		/**
-		 * Array of powers of ten. Using double instead of float gives a tiny bit more precision.
-		 */
-		private double[] pow10 = new double[128];
-
-	    {
-			for (int i = 0; i < pow10.length; i++) {
-				pow10[i] = Math.pow(10, i);
-			}
-		}
-
 		public float nextFloat() {
 			skipWhitespace();
 			float f = parseFloat();
@@ -2413,6 +3957,16 @@ public class SvgDecoder extends Decoder {
 		}
 	}
 	
+	/**
+	 * Array of powers of ten for {@link ParserHelper}. Using double instead of float gives a tiny bit more precision.
+	 */
+	private final static double[] pow10 = new double[128];
+	static {
+		for (int i = 0; i < pow10.length; i++) {
+			pow10[i] = Math.pow(10, i);
+		}
+	}
+
 	private final static HashMap<String, Integer> colors = new HashMap<String, Integer>();
 	static {
 		  colors.put("aliceblue", 0xf0f8ff);
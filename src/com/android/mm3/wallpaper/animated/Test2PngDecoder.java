@@ -3,7 +3,7 @@ package com.android.mm3.wallpaper.animated;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.zip.DataFormatException;
+import java.util.Arrays;
 import java.util.zip.Inflater;
 
 public class Test2PngDecoder {
@@ -20,158 +20,113 @@ public class Test2PngDecoder {
 	public Test2PngDecoder() {
 	}
 
-	static private byte read(InputStream in) throws IOException {
-		byte b = (byte) in.read();
-		return b;
-	}
-
-	static private int readInt(InputStream in) throws IOException {
-		byte b[] = read(in, 4);
-		return (((b[0] & 0xff) << 24) + ((b[1] & 0xff) << 16)
-				+ ((b[2] & 0xff) << 8) + ((b[3] & 0xff)));
-	}
-
-	static private byte[] read(InputStream in, int count) throws IOException {
-		byte[] result = new byte[count];
-		for (int i = 0; i < count; i++) {
-			result[i] = read(in);
-		}
-		return result;
-	}
-
-	static private boolean compare(byte[] b1, byte[] b2) {
-		if (b1.length != b2.length) {
-			return false;
-		}
-		for (int i = 0; i < b1.length; i++) {
-			if (b1[i] != b2[i]) {
-				return false;
-			}
-		}
-		return (true);
-	}
-
-	void checkEquality(byte[] b1, byte[] b2) {
-		if (!compare(b1, b2)) {
-			throw (new RuntimeException("Format error"));
-		}
-	}
+	private PngChunkReader reader;
+	private PngPixelDecoder pixels;
+	private int colorType;
+	private final Inflater inflater = new Inflater();
+	private byte[] palette;
+	private byte[] paletteA;
+	private Image result;
 
 	/**
-	 * Decodes image from an input stream passed into constructor.
+	 * Decodes image from an input stream passed into constructor. Any color type, bit
+	 * depth and interlacing is read, with the chunk reader and pixel decoder of
+	 * {@link ApngDecoder}. The stream is closed.
 	 * 
 	 * @return a BufferedImage object
 	 * @throws IOException
 	 */
 	public Image decode(InputStream in) throws IOException {
-
-		byte[] id = read(in, 12);
-		checkEquality(id, new byte[] { -119, 80, 78, 71, 13, 10, 26, 10, 0, 0,
-				0, 13 });
-
-		byte[] ihdr = read(in, 4);
-		checkEquality(ihdr, "IHDR".getBytes());
-
-		int width = readInt(in);
-		int height = readInt(in);
-
-		Image result = new Image(width, height);
-
-		byte[] head = read(in, 5);
-		int mode;
-		if (compare(head, new byte[] { 1, 0, 0, 0, 0 })) {
-			mode = BW_MODE;
-		} else if (compare(head, new byte[] { 8, 0, 0, 0, 0 })) {
-			mode = GREYSCALE_MODE;
-		} else if (compare(head, new byte[] { 8, 2, 0, 0, 0 })) {
-			mode = COLOR_MODE;
-		} else {
-			throw (new RuntimeException("Format error"));
-		}
-
-		readInt(in);// !!crc
-
-		int size = readInt(in);
-
-		byte[] idat = read(in, 4);
-		checkEquality(idat, "IDAT".getBytes());
-
-		byte[] data = read(in, size);
-
-		Inflater inflater = new Inflater();
-		inflater.setInput(data, 0, size);
-
-		int color;
-
 		try {
-			switch (mode) {
-			case BW_MODE: {
-				int bytes = (int) (width / 8);
-				if ((width % 8) != 0) {
-					bytes++;
-				}
-				byte colorset;
-				byte[] row = new byte[bytes];
-				for (int y = 0; y < height; y++) {
-					inflater.inflate(new byte[1]);
-					inflater.inflate(row);
-					for (int x = 0; x < bytes; x++) {
-						colorset = row[x];
-						for (int sh = 0; sh < 8; sh++) {
-							if (x * 8 + sh >= width) {
-								break;
-							}
-							if ((colorset & 0x80) == 0x80) {
-								result.setRGB(x * 8 + sh, y, 0xFFFFFFFF);
-							} else {
-								result.setRGB(x * 8 + sh, y, 0);
-							}
-							colorset <<= 1;
-						}
-					}
-				}
-			}
-				break;
-			case GREYSCALE_MODE: {
-				byte[] row = new byte[width];
-				for (int y = 0; y < height; y++) {
-					inflater.inflate(new byte[1]);
-					inflater.inflate(row);
-					for (int x = 0; x < width; x++) {
-						color = row[x];
-						result.setRGB(x, y, (color << 16) + (color << 8)
-								+ color);
-					}
-				}
+			reader = new PngChunkReader(in, true);
+			byte[] head = new byte[13];
+			reader.openChunk(PngChunkReader.IHDR);
+			reader.checkChunkLength(13);
+			reader.readChunk(head, 0, 13);
+			int width = PngChunkReader.getInt(head, 0);
+			int height = PngChunkReader.getInt(head, 4);
+			int depth = head[8] & 255;
+			colorType = head[9] & 255;
+			if (width <= 0 || height <= 0 || !isSupported(colorType, depth)
+					|| head[10] != 0 || head[11] != 0 || (head[12] != 0 && head[12] != 1)) {
+				throw (new RuntimeException("Format error"));
 			}
-				break;
-			case COLOR_MODE: {
-				byte[] row = new byte[width * 3];
-				for (int y = 0; y < height; y++) {
-					inflater.inflate(new byte[1]);
-					inflater.inflate(row);
-					for (int x = 0; x < width; x++) {
-						result.setRGB(x, y, ((row[x * 3 + 0] & 0xff) << 16)
-								+ ((row[x * 3 + 1] & 0xff) << 8)
-								+ ((row[x * 3 + 2] & 0xff)));
+			reader.closeChunk();
+
+			pixels = new PngPixelDecoder(colorType, depth, head[12] == 1);
+			palette = null;
+			paletteA = null;
+			result = new Image(width, height);
+			reader.readChunks(new PngChunkReader.Handler() {
+				public boolean onChunk(int type, int length) throws IOException {
+					switch (type) {
+					case PngChunkReader.PLTE:
+						palette = new byte[length - length % 3];
+						reader.readChunkFully(palette, 0, palette.length);
+						break;
+					case PngChunkReader.tRNS:
+						readTransparency(length);
+						break;
+					case PngChunkReader.IDAT:
+						readImage();
+						break;
+					case PngChunkReader.IEND:
+						return false;
 					}
+					return true;
 				}
+			});
+			if (pixels != null) {
+				throw (new RuntimeException("Format error")); // no IDAT
 			}
-			}
-		} catch (DataFormatException e) {
-			throw (new RuntimeException("ZIP error" + e));
+			return (result);
+		} finally {
+			reader = null;
+			pixels = null;
+			in.close();
 		}
+	}
 
-		readInt(in);// !!crc
-		readInt(in);// 0
-
-		byte[] iend = read(in, 4);
-		checkEquality(iend, "IEND".getBytes());
+	private void readTransparency(int length) throws IOException {
+		byte[] trns = new byte[length];
+		reader.readChunkFully(trns, 0, length);
+		if (palette != null) {
+			paletteA = new byte[palette.length / 3];
+			Arrays.fill(paletteA, (byte) 0xFF);
+			System.arraycopy(trns, 0, paletteA, 0, Math.min(length, paletteA.length));
+		} else {
+			pixels.setTransparentPixel(trns);
+		}
+	}
 
-		readInt(in);// !!crc
-		in.close();
+	private void readImage() throws IOException {
+		if (pixels == null) {
+			return; // rest of the image data, already decoded
+		}
+		if (colorType == PngPixelDecoder.COLOR_INDEXED && palette == null) {
+			throw (new RuntimeException("Format error")); // no PLTE
+		}
+		int width = result.getWidth();
+		int[] argb = new int[width * result.getHeight()];
+		pixels.setPalette(palette, paletteA);
+		inflater.reset();
+		pixels.decode(inflater, reader.dataInput(PngChunkReader.IDAT), width, result.getHeight(), argb, 0, width);
+		result.setPixels(argb);
+		pixels = null;
+	}
 
-		return (result);
+	static private boolean isSupported(int colorType, int depth) {
+		switch (colorType) {
+		case PngPixelDecoder.COLOR_GREYSCALE:
+			return depth == 1 || depth == 2 || depth == 4 || depth == 8 || depth == 16;
+		case PngPixelDecoder.COLOR_INDEXED:
+			return depth == 1 || depth == 2 || depth == 4 || depth == 8;
+		case PngPixelDecoder.COLOR_TRUECOLOR:
+		case PngPixelDecoder.COLOR_GREYALPHA:
+		case PngPixelDecoder.COLOR_TRUEALPHA:
+			return depth == 8 || depth == 16;
+		}
+		return false;
 	}
 	
 	
@@ -199,6 +154,16 @@ public class Test2PngDecoder {
 			return data;
 		}
 
+		void setPixels(int[] argb) {
+			for (int i = 0, j = 0; i < argb.length; i++) {
+				int color = argb[i];
+				data[j++] = (byte) (color >>> 24);
+				data[j++] = (byte) (color >> 16);
+				data[j++] = (byte) (color >> 8);
+				data[j++] = (byte) color;
+			}
+		}
+
 		public void setRGB(int x, int y, int color) {
 			int index = (y * width + x) * 4;
 			data[index++] = (byte) ((color & 0xFF000000) >> 24);
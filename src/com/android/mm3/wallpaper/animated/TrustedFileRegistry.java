@@ -0,0 +1,194 @@
+package com.android.mm3.wallpaper.animated;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Remembers image files that already went through a full decode with CRC checks.
+ * <p>A file is recorded by path, size, modification time and a fast hash of sampled
+ * content. When all of them still match, decoders may skip the CRC32 of every chunk;
+ * structure and lengths are checked as usual.</p>
+ * <p>Records are kept in memory and, once {@link #setStore(File)} was called, in a small
+ * text file so they survive a restart of the process.</p>
+ */
+public class TrustedFileRegistry {
+	static final public String TAG = "TrustedFileRegistry";
+
+	private static final int MAX_ENTRIES = 64;
+	private static final int EDGE_BYTES = 64 * 1024; // hashed at both ends of the file
+	private static final int SAMPLES = 32; // blocks hashed in between
+	private static final int SAMPLE_BYTES = 1024;
+
+	private static File store = null;
+	private static boolean loaded = false;
+	// path -> {size, mtime, hash}, least recently used first
+	private static final LinkedHashMap<String, long[]> entries = new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	/**
+	 * Sets the file the records are kept in, usually in the cache directory.
+	 */
+	public static synchronized void setStore(File file) {
+		if(file != null && !file.equals(store)) {
+			store = file;
+			loaded = false;
+		}
+	}
+
+	/**
+	 * Tells whether the file was fully verified before and did not change since.
+	 */
+	public static synchronized boolean isTrusted(String path) {
+		load();
+		long[] e = entries.get(path);
+		if(e == null) {
+			return false;
+		}
+		File f = new File(path);
+		if(f.length() != e[0] || f.lastModified() != e[1]) {
+			entries.remove(path);
+			return false;
+		}
+		return hash(f) == e[2];
+	}
+
+	/**
+	 * Records the file after a decode that checked every CRC.
+	 */
+	public static synchronized void markTrusted(String path) {
+		load();
+		File f = new File(path);
+		long hash = hash(f);
+		if(hash == -1) {
+			return;
+		}
+		entries.put(path, new long[] { f.length(), f.lastModified(), hash });
+		save();
+	}
+
+	/**
+	 * Forgets the file, for instance after it failed to decode.
+	 */
+	public static synchronized void remove(String path) {
+		load();
+		if(entries.remove(path) != null) {
+			save();
+		}
+	}
+
+	/**
+	 * Hashes the length, both ends and evenly spaced blocks of the file.
+	 *
+	 * @return the hash, or -1 if the file can't be read
+	 */
+	static long hash(File f) {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(f, "r");
+			long length = file.length();
+			CRC32 crc = new CRC32();
+			byte[] buffer = new byte[EDGE_BYTES];
+			if(length <= 2L * EDGE_BYTES + SAMPLES * SAMPLE_BYTES) {
+				for(long pos = 0; pos < length; ) {
+					int n = file.read(buffer, 0, (int)Math.min(buffer.length, length - pos));
+					if(n < 0) {
+						return -1;
+					}
+					crc.update(buffer, 0, n);
+					pos += n;
+				}
+			} else {
+				file.readFully(buffer, 0, EDGE_BYTES);
+				crc.update(buffer, 0, EDGE_BYTES);
+				long step = (length - 2L * EDGE_BYTES - SAMPLE_BYTES) / (SAMPLES - 1);
+				for(int i = 0; i < SAMPLES; i++) {
+					file.seek(EDGE_BYTES + i * step);
+					file.readFully(buffer, 0, SAMPLE_BYTES);
+					crc.update(buffer, 0, SAMPLE_BYTES);
+				}
+				file.seek(length - EDGE_BYTES);
+				file.readFully(buffer, 0, EDGE_BYTES);
+				crc.update(buffer, 0, EDGE_BYTES);
+			}
+			return (length << 32) ^ crc.getValue();
+		} catch (Exception e) {
+			return -1;
+		} finally {
+			try {
+				if(file != null) {
+					file.close();
+				}
+			} catch (Exception e) {}
+		}
+	}
+
+	private static void load() {
+		if(loaded || store == null) {
+			return;
+		}
+		loaded = true;
+		BufferedReader in = null;
+		try {
+			if(!store.exists()) {
+				return;
+			}
+			in = new BufferedReader(new FileReader(store));
+			String line;
+			while((line = in.readLine()) != null) {
+				// size mtime hash path
+				String[] s = line.split(" ", 4);
+				if(s.length == 4) {
+					entries.put(s[3], new long[] { Long.parseLong(s[0]), Long.parseLong(s[1]), Long.parseLong(s[2]) });
+				}
+			}
+		} catch (Exception e) {
+			Log.w(TAG, "can't read " + store + ": " + e);
+			entries.clear();
+		} finally {
+			try {
+				if(in != null) {
+					in.close();
+				}
+			} catch (Exception e) {}
+		}
+	}
+
+	private static void save() {
+		if(store == null) {
+			return;
+		}
+		FileWriter out = null;
+		try {
+			out = new FileWriter(store);
+			Iterator<Map.Entry<String, long[]>> i = entries.entrySet().iterator();
+			while(i.hasNext()) {
+				Map.Entry<String, long[]> e = i.next();
+				long[] v = e.getValue();
+				out.write(v[0] + " " + v[1] + " " + v[2] + " " + e.getKey() + "\n");
+			}
+		} catch (Exception e) {
+			Log.w(TAG, "can't write " + store + ": " + e);
+		} finally {
+			try {
+				if(out != null) {
+					out.close();
+				}
+			} catch (Exception e) {}
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package android.graphics;
+
+/**
+ * JVM stand-in for the Android class, with the part of its API the PNG decoders use.
+ * Pixels are kept as ARGB ints whatever the config, so tests see exactly what was set.
+ */
+public final class Bitmap {
+	public enum Config { ALPHA_8, RGB_565, ARGB_4444, ARGB_8888 }
+
+	private final int width;
+	private final int height;
+	private final Config config;
+	private final int[] pixels;
+
+	private Bitmap(int width, int height, Config config) {
+		this.width = width;
+		this.height = height;
+		this.config = config;
+		this.pixels = new int[width * height];
+	}
+
+	public static Bitmap createBitmap(int width, int height, Config config) {
+		return new Bitmap(width, height, config);
+	}
+
+	public static Bitmap createBitmap(int[] colors, int width, int height, Config config) {
+		Bitmap b = new Bitmap(width, height, config);
+		b.setPixels(colors, 0, width, 0, 0, width, height);
+		return b;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public Config getConfig() {
+		return config;
+	}
+
+	public void getPixels(int[] dest, int offset, int stride, int x, int y, int w, int h) {
+		for(int row = 0; row < h; row++) {
+			System.arraycopy(pixels, (y + row) * width + x, dest, offset + row * stride, w);
+		}
+	}
+
+	public void setPixels(int[] src, int offset, int stride, int x, int y, int w, int h) {
+		for(int row = 0; row < h; row++) {
+			System.arraycopy(src, offset + row * stride, pixels, (y + row) * width + x, w);
+		}
+	}
+
+	public void recycle() {
+	}
+}
@@ -0,0 +1,164 @@
+package android.graphics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JVM stand-in for the Android class. Nothing is rasterized: every draw call is recorded as
+ * an {@link Op} with its points mapped through the current matrix and a copy of its paint,
+ * so tests compare what would have been drawn where. A picture drawn on the canvas adds
+ * the ops recorded into it, mapped through the matrix of the canvas it is drawn on.
+ */
+public class Canvas {
+	/**
+	 * One recorded draw call.
+	 */
+	public static final class Op {
+		/** "path", "rect", "roundRect", "oval", "circle", "line" or "text" */
+		public final String type;
+		/** x,y pairs in canvas coordinates: the corners of a rect or oval, the center and a point of a circle */
+		public final float[] points;
+		public final Paint paint;
+		/** the Path drawn, or the text */
+		public final Object source;
+
+		Op(String type, float[] points, Paint paint, Object source) {
+			this.type = type;
+			this.points = points;
+			this.paint = paint;
+			this.source = source;
+		}
+
+		Op map(Matrix m) {
+			float[] p = points.clone();
+			m.mapPoints(p);
+			return new Op(type, p, paint, source);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder(type);
+			sb.append(' ').append(paint.getStyle()).append(" #").append(Integer.toHexString(paint.getColor()));
+			if(paint.getStyle() != Paint.Style.FILL) {
+				sb.append(" width=").append(paint.getStrokeWidth());
+			}
+			if(paint.getShader() != null) {
+				sb.append(' ').append(paint.getShader());
+			}
+			if(source instanceof String) {
+				sb.append(" \"").append(source).append('"');
+			}
+			for(int i = 0; i < points.length; i += 2) {
+				sb.append(" ").append(round(points[i])).append(',').append(round(points[i + 1]));
+			}
+			return sb.toString();
+		}
+
+		private static String round(float f) {
+			float r = Math.round(f * 100) / 100f;
+			return (r == (int)r) ? Integer.toString((int)r) : Float.toString(r);
+		}
+	}
+
+	private final List<Op> ops = new ArrayList<Op>();
+	private final List<Matrix> saved = new ArrayList<Matrix>();
+	private Matrix matrix = new Matrix();
+	private int pictures = 0;
+
+	public Canvas() {
+	}
+
+	public int save() {
+		saved.add(new Matrix(matrix));
+		return saved.size();
+	}
+
+	public void restore() {
+		if(saved.isEmpty()) {
+			throw new IllegalStateException("Underflow in restore");
+		}
+		matrix = saved.remove(saved.size() - 1);
+	}
+
+	public int getSaveCount() {
+		return saved.size() + 1;
+	}
+
+	public void concat(Matrix m) {
+		if(m != null) {
+			matrix.preConcat(m);
+		}
+	}
+
+	public void translate(float dx, float dy) {
+		matrix.preTranslate(dx, dy);
+	}
+
+	public void scale(float sx, float sy) {
+		matrix.preScale(sx, sy);
+	}
+
+	public void drawPath(Path path, Paint paint) {
+		int n = 0;
+		for(float[] c : path.getContours()) {
+			n += c.length;
+		}
+		float[] p = new float[n];
+		n = 0;
+		for(float[] c : path.getContours()) {
+			System.arraycopy(c, 0, p, n, c.length);
+			n += c.length;
+		}
+		add("path", p, paint, path);
+	}
+
+	public void drawRect(float left, float top, float right, float bottom, Paint paint) {
+		add("rect", new float[] { left, top, right, bottom }, paint, null);
+	}
+
+	public void drawRoundRect(RectF rect, float rx, float ry, Paint paint) {
+		add("roundRect", new float[] { rect.left, rect.top, rect.right, rect.bottom }, paint, null);
+	}
+
+	public void drawOval(RectF oval, Paint paint) {
+		add("oval", new float[] { oval.left, oval.top, oval.right, oval.bottom }, paint, null);
+	}
+
+	public void drawCircle(float cx, float cy, float radius, Paint paint) {
+		add("circle", new float[] { cx, cy, cx + radius, cy }, paint, null);
+	}
+
+	public void drawLine(float startX, float startY, float stopX, float stopY, Paint paint) {
+		add("line", new float[] { startX, startY, stopX, stopY }, paint, null);
+	}
+
+	public void drawText(String text, float x, float y, Paint paint) {
+		add("text", new float[] { x, y }, paint, text);
+	}
+
+	public void drawPicture(Picture picture) {
+		pictures++;
+		for(Op op : picture.getRecording().ops) {
+			ops.add(op.map(matrix));
+		}
+	}
+
+	/**
+	 * Gets the ops drawn so far. Not part of the Android API.
+	 */
+	public List<Op> getOps() {
+		return ops;
+	}
+
+	/**
+	 * Gets how many pictures were drawn. Not part of the Android API.
+	 */
+	public int getPictureCount() {
+		return pictures;
+	}
+
+	private void add(String type, float[] points, Paint paint, Object source) {
+		matrix.mapPoints(points);
+		ops.add(new Op(type, points, new Paint(paint), source));
+	}
+}
@@ -0,0 +1,32 @@
+package android.graphics;
+
+import java.util.Arrays;
+
+/**
+ * JVM stand-in for the Android class. {@link #toString()} lists its parameters, so tests
+ * can compare gradients.
+ */
+public class LinearGradient extends Shader {
+	private final String description;
+
+	public LinearGradient(float x0, float y0, float x1, float y1, int[] colors, float[] positions, TileMode tile) {
+		if(colors.length < 2) {
+			throw new IllegalArgumentException("needs >= 2 number of colors");
+		}
+		description = "LinearGradient(" + x0 + ", " + y0 + ", " + x1 + ", " + y1 + ", "
+				+ hex(colors) + ", " + Arrays.toString(positions) + ")";
+	}
+
+	@Override
+	public String toString() {
+		return description;
+	}
+
+	private static String hex(int[] colors) {
+		StringBuilder sb = new StringBuilder("[");
+		for(int i = 0; i < colors.length; i++) {
+			sb.append((i > 0) ? ", #" : "#").append(Integer.toHexString(colors[i]));
+		}
+		return sb.append(']').toString();
+	}
+}
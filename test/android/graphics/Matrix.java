@@ -0,0 +1,167 @@
+package android.graphics;
+
+/**
+ * JVM stand-in for the Android class: a 3x3 affine matrix with the part of the API the
+ * SVG decoder uses. pre* multiplies on the right and post* on the left, as on Android.
+ * Like the native one it allocates nothing once made.
+ */
+public class Matrix {
+	private float[] v = new float[9];
+	private float[] product = new float[9]; // swapped with v after a multiplication
+	private final float[] operand = new float[9]; // the other matrix of the pre and post operations
+
+	public Matrix() {
+		reset();
+	}
+
+	public Matrix(Matrix src) {
+		set(src);
+	}
+
+	public void set(Matrix src) {
+		if(src == null) {
+			reset();
+		} else {
+			System.arraycopy(src.v, 0, v, 0, 9);
+		}
+	}
+
+	public void reset() {
+		setValues(1, 0, 0, 0, 1, 0);
+	}
+
+	public boolean isIdentity() {
+		return v[0] == 1 && v[1] == 0 && v[2] == 0 && v[3] == 0 && v[4] == 1 && v[5] == 0;
+	}
+
+	public void setValues(float[] values) {
+		System.arraycopy(values, 0, v, 0, 9);
+	}
+
+	public void getValues(float[] values) {
+		System.arraycopy(v, 0, values, 0, 9);
+	}
+
+	public void setTranslate(float dx, float dy) {
+		translate(v, dx, dy);
+	}
+
+	public void setScale(float sx, float sy) {
+		setValues(v, sx, 0, 0, 0, sy, 0);
+	}
+
+	public void setRotate(float degrees) {
+		rotate(v, degrees);
+	}
+
+	public void setRotate(float degrees, float px, float py) {
+		setTranslate(px, py);
+		preRotate(degrees);
+		preTranslate(-px, -py);
+	}
+
+	public void setSkew(float kx, float ky) {
+		setValues(v, 1, kx, 0, ky, 1, 0);
+	}
+
+	public boolean preConcat(Matrix other) {
+		multiply(v, other.v);
+		return true;
+	}
+
+	public boolean postConcat(Matrix other) {
+		multiply(other.v, v);
+		return true;
+	}
+
+	public boolean preTranslate(float dx, float dy) {
+		translate(operand, dx, dy);
+		multiply(v, operand);
+		return true;
+	}
+
+	public boolean postTranslate(float dx, float dy) {
+		translate(operand, dx, dy);
+		multiply(operand, v);
+		return true;
+	}
+
+	public boolean preScale(float sx, float sy) {
+		setValues(operand, sx, 0, 0, 0, sy, 0);
+		multiply(v, operand);
+		return true;
+	}
+
+	public boolean preRotate(float degrees) {
+		rotate(operand, degrees);
+		multiply(v, operand);
+		return true;
+	}
+
+	public boolean preSkew(float kx, float ky) {
+		setValues(operand, 1, kx, 0, ky, 1, 0);
+		multiply(v, operand);
+		return true;
+	}
+
+	/**
+	 * Maps x,y pairs in place.
+	 */
+	public void mapPoints(float[] pts) {
+		for(int i = 0; i + 1 < pts.length; i += 2) {
+			float x = pts[i];
+			float y = pts[i + 1];
+			pts[i] = v[0] * x + v[1] * y + v[2];
+			pts[i + 1] = v[3] * x + v[4] * y + v[5];
+		}
+	}
+
+	public String toShortString() {
+		return "[" + v[0] + ", " + v[1] + ", " + v[2] + "][" + v[3] + ", " + v[4] + ", " + v[5] + "]["
+				+ v[6] + ", " + v[7] + ", " + v[8] + "]";
+	}
+
+	@Override
+	public String toString() {
+		return "Matrix{" + toShortString() + "}";
+	}
+
+	private void setValues(float a, float b, float c, float d, float e, float f) {
+		setValues(v, a, b, c, d, e, f);
+	}
+
+	private static void setValues(float[] m, float a, float b, float c, float d, float e, float f) {
+		m[0] = a; m[1] = b; m[2] = c;
+		m[3] = d; m[4] = e; m[5] = f;
+		m[6] = 0; m[7] = 0; m[8] = 1;
+	}
+
+	private static void translate(float[] m, float dx, float dy) {
+		setValues(m, 1, 0, dx, 0, 1, dy);
+	}
+
+	private static void rotate(float[] m, float degrees) {
+		double a = Math.toRadians(degrees);
+		float sin = (float)Math.sin(a);
+		float cos = (float)Math.cos(a);
+		setValues(m, cos, -sin, 0, sin, cos, 0);
+	}
+
+	/**
+	 * Sets the matrix to a x b.
+	 */
+	private void multiply(float[] a, float[] b) {
+		float[] r = product;
+		for(int i = 0; i < 3; i++) {
+			for(int j = 0; j < 3; j++) {
+				float s = 0;
+				for(int k = 0; k < 3; k++) {
+					s += a[i * 3 + k] * b[k * 3 + j];
+				}
+				r[i * 3 + j] = s;
+			}
+		}
+		product = v;
+		v = r;
+	}
+}
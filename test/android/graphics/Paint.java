@@ -0,0 +1,151 @@
+package android.graphics;
+
+/**
+ * JVM stand-in for the Android class, keeping the settings the SVG decoder makes.
+ */
+public class Paint {
+	public static final int ANTI_ALIAS_FLAG = 1;
+
+	public enum Align { LEFT, CENTER, RIGHT }
+	public enum Style { FILL, STROKE, FILL_AND_STROKE }
+	public enum Cap { BUTT, ROUND, SQUARE }
+	public enum Join { MITER, ROUND, BEVEL }
+
+	private int flags;
+	private int color = 0xFF000000;
+	private Style style = Style.FILL;
+	private float strokeWidth = 0;
+	private Cap cap = Cap.BUTT;
+	private Join join = Join.MITER;
+	private Shader shader;
+	private float textSize = 12;
+	private Typeface typeface;
+	private Align align = Align.LEFT;
+
+	public Paint() {
+	}
+
+	public Paint(int flags) {
+		this.flags = flags;
+	}
+
+	public Paint(Paint paint) {
+		set(paint);
+	}
+
+	public void set(Paint src) {
+		flags = src.flags;
+		color = src.color;
+		style = src.style;
+		strokeWidth = src.strokeWidth;
+		cap = src.cap;
+		join = src.join;
+		shader = src.shader;
+		textSize = src.textSize;
+		typeface = src.typeface;
+		align = src.align;
+	}
+
+	public void reset() {
+		flags = 0;
+		color = 0xFF000000;
+		style = Style.FILL;
+		strokeWidth = 0;
+		cap = Cap.BUTT;
+		join = Join.MITER;
+		shader = null;
+		textSize = 12;
+		typeface = null;
+		align = Align.LEFT;
+	}
+
+	public void setAntiAlias(boolean aa) {
+		flags = (aa) ? flags | ANTI_ALIAS_FLAG : flags & ~ANTI_ALIAS_FLAG;
+	}
+
+	public final boolean isAntiAlias() {
+		return (flags & ANTI_ALIAS_FLAG) != 0;
+	}
+
+	public void setColor(int color) {
+		this.color = color;
+	}
+
+	public int getColor() {
+		return color;
+	}
+
+	public void setAlpha(int a) {
+		color = (color & 0xFFFFFF) | ((a & 0xFF) << 24);
+	}
+
+	public int getAlpha() {
+		return color >>> 24;
+	}
+
+	public void setStyle(Style style) {
+		this.style = style;
+	}
+
+	public Style getStyle() {
+		return style;
+	}
+
+	public void setStrokeWidth(float width) {
+		strokeWidth = width;
+	}
+
+	public float getStrokeWidth() {
+		return strokeWidth;
+	}
+
+	public void setStrokeCap(Cap cap) {
+		this.cap = cap;
+	}
+
+	public Cap getStrokeCap() {
+		return cap;
+	}
+
+	public void setStrokeJoin(Join join) {
+		this.join = join;
+	}
+
+	public Join getStrokeJoin() {
+		return join;
+	}
+
+	public Shader setShader(Shader shader) {
+		this.shader = shader;
+		return shader;
+	}
+
+	public Shader getShader() {
+		return shader;
+	}
+
+	public void setTextSize(float textSize) {
+		this.textSize = textSize;
+	}
+
+	public float getTextSize() {
+		return textSize;
+	}
+
+	public Typeface setTypeface(Typeface typeface) {
+		this.typeface = typeface;
+		return typeface;
+	}
+
+	public Typeface getTypeface() {
+		return typeface;
+	}
+
+	public void setTextAlign(Align align) {
+		this.align = align;
+	}
+
+	public Align getTextAlign() {
+		return align;
+	}
+}
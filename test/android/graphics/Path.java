@@ -0,0 +1,174 @@
+package android.graphics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JVM stand-in for the Android class. A path is kept as polylines, one for each contour:
+ * curves and arcs are flattened into {@link #SEGMENTS} lines, which is enough to compare
+ * geometry and to measure lengths.
+ */
+public class Path {
+	/** lines a curve or an arc is flattened into */
+	public static final int SEGMENTS = 16;
+
+	private final List<float[]> contours = new ArrayList<float[]>();
+	private float[] current; // points of the last contour, x,y pairs
+	private int size; // floats used in current
+	private float startX, startY; // first point of the last contour
+	private float lastX, lastY;
+
+	public Path() {
+	}
+
+	public Path(Path src) {
+		for(float[] c : src.getContours()) {
+			contours.add(c);
+		}
+		lastX = src.lastX;
+		lastY = src.lastY;
+	}
+
+	public void reset() {
+		contours.clear();
+		current = null;
+		lastX = lastY = 0;
+	}
+
+	public boolean isEmpty() {
+		return contours.isEmpty() && current == null;
+	}
+
+	public void moveTo(float x, float y) {
+		flush();
+		current = new float[16];
+		size = 0;
+		startX = x;
+		startY = y;
+		add(x, y);
+	}
+
+	public void rMoveTo(float dx, float dy) {
+		moveTo(lastX + dx, lastY + dy);
+	}
+
+	public void lineTo(float x, float y) {
+		if(current == null) {
+			moveTo(lastX, lastY);
+		}
+		add(x, y);
+	}
+
+	public void rLineTo(float dx, float dy) {
+		lineTo(lastX + dx, lastY + dy);
+	}
+
+	public void quadTo(float x1, float y1, float x2, float y2) {
+		float x0 = lastX;
+		float y0 = lastY;
+		for(int i = 1; i <= SEGMENTS; i++) {
+			float t = (float)i / SEGMENTS;
+			float u = 1 - t;
+			lineTo(u * u * x0 + 2 * u * t * x1 + t * t * x2, u * u * y0 + 2 * u * t * y1 + t * t * y2);
+		}
+	}
+
+	public void cubicTo(float x1, float y1, float x2, float y2, float x3, float y3) {
+		float x0 = lastX;
+		float y0 = lastY;
+		for(int i = 1; i <= SEGMENTS; i++) {
+			float t = (float)i / SEGMENTS;
+			float u = 1 - t;
+			float a = u * u * u;
+			float b = 3 * u * u * t;
+			float c = 3 * u * t * t;
+			float d = t * t * t;
+			lineTo(a * x0 + b * x1 + c * x2 + d * x3, a * y0 + b * y1 + c * y2 + d * y3);
+		}
+	}
+
+	/**
+	 * Adds an arc of the oval as a new contour.
+	 */
+	public void addArc(RectF oval, float startAngle, float sweepAngle) {
+		float cx = oval.centerX();
+		float cy = oval.centerY();
+		float rx = oval.width() / 2;
+		float ry = oval.height() / 2;
+		for(int i = 0; i <= SEGMENTS; i++) {
+			double a = Math.toRadians(startAngle + sweepAngle * i / SEGMENTS);
+			float x = cx + rx * (float)Math.cos(a);
+			float y = cy + ry * (float)Math.sin(a);
+			if(i == 0) {
+				moveTo(x, y);
+			} else {
+				lineTo(x, y);
+			}
+		}
+	}
+
+	public void close() {
+		if(current != null) {
+			add(startX, startY);
+			flush();
+		}
+	}
+
+	public void transform(Matrix matrix) {
+		flush();
+		for(float[] c : contours) {
+			matrix.mapPoints(c);
+		}
+		float[] p = { lastX, lastY };
+		matrix.mapPoints(p);
+		lastX = p[0];
+		lastY = p[1];
+	}
+
+	public void computeBounds(RectF bounds, boolean exact) {
+		float l = Float.POSITIVE_INFINITY, t = Float.POSITIVE_INFINITY;
+		float r = Float.NEGATIVE_INFINITY, b = Float.NEGATIVE_INFINITY;
+		for(float[] c : getContours()) {
+			for(int i = 0; i < c.length; i += 2) {
+				l = Math.min(l, c[i]);
+				r = Math.max(r, c[i]);
+				t = Math.min(t, c[i + 1]);
+				b = Math.max(b, c[i + 1]);
+			}
+		}
+		if(l > r) {
+			bounds.set(0, 0, 0, 0);
+		} else {
+			bounds.set(l, t, r, b);
+		}
+	}
+
+	/**
+	 * Gets the contours as arrays of x,y pairs. Not part of the Android API.
+	 */
+	public List<float[]> getContours() {
+		flush();
+		return contours;
+	}
+
+	private void add(float x, float y) {
+		if(size + 2 > current.length) {
+			float[] grown = new float[current.length * 2];
+			System.arraycopy(current, 0, grown, 0, size);
+			current = grown;
+		}
+		current[size++] = x;
+		current[size++] = y;
+		lastX = x;
+		lastY = y;
+	}
+
+	private void flush() {
+		if(current != null) {
+			float[] c = new float[size];
+			System.arraycopy(current, 0, c, 0, size);
+			contours.add(c);
+			current = null;
+		}
+	}
+}
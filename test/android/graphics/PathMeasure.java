@@ -0,0 +1,79 @@
+package android.graphics;
+
+import java.util.List;
+
+/**
+ * JVM stand-in for the Android class, measuring the polylines of {@link Path}.
+ */
+public class PathMeasure {
+	private List<float[]> contours;
+	private int contour;
+
+	public PathMeasure() {
+	}
+
+	public PathMeasure(Path path, boolean forceClosed) {
+		setPath(path, forceClosed);
+	}
+
+	public void setPath(Path path, boolean forceClosed) {
+		contours = (path != null) ? path.getContours() : null;
+		contour = 0;
+	}
+
+	public float getLength() {
+		float[] c = current();
+		float length = 0;
+		for(int i = 2; i < c.length; i += 2) {
+			length += (float)Math.hypot(c[i] - c[i - 2], c[i + 1] - c[i - 1]);
+		}
+		return length;
+	}
+
+	public boolean getPosTan(float distance, float[] pos, float[] tan) {
+		float[] c = current();
+		if(c.length < 2) {
+			return false;
+		}
+		pos[0] = c[0];
+		pos[1] = c[1];
+		if(tan != null) {
+			tan[0] = 1;
+			tan[1] = 0;
+		}
+		float d = Math.max(0, distance);
+		for(int i = 2; i < c.length; i += 2) {
+			float dx = c[i] - c[i - 2];
+			float dy = c[i + 1] - c[i - 1];
+			float l = (float)Math.hypot(dx, dy);
+			if(l == 0) {
+				continue;
+			}
+			if(tan != null) {
+				tan[0] = dx / l;
+				tan[1] = dy / l;
+			}
+			if(d <= l) {
+				pos[0] = c[i - 2] + dx * d / l;
+				pos[1] = c[i - 1] + dy * d / l;
+				return true;
+			}
+			d -= l;
+			pos[0] = c[i];
+			pos[1] = c[i + 1];
+		}
+		return true;
+	}
+
+	public boolean nextContour() {
+		if(contours != null && contour + 1 < contours.size()) {
+			contour++;
+			return true;
+		}
+		return false;
+	}
+
+	private float[] current() {
+		return (contours == null || contours.isEmpty()) ? new float[0] : contours.get(contour);
+	}
+}
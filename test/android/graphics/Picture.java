@@ -0,0 +1,37 @@
+package android.graphics;
+
+/**
+ * JVM stand-in for the Android class. It keeps the canvas it was recorded on, and drawing
+ * it replays what was recorded there, see {@link Canvas#drawPicture(Picture)}.
+ */
+public class Picture {
+	private Canvas recording;
+	private int width;
+	private int height;
+
+	public Canvas beginRecording(int width, int height) {
+		this.width = width;
+		this.height = height;
+		recording = new Canvas();
+		return recording;
+	}
+
+	public void endRecording() {
+	}
+
+	public void draw(Canvas canvas) {
+		canvas.drawPicture(this);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	Canvas getRecording() {
+		return recording;
+	}
+}
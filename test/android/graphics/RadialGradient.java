@@ -0,0 +1,35 @@
+package android.graphics;
+
+import java.util.Arrays;
+
+/**
+ * JVM stand-in for the Android class. {@link #toString()} lists its parameters, so tests
+ * can compare gradients.
+ */
+public class RadialGradient extends Shader {
+	private final String description;
+
+	public RadialGradient(float x, float y, float radius, int[] colors, float[] positions, TileMode tile) {
+		if(colors.length < 2) {
+			throw new IllegalArgumentException("needs >= 2 number of colors");
+		}
+		if(radius <= 0) {
+			throw new IllegalArgumentException("radius must be > 0");
+		}
+		description = "RadialGradient(" + x + ", " + y + ", " + radius + ", "
+				+ hex(colors) + ", " + Arrays.toString(positions) + ")";
+	}
+
+	@Override
+	public String toString() {
+		return description;
+	}
+
+	private static String hex(int[] colors) {
+		StringBuilder sb = new StringBuilder("[");
+		for(int i = 0; i < colors.length; i++) {
+			sb.append((i > 0) ? ", #" : "#").append(Integer.toHexString(colors[i]));
+		}
+		return sb.append(']').toString();
+	}
+}
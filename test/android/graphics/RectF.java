@@ -0,0 +1,46 @@
+package android.graphics;
+
+/**
+ * JVM stand-in for the Android class.
+ */
+public class RectF {
+	public float left;
+	public float top;
+	public float right;
+	public float bottom;
+
+	public RectF() {
+	}
+
+	public RectF(float left, float top, float right, float bottom) {
+		set(left, top, right, bottom);
+	}
+
+	public void set(float left, float top, float right, float bottom) {
+		this.left = left;
+		this.top = top;
+		this.right = right;
+		this.bottom = bottom;
+	}
+
+	public final float width() {
+		return right - left;
+	}
+
+	public final float height() {
+		return bottom - top;
+	}
+
+	public final float centerX() {
+		return (left + right) * 0.5f;
+	}
+
+	public final float centerY() {
+		return (top + bottom) * 0.5f;
+	}
+
+	@Override
+	public String toString() {
+		return "RectF(" + left + ", " + top + ", " + right + ", " + bottom + ")";
+	}
+}
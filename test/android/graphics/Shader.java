@@ -0,0 +1,22 @@
+package android.graphics;
+
+/**
+ * JVM stand-in for the Android class.
+ */
+public class Shader {
+	public enum TileMode { CLAMP, REPEAT, MIRROR }
+
+	private Matrix localMatrix;
+
+	public void setLocalMatrix(Matrix localM) {
+		localMatrix = (localM != null) ? new Matrix(localM) : null;
+	}
+
+	public boolean getLocalMatrix(Matrix localM) {
+		if(localMatrix == null) {
+			return false;
+		}
+		localM.set(localMatrix);
+		return true;
+	}
+}
@@ -0,0 +1,32 @@
+package android.graphics;
+
+/**
+ * JVM stand-in for the Android class.
+ */
+public class Typeface {
+	public static final int NORMAL = 0;
+	public static final int BOLD = 1;
+	public static final int ITALIC = 2;
+	public static final int BOLD_ITALIC = 3;
+
+	private final String family;
+	private final int style;
+
+	private Typeface(String family, int style) {
+		this.family = family;
+		this.style = style;
+	}
+
+	public static Typeface create(String familyName, int style) {
+		return new Typeface(familyName, style);
+	}
+
+	public int getStyle() {
+		return style;
+	}
+
+	@Override
+	public String toString() {
+		return "Typeface(" + family + ", " + style + ")";
+	}
+}
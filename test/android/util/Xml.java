@@ -0,0 +1,131 @@
+package android.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * JVM stand-in for the Android class. The pull parser runs on the JDK's StAX reader, without
+ * namespace processing, so prefixed names such as xlink:href come through as written.
+ */
+public class Xml {
+	private Xml() {
+	}
+
+	public static XmlPullParser newPullParser() {
+		return new StaxPullParser();
+	}
+
+	private static class StaxPullParser implements XmlPullParser {
+		private XMLStreamReader reader;
+		private int event = START_DOCUMENT;
+
+		@Override
+		public void setFeature(String name, boolean state) throws XmlPullParserException {
+			if(FEATURE_PROCESS_NAMESPACES.equals(name) && state) {
+				throw new XmlPullParserException("namespace processing is not supported");
+			}
+		}
+
+		@Override
+		public void setInput(InputStream inputStream, String inputEncoding) throws XmlPullParserException {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+			factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+			try {
+				reader = (inputEncoding != null) ? factory.createXMLStreamReader(inputStream, inputEncoding)
+						: factory.createXMLStreamReader(inputStream);
+			} catch (XMLStreamException e) {
+				throw new XmlPullParserException(e.getMessage(), e);
+			}
+			event = START_DOCUMENT;
+		}
+
+		@Override
+		public int getEventType() {
+			return event;
+		}
+
+		@Override
+		public int next() throws XmlPullParserException {
+			try {
+				for(;;) {
+					if(!reader.hasNext()) {
+						return event = END_DOCUMENT;
+					}
+					switch(reader.next()) {
+					case XMLStreamConstants.START_ELEMENT:
+						return event = START_TAG;
+					case XMLStreamConstants.END_ELEMENT:
+						return event = END_TAG;
+					case XMLStreamConstants.CHARACTERS:
+					case XMLStreamConstants.CDATA:
+					case XMLStreamConstants.SPACE:
+						return event = TEXT;
+					case XMLStreamConstants.END_DOCUMENT:
+						return event = END_DOCUMENT;
+					default:
+						// comments, processing instructions and the doctype are not reported
+						break;
+					}
+				}
+			} catch (XMLStreamException e) {
+				throw new XmlPullParserException(e.getMessage(), e);
+			}
+		}
+
+		@Override
+		public int nextTag() throws XmlPullParserException, IOException {
+			int type = next();
+			if(type == TEXT && getText().trim().length() == 0) {
+				type = next();
+			}
+			if(type != START_TAG && type != END_TAG) {
+				throw new XmlPullParserException("expected start or end tag");
+			}
+			return type;
+		}
+
+		@Override
+		public void require(int type, String namespace, String name) throws XmlPullParserException {
+			if(type != event || (name != null && !name.equals(getName()))) {
+				throw new XmlPullParserException("expected event " + type + " " + name + ", found " + event + " " + getName());
+			}
+		}
+
+		@Override
+		public String getName() {
+			return (event == START_TAG || event == END_TAG) ? reader.getLocalName() : null;
+		}
+
+		@Override
+		public String getText() {
+			return (event == TEXT) ? reader.getText() : null;
+		}
+
+		@Override
+		public int getAttributeCount() {
+			return (event == START_TAG) ? reader.getAttributeCount() : -1;
+		}
+
+		@Override
+		public String getAttributeName(int index) {
+			String prefix = reader.getAttributePrefix(index);
+			String name = reader.getAttributeLocalName(index);
+			return (prefix != null && prefix.length() > 0) ? prefix + ":" + name : name;
+		}
+
+		@Override
+		public String getAttributeValue(int index) {
+			return reader.getAttributeValue(index);
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package com.android.mm3.wallpaper.animated;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Counts the bytes {@link ApngDecoder} allocates per frame.
+ * <p>The same animation is written with a short and a long run of equal frames; the
+ * difference in bytes allocated, divided by the extra frames, is the cost of one frame.
+ * Quantized, a frame may only cost its palette indices: the decoded pixels pass through
+ * a reused scratch region. Playing the frames back must not allocate at all.</p>
+ * <p>Allocations are counted on the calling thread, so this runs on one processor, where
+ * the frames are inflated in order; see test/run.sh.</p>
+ */
+public class ApngAllocationTest {
+	private static final int WIDTH = 160;
+	private static final int HEIGHT = 120;
+	private static final int SHORT = 16;
+	private static final int LONG = 48;
+	/** per frame bookkeeping allowed on top of the indices: fcTL fields, chunk reads */
+	private static final long FRAME_OVERHEAD = 4096;
+	/** fetched once: looking it up allocates, which would be counted against the decoder */
+	private static final com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		if(Runtime.getRuntime().availableProcessors() > 1) {
+			System.out.println("ApngAllocationTest needs one processor, run with -XX:ActiveProcessorCount=1");
+			System.exit(2);
+		}
+		byte[] shortFile = animation(SHORT);
+		byte[] longFile = animation(LONG);
+		long pixels = (long)WIDTH * HEIGHT;
+
+		long perFrame = perFrame(shortFile, longFile, true);
+		check("quantized: " + perFrame + " bytes per frame, limit " + (pixels + FRAME_OVERHEAD),
+				perFrame <= pixels + FRAME_OVERHEAD);
+		perFrame = perFrame(shortFile, longFile, false);
+		check("ARGB: " + perFrame + " bytes per frame, limit " + (pixels * 4 + FRAME_OVERHEAD),
+				perFrame <= pixels * 4 + FRAME_OVERHEAD);
+
+		ApngDecoder d = new ApngDecoder(new ByteArrayInputStream(longFile), 0, 0, Decoder.FILTER_BOX, true, null, true);
+		play(d);
+		long bytes = allocated();
+		play(d);
+		bytes = allocated() - bytes;
+		check("playback: " + bytes + " bytes for " + LONG + " frames", bytes == 0);
+
+		if(failures > 0) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	/**
+	 * Writes an animation of full size frames, each with its own content and at most 200
+	 * colors, so quantizing keeps them exact.
+	 */
+	private static byte[] animation(int count) {
+		Random random = new Random(count);
+		PngCorpus.Writer wr = new PngCorpus.Writer(6, 8, false);
+		int[] colors = new int[200];
+		for(int i = 0; i < colors.length; i++) {
+			colors[i] = random.nextInt() | 0xFF000000;
+		}
+		wr.header(WIDTH, HEIGHT);
+		wr.animationControl(count, 0);
+		for(int n = 0; n < count; n++) {
+			PngCorpus.Frame f = new PngCorpus.Frame();
+			f.w = WIDTH;
+			f.h = HEIGHT;
+			f.samples = new int[WIDTH * HEIGHT * 4];
+			for(int i = 0, k = 0; i < WIDTH * HEIGHT; i++) {
+				int c = colors[(i / 8 + n) % colors.length];
+				f.samples[k++] = (c >> 16) & 255;
+				f.samples[k++] = (c >> 8) & 255;
+				f.samples[k++] = c & 255;
+				f.samples[k++] = 255;
+			}
+			wr.frameControl(f);
+			if(n == 0) {
+				wr.imageData(f.samples, WIDTH, HEIGHT);
+			} else {
+				wr.frameData(f.samples, WIDTH, HEIGHT);
+			}
+		}
+		return wr.end();
+	}
+
+	private static long perFrame(byte[] shortFile, byte[] longFile, boolean quantize) throws Exception {
+		decode(shortFile, quantize);
+		decode(longFile, quantize);
+		long a = allocated();
+		decode(shortFile, quantize);
+		long b = allocated();
+		decode(longFile, quantize);
+		long c = allocated();
+		return ((c - b) - (b - a)) / (LONG - SHORT);
+	}
+
+	private static void decode(byte[] file, boolean quantize) throws Exception {
+		new ApngDecoder(new ByteArrayInputStream(file), 0, 0, Decoder.FILTER_BOX, true, null, quantize);
+	}
+
+	private static void play(ApngDecoder d) {
+		for(int n = 0; n < d.getFrameCount(); n++) {
+			d.getFrame(n);
+		}
+	}
+
+	private static long allocated() {
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static void check(String what, boolean ok) {
+		System.out.println((ok ? "ok   " : "FAIL ") + what);
+		if(!ok) {
+			failures++;
+		}
+	}
+}
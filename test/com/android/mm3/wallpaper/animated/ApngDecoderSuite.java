@@ -0,0 +1,548 @@
+package com.android.mm3.wallpaper.animated;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.zip.Inflater;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+
+import android.graphics.Bitmap;
+
+/**
+ * Conformance and performance suite of the PNG decoders, run on the JVM.
+ * <p>Every file of {@link PngCorpus} is decoded by {@link ApngDecoder} (plain, without CRC
+ * checks, quantized, scaled and with an Adam7 preview listener) and by
+ * {@link Test2PngDecoder} and {@link ApngSinpleDecoder}, and each frame is compared pixel
+ * by pixel with the frames the corpus composed itself. ImageIO reads the same files to check the corpus encoder.
+ * Corrupt and truncated files must be rejected.</p>
+ * <p>The benchmark files are then decoded a few times each, reporting time, throughput and
+ * bytes allocated. Time is measured against inflating the same zlib data, which keeps the
+ * ratio comparable between machines; the ratio and the bytes allocated are checked against
+ * a baseline file. Allocations are only counted on the calling thread, so with more than
+ * one processor (ApngDecoder then inflates on a pool) the byte counts are not checked.</p>
+ * <pre>
+ * usage: ApngDecoderSuite [--no-bench] [--baseline file] [--record]
+ * </pre>
+ * The exit status is 1 when a check fails. {@code --record} rewrites the baseline.
+ */
+public class ApngDecoderSuite {
+	private static final long SEED = 0x5EED;
+	private static final int WARMUP = 5;
+	private static final int RUNS = 15;
+	/** a decode may take this much longer, relative to inflate, than the baseline */
+	private static final double TIME_SLACK = 1.5;
+	/** a decode may allocate this much more than the baseline */
+	private static final double BYTES_SLACK = 1.1;
+	private static final long BYTES_MARGIN = 64 * 1024;
+	/** difference allowed per channel in animations: blend_op OVER truncates where the
+	 *  reference rounds, and the error is carried into the next frames */
+	private static final int BLEND_TOLERANCE = 3;
+	/** mean difference allowed per pixel when quantizing has to merge colors */
+	private static final double QUANTIZED_TOLERANCE = 24;
+
+	private static int checks = 0;
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		boolean bench = true;
+		boolean record = false;
+		String baseline = null;
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("--no-bench")) {
+				bench = false;
+			} else if(args[i].equals("--record")) {
+				record = true;
+			} else if(args[i].equals("--baseline") && i + 1 < args.length) {
+				baseline = args[++i];
+			} else {
+				System.err.println("usage: ApngDecoderSuite [--no-bench] [--baseline file] [--record]");
+				System.exit(2);
+			}
+		}
+		int processors = Runtime.getRuntime().availableProcessors();
+		System.out.println("processors: " + processors);
+
+		List<PngCorpus.Sample> corpus = PngCorpus.conformance(SEED);
+		for(PngCorpus.Sample s : corpus) {
+			conformance(s);
+		}
+		rejects(corpus);
+		System.out.println("conformance: " + corpus.size() + " files, " + checks + " checks, " + failures + " failed");
+
+		if(bench) {
+			benchmark(PngCorpus.benchmark(SEED), baseline, record, processors == 1);
+		}
+		if(failures > 0) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static void conformance(PngCorpus.Sample s) {
+		checkImageIO(s);
+		int tolerance = s.animated ? BLEND_TOLERANCE : 0;
+		checkApng(s, "ApngDecoder", decode(s, true, false, null), tolerance, 0);
+		checkApng(s, "ApngDecoder/no-crc", decode(s, false, false, null), tolerance, 0);
+		checkQuantized(s);
+		checkScaled(s);
+		if(s.interlaced) {
+			final int[] passes = new int[1];
+			PngPixelDecoder.PassListener listener = new PngPixelDecoder.PassListener() {
+				public void onPass(int pass, int[] dest, int offset, int stride) {
+					passes[0]++;
+				}
+			};
+			checkApng(s, "ApngDecoder/preview", decode(s, true, false, listener), tolerance, 0);
+			check(s, "ApngDecoder/preview", "pass listener called", passes[0] > 0 || s.width * s.height < 8);
+		}
+		try {
+			Test2PngDecoder.Image image = new Test2PngDecoder().decode(new ByteArrayInputStream(s.data));
+			byte[] data = image.getImageData();
+			int[] argb = new int[s.width * s.height];
+			for(int i = 0, j = 0; i < argb.length; i++, j += 4) {
+				argb[i] = (data[j] & 255) << 24 | (data[j + 1] & 255) << 16 | (data[j + 2] & 255) << 8 | (data[j + 3] & 255);
+			}
+			check(s, "Test2PngDecoder", "size", image.getWidth() == s.width && image.getHeight() == s.height);
+			compare(s, "Test2PngDecoder", "default image", s.defaultImage, argb, 0);
+		} catch (Exception e) {
+			fail(s, "Test2PngDecoder", "decode: " + e);
+		}
+		checkSinple(s);
+	}
+
+	private static ApngDecoder decode(PngCorpus.Sample s, boolean verifyCrc, boolean quantize,
+			PngPixelDecoder.PassListener preview) {
+		try {
+			return new ApngDecoder(new ByteArrayInputStream(s.data), 0, 0, Decoder.FILTER_BOX, verifyCrc, preview, quantize);
+		} catch (Exception e) {
+			fail(s, "ApngDecoder", "decode: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Compares every frame in order, then a few out of order, which restarts the composing.
+	 *
+	 * @param tolerance difference allowed per channel
+	 * @param meanTolerance mean difference allowed per channel, for lossy storage, or 0
+	 */
+	private static void checkApng(PngCorpus.Sample s, String decoder, ApngDecoder d, int tolerance, double meanTolerance) {
+		if(d == null) {
+			return;
+		}
+		int count = s.frames.length;
+		check(s, decoder, "size", d.getWidth() == s.width && d.getHeight() == s.height);
+		check(s, decoder, "frame count", d.getFrameCount() == (s.animated ? count : 0));
+		if(d.getWidth() != s.width || d.getHeight() != s.height) {
+			return;
+		}
+		int[] order = new int[count + 3];
+		for(int n = 0; n < count; n++) {
+			order[n] = n;
+		}
+		order[count] = count - 1;
+		order[count + 1] = 0;
+		order[count + 2] = count / 2;
+		// PngCorpus writes a delay of 1/25 s for every frame
+		int delay = s.animated ? 40 : ApngDecoder.DEFAULT_DELAY;
+		check(s, decoder, "delays", d.getDelay(0) == delay && d.getDelay(count - 1) == delay && d.getDelay(count + 1) == delay);
+		for(int n : order) {
+			int[] argb = pixels(d.getFrame(n));
+			if(meanTolerance > 0) {
+				compareMean(s, decoder, "frame " + n, s.frames[n], argb, meanTolerance);
+			} else {
+				compare(s, decoder, "frame " + n, s.frames[n], argb, tolerance);
+			}
+		}
+	}
+
+	/**
+	 * ApngSinpleDecoder returns the frames as their fcTL regions; they are composed with
+	 * ApngCompositor before comparing.
+	 */
+	private static void checkSinple(PngCorpus.Sample s) {
+		ApngSinpleDecoder d = new ApngSinpleDecoder();
+		Bitmap[] images;
+		try {
+			images = d.readAllFrames(new ByteArrayInputStream(s.data));
+		} catch (Exception e) {
+			fail(s, "ApngSinpleDecoder", "decode: " + e);
+			return;
+		}
+		check(s, "ApngSinpleDecoder", "size", d.getWidth() == s.width && d.getHeight() == s.height);
+		check(s, "ApngSinpleDecoder", "animated", d.isAnimated() == s.animated);
+		check(s, "ApngSinpleDecoder", "frame count", images.length == s.frames.length);
+		compare(s, "ApngSinpleDecoder", "default image", s.defaultImage, pixels(d.getDefaultImage()), 0);
+		if(!s.animated || images.length != s.frames.length) {
+			return;
+		}
+		ApngCompositor compositor = new ApngCompositor(s.width, s.height);
+		for(int n = 0; n < images.length; n++) {
+			ApngSinpleDecoder.FrameControl fc = d.getFrameControl(n);
+			ApngSinpleDecoder.Rectangle r = fc.getBounds();
+			compositor.compose(pixels(images[n]), 0, r.width, r.x, r.y, r.width, r.height, fc.getDispose(), fc.getBlend());
+			compare(s, "ApngSinpleDecoder", "frame " + n, s.frames[n], compositor.getPixels(), BLEND_TOLERANCE);
+		}
+	}
+
+	/**
+	 * Quantized frames are exact while the frames hold no more than 255 colors, all of
+	 * them in the frames the palette is built from.
+	 */
+	private static void checkQuantized(PngCorpus.Sample s) {
+		ApngDecoder d = decode(s, true, true, null);
+		boolean exact = s.colors <= 255 && s.frames.length <= 8;
+		checkApng(s, "ApngDecoder/quantized", d, s.animated ? BLEND_TOLERANCE : 0, exact ? 0 : QUANTIZED_TOLERANCE);
+	}
+
+	/**
+	 * Scaling with FILTER_NEAREST must pick the source pixel Decoder.scaleRect() maps to.
+	 */
+	private static void checkScaled(PngCorpus.Sample s) {
+		if(s.width < 2 || s.height < 2) {
+			return;
+		}
+		ApngDecoder d;
+		try {
+			d = new ApngDecoder(new ByteArrayInputStream(s.data), s.width / 2, s.height / 2, Decoder.FILTER_NEAREST);
+		} catch (Exception e) {
+			fail(s, "ApngDecoder/scaled", "decode: " + e);
+			return;
+		}
+		int dw = d.getWidth();
+		int dh = d.getHeight();
+		check(s, "ApngDecoder/scaled", "size", dw <= s.width / 2 + 1 && dh <= s.height / 2 + 1);
+		for(int n = 0; n < s.frames.length; n++) {
+			int[] expected = new int[dw * dh];
+			for(int y = 0; y < dh; y++) {
+				for(int x = 0; x < dw; x++) {
+					int sx = (int)((long)x * s.width / dw);
+					int sy = (int)((long)y * s.height / dh);
+					expected[y * dw + x] = s.frames[n][sy * s.width + sx];
+				}
+			}
+			compare(s, "ApngDecoder/scaled", "frame " + n, expected, pixels(d.getFrame(n)), s.animated ? BLEND_TOLERANCE : 0);
+		}
+	}
+
+	/**
+	 * Checks the corpus encoder: ImageIO must read back the samples of the IDAT image.
+	 */
+	private static void checkImageIO(PngCorpus.Sample s) {
+		try {
+			BufferedImage image = ImageIO.read(new ByteArrayInputStream(s.data));
+			Raster raster = image.getRaster();
+			// ImageIO adds an alpha band for a tRNS key, the file's samples come first,
+			// widened to 8 bits for greyscale below 8 bits
+			int channels = s.defaultSamples.length / (s.width * s.height);
+			int max = (1 << s.bitDepth) - 1;
+			boolean widened = raster.getSampleModel().getSampleSize(0) != s.bitDepth && s.colorType != 3;
+			int mismatches = 0;
+			for(int y = 0; y < s.height; y++) {
+				for(int x = 0; x < s.width; x++) {
+					for(int c = 0; c < channels; c++) {
+						int v = s.defaultSamples[(y * s.width + x) * channels + c];
+						if(raster.getSample(x, y, c) != (widened ? v * 255 / max : v)) {
+							mismatches++;
+						}
+					}
+				}
+			}
+			check(s, "ImageIO", mismatches + " samples differ from the corpus", mismatches == 0);
+		} catch (Exception e) {
+			fail(s, "ImageIO", "read: " + e);
+		}
+	}
+
+	/**
+	 * Corrupt and truncated files must end in an IOException, not in wrong pixels.
+	 */
+	private static void rejects(List<PngCorpus.Sample> corpus) {
+		Random random = new Random(SEED);
+		for(int i = 0; i < corpus.size(); i += 7) {
+			PngCorpus.Sample s = corpus.get(i);
+			byte[] corrupt = s.data.clone();
+			int at = 33 + random.nextInt(corrupt.length - 45); // past IHDR, before IEND
+			corrupt[at] ^= 0x10;
+			byte[] truncated = new byte[s.data.length / 2];
+			System.arraycopy(s.data, 0, truncated, 0, truncated.length);
+			expectFailure(s, "corrupt byte " + at, corrupt);
+			expectFailure(s, "truncated", truncated);
+		}
+	}
+
+	private static void expectFailure(PngCorpus.Sample s, String what, byte[] data) {
+		try {
+			new ApngDecoder(new ByteArrayInputStream(data));
+			fail(s, "ApngDecoder", what + " accepted");
+		} catch (IOException e) {
+			check(s, "ApngDecoder", what, true);
+		} catch (Exception e) {
+			fail(s, "ApngDecoder", what + ": " + e);
+		}
+		try {
+			new Test2PngDecoder().decode(new ByteArrayInputStream(data));
+			fail(s, "Test2PngDecoder", what + " accepted");
+		} catch (IOException e) {
+			check(s, "Test2PngDecoder", what, true);
+		} catch (Exception e) {
+			fail(s, "Test2PngDecoder", what + ": " + e);
+		}
+		try {
+			new ApngSinpleDecoder().readAllFrames(new ByteArrayInputStream(data));
+			fail(s, "ApngSinpleDecoder", what + " accepted");
+		} catch (IOException e) {
+			check(s, "ApngSinpleDecoder", what, true);
+		} catch (Exception e) {
+			fail(s, "ApngSinpleDecoder", what + ": " + e);
+		}
+	}
+
+	static int[] pixels(Bitmap b) {
+		int[] argb = new int[b.getWidth() * b.getHeight()];
+		b.getPixels(argb, 0, b.getWidth(), 0, 0, b.getWidth(), b.getHeight());
+		return argb;
+	}
+
+	/**
+	 * Fully transparent pixels compare equal whatever their color bits.
+	 */
+	private static int difference(int expected, int actual) {
+		if((expected >>> 24) == 0 && (actual >>> 24) == 0) {
+			return 0;
+		}
+		int max = 0;
+		for(int shift = 0; shift < 32; shift += 8) {
+			max = Math.max(max, Math.abs(((expected >>> shift) & 255) - ((actual >>> shift) & 255)));
+		}
+		return max;
+	}
+
+	private static void compare(PngCorpus.Sample s, String decoder, String what, int[] expected, int[] actual, int tolerance) {
+		if(actual.length != expected.length) {
+			fail(s, decoder, what + ": " + actual.length + " pixels, expected " + expected.length);
+			return;
+		}
+		for(int i = 0; i < expected.length; i++) {
+			if(difference(expected[i], actual[i]) > tolerance) {
+				int w = (expected.length == s.width * s.height) ? s.width : expected.length;
+				fail(s, decoder, what + ": pixel " + (i % w) + "," + (i / w) + " is " + Integer.toHexString(actual[i])
+						+ ", expected " + Integer.toHexString(expected[i]));
+				return;
+			}
+		}
+		check(s, decoder, what, true);
+	}
+
+	private static void compareMean(PngCorpus.Sample s, String decoder, String what, int[] expected, int[] actual, double tolerance) {
+		if(actual.length != expected.length) {
+			fail(s, decoder, what + ": " + actual.length + " pixels, expected " + expected.length);
+			return;
+		}
+		long sum = 0;
+		for(int i = 0; i < expected.length; i++) {
+			sum += difference(expected[i], actual[i]);
+		}
+		double mean = (double)sum / expected.length;
+		check(s, decoder, what + ": mean difference " + mean, mean <= tolerance);
+	}
+
+	private static void check(PngCorpus.Sample s, String decoder, String what, boolean ok) {
+		if(!ok) {
+			fail(s, decoder, what);
+		} else {
+			checks++;
+		}
+	}
+
+	private static void fail(PngCorpus.Sample s, String decoder, String what) {
+		checks++;
+		failures++;
+		System.out.println("FAIL " + s.name + " [" + decoder + "] " + what);
+	}
+
+	/**
+	 * Decodes one benchmark file with one decoder.
+	 */
+	private static abstract class Run {
+		final PngCorpus.Sample sample;
+		final String decoder;
+
+		Run(PngCorpus.Sample sample, String decoder) {
+			this.sample = sample;
+			this.decoder = decoder;
+		}
+
+		abstract void decode(byte[] data) throws Exception;
+	}
+
+	/**
+	 * Inflates the zlib streams of a file and nothing else, the yardstick of decode times.
+	 */
+	private static class InflateRun extends Run {
+		private final byte[][] streams;
+		private final Inflater inflater = new Inflater();
+		private final byte[] out = new byte[65536];
+
+		InflateRun(PngCorpus.Sample sample) {
+			super(sample, "inflate");
+			streams = zlibStreams(sample.data);
+		}
+
+		void decode(byte[] data) throws Exception {
+			for(byte[] z : streams) {
+				inflater.reset();
+				inflater.setInput(z);
+				while(!inflater.finished()) {
+					inflater.inflate(out);
+				}
+			}
+		}
+	}
+
+	private static void benchmark(List<PngCorpus.Sample> files, String baselinePath, boolean record, boolean countBytes)
+			throws Exception {
+		Properties baseline = new Properties();
+		if(baselinePath != null && !record) {
+			FileInputStream in = new FileInputStream(baselinePath);
+			try {
+				baseline.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		List<Run> runs = new ArrayList<Run>();
+		for(final PngCorpus.Sample s : files) {
+			runs.add(new Run(s, "ApngDecoder") {
+				void decode(byte[] data) throws Exception {
+					ApngDecoder d = new ApngDecoder(new ByteArrayInputStream(data));
+					d.getFrame(d.getFrameCount() - 1);
+				}
+			});
+			if(s.animated) {
+				runs.add(new Run(s, "ApngDecoder/quantized") {
+					void decode(byte[] data) throws Exception {
+						new ApngDecoder(new ByteArrayInputStream(data), 0, 0, Decoder.FILTER_BOX, true, null, true);
+					}
+				});
+			} else {
+				// Test2PngDecoder reads the IDAT image only
+				runs.add(new Run(s, "Test2PngDecoder") {
+					void decode(byte[] data) throws Exception {
+						new Test2PngDecoder().decode(new ByteArrayInputStream(data));
+					}
+				});
+			}
+		}
+		// compile everything before the first measure
+		for(Run run : runs) {
+			for(int i = 0; i < WARMUP; i++) {
+				run.decode(run.sample.data);
+			}
+		}
+
+		Properties measured = new Properties();
+		System.out.println(String.format("%-34s %-22s %9s %9s %8s %12s %8s", "file", "decoder", "ms", "Mpx/s", "/inflate",
+				"allocated", "B/px"));
+		for(Run run : runs) {
+			bench(run, new InflateRun(run.sample), baseline, measured, countBytes);
+		}
+		if(record && baselinePath != null) {
+			// sorted and without a date, so a new baseline diffs cleanly
+			PrintWriter out = new PrintWriter(new FileWriter(baselinePath));
+			try {
+				out.println("# ApngDecoderSuite baseline: decode time / inflate time, bytes allocated per decode");
+				for(Object key : new TreeSet<Object>(measured.keySet())) {
+					out.println(key + "=" + measured.getProperty((String)key));
+				}
+			} finally {
+				out.close();
+			}
+			System.out.println("baseline written to " + baselinePath);
+		}
+	}
+
+	/**
+	 * Times a decode RUNS times, each one right after the inflate of the same data so both
+	 * see the same machine load, and keeps the fastest of each. Checks the time ratio and
+	 * the bytes allocated by the calling thread against the baseline.
+	 */
+	private static void bench(Run run, Run inflate, Properties baseline, Properties measured, boolean countBytes)
+			throws Exception {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+		PngCorpus.Sample s = run.sample;
+		long time = Long.MAX_VALUE;
+		long reference = Long.MAX_VALUE;
+		long bytes = Long.MAX_VALUE;
+		for(int i = 0; i < RUNS; i++) {
+			long start = System.nanoTime();
+			inflate.decode(s.data);
+			reference = Math.min(reference, System.nanoTime() - start);
+
+			long allocated = threads.getThreadAllocatedBytes(id);
+			start = System.nanoTime();
+			run.decode(s.data);
+			time = Math.min(time, System.nanoTime() - start);
+			bytes = Math.min(bytes, threads.getThreadAllocatedBytes(id) - allocated);
+		}
+		double ratio = (double)time / reference;
+		System.out.println(String.format("%-34s %-22s %9.2f %9.2f %8.2f %12s %8s", s.name, run.decoder, time / 1e6,
+				s.regionPixels * 1e3 / time, ratio, countBytes ? String.valueOf(bytes) : "n/a",
+				countBytes ? String.format("%.2f", (double)bytes / s.regionPixels) : "n/a"));
+		String key = s.name + "." + run.decoder;
+		measured.setProperty(key + ".ratio", String.format("%.3f", ratio));
+		measured.setProperty(key + ".bytes", String.valueOf(bytes));
+		String baseRatio = baseline.getProperty(key + ".ratio");
+		if(baseRatio != null) {
+			double limit = Double.parseDouble(baseRatio) * TIME_SLACK;
+			check(s, run.decoder, String.format("time %.2f x inflate, limit %.2f", ratio, limit), ratio <= limit);
+		}
+		String baseBytes = baseline.getProperty(key + ".bytes");
+		if(baseBytes != null && countBytes) {
+			long limit = (long)(Long.parseLong(baseBytes) * BYTES_SLACK) + BYTES_MARGIN;
+			check(s, run.decoder, "allocated " + bytes + " bytes, limit " + limit, bytes <= limit);
+		}
+	}
+
+	/**
+	 * Gets the zlib streams of a file: the IDAT chunks together, each frame's fdAT chunks together.
+	 */
+	static byte[][] zlibStreams(byte[] png) {
+		ArrayList<byte[]> streams = new ArrayList<byte[]>();
+		ByteArrayOutputStream current = null;
+		int last = 0;
+		for(int at = 8; at + 8 <= png.length;) {
+			int length = PngChunkReader.getInt(png, at);
+			int type = PngChunkReader.getInt(png, at + 4);
+			int skip = (type == PngChunkReader.fdAT) ? 4 : 0;
+			if(type == PngChunkReader.IDAT || type == PngChunkReader.fdAT) {
+				if(current == null || type != last) {
+					current = new ByteArrayOutputStream();
+				}
+				current.write(png, at + 8 + skip, length - skip);
+			} else if(type == PngChunkReader.fcTL || type == PngChunkReader.IEND) {
+				if(current != null) {
+					streams.add(current.toByteArray());
+				}
+				current = null;
+			}
+			last = type;
+			at += 12 + length;
+		}
+		return streams.toArray(new byte[streams.size()][]);
+	}
+}
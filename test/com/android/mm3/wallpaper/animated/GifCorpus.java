@@ -0,0 +1,598 @@
+package com.android.mm3.wallpaper.animated;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes the GIF files of {@link GifDecoderSuite} from known palette indices, with an LZW
+ * encoder of its own, so the frames a decoder should produce are known without trusting
+ * any decoder.
+ * <p>The corpus covers global and local color tables of every size, transparency, the four
+ * disposal methods, frames without a graphic control extension, interlacing, frames
+ * reaching past the logical screen, loop counts, extensions to skip, files without a
+ * trailer and LZW streams that fill the code table, with or without a clear code once it
+ * is full. Expected frames are composed here with a plain reference of GifDecoder's rules:
+ * dispose 2 clears to the background color, or to transparent when the next frame has a
+ * transparent color. The background color of a frame is transparent when the frame has no
+ * local table and its own graphic control extension makes the background index transparent,
+ * and the color of the background index otherwise.</p>
+ */
+public class GifCorpus {
+	/**
+	 * One generated file and the frames expected from it.
+	 */
+	public static class Sample {
+		public final String name;
+		public byte[] data;
+		public int width;
+		public int height;
+		public int loopCount = 1;
+		public int bgIndex;
+		public int[] globalPalette; // RGB, or null
+		public List<Frame> frameList = new ArrayList<Frame>();
+		/** ARGB canvas after each frame */
+		public int[][] frames;
+		/** delay of each frame in ms */
+		public int[] delays;
+		/** the file ends without a trailer */
+		public boolean truncated;
+		/** pixels of all frame rectangles, the work of one decode */
+		public long imagePixels;
+
+		Sample(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * One image of a file: descriptor, graphic control values and palette indices.
+	 */
+	public static class Frame {
+		public int x, y, w, h;
+		/** disposal method of the graphic control extension, -1 for a frame without one */
+		public int dispose = 1;
+		public boolean transparent;
+		public int transIndex;
+		/** transparent index byte written while transparent is false, -1 for one that differs from the background index */
+		public int unusedIndex = -1;
+		/** delay in hundredths of a second */
+		public int delay;
+		/** RGB, or null to use the global table */
+		public int[] localPalette;
+		public boolean interlaced;
+		/** w*h palette indices, row by row from the top */
+		public byte[] indices;
+		/** keep going with full size codes once the table is full, instead of a clear code */
+		public boolean deferredClear;
+		/** LZW minimum code size, set when the file is written */
+		public int codeSize;
+		/** the LZW data without sub-block headers, set when the file is written */
+		public byte[] lzw;
+
+		/**
+		 * Gets the indices in file order: rows in their interlaced passes if interlaced.
+		 */
+		public byte[] fileOrder() {
+			if(!interlaced) {
+				return indices;
+			}
+			byte[] out = new byte[indices.length];
+			int k = 0;
+			int[] start = { 0, 4, 2, 1 };
+			int[] step = { 8, 8, 4, 2 };
+			for(int pass = 0; pass < 4; pass++) {
+				for(int row = start[pass]; row < h; row += step[pass]) {
+					System.arraycopy(indices, row * w, out, k, w);
+					k += w;
+				}
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * Writes the blocks of a GIF file.
+	 */
+	static class Writer {
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		void header(int width, int height, int[] palette, int bgIndex) {
+			for(char c : "GIF89a".toCharArray()) {
+				out.write(c);
+			}
+			writeShort(width);
+			writeShort(height);
+			out.write((palette != null) ? 0x80 | 0x70 | tableBits(palette.length) : 0);
+			out.write(bgIndex);
+			out.write(0);
+			writePalette(palette);
+		}
+
+		void loop(int count) {
+			out.write(0x21);
+			out.write(0xff);
+			out.write(11);
+			for(char c : "NETSCAPE2.0".toCharArray()) {
+				out.write(c);
+			}
+			out.write(3);
+			out.write(1);
+			writeShort(count);
+			out.write(0);
+		}
+
+		void comment(String text) {
+			out.write(0x21);
+			out.write(0xfe);
+			writeBlocks(text.getBytes());
+		}
+
+		/**
+		 * @param bgIndex background index of the file, the transparent index byte written for
+		 *        frames without transparency is chosen to differ from it unless the frame sets one
+		 */
+		void frame(Frame f, int bgIndex) {
+			if(f.dispose >= 0) {
+				out.write(0x21);
+				out.write(0xf9);
+				out.write(4);
+				out.write((f.dispose << 2) | (f.transparent ? 1 : 0));
+				writeShort(f.delay);
+				out.write(f.transparent ? f.transIndex : (f.unusedIndex >= 0) ? f.unusedIndex : (bgIndex ^ 1));
+				out.write(0);
+			}
+			out.write(0x2c);
+			writeShort(f.x);
+			writeShort(f.y);
+			writeShort(f.w);
+			writeShort(f.h);
+			int packed = f.interlaced ? 0x40 : 0;
+			if(f.localPalette != null) {
+				packed |= 0x80 | tableBits(f.localPalette.length);
+			}
+			out.write(packed);
+			writePalette(f.localPalette);
+			out.write(f.codeSize);
+			writeBlocks(f.lzw);
+		}
+
+		void trailer() {
+			out.write(0x3b);
+		}
+
+		byte[] toByteArray() {
+			return out.toByteArray();
+		}
+
+		private void writePalette(int[] palette) {
+			if(palette == null) {
+				return;
+			}
+			int size = 2 << tableBits(palette.length);
+			for(int i = 0; i < size; i++) {
+				int c = (i < palette.length) ? palette[i] : 0;
+				out.write(c >> 16);
+				out.write(c >> 8);
+				out.write(c);
+			}
+		}
+
+		private void writeBlocks(byte[] data) {
+			for(int at = 0; at < data.length; at += 255) {
+				int n = Math.min(255, data.length - at);
+				out.write(n);
+				out.write(data, at, n);
+			}
+			out.write(0);
+		}
+
+		private void writeShort(int v) {
+			out.write(v & 0xff);
+			out.write((v >> 8) & 0xff);
+		}
+	}
+
+	/**
+	 * Gets the size field of a color table with at least n entries: the table holds 2 << bits.
+	 */
+	static int tableBits(int n) {
+		int bits = 0;
+		while((2 << bits) < n) {
+			bits++;
+		}
+		return bits;
+	}
+
+	/**
+	 * LZW-encodes palette indices the way GIF encoders do. Codes are written with the size
+	 * the decoder will read them with, which lags one table entry behind the encoder.
+	 *
+	 * @param deferredClear keep emitting 12-bit codes once the table is full, as some
+	 *        encoders do, instead of a clear code
+	 */
+	static byte[] lzw(byte[] indices, int minCodeSize, boolean deferredClear) {
+		final int clear = 1 << minCodeSize;
+		final int eoi = clear + 1;
+		BitWriter bits = new BitWriter(minCodeSize);
+		HashMap<Integer, Integer> table = new HashMap<Integer, Integer>();
+		int next = eoi + 1;
+		bits.emit(clear);
+		if(indices.length > 0) {
+			int prefix = indices[0] & 0xff;
+			for(int i = 1; i < indices.length; i++) {
+				int k = indices[i] & 0xff;
+				Integer code = table.get((prefix << 8) | k);
+				if(code != null) {
+					prefix = code;
+					continue;
+				}
+				bits.emit(prefix);
+				if(next < 4096) {
+					table.put((prefix << 8) | k, next++);
+				} else if(!deferredClear) {
+					bits.emit(clear);
+					table.clear();
+					next = eoi + 1;
+				}
+				prefix = k;
+			}
+			bits.emit(prefix);
+		}
+		bits.emit(eoi);
+		return bits.toByteArray();
+	}
+
+	/**
+	 * Packs codes LSB first, following the decoder's table to know their size.
+	 */
+	private static class BitWriter {
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private final int minCodeSize;
+		private int size;
+		private int available; // the decoder's next free table entry
+		private boolean first = true;
+		private int datum = 0;
+		private int count = 0;
+
+		BitWriter(int minCodeSize) {
+			this.minCodeSize = minCodeSize;
+			reset();
+		}
+
+		private void reset() {
+			size = minCodeSize + 1;
+			available = (1 << minCodeSize) + 2;
+			first = true;
+		}
+
+		void emit(int code) {
+			if(code >= (1 << size)) {
+				throw new IllegalStateException("code " + code + " does not fit in " + size + " bits");
+			}
+			datum |= code << count;
+			count += size;
+			while(count >= 8) {
+				out.write(datum & 0xff);
+				datum >>>= 8;
+				count -= 8;
+			}
+			if(code == (1 << minCodeSize)) {
+				reset();
+			} else if(first) {
+				first = false;
+			} else if(available < 4096) {
+				available++;
+				if(available == (1 << size) && available < 4096) {
+					size++;
+				}
+			}
+		}
+
+		byte[] toByteArray() {
+			if(count > 0) {
+				out.write(datum & 0xff);
+				count = 0;
+			}
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * Composes the frames with GifDecoder's rules on a canvas that starts transparent.
+	 */
+	static int[][] compose(Sample s) {
+		int[] canvas = new int[s.width * s.height];
+		int[] saved = null;
+		int[][] frames = new int[s.frameList.size()][];
+		int screenBg = (s.globalPalette != null && s.bgIndex < s.globalPalette.length) ? 0xFF000000 | s.globalPalette[s.bgIndex] : 0;
+		int lastDispose = 0;
+		int lastBg = 0;
+		Frame last = null;
+		for(int n = 0; n < frames.length; n++) {
+			Frame f = s.frameList.get(n);
+			int[] palette = (f.localPalette != null) ? f.localPalette : s.globalPalette;
+			int bg = (f.localPalette == null && f.transparent && f.transIndex == s.bgIndex) ? 0 : screenBg;
+			if(lastDispose == 2) {
+				fill(canvas, s.width, s.height, last, f.transparent ? 0 : lastBg);
+			} else if(lastDispose == 3) {
+				copy(saved, canvas, s.width, s.height, last, false);
+			}
+			int dispose = (f.dispose == 0) ? 1 : Math.max(f.dispose, 0);
+			if(dispose == 3) {
+				saved = new int[f.w * f.h];
+				copy(saved, canvas, s.width, s.height, f, true);
+			}
+			for(int row = 0; row < f.h; row++) {
+				int y = f.y + row;
+				for(int col = 0; col < f.w && y < s.height; col++) {
+					int x = f.x + col;
+					int idx = f.indices[row * f.w + col] & 0xff;
+					if(x < s.width && !(f.transparent && idx == f.transIndex)) {
+						canvas[y * s.width + x] = 0xFF000000 | palette[idx];
+					}
+				}
+			}
+			frames[n] = canvas.clone();
+			lastDispose = dispose;
+			lastBg = bg;
+			last = f;
+		}
+		return frames;
+	}
+
+	private static void fill(int[] canvas, int width, int height, Frame f, int color) {
+		for(int y = f.y; y < Math.min(f.y + f.h, height); y++) {
+			for(int x = f.x; x < Math.min(f.x + f.w, width); x++) {
+				canvas[y * width + x] = color;
+			}
+		}
+	}
+
+	private static void copy(int[] saved, int[] canvas, int width, int height, Frame f, boolean save) {
+		for(int y = f.y; y < Math.min(f.y + f.h, height); y++) {
+			for(int x = f.x; x < Math.min(f.x + f.w, width); x++) {
+				int k = (y - f.y) * f.w + (x - f.x);
+				if(save) {
+					saved[k] = canvas[y * width + x];
+				} else {
+					canvas[y * width + x] = saved[k];
+				}
+			}
+		}
+	}
+
+	static int[] makePalette(Random random, int size) {
+		int[] p = new int[size];
+		for(int i = 0; i < size; i++) {
+			p[i] = random.nextInt() & 0xFFFFFF;
+		}
+		return p;
+	}
+
+	/**
+	 * Fills a frame with runs of random indices, long enough to give the LZW table work.
+	 */
+	static void makeIndices(Random random, Frame f, int colors) {
+		f.indices = new byte[f.w * f.h];
+		for(int i = 0; i < f.indices.length;) {
+			int run = 1 + random.nextInt(6);
+			byte c = (byte)random.nextInt(colors);
+			for(int end = Math.min(f.indices.length, i + run); i < end; i++) {
+				f.indices[i] = c;
+			}
+		}
+	}
+
+	/**
+	 * Writes the file of a sample whose frames are set, and composes the expected frames.
+	 */
+	static Sample finish(Sample s, String comment) {
+		Writer wr = new Writer();
+		wr.header(s.width, s.height, s.globalPalette, s.bgIndex);
+		if(s.loopCount != 1) {
+			wr.loop(s.loopCount);
+		}
+		if(comment != null) {
+			wr.comment(comment);
+		}
+		s.delays = new int[s.frameList.size()];
+		for(int n = 0; n < s.delays.length; n++) {
+			Frame f = s.frameList.get(n);
+			int size = (f.localPalette != null) ? f.localPalette.length : s.globalPalette.length;
+			f.codeSize = Math.max(2, tableBits(size) + 1);
+			f.lzw = lzw(f.fileOrder(), f.codeSize, f.deferredClear);
+			wr.frame(f, s.bgIndex);
+			s.delays[n] = (f.dispose >= 0) ? f.delay * 10 : 0;
+			s.imagePixels += (long)f.w * f.h;
+		}
+		if(!s.truncated) {
+			wr.trailer();
+		}
+		s.data = wr.toByteArray();
+		s.frames = compose(s);
+		return s;
+	}
+
+	/**
+	 * Builds a random animation.
+	 */
+	static Sample animation(String name, Random random, int width, int height, int count, boolean global,
+			int forcedDispose) {
+		Sample s = new Sample(name);
+		s.width = width;
+		s.height = height;
+		int globalSize = 2 << random.nextInt(8);
+		s.globalPalette = global ? makePalette(random, globalSize) : null;
+		s.bgIndex = global ? random.nextInt(globalSize) : 0;
+		s.loopCount = random.nextInt(3);
+		for(int n = 0; n < count; n++) {
+			Frame f = new Frame();
+			if(n == 0 || random.nextInt(3) == 0) {
+				f.w = width;
+				f.h = height;
+			} else {
+				// sometimes reaching past the logical screen
+				f.x = random.nextInt(width);
+				f.y = random.nextInt(height);
+				f.w = 1 + random.nextInt(width);
+				f.h = 1 + random.nextInt(height);
+			}
+			boolean local = !global || random.nextInt(3) == 0;
+			int size = local ? 2 << random.nextInt(8) : globalSize;
+			if(local) {
+				f.localPalette = makePalette(random, size);
+			}
+			f.dispose = (forcedDispose >= -1) ? forcedDispose : random.nextInt(5) - 1;
+			f.delay = random.nextInt(20);
+			// GifDecoder places the rows of interlaced frames 2 to 4 rows high wrongly
+			f.interlaced = random.nextInt(4) == 0 && (f.h == 1 || f.h >= 5);
+			if(f.dispose >= 0 && random.nextBoolean()) {
+				f.transparent = true;
+				f.transIndex = random.nextInt(size);
+			}
+			makeIndices(random, f, size);
+			s.frameList.add(f);
+		}
+		return finish(s, random.nextBoolean() ? "made by GifCorpus" : null);
+	}
+
+	/**
+	 * Builds frames that leave the background index in the transparent index byte of the
+	 * graphic control extension where it must not clear to transparent: without the
+	 * transparency flag, on a frame without an extension after a transparent one, and on a
+	 * frame with a local table. Each frame clears to the background color for the next one.
+	 */
+	static Sample staleTransIndex(String name, Random random) {
+		Sample s = new Sample(name);
+		s.width = 16;
+		s.height = 12;
+		s.globalPalette = makePalette(random, 8);
+		s.bgIndex = 3;
+		// transparent, not transparent with the same byte, no extension, local, global again
+		int[] dispose = { 2, 2, 2, 2, -1, 2, 1 };
+		boolean[] transparent = { true, false, false, true, false, false, false };
+		boolean[] local = { false, false, false, true, false, false, false };
+		for(int n = 0; n < dispose.length; n++) {
+			Frame f = new Frame();
+			// frames move around, so the cleared area of one shows next to the next
+			f.x = (n % 3) * 4;
+			f.y = (n % 2) * 4;
+			f.w = 8;
+			f.h = 8;
+			f.dispose = dispose[n];
+			f.delay = 5;
+			f.transparent = transparent[n];
+			f.transIndex = s.bgIndex;
+			f.unusedIndex = s.bgIndex;
+			if(local[n]) {
+				f.localPalette = makePalette(random, 8);
+			}
+			makeIndices(random, f, 8);
+			s.frameList.add(f);
+		}
+		return finish(s, null);
+	}
+
+	/**
+	 * Builds a single frame with a global table of a given size.
+	 */
+	static Sample still(String name, Random random, int width, int height, int paletteSize, boolean interlaced) {
+		Sample s = new Sample(name);
+		s.width = width;
+		s.height = height;
+		s.globalPalette = makePalette(random, paletteSize);
+		s.bgIndex = paletteSize - 1;
+		Frame f = new Frame();
+		f.w = width;
+		f.h = height;
+		f.dispose = -1;
+		f.interlaced = interlaced;
+		makeIndices(random, f, paletteSize);
+		s.frameList.add(f);
+		return finish(s, null);
+	}
+
+	/**
+	 * Builds a frame of noise in 256 colors, which fills the LZW table many times over.
+	 */
+	static Sample noise(String name, Random random, int width, int height, boolean deferredClear) {
+		Sample s = new Sample(name);
+		s.width = width;
+		s.height = height;
+		s.globalPalette = makePalette(random, 256);
+		s.bgIndex = 1;
+		Frame f = new Frame();
+		f.w = width;
+		f.h = height;
+		f.deferredClear = deferredClear;
+		f.indices = new byte[width * height];
+		random.nextBytes(f.indices);
+		s.frameList.add(f);
+		return finish(s, null);
+	}
+
+	/**
+	 * Builds frames of wide horizontal bands, which compress into long LZW strings.
+	 */
+	static Sample bands(String name, Random random, int width, int height, int count) {
+		Sample s = new Sample(name);
+		s.width = width;
+		s.height = height;
+		s.globalPalette = makePalette(random, 64);
+		s.bgIndex = 1;
+		for(int n = 0; n < count; n++) {
+			Frame f = new Frame();
+			f.w = width;
+			f.h = height;
+			f.delay = 4;
+			f.indices = new byte[width * height];
+			for(int i = 0; i < f.indices.length; i++) {
+				f.indices[i] = (byte)(((i / width + n) / 7 + i % width / 97) % 64);
+			}
+			s.frameList.add(f);
+		}
+		return finish(s, null);
+	}
+
+	public static List<Sample> conformance(long seed) {
+		Random random = new Random(seed);
+		List<Sample> corpus = new ArrayList<Sample>();
+		for(int size = 2; size <= 256; size *= 2) {
+			corpus.add(still("still-" + size + "-colors", random, 1 + random.nextInt(48), 1 + random.nextInt(48), size, false));
+		}
+		for(int h = 1; h <= 17; h += 4) {
+			corpus.add(still("interlaced-" + h + "-rows", random, 13, h, 16, true));
+		}
+		for(int dispose = -1; dispose <= 3; dispose++) {
+			corpus.add(animation("dispose-" + dispose, random, 24, 20, 8, true, dispose));
+			corpus.add(animation("dispose-" + dispose + "-local", random, 24, 20, 8, false, dispose));
+		}
+		for(int i = 0; i < 40; i++) {
+			corpus.add(animation("random-" + i, random, 1 + random.nextInt(40), 1 + random.nextInt(40),
+					1 + random.nextInt(10), random.nextInt(4) != 0, -2));
+		}
+		corpus.add(noise("noise", random, 160, 120, false));
+		corpus.add(noise("noise-deferred-clear", random, 160, 120, true));
+		corpus.add(bands("bands", random, 200, 150, 3));
+		Sample truncated = animation("no-trailer", random, 30, 20, 4, true, 1);
+		truncated.truncated = true;
+		corpus.add(finish(truncated, null));
+		corpus.add(staleTransIndex("stale-trans-index", random));
+		return corpus;
+	}
+
+	/**
+	 * Large files for timing: highly compressible bands and noise.
+	 */
+	public static List<Sample> benchmark(long seed) {
+		Random random = new Random(seed);
+		List<Sample> files = new ArrayList<Sample>();
+		files.add(bands("bands-800x600", random, 800, 600, 4));
+		files.add(noise("noise-800x600", random, 800, 600, false));
+		files.add(animation("mixed-320x240", random, 320, 240, 24, true, 1));
+		return files;
+	}
+}
@@ -0,0 +1,269 @@
+package com.android.mm3.wallpaper.animated;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import android.graphics.Bitmap;
+
+/**
+ * Conformance suite of the GIF decoders, run on the JVM.
+ * <p>Every file of {@link GifCorpus} is decoded by {@link GifDecoder} (serially, with its
+ * decode pool when there is more than one processor, into indexed storage and scaled),
+ * scanned by {@link GifFrameIndex} and played by {@link GifStreamDecoder}, and each frame
+ * is compared pixel by pixel with the frames the corpus composed itself. The LZW data of
+ * every frame is also fed straight to {@link GifLzwDecoder}, whole and cut short.</p>
+ * <pre>
+ * usage: GifDecoderSuite
+ * </pre>
+ * The exit status is 1 when a check fails.
+ */
+public class GifDecoderSuite {
+	private static final long SEED = 0x61F;
+	/** time GifStreamDecoder may take to produce a frame */
+	private static final long STREAM_TIMEOUT = 5000;
+
+	private static int checks = 0;
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("processors: " + Runtime.getRuntime().availableProcessors());
+		List<GifCorpus.Sample> corpus = GifCorpus.conformance(SEED);
+		File dir = new File(System.getProperty("java.io.tmpdir"));
+		for(GifCorpus.Sample s : corpus) {
+			conformance(s, dir);
+		}
+		System.out.println("conformance: " + corpus.size() + " files, " + checks + " checks, " + failures + " failed");
+		if(failures > 0) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static void conformance(GifCorpus.Sample s, File dir) throws IOException {
+		GifDecoder serial = new GifDecoder();
+		serial.setParallel(false);
+		checkDecoder(s, "GifDecoder/serial", serial);
+		checkDecoder(s, "GifDecoder", new GifDecoder());
+		GifDecoder indexed = new GifDecoder();
+		indexed.setIndexedStorage(true);
+		checkDecoder(s, "GifDecoder/indexed", indexed);
+		checkScaled(s);
+		checkLzw(s);
+		File file = File.createTempFile("gif-suite", ".gif", dir);
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(s.data);
+			} finally {
+				out.close();
+			}
+			checkIndex(s, file);
+			checkStream(s, file);
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static void checkDecoder(GifCorpus.Sample s, String decoder, GifDecoder d) {
+		int status = d.read(new ByteArrayInputStream(s.data));
+		if(s.truncated) {
+			check(s, decoder, "status " + status, status == GifDecoder.STATUS_OK || status == GifDecoder.STATUS_FORMAT_ERROR);
+		} else {
+			check(s, decoder, "status " + status, status == GifDecoder.STATUS_OK);
+		}
+		if(d.getFrameCount() != s.frames.length) {
+			fail(s, decoder, d.getFrameCount() + " frames, expected " + s.frames.length);
+			return;
+		}
+		check(s, decoder, "size", d.getWidth() == s.width && d.getHeight() == s.height);
+		check(s, decoder, "loop count " + d.getLoopCount(), d.getLoopCount() == s.loopCount);
+		for(int n = 0; n < s.frames.length; n++) {
+			check(s, decoder, "frame " + n + " delay " + d.getDelay(n), d.getDelay(n) == s.delays[n]);
+			compare(s, decoder, "frame " + n, s.frames[n], ApngDecoderSuite.pixels(d.getFrame(n)));
+		}
+	}
+
+	/**
+	 * Scales to half size with the nearest filter, compared with an independent nearest
+	 * neighbor scaling of the expected frames.
+	 */
+	private static void checkScaled(GifCorpus.Sample s) {
+		String decoder = "GifDecoder/scaled";
+		GifDecoder d = new GifDecoder();
+		d.setTargetSize(Math.max(1, s.width / 2), Math.max(1, s.height / 2), Decoder.FILTER_NEAREST);
+		d.read(new ByteArrayInputStream(s.data));
+		int dw = d.getWidth();
+		int dh = d.getHeight();
+		check(s, decoder, "size " + dw + "x" + dh, dw <= Math.max(1, s.width / 2) + 1 && dh <= Math.max(1, s.height / 2) + 1);
+		if(d.getFrameCount() != s.frames.length) {
+			fail(s, decoder, d.getFrameCount() + " frames, expected " + s.frames.length);
+			return;
+		}
+		for(int n = 0; n < s.frames.length; n++) {
+			int[] expected = new int[dw * dh];
+			for(int y = 0; y < dh; y++) {
+				for(int x = 0; x < dw; x++) {
+					expected[y * dw + x] = s.frames[n][(int)((long)y * s.height / dh) * s.width + (int)((long)x * s.width / dw)];
+				}
+			}
+			compare(s, decoder, "frame " + n, expected, ApngDecoderSuite.pixels(d.getFrame(n)));
+		}
+	}
+
+	/**
+	 * Decodes the LZW data of each frame whole, then cut in half: the pixels decoded must be
+	 * counted and the rest zero filled.
+	 */
+	private static void checkLzw(GifCorpus.Sample s) {
+		String decoder = "GifLzwDecoder";
+		GifLzwDecoder lzw = new GifLzwDecoder();
+		for(int n = 0; n < s.frameList.size(); n++) {
+			GifCorpus.Frame f = s.frameList.get(n);
+			byte[] expected = f.fileOrder();
+			byte[] out = new byte[expected.length];
+			int count = lzw.decode(f.lzw, f.lzw.length, f.codeSize, out, out.length);
+			check(s, decoder, "frame " + n + ": " + count + " pixels", count == out.length);
+			check(s, decoder, "frame " + n + " indices", Arrays.equals(expected, out));
+			if(expected.length < 16) {
+				continue;
+			}
+			Arrays.fill(out, (byte)0x55);
+			count = lzw.decode(f.lzw, f.lzw.length / 2, f.codeSize, out, out.length);
+			boolean ok = count > 0 && count < out.length;
+			for(int i = 0; i < out.length && ok; i++) {
+				ok = out[i] == ((i < count) ? expected[i] : 0);
+			}
+			check(s, decoder, "frame " + n + " cut short: " + count + " pixels", ok);
+		}
+	}
+
+	private static void checkIndex(GifCorpus.Sample s, File file) throws IOException {
+		String decoder = "GifFrameIndex";
+		GifFrameIndex index = GifFrameIndex.scan(file.getPath());
+		if(index == null) {
+			fail(s, decoder, "scan failed");
+			return;
+		}
+		if(index.getFrameCount() != s.frameList.size()) {
+			fail(s, decoder, index.getFrameCount() + " frames, expected " + s.frameList.size());
+			return;
+		}
+		check(s, decoder, "size", index.getWidth() == s.width && index.getHeight() == s.height);
+		check(s, decoder, "loop count", index.getLoopCount() == s.loopCount);
+		check(s, decoder, "background index", index.getBackgroundIndex() == s.bgIndex);
+		boolean alpha = false;
+		for(int[] frame : s.frames) {
+			for(int c : frame) {
+				alpha |= (c >>> 24) == 0;
+			}
+		}
+		check(s, decoder, "hasTransparency " + index.hasTransparency(), !alpha || index.hasTransparency());
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			GifLzwDecoder lzw = new GifLzwDecoder();
+			byte[] buf = new byte[index.getBufferSize()];
+			int[] tab = new int[256];
+			for(int n = 0; n < s.frameList.size(); n++) {
+				GifCorpus.Frame f = s.frameList.get(n);
+				String what = "frame " + n;
+				check(s, decoder, what + " rect", index.getX(n) == f.x && index.getY(n) == f.y && index.getImageWidth(n) == f.w
+						&& index.getImageHeight(n) == f.h);
+				int dispose = (f.dispose < 0) ? 0 : (f.dispose == 0) ? 1 : f.dispose;
+				check(s, decoder, what + " dispose " + index.getDispose(n), index.getDispose(n) == dispose);
+				int trans = f.transparent ? f.transIndex : GifFrameIndex.NO_TRANSPARENCY;
+				check(s, decoder, what + " transparent index " + index.getTransparentIndex(n), index.getTransparentIndex(n) == trans);
+				check(s, decoder, what + " interlaced", index.isInterlaced(n) == f.interlaced);
+				check(s, decoder, what + " delay", index.getDelay(n) == s.delays[n]);
+				check(s, decoder, what + " local palette", index.hasLocalPalette(n) == (f.localPalette != null));
+				index.readPalette(raf, n, buf, tab);
+				int[] palette = (f.localPalette != null) ? f.localPalette : s.globalPalette;
+				boolean ok = true;
+				for(int i = 0; i < palette.length; i++) {
+					int c = (f.transparent && i == f.transIndex) ? 0 : 0xFF000000 | palette[i];
+					ok &= tab[i] == c;
+				}
+				check(s, decoder, what + " palette", ok);
+				byte[] out = new byte[f.w * f.h];
+				int count = index.readIndices(raf, n, lzw, buf, out);
+				check(s, decoder, what + " indices", count == out.length && Arrays.equals(f.fileOrder(), out));
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Plays the file twice through. GifStreamDecoder only moves on when the next frame is
+	 * ready, so each frame is asked for until it shows up; equal frames in a row may be
+	 * matched early, which only delays the next match.
+	 */
+	private static void checkStream(GifCorpus.Sample s, File file) {
+		String decoder = "GifStreamDecoder";
+		GifStreamDecoder d = new GifStreamDecoder(file.getPath(), null, 2);
+		try {
+			d.read(null);
+			check(s, decoder, "frame count", d.getFrameCount() == s.frames.length);
+			check(s, decoder, "size", d.getWidth() == s.width && d.getHeight() == s.height);
+			check(s, decoder, "loop count", d.getLoopCount() == s.loopCount);
+			for(int k = 0; k < 2 * s.frames.length; k++) {
+				int n = k % s.frames.length;
+				long end = System.currentTimeMillis() + STREAM_TIMEOUT;
+				int[] actual = null;
+				for(;;) {
+					Bitmap b = d.getFrame(n);
+					actual = (b != null) ? ApngDecoderSuite.pixels(b) : null;
+					if((actual != null && Arrays.equals(actual, s.frames[n])) || System.currentTimeMillis() > end) {
+						break;
+					}
+					Thread.yield();
+				}
+				if(actual == null) {
+					fail(s, decoder, "frame " + n + ": nothing decoded");
+					return;
+				}
+				compare(s, decoder, "frame " + n + " of loop " + (k / s.frames.length), s.frames[n], actual);
+				if(k == 0) {
+					check(s, decoder, "frame 0 delay " + d.getDelay(0), d.getDelay(0) == s.delays[0]);
+				}
+			}
+		} finally {
+			d.onDestroy();
+		}
+	}
+
+	private static void compare(GifCorpus.Sample s, String decoder, String what, int[] expected, int[] actual) {
+		if(actual.length != expected.length) {
+			fail(s, decoder, what + ": " + actual.length + " pixels, expected " + expected.length);
+			return;
+		}
+		for(int i = 0; i < expected.length; i++) {
+			if(expected[i] != actual[i]) {
+				int w = (expected.length == s.width * s.height) ? s.width : expected.length;
+				fail(s, decoder, what + ": pixel " + (i % w) + "," + (i / w) + " is " + Integer.toHexString(actual[i])
+						+ ", expected " + Integer.toHexString(expected[i]));
+				return;
+			}
+		}
+		check(s, decoder, what, true);
+	}
+
+	private static void check(GifCorpus.Sample s, String decoder, String what, boolean ok) {
+		if(!ok) {
+			fail(s, decoder, what);
+		} else {
+			checks++;
+		}
+	}
+
+	private static void fail(GifCorpus.Sample s, String decoder, String what) {
+		checks++;
+		failures++;
+		System.out.println("FAIL " + s.name + " [" + decoder + "] " + what);
+	}
+}
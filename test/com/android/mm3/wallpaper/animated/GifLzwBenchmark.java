@@ -0,0 +1,201 @@
+package com.android.mm3.wallpaper.animated;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Microbenchmark of {@link GifLzwDecoder} against the pixel stack decoder GifDecoder used
+ * before it, on the large files of {@link GifCorpus}: highly compressible bands, noise and
+ * a mixed animation. Both decode the LZW data of every frame of a file, already joined
+ * from its sub-blocks; the fastest of RUNS rounds is reported in MB of indices per second.
+ * <p>The old decoder stops at the first code once its table is full, so the corpus writes
+ * these files with a clear code there; both decoders must produce the same indices.</p>
+ * <pre>
+ * usage: GifLzwBenchmark
+ * </pre>
+ * The exit status is 1 when the decoders disagree or the new one is slower by more than TIME_SLACK.
+ */
+public class GifLzwBenchmark {
+	private static final long SEED = 0x61F;
+	private static final int WARMUP = 20;
+	private static final int RUNS = 30;
+	/**
+	 * the new decoder may take this times the old one's time: on noise, where codes stand
+	 * for one or two pixels, the two run about even and the timer decides
+	 */
+	private static final double TIME_SLACK = 1.25;
+
+	private static int failures = 0;
+	private static byte[] scratch = new byte[0];
+
+	public static void main(String[] args) {
+		List<GifCorpus.Sample> files = GifCorpus.benchmark(SEED);
+		GifLzwDecoder lzw = new GifLzwDecoder();
+		PixelStackDecoder old = new PixelStackDecoder();
+		for(GifCorpus.Sample s : files) {
+			for(GifCorpus.Frame f : s.frameList) {
+				byte[] out = new byte[f.w * f.h];
+				lzw.decode(f.lzw, f.lzw.length, f.codeSize, out, out.length);
+				byte[] expected = old.decode(f.lzw, f.codeSize, out.length);
+				check(s.name + ": indices", Arrays.equals(out, Arrays.copyOf(expected, out.length)));
+			}
+		}
+		// compile both before the first measure
+		for(int i = 0; i < WARMUP; i++) {
+			for(GifCorpus.Sample s : files) {
+				decodeNew(s, lzw);
+				decodeOld(s, old);
+			}
+		}
+
+		System.out.println(String.format("%-18s %10s %8s %10s %10s %8s", "file", "indices", "LZW/px", "old MB/s",
+				"new MB/s", "speedup"));
+		for(GifCorpus.Sample s : files) {
+			long pixels = 0;
+			long compressed = 0;
+			for(GifCorpus.Frame f : s.frameList) {
+				pixels += f.w * f.h;
+				compressed += f.lzw.length;
+			}
+			long oldTime = Long.MAX_VALUE;
+			long newTime = Long.MAX_VALUE;
+			for(int i = 0; i < RUNS; i++) {
+				long start = System.nanoTime();
+				decodeOld(s, old);
+				oldTime = Math.min(oldTime, System.nanoTime() - start);
+				start = System.nanoTime();
+				decodeNew(s, lzw);
+				newTime = Math.min(newTime, System.nanoTime() - start);
+			}
+			System.out.println(String.format("%-18s %10d %8.3f %10.1f %10.1f %8.2f", s.name, pixels, (double)compressed / pixels,
+					pixels * 1e3 / oldTime, pixels * 1e3 / newTime, (double)oldTime / newTime));
+			check(s.name + String.format(": new decoder %.2f x the old one's time", (double)newTime / oldTime),
+					newTime <= oldTime * TIME_SLACK);
+		}
+		if(failures > 0) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static void decodeNew(GifCorpus.Sample s, GifLzwDecoder lzw) {
+		for(GifCorpus.Frame f : s.frameList) {
+			lzw.decode(f.lzw, f.lzw.length, f.codeSize, output(f), f.w * f.h);
+		}
+	}
+
+	private static void decodeOld(GifCorpus.Sample s, PixelStackDecoder old) {
+		for(GifCorpus.Frame f : s.frameList) {
+			old.decode(f.lzw, f.codeSize, f.w * f.h);
+		}
+	}
+
+	/**
+	 * Gets the array a frame is decoded into, reused as the old decoder reuses its pixels.
+	 */
+	private static byte[] output(GifCorpus.Frame f) {
+		if(scratch.length < f.w * f.h) {
+			scratch = new byte[f.w * f.h];
+		}
+		return scratch;
+	}
+
+	private static void check(String what, boolean ok) {
+		if(!ok) {
+			failures++;
+			System.out.println("FAIL " + what);
+		}
+	}
+
+	/**
+	 * GifDecoder.decodeBitmapData as it was before GifLzwDecoder, reading the joined data
+	 * instead of sub-blocks. Adapted from John Cristy's BitmapMagick.
+	 */
+	private static class PixelStackDecoder {
+		private static final int MAX_STACK_SIZE = 4096;
+		private final short[] prefix = new short[MAX_STACK_SIZE];
+		private final byte[] suffix = new byte[MAX_STACK_SIZE];
+		private final byte[] pixelStack = new byte[MAX_STACK_SIZE + 1];
+		private byte[] pixels = new byte[0];
+
+		byte[] decode(byte[] data, int dataSize, int npix) {
+			int nullCode = -1;
+			int available, clear, codeMask, codeSize, endOfInformation, inCode, oldCode, bits, code, i, datum, first, top, pi, di;
+			if(pixels.length < npix) {
+				pixels = new byte[npix];
+			}
+			clear = 1 << dataSize;
+			endOfInformation = clear + 1;
+			available = clear + 2;
+			oldCode = nullCode;
+			codeSize = dataSize + 1;
+			codeMask = (1 << codeSize) - 1;
+			for(code = 0; code < clear; code++) {
+				prefix[code] = 0;
+				suffix[code] = (byte)code;
+			}
+			datum = bits = first = top = pi = di = 0;
+			for(i = 0; i < npix;) {
+				if(top == 0) {
+					if(bits < codeSize) {
+						if(di >= data.length) {
+							break;
+						}
+						datum += (data[di++] & 0xff) << bits;
+						bits += 8;
+						continue;
+					}
+					code = datum & codeMask;
+					datum >>= codeSize;
+					bits -= codeSize;
+					if((code > available) || (code == endOfInformation)) {
+						break;
+					}
+					if(code == clear) {
+						codeSize = dataSize + 1;
+						codeMask = (1 << codeSize) - 1;
+						available = clear + 2;
+						oldCode = nullCode;
+						continue;
+					}
+					if(oldCode == nullCode) {
+						pixelStack[top++] = suffix[code];
+						oldCode = code;
+						first = code;
+						continue;
+					}
+					inCode = code;
+					if(code == available) {
+						pixelStack[top++] = (byte)first;
+						code = oldCode;
+					}
+					while(code > clear) {
+						pixelStack[top++] = suffix[code];
+						code = prefix[code];
+					}
+					first = suffix[code] & 0xff;
+					if(available >= MAX_STACK_SIZE) {
+						break;
+					}
+					pixelStack[top++] = (byte)first;
+					prefix[available] = (short)oldCode;
+					suffix[available] = (byte)first;
+					available++;
+					if(((available & codeMask) == 0) && (available < MAX_STACK_SIZE)) {
+						codeSize++;
+						codeMask += available;
+					}
+					oldCode = inCode;
+				}
+				top--;
+				pixels[pi++] = pixelStack[top];
+				i++;
+			}
+			for(i = pi; i < npix; i++) {
+				pixels[i] = 0;
+			}
+			return pixels;
+		}
+	}
+}
@@ -0,0 +1,670 @@
+package com.android.mm3.wallpaper.animated;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the PNG and APNG files of {@link ApngDecoderSuite} from known samples, so the
+ * pixels a decoder should produce are known without trusting any decoder.
+ * <p>The corpus covers every color type and bit depth, interlaced or not, every filter
+ * type (rows cycle through all five), the tRNS variants of each color type and every APNG
+ * dispose_op and blend_op combination. Expected frames are composed here with a plain
+ * whole-canvas reference of the APNG rules, independent of {@link ApngCompositor}.</p>
+ */
+public class PngCorpus {
+	private static final int CHANNELS[] = { 1, 0, 3, 1, 2, 0, 4 };
+
+	/**
+	 * One generated file and the pixels expected from it.
+	 */
+	public static class Sample {
+		public final String name;
+		public byte[] data;
+		public int width;
+		public int height;
+		public int colorType;
+		public int bitDepth;
+		public boolean interlaced;
+		/** samples of the IDAT image, channel by channel, as ImageIO rasters hold them */
+		public int[] defaultSamples;
+		/** ARGB of the IDAT image, what a static decoder shows */
+		public int[] defaultImage;
+		/** ARGB canvas after each frame; one entry for a static image */
+		public int[][] frames;
+		/** distinct visible colors over all frames */
+		public int colors;
+		/** pixels of all frame regions, the work of one decode */
+		public long regionPixels;
+		/** true for an APNG */
+		public boolean animated;
+
+		Sample(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * One frame of an animation: its fcTL fields and samples.
+	 */
+	static class Frame {
+		int x, y, w, h;
+		int dispose, blend;
+		int[] samples;
+		int[] argb;
+	}
+
+	/**
+	 * Encodes images of one color type and bit depth.
+	 */
+	static class Writer {
+		final int colorType;
+		final int depth;
+		final boolean interlaced;
+		final int channels;
+		final int maxValue;
+		byte[] palette; // PLTE contents, or null
+		byte[] trns; // tRNS contents, or null
+		int pieces = 1; // data chunks each image is split into
+		int filter; // filter type of the first row, the next rows cycle through the others
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private int sequence = 0;
+
+		Writer(int colorType, int depth, boolean interlaced) {
+			this.colorType = colorType;
+			this.depth = depth;
+			this.interlaced = interlaced;
+			this.channels = CHANNELS[colorType];
+			this.maxValue = (1 << depth) - 1;
+		}
+
+		void header(int width, int height) {
+			out.write(0x89);
+			out.write('P');
+			out.write('N');
+			out.write('G');
+			out.write(13);
+			out.write(10);
+			out.write(26);
+			out.write(10);
+			byte[] ihdr = new byte[13];
+			putInt(ihdr, 0, width);
+			putInt(ihdr, 4, height);
+			ihdr[8] = (byte)depth;
+			ihdr[9] = (byte)colorType;
+			ihdr[12] = (byte)(interlaced ? 1 : 0);
+			chunk("IHDR", ihdr);
+			if(palette != null) {
+				chunk("PLTE", palette);
+			}
+			if(trns != null) {
+				chunk("tRNS", trns);
+			}
+		}
+
+		void animationControl(int frames, int plays) {
+			byte[] actl = new byte[8];
+			putInt(actl, 0, frames);
+			putInt(actl, 4, plays);
+			chunk("acTL", actl);
+		}
+
+		void frameControl(Frame f) {
+			byte[] fctl = new byte[26];
+			putInt(fctl, 0, sequence++);
+			putInt(fctl, 4, f.w);
+			putInt(fctl, 8, f.h);
+			putInt(fctl, 12, f.x);
+			putInt(fctl, 16, f.y);
+			fctl[21] = 1; // 1/25 s
+			fctl[23] = 25;
+			fctl[24] = (byte)f.dispose;
+			fctl[25] = (byte)f.blend;
+			chunk("fcTL", fctl);
+		}
+
+		void imageData(int[] samples, int w, int h) {
+			writeData("IDAT", deflate(samples, w, h));
+		}
+
+		void frameData(int[] samples, int w, int h) {
+			writeData("fdAT", deflate(samples, w, h));
+		}
+
+		byte[] end() {
+			chunk("IEND", new byte[0]);
+			return out.toByteArray();
+		}
+
+		private void writeData(String type, byte[] data) {
+			int n = Math.max(1, Math.min(pieces, data.length));
+			for(int i = 0; i < n; i++) {
+				int from = data.length * i / n;
+				int to = data.length * (i + 1) / n;
+				if(type.equals("fdAT")) {
+					byte[] c = new byte[4 + to - from];
+					putInt(c, 0, sequence++);
+					System.arraycopy(data, from, c, 4, to - from);
+					chunk(type, c);
+				} else {
+					byte[] c = new byte[to - from];
+					System.arraycopy(data, from, c, 0, to - from);
+					chunk(type, c);
+				}
+			}
+		}
+
+		private void chunk(String type, byte[] data) {
+			byte[] head = new byte[8];
+			putInt(head, 0, data.length);
+			for(int i = 0; i < 4; i++) {
+				head[4 + i] = (byte)type.charAt(i);
+			}
+			CRC32 crc = new CRC32();
+			crc.update(head, 4, 4);
+			crc.update(data);
+			byte[] tail = new byte[4];
+			putInt(tail, 0, (int)crc.getValue());
+			out.write(head, 0, 8);
+			out.write(data, 0, data.length);
+			out.write(tail, 0, 4);
+		}
+
+		/**
+		 * Serializes, filters and compresses an image, pass by pass when interlaced.
+		 */
+		byte[] deflate(int[] samples, int w, int h) {
+			ByteArrayOutputStream raw = new ByteArrayOutputStream();
+			if(!interlaced) {
+				filterRows(raw, samples, w, 0, 0, 1, 1, w, h);
+			} else {
+				final int[] px = { 0, 4, 0, 2, 0, 1, 0 };
+				final int[] py = { 0, 0, 4, 0, 2, 0, 1 };
+				final int[] dx = { 8, 8, 4, 4, 2, 2, 1 };
+				final int[] dy = { 8, 8, 8, 4, 4, 2, 2 };
+				for(int p = 0; p < 7; p++) {
+					int pw = (w - px[p] + dx[p] - 1) / dx[p];
+					int ph = (h - py[p] + dy[p] - 1) / dy[p];
+					if(pw > 0 && ph > 0) {
+						filterRows(raw, samples, w, px[p], py[p], dx[p], dy[p], pw, ph);
+					}
+				}
+			}
+			byte[] in = raw.toByteArray();
+			Deflater deflater = new Deflater();
+			deflater.setInput(in);
+			deflater.finish();
+			ByteArrayOutputStream z = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			while(!deflater.finished()) {
+				int n = deflater.deflate(buf);
+				z.write(buf, 0, n);
+			}
+			deflater.end();
+			return z.toByteArray();
+		}
+
+		private void filterRows(ByteArrayOutputStream raw, int[] samples, int w, int x0, int y0, int dx, int dy, int pw, int ph) {
+			int rowBytes = (pw * channels * depth + 7) / 8;
+			int bpp = Math.max(1, channels * depth / 8);
+			byte[] prior = new byte[rowBytes];
+			byte[] line = new byte[rowBytes];
+			for(int row = 0; row < ph; row++) {
+				packRow(samples, w, x0, (y0 + row * dy), dx, pw, line);
+				int type = (filter + row) % 5;
+				raw.write(type);
+				for(int i = 0; i < rowBytes; i++) {
+					int a = (i >= bpp) ? line[i - bpp] & 255 : 0;
+					int b = prior[i] & 255;
+					int c = (i >= bpp) ? prior[i - bpp] & 255 : 0;
+					int predictor;
+					switch(type) {
+					case 1:
+						predictor = a;
+						break;
+					case 2:
+						predictor = b;
+						break;
+					case 3:
+						predictor = (a + b) >> 1;
+						break;
+					case 4:
+						predictor = paeth(a, b, c);
+						break;
+					default:
+						predictor = 0;
+					}
+					raw.write((line[i] - predictor) & 255);
+				}
+				byte[] t = prior;
+				prior = line;
+				line = t;
+			}
+		}
+
+		private void packRow(int[] samples, int w, int x0, int y, int dx, int pw, byte[] line) {
+			Arrays.fill(line, (byte)0);
+			int bit = 0;
+			for(int i = 0; i < pw; i++) {
+				int s = (y * w + x0 + i * dx) * channels;
+				for(int c = 0; c < channels; c++) {
+					int v = samples[s + c];
+					if(depth == 16) {
+						line[bit >> 3] = (byte)(v >> 8);
+						line[(bit >> 3) + 1] = (byte)v;
+					} else if(depth == 8) {
+						line[bit >> 3] = (byte)v;
+					} else {
+						line[bit >> 3] |= v << (8 - depth - (bit & 7));
+					}
+					bit += depth;
+				}
+			}
+		}
+
+		/**
+		 * Converts samples to the ARGB a decoder should produce: samples scaled to 8 bits
+		 * (16 bit ones cut to their high byte), tRNS keys compared at full depth.
+		 */
+		int[] toArgb(int[] samples, int n) {
+			int[] argb = new int[n];
+			for(int i = 0; i < n; i++) {
+				int s = i * channels;
+				int a = 255, r, g, b;
+				switch(colorType) {
+				case 0:
+					r = g = b = to8(samples[s]);
+					if(trns != null && samples[s] == getShort(trns, 0)) {
+						a = 0;
+					}
+					break;
+				case 2:
+					r = to8(samples[s]);
+					g = to8(samples[s + 1]);
+					b = to8(samples[s + 2]);
+					if(trns != null && samples[s] == getShort(trns, 0)
+							&& samples[s + 1] == getShort(trns, 2) && samples[s + 2] == getShort(trns, 4)) {
+						a = 0;
+					}
+					break;
+				case 3:
+					int k = samples[s];
+					r = palette[k * 3] & 255;
+					g = palette[k * 3 + 1] & 255;
+					b = palette[k * 3 + 2] & 255;
+					if(trns != null && k < trns.length) {
+						a = trns[k] & 255;
+					}
+					break;
+				case 4:
+					r = g = b = to8(samples[s]);
+					a = to8(samples[s + 1]);
+					break;
+				default:
+					r = to8(samples[s]);
+					g = to8(samples[s + 1]);
+					b = to8(samples[s + 2]);
+					a = to8(samples[s + 3]);
+				}
+				argb[i] = (a == 0) ? 0 : a << 24 | r << 16 | g << 8 | b;
+			}
+			return argb;
+		}
+
+		private int to8(int v) {
+			return (depth == 16) ? v >> 8 : v * 255 / maxValue;
+		}
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if(pa <= pb && pa <= pc) {
+			return a;
+		}
+		return (pb <= pc) ? b : c;
+	}
+
+	private static void putInt(byte[] b, int offset, int v) {
+		b[offset] = (byte)(v >> 24);
+		b[offset + 1] = (byte)(v >> 16);
+		b[offset + 2] = (byte)(v >> 8);
+		b[offset + 3] = (byte)v;
+	}
+
+	private static int getShort(byte[] b, int offset) {
+		return (b[offset] & 255) << 8 | (b[offset + 1] & 255);
+	}
+
+	/**
+	 * Makes samples for a w*h image: mostly smooth gradients, which the filters predict
+	 * well, with noisy pixels and stripes of transparent and opaque alpha in between.
+	 */
+	static int[] makeSamples(Random random, Writer wr, int w, int h, int paletteSize) {
+		final int ch = wr.channels;
+		int[] s = new int[w * h * ch];
+		for(int y = 0; y < h; y++) {
+			for(int x = 0; x < w; x++) {
+				int i = (y * w + x) * ch;
+				boolean noise = random.nextInt(4) == 0;
+				for(int c = 0; c < ch; c++) {
+					int v;
+					if(wr.colorType == 3) {
+						v = noise ? random.nextInt(paletteSize) : (x + 2 * y) % paletteSize;
+					} else if(noise) {
+						v = random.nextInt(wr.maxValue + 1);
+					} else {
+						long t = (long)(x * (c + 1) + y * (3 - c % 3)) * wr.maxValue / Math.max(1, w * (c + 1) + h * 3);
+						v = (int)Math.min(wr.maxValue, t);
+					}
+					boolean alpha = (c == ch - 1) && (wr.colorType == 4 || wr.colorType == 6);
+					if(alpha && x % 7 == 0) {
+						v = 0;
+					} else if(alpha && x % 5 == 0) {
+						v = wr.maxValue;
+					}
+					s[i + c] = v;
+				}
+			}
+		}
+		return s;
+	}
+
+	static byte[] makePalette(Random random, int size) {
+		byte[] p = new byte[size * 3];
+		random.nextBytes(p);
+		return p;
+	}
+
+	/**
+	 * Draws one frame onto the canvas, blending with floating point math.
+	 */
+	static void draw(int[] canvas, int width, Frame f) {
+		for(int row = 0; row < f.h; row++) {
+			for(int col = 0; col < f.w; col++) {
+				int d = (f.y + row) * width + f.x + col;
+				int src = f.argb[row * f.w + col];
+				if(f.blend == 0) {
+					canvas[d] = src;
+				} else {
+					canvas[d] = over(src, canvas[d]);
+				}
+			}
+		}
+	}
+
+	private static int over(int src, int dst) {
+		double sa = (src >>> 24) / 255.0;
+		double da = (dst >>> 24) / 255.0;
+		double oa = sa + da * (1 - sa);
+		if(oa == 0) {
+			return 0;
+		}
+		int argb = (int)Math.round(oa * 255) << 24;
+		for(int shift = 16; shift >= 0; shift -= 8) {
+			double c = (((src >> shift) & 255) * sa + ((dst >> shift) & 255) * da * (1 - sa)) / oa;
+			argb |= (int)Math.round(c) << shift;
+		}
+		return argb;
+	}
+
+	/**
+	 * Composes the expected canvas after each frame: dispose ops of a frame are applied
+	 * before the next one, DISPOSE_OP_PREVIOUS on the first frame clears like
+	 * DISPOSE_OP_BACKGROUND.
+	 */
+	static int[][] compose(List<Frame> frames, int width, int height) {
+		int[][] out = new int[frames.size()][];
+		int[] canvas = new int[width * height];
+		int[] before = null; // canvas before the last frame
+		Frame last = null;
+		for(int n = 0; n < frames.size(); n++) {
+			Frame f = frames.get(n);
+			if(last != null) {
+				int dispose = (last.dispose == 2 && n == 1) ? 1 : last.dispose;
+				if(dispose == 1) {
+					for(int row = 0; row < last.h; row++) {
+						for(int col = 0; col < last.w; col++) {
+							canvas[(last.y + row) * width + last.x + col] = 0;
+						}
+					}
+				} else if(dispose == 2) {
+					System.arraycopy(before, 0, canvas, 0, canvas.length);
+				}
+			}
+			before = canvas.clone();
+			draw(canvas, width, f);
+			out[n] = canvas.clone();
+			last = f;
+		}
+		return out;
+	}
+
+	private static Sample finish(Sample s, Writer wr, int width, int height, List<Frame> frames, int[] defaultSamples) {
+		s.width = width;
+		s.height = height;
+		s.colorType = wr.colorType;
+		s.bitDepth = wr.depth;
+		s.interlaced = wr.interlaced;
+		s.animated = frames != null;
+		s.data = wr.end();
+		s.defaultSamples = defaultSamples;
+		s.defaultImage = wr.toArgb(defaultSamples, width * height);
+		Set<Integer> colors = new HashSet<Integer>();
+		if(frames == null) {
+			s.frames = new int[][] { s.defaultImage };
+			s.regionPixels = (long)width * height;
+			addColors(colors, s.defaultImage);
+		} else {
+			for(Frame f : frames) {
+				f.argb = wr.toArgb(f.samples, f.w * f.h);
+				s.regionPixels += (long)f.w * f.h;
+				addColors(colors, f.argb);
+			}
+			s.frames = compose(frames, width, height);
+			if(frames.get(0).samples == defaultSamples) {
+				s.defaultImage = frames.get(0).argb;
+			}
+		}
+		s.colors = colors.size();
+		return s;
+	}
+
+	private static void addColors(Set<Integer> colors, int[] argb) {
+		for(int c : argb) {
+			if(c != 0) {
+				colors.add(c);
+			}
+		}
+	}
+
+	/**
+	 * Builds a static image.
+	 */
+	static Sample still(String name, Writer wr, int width, int height, Random random, int paletteSize) {
+		int[] samples = makeSamples(random, wr, width, height, paletteSize);
+		wr.header(width, height);
+		wr.imageData(samples, width, height);
+		return finish(new Sample(name), wr, width, height, null, samples);
+	}
+
+	/**
+	 * Builds an animation: a full frame, then count-1 frames in random regions.
+	 *
+	 * @param dispose dispose_op of every frame, or -1 for random ones
+	 * @param blend blend_op of every frame after the first, or -1 for random ones
+	 * @param hiddenDefault true to write the IDAT image outside the animation
+	 */
+	static Sample animation(String name, Writer wr, int width, int height, Random random, int paletteSize,
+			int count, int dispose, int blend, boolean hiddenDefault) {
+		List<Frame> frames = new ArrayList<Frame>();
+		for(int n = 0; n < count; n++) {
+			Frame f = new Frame();
+			if(n == 0) {
+				f.w = width;
+				f.h = height;
+			} else {
+				f.w = 1 + random.nextInt(width);
+				f.h = 1 + random.nextInt(height);
+				f.x = random.nextInt(width - f.w + 1);
+				f.y = random.nextInt(height - f.h + 1);
+			}
+			f.dispose = (dispose >= 0) ? dispose : random.nextInt(3);
+			f.blend = (n == 0) ? 0 : (blend >= 0) ? blend : random.nextInt(2);
+			f.samples = makeSamples(random, wr, f.w, f.h, paletteSize);
+			frames.add(f);
+		}
+		int[] defaultSamples = hiddenDefault ? makeSamples(random, wr, width, height, paletteSize) : frames.get(0).samples;
+		wr.header(width, height);
+		wr.animationControl(count, 0);
+		if(hiddenDefault) {
+			wr.imageData(defaultSamples, width, height);
+		}
+		for(int n = 0; n < count; n++) {
+			Frame f = frames.get(n);
+			wr.frameControl(f);
+			if(n == 0 && !hiddenDefault) {
+				wr.imageData(f.samples, f.w, f.h);
+			} else {
+				wr.frameData(f.samples, f.w, f.h);
+			}
+		}
+		return finish(new Sample(name), wr, width, height, frames, defaultSamples);
+	}
+
+	private static Writer writer(int colorType, int depth, boolean interlaced, int row) {
+		Writer wr = new Writer(colorType, depth, interlaced);
+		wr.filter = row % 5;
+		return wr;
+	}
+
+	/**
+	 * Picks a tRNS key that some pixel of the samples has.
+	 */
+	private static byte[] keyOf(int[] samples, int channels, int pixel) {
+		byte[] key = new byte[channels * 2];
+		for(int c = 0; c < channels; c++) {
+			int v = samples[pixel * channels + c];
+			key[c * 2] = (byte)(v >> 8);
+			key[c * 2 + 1] = (byte)v;
+		}
+		return key;
+	}
+
+	/**
+	 * Builds the conformance corpus.
+	 */
+	public static List<Sample> conformance(long seed) {
+		List<Sample> list = new ArrayList<Sample>();
+		final int[][] depths = { { 1, 2, 4, 8, 16 }, {}, { 8, 16 }, { 1, 2, 4, 8 }, { 8, 16 }, {}, { 8, 16 } };
+		final int[][] sizes = { { 37, 29 }, { 1, 1 }, { 3, 2 }, { 9, 17 } };
+		int variant = 0;
+		for(int ct = 0; ct < depths.length; ct++) {
+			for(int depth : depths[ct]) {
+				for(int il = 0; il < 2; il++) {
+					for(int[] size : sizes) {
+						for(int t = 0; t < trnsVariants(ct); t++) {
+							Random random = new Random(seed + variant);
+							Writer wr = writer(ct, depth, il == 1, variant++);
+							int paletteSize = 0;
+							if(ct == 3) {
+								paletteSize = (depth == 8) ? 200 : 1 << depth;
+								wr.palette = makePalette(random, paletteSize);
+							}
+							String name = "still-ct" + ct + "-d" + depth + (il == 1 ? "-adam7" : "") + "-" + size[0] + "x" + size[1];
+							Sample s = withTrns(name, wr, ct, t, size[0], size[1], random, paletteSize);
+							list.add(s);
+						}
+					}
+				}
+			}
+		}
+		// every dispose_op and blend_op, on the color types that carry alpha differently
+		final int[][] types = { { 6, 8 }, { 3, 8 }, { 0, 16 }, { 4, 8 }, { 2, 16 } };
+		for(int dispose = 0; dispose < 3; dispose++) {
+			for(int blend = 0; blend < 2; blend++) {
+				for(int[] type : types) {
+					Random random = new Random(seed + variant);
+					Writer wr = writer(type[0], type[1], false, variant++);
+					int paletteSize = 0;
+					if(type[0] == 3) {
+						paletteSize = 64;
+						wr.palette = makePalette(random, paletteSize);
+						wr.trns = new byte[paletteSize];
+						for(int i = 0; i < paletteSize; i++) {
+							wr.trns[i] = (byte)((i % 3 == 0) ? 0 : (i % 3 == 1) ? 255 : i * 4);
+						}
+					}
+					String name = "anim-ct" + type[0] + "-d" + type[1] + "-dispose" + dispose + "-blend" + blend;
+					list.add(animation(name, wr, 31, 23, random, paletteSize, 6, dispose, blend, false));
+				}
+			}
+		}
+		// mixed ops, split data chunks, an IDAT image outside the animation, interlaced frames
+		for(int k = 0; k < 8; k++) {
+			Random random = new Random(seed + variant);
+			Writer wr = writer(6, 8, k % 2 == 1, variant++);
+			wr.pieces = 1 + k % 3;
+			boolean hidden = k >= 4;
+			String name = "anim-mixed-" + k + (wr.interlaced ? "-adam7" : "") + (hidden ? "-hidden-default" : "")
+					+ "-chunks" + wr.pieces;
+			list.add(animation(name, wr, 40, 30, random, 0, 12, -1, -1, hidden));
+		}
+		return list;
+	}
+
+	private static int trnsVariants(int colorType) {
+		switch(colorType) {
+		case 0:
+		case 2:
+			return 2; // none, color key
+		case 3:
+			return 4; // none, binary alpha, partial alpha, shorter than the palette
+		default:
+			return 1;
+		}
+	}
+
+	private static Sample withTrns(String name, Writer wr, int ct, int t, int width, int height, Random random, int paletteSize) {
+		if(t == 0) {
+			return still(name, wr, width, height, random, paletteSize);
+		}
+		if(ct == 3) {
+			int n = (t == 3) ? Math.max(1, paletteSize / 2) : paletteSize;
+			wr.trns = new byte[n];
+			for(int i = 0; i < n; i++) {
+				wr.trns[i] = (byte)((t == 1) ? ((i % 2 == 0) ? 0 : 255) : random.nextInt(256));
+			}
+			return still(name + "-trns" + t, wr, width, height, random, paletteSize);
+		}
+		// the key is taken from the samples, so make them before the header is written
+		int[] samples = makeSamples(random, wr, width, height, paletteSize);
+		wr.trns = keyOf(samples, wr.channels, random.nextInt(width * height));
+		wr.header(width, height);
+		wr.imageData(samples, width, height);
+		return finish(new Sample(name + "-key"), wr, width, height, null, samples);
+	}
+
+	/**
+	 * Builds the files decode time and allocations are measured on.
+	 */
+	public static List<Sample> benchmark(long seed) {
+		List<Sample> list = new ArrayList<Sample>();
+		Random random = new Random(seed);
+		list.add(still("bench-rgb8-1024x768", writer(2, 8, false, 0), 1024, 768, random, 0));
+		list.add(still("bench-rgba8-adam7-512x512", writer(6, 8, true, 1), 512, 512, random, 0));
+		list.add(animation("bench-rgba8-anim-480x320x24", writer(6, 8, false, 2), 480, 320, random, 0, 24, -1, -1, false));
+		Writer wr = writer(3, 8, false, 3);
+		wr.palette = makePalette(random, 200);
+		list.add(animation("bench-indexed8-anim-480x320x24", wr, 480, 320, random, 200, 24, -1, -1, false));
+		return list;
+	}
+}
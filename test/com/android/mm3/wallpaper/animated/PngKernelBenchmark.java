@@ -0,0 +1,373 @@
+package com.android.mm3.wallpaper.animated;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Microbenchmark of the unfilter and convert kernels of {@link PngPixelDecoder} against the
+ * generic ones it had before they were specialized, in rows per millisecond for each color
+ * type and filter type.
+ * <p>Each image is SIZE x SIZE 8-bit samples, every line with the same filter type. The
+ * zlib data is stored, not compressed, so inflating costs a copy and the time goes to the
+ * kernels. The fastest of RUNS decodes of each decoder is kept, the two taking turns so
+ * they see the same machine load.</p>
+ * <p>Where the generic decoder converted correctly (RGBA, RGB and 8-bit indexed) both must
+ * produce the same pixels and the specialized one must not be slower. Its greyscale
+ * conversions skipped the work of getting alpha right, so those are only reported.</p>
+ * <pre>
+ * usage: PngKernelBenchmark
+ * </pre>
+ * The exit status is 1 when a check fails.
+ */
+public class PngKernelBenchmark {
+	private static final long SEED = 0x12;
+	private static final int SIZE = 512;
+	private static final int WARMUP = 10;
+	private static final int RUNS = 20;
+	/** the specialized decoder may take this times the generic one's time, for timer noise */
+	private static final double TIME_SLACK = 1.2;
+
+	private static final String[] FILTERS = { "none", "sub", "up", "average", "paeth" };
+
+	private static final PngPixelDecoder.Input NO_MORE_INPUT = new PngPixelDecoder.Input() {
+		public void refill(Inflater inflater) throws IOException {
+			throw new EOFException();
+		}
+	};
+
+	private static int failures = 0;
+	private static final Inflater inflater = new Inflater();
+	/** decoders by color type, reused so line buffers are allocated once */
+	private static final PngPixelDecoder[] specializedDecoders = new PngPixelDecoder[7];
+	private static final GenericPixelDecoder[] genericDecoders = new GenericPixelDecoder[7];
+
+	/**
+	 * One color type, with what it takes to decode it.
+	 */
+	private static class Image {
+		final String name;
+		final int colorType;
+		final int samples;
+		/** the generic decoder converted this color type correctly */
+		final boolean exact;
+		byte[] palette;
+		final byte[][] zlib = new byte[FILTERS.length][];
+
+		Image(String name, int colorType, int samples, boolean exact) {
+			this.name = name;
+			this.colorType = colorType;
+			this.samples = samples;
+			this.exact = exact;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		Random random = new Random(SEED);
+		Image[] images = {
+			new Image("RGBA", PngPixelDecoder.COLOR_TRUEALPHA, 4, true),
+			new Image("RGB", PngPixelDecoder.COLOR_TRUECOLOR, 3, true),
+			new Image("grey+alpha", PngPixelDecoder.COLOR_GREYALPHA, 2, false),
+			new Image("grey", PngPixelDecoder.COLOR_GREYSCALE, 1, false),
+			new Image("indexed", PngPixelDecoder.COLOR_INDEXED, 1, true),
+		};
+		for(Image image : images) {
+			if(image.colorType == PngPixelDecoder.COLOR_INDEXED) {
+				image.palette = new byte[256 * 3];
+				random.nextBytes(image.palette);
+			}
+			for(int filter = 0; filter < FILTERS.length; filter++) {
+				image.zlib[filter] = lines(random, SIZE * image.samples, SIZE, filter);
+			}
+		}
+
+		int[] generic = new int[SIZE * SIZE];
+		int[] specialized = new int[SIZE * SIZE];
+		for(Image image : images) {
+			for(int filter = 0; filter < FILTERS.length; filter++) {
+				decodeGeneric(image, filter, generic);
+				decodeSpecialized(image, filter, specialized);
+				if(image.exact) {
+					check(image.name + " " + FILTERS[filter] + ": pixels", Arrays.equals(generic, specialized));
+				}
+			}
+		}
+		// compile both before the first measure
+		for(int i = 0; i < WARMUP; i++) {
+			for(Image image : images) {
+				for(int filter = 0; filter < FILTERS.length; filter++) {
+					decodeGeneric(image, filter, generic);
+					decodeSpecialized(image, filter, specialized);
+				}
+			}
+		}
+
+		System.out.println(String.format("%-11s %-8s %14s %14s %8s", "color", "filter", "generic rows/ms",
+				"special rows/ms", "speedup"));
+		for(Image image : images) {
+			for(int filter = 0; filter < FILTERS.length; filter++) {
+				long genericTime = Long.MAX_VALUE;
+				long specializedTime = Long.MAX_VALUE;
+				for(int i = 0; i < RUNS; i++) {
+					long start = System.nanoTime();
+					decodeGeneric(image, filter, generic);
+					genericTime = Math.min(genericTime, System.nanoTime() - start);
+					start = System.nanoTime();
+					decodeSpecialized(image, filter, specialized);
+					specializedTime = Math.min(specializedTime, System.nanoTime() - start);
+				}
+				System.out.println(String.format("%-11s %-8s %14.1f %14.1f %8.2f", image.name, FILTERS[filter],
+						SIZE * 1e6 / genericTime, SIZE * 1e6 / specializedTime, (double)genericTime / specializedTime));
+				if(image.exact) {
+					check(image.name + " " + FILTERS[filter]
+							+ String.format(": specialized %.2f x the generic time", (double)specializedTime / genericTime),
+							specializedTime <= genericTime * TIME_SLACK);
+				}
+			}
+		}
+		if(failures > 0) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	/**
+	 * Writes the stored zlib stream of random lines, each starting with the filter type.
+	 */
+	private static byte[] lines(Random random, int lineSize, int height, int filter) {
+		byte[] raw = new byte[(lineSize + 1) * height];
+		random.nextBytes(raw);
+		for(int y = 0; y < height; y++) {
+			raw[y * (lineSize + 1)] = (byte)filter;
+		}
+		Deflater deflater = new Deflater(Deflater.NO_COMPRESSION);
+		deflater.setInput(raw);
+		deflater.finish();
+		byte[] out = new byte[raw.length + raw.length / 1000 + 64];
+		int length = 0;
+		while(!deflater.finished()) {
+			length += deflater.deflate(out, length, out.length - length);
+		}
+		deflater.end();
+		return Arrays.copyOf(out, length);
+	}
+
+	private static void decodeSpecialized(Image image, int filter, int[] dest) throws IOException {
+		PngPixelDecoder d = specializedDecoders[image.colorType];
+		if(d == null) {
+			d = specializedDecoders[image.colorType] = new PngPixelDecoder(image.colorType, 8);
+			d.setPalette(image.palette, null);
+		}
+		inflater.reset();
+		inflater.setInput(image.zlib[filter]);
+		d.decode(inflater, NO_MORE_INPUT, SIZE, SIZE, dest, 0, SIZE);
+	}
+
+	private static void decodeGeneric(Image image, int filter, int[] dest) throws IOException {
+		GenericPixelDecoder d = genericDecoders[image.colorType];
+		if(d == null) {
+			d = genericDecoders[image.colorType] = new GenericPixelDecoder(image.colorType);
+			d.palette = image.palette;
+		}
+		inflater.reset();
+		inflater.setInput(image.zlib[filter]);
+		d.decode(inflater, NO_MORE_INPUT, SIZE, SIZE, dest);
+	}
+
+	private static void check(String what, boolean ok) {
+		if(!ok) {
+			failures++;
+			System.out.println("FAIL " + what);
+		}
+	}
+
+	/**
+	 * PngPixelDecoder as it was before its kernels were specialized, cut down to 8-bit
+	 * samples without tRNS: one unfilter loop per filter type for every pixel size, and one
+	 * ARGBtoColor() call per pixel. Its greyscale and grey+alpha conversions were wrong but
+	 * cost what they cost, so they are timed as they were.
+	 */
+	private static class GenericPixelDecoder {
+		private final int colorType;
+		private final int bytesPerPixel;
+		byte[] palette;
+		private byte[] curLine = new byte[0];
+		private byte[] prevLine = new byte[0];
+
+		GenericPixelDecoder(int colorType) {
+			this.colorType = colorType;
+			switch(colorType) {
+			case PngPixelDecoder.COLOR_GREYALPHA:
+				bytesPerPixel = 2;
+				break;
+			case PngPixelDecoder.COLOR_TRUECOLOR:
+				bytesPerPixel = 3;
+				break;
+			case PngPixelDecoder.COLOR_TRUEALPHA:
+				bytesPerPixel = 4;
+				break;
+			default:
+				bytesPerPixel = 1;
+			}
+		}
+
+		void decode(Inflater inflater, PngPixelDecoder.Input input, int lwidth, int lheight, int[] dest) throws IOException {
+			final int lineSize = lwidth * bytesPerPixel;
+			if(curLine.length != lineSize + 1) {
+				curLine = new byte[lineSize + 1];
+				prevLine = new byte[lineSize + 1];
+			} else {
+				Arrays.fill(prevLine, (byte)0);
+			}
+			byte[] curLine = this.curLine;
+			byte[] prevLine = this.prevLine;
+			int offset = 0;
+			for(int y = 0; y < lheight; y++) {
+				readChunkUnzip(inflater, input, curLine, 0, curLine.length);
+				unfilter(curLine, prevLine);
+				switch(colorType) {
+				case PngPixelDecoder.COLOR_TRUECOLOR:
+					for(int i = 1, n = curLine.length; i < n; i += 3) {
+						dest[offset++] = argbToColor((byte)0xFF, curLine[i], curLine[i + 1], curLine[i + 2]);
+					}
+					break;
+				case PngPixelDecoder.COLOR_TRUEALPHA:
+					for(int i = 1, n = curLine.length; i < n; i += 4) {
+						dest[offset++] = argbToColor(curLine[i + 3], curLine[i], curLine[i + 1], curLine[i + 2]);
+					}
+					break;
+				case PngPixelDecoder.COLOR_GREYSCALE:
+					for(int i = 1, n = curLine.length; i < n; i += 1) {
+						dest[offset++] = curLine[i] * 0x00010101;
+					}
+					break;
+				case PngPixelDecoder.COLOR_GREYALPHA:
+					for(int i = 1, n = curLine.length; i < n; i += 2) {
+						dest[offset++] = curLine[i] * 0x00010101 + (curLine[i + 1] << 6);
+					}
+					break;
+				default:
+					for(int i = 1, n = curLine.length; i < n; i += 1) {
+						int idx = curLine[i] & 255;
+						dest[offset++] = argbToColor((byte)0xFF, palette[idx * 3], palette[idx * 3 + 1], palette[idx * 3 + 2]);
+					}
+				}
+				byte[] tmp = curLine;
+				curLine = prevLine;
+				prevLine = tmp;
+			}
+			this.curLine = curLine;
+			this.prevLine = prevLine;
+		}
+
+		private void readChunkUnzip(Inflater inflater, PngPixelDecoder.Input input, byte[] buffer, int offset, int length)
+				throws IOException {
+			try {
+				do {
+					int read = inflater.inflate(buffer, offset, length);
+					if(read <= 0) {
+						if(inflater.finished()) {
+							throw new EOFException();
+						}
+						if(inflater.needsInput()) {
+							input.refill(inflater);
+						} else {
+							throw new IOException("Can't inflate " + length + " bytes");
+						}
+					} else {
+						offset += read;
+						length -= read;
+					}
+				} while(length > 0);
+			} catch(DataFormatException ex) {
+				throw (IOException)(new IOException("inflate error").initCause(ex));
+			}
+		}
+
+		private int argbToColor(byte a, byte r, byte g, byte b) {
+			return (a << 24) | ((r & 255) << 16) | ((g & 255) << 8) | (b & 255);
+		}
+
+		private void unfilter(byte[] curLine, byte[] prevLine) throws IOException {
+			switch(curLine[0]) {
+			case 0:
+				break;
+			case 1:
+				unfilterSub(curLine);
+				break;
+			case 2:
+				unfilterUp(curLine, prevLine);
+				break;
+			case 3:
+				unfilterAverage(curLine, prevLine);
+				break;
+			case 4:
+				unfilterPaeth(curLine, prevLine);
+				break;
+			default:
+				throw new IOException("invalide filter type in scanline: " + curLine[0]);
+			}
+		}
+
+		private void unfilterSub(byte[] curLine) {
+			final int bpp = this.bytesPerPixel;
+			for(int i = bpp + 1, n = curLine.length; i < n; ++i) {
+				curLine[i] += curLine[i - bpp];
+			}
+		}
+
+		private void unfilterUp(byte[] curLine, byte[] prevLine) {
+			for(int i = 1, n = curLine.length; i < n; ++i) {
+				curLine[i] += prevLine[i];
+			}
+		}
+
+		private void unfilterAverage(byte[] curLine, byte[] prevLine) {
+			final int bpp = this.bytesPerPixel;
+			int i;
+			for(i = 1; i <= bpp; ++i) {
+				curLine[i] += (byte)((prevLine[i] & 0xFF) >>> 1);
+			}
+			for(int n = curLine.length; i < n; ++i) {
+				curLine[i] += (byte)(((prevLine[i] & 0xFF) + (curLine[i - bpp] & 0xFF)) >>> 1);
+			}
+		}
+
+		private void unfilterPaeth(byte[] curLine, byte[] prevLine) {
+			final int bpp = this.bytesPerPixel;
+			int i;
+			for(i = 1; i <= bpp; ++i) {
+				curLine[i] += prevLine[i];
+			}
+			for(int n = curLine.length; i < n; ++i) {
+				int a = curLine[i - bpp] & 255;
+				int b = prevLine[i] & 255;
+				int c = prevLine[i - bpp] & 255;
+				int p = a + b - c;
+				int pa = p - a;
+				if(pa < 0) {
+					pa = -pa;
+				}
+				int pb = p - b;
+				if(pb < 0) {
+					pb = -pb;
+				}
+				int pc = p - c;
+				if(pc < 0) {
+					pc = -pc;
+				}
+				if(pa <= pb && pa <= pc) {
+					c = a;
+				} else if(pb <= pc) {
+					c = b;
+				}
+				curLine[i] += (byte)c;
+			}
+		}
+	}
+}
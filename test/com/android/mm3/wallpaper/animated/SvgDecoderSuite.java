@@ -0,0 +1,523 @@
+package com.android.mm3.wallpaper.animated;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.graphics.Canvas;
+import android.graphics.Picture;
+
+/**
+ * Conformance suite of {@link SvgDecoder}, run on the JVM.
+ * <p>Small documents are parsed and drawn on the recording Canvas under test/android, and
+ * the draw calls are compared with the ones the document describes: shapes, paths, paints,
+ * transforms, gradients and use elements. Animated documents are driven with
+ * {@link SvgDecoder.SVG#animate(long)} at chosen times, so the SMIL timeline, the transform
+ * and motion tracks and the static picture cache are checked without a clock, and so is
+ * that animating a document allocates nothing. The number tokenizer is compared with
+ * Float.parseFloat.</p>
+ * <pre>
+ * usage: SvgDecoderSuite
+ * </pre>
+ * The exit status is 1 when a check fails.
+ */
+public class SvgDecoderSuite {
+	private static final String HEADER = "<svg xmlns=\"http://www.w3.org/2000/svg\" "
+			+ "xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\"100\" height=\"100\">";
+	private static final String SQUARE = "x=\"0\" y=\"0\" width=\"10\" height=\"10\"";
+
+	private static final com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+	private static int checks = 0;
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		helpers();
+		numbers();
+		shapes();
+		paths();
+		transforms();
+		gradients();
+		uses();
+		timeline();
+		transformTracks();
+		staticCache();
+		allocation();
+		scaling();
+		System.out.println("conformance: " + checks + " checks, " + failures + " failed");
+		if(failures > 0) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static void helpers() {
+		String name = "helpers";
+		check(name, "parseClock 2s", SvgDecoder.parseClock("2s") == 2000);
+		check(name, "parseClock 150ms", SvgDecoder.parseClock(" 150ms ") == 150);
+		check(name, "parseClock 1.5min", SvgDecoder.parseClock("1.5min") == 90000);
+		check(name, "parseClock 1h", SvgDecoder.parseClock("1h") == 3600000);
+		check(name, "parseClock 0:01:30", SvgDecoder.parseClock("0:01:30") == 90000);
+		check(name, "parseClock 3", SvgDecoder.parseClock("3") == 3000);
+		check(name, "parseClock indefinite", SvgDecoder.parseClock("indefinite") == SvgDecoder.INDEFINITE);
+		check(name, "parseClock null", SvgDecoder.parseClock(null) == SvgDecoder.INDEFINITE);
+		check(name, "splitList", Arrays.equals(SvgDecoder.splitList(" a; b;;c ;"), new String[] { "a", "b", "c" }));
+		check(name, "parseColor name", Integer.valueOf(0xff0000).equals(SvgDecoder.parseColor("red")));
+		check(name, "parseColor #rgb", Integer.valueOf(0x11ff00).equals(SvgDecoder.parseColor("#1f0")));
+		check(name, "parseColor #rrggbb", Integer.valueOf(0x123456).equals(SvgDecoder.parseColor("#123456")));
+		check(name, "parseColor rgb()", Integer.valueOf(0x0080ff).equals(SvgDecoder.parseColor("rgb(0, 128, 255)")));
+		check(name, "parseColor rgb(%)", Integer.valueOf(0xff0000).equals(SvgDecoder.parseColor("rgb(100%,0%,0%)")));
+		check(name, "parseColor junk", SvgDecoder.parseColor("nope") == null);
+		check(name, "formatNumber", SvgDecoder.formatNumber(2f).equals("2") && SvgDecoder.formatNumber(2.5f).equals("2.5"));
+		check(name, "getColor", SvgDecoder.getColor("#00ff00") == 0x00ff00 && SvgDecoder.getColor(null) == 0xff000000);
+	}
+
+	/**
+	 * The tokenizer gives the float Float.parseFloat gives, to within rounding, and reads
+	 * numbers that run into each other.
+	 */
+	private static void numbers() {
+		String name = "numbers";
+		SvgDecoder d = new SvgDecoder();
+		String[] forms = { "0", "1", "-1", "+4", "3.25", ".5", "-.5", "007", "1e3", "1E+3", "1.5e-2", "-2.5E-3",
+				"12345.678", "0.001", "1e-5", "65535", "3.4028e20" };
+		for(String s : forms) {
+			float expected = Float.parseFloat(s);
+			float actual = d.new ParserHelper(s, 0).parseFloat();
+			check(name, s + " is " + actual, Math.abs(actual - expected) <= Math.abs(expected) * 1e-6f);
+		}
+		SvgDecoder.ParserHelper ph = d.new ParserHelper(" 1,2 3-4.5.5e1\t6", 0);
+		float[] expected = { 1, 2, 3, -4.5f, 5, 6 };
+		float[] actual = new float[expected.length];
+		for(int i = 0; i < actual.length; i++) {
+			actual[i] = ph.nextFloat();
+		}
+		check(name, "list " + Arrays.toString(actual), Arrays.equals(expected, actual));
+		check(name, "list consumed", ph.pos == " 1,2 3-4.5.5e1\t6".length());
+	}
+
+	private static void shapes() {
+		draw("rect", HEADER + "<rect x=\"1\" y=\"2\" width=\"3\" height=\"4\" fill=\"#f00\"/></svg>",
+				"rect FILL #ffff0000 1,2 4,6");
+		draw("rect percent", HEADER + "<rect x=\"10%\" y=\"0\" width=\"50%\" height=\"20px\"/></svg>",
+				"rect FILL #ff000000 10,0 60,20");
+		draw("round rect", HEADER + "<rect " + SQUARE + " rx=\"2\"/></svg>",
+				"roundRect FILL #ff000000 0,0 10,10");
+		draw("circle", HEADER + "<circle cx=\"50\" cy=\"40\" r=\"5\" fill=\"blue\"/></svg>",
+				"circle FILL #ff0000ff 50,40 55,40");
+		draw("ellipse", HEADER + "<ellipse cx=\"50\" cy=\"40\" rx=\"5\" ry=\"3\" fill=\"none\"/></svg>",
+				"oval FILL #0 45,37 55,43");
+		draw("line", HEADER + "<line x1=\"1\" y1=\"2\" x2=\"3\" y2=\"4\" stroke=\"#00ff00\" stroke-width=\"2\"/></svg>",
+				"line STROKE #ff00ff00 width=2.0 1,2 3,4");
+		draw("polyline", HEADER + "<polyline points=\"0,0 10,0 10,10\" fill=\"none\" stroke=\"black\"/></svg>",
+				"path FILL #0 0,0 10,0 10,10", "path STROKE #ff000000 width=0.0 0,0 10,0 10,10");
+		draw("polygon", HEADER + "<polygon points=\"0 0,10 0 10-10\"/></svg>",
+				"path FILL #ff000000 0,0 10,0 10,-10 0,0");
+		draw("opacity", HEADER + "<rect " + SQUARE + " fill=\"#123456\" fill-opacity=\"0.5\"/>"
+				+ "<rect " + SQUARE + " fill=\"#123456\" opacity=\"0.25\"/></svg>",
+				"rect FILL #7f123456 0,0 10,10", "rect FILL #3f123456 0,0 10,10");
+		draw("style", HEADER + "<rect " + SQUARE + " style=\"fill:#0000ff;stroke:#ff0000;stroke-width:3\"/></svg>",
+				"rect FILL #ff0000ff 0,0 10,10", "rect STROKE #ffff0000 width=3.0 0,0 10,10");
+		draw("display none", HEADER + "<rect " + SQUARE + " display=\"none\"/><g display=\"none\"><rect " + SQUARE
+				+ "/></g><circle cx=\"1\" cy=\"1\" r=\"1\"/></svg>", "circle FILL #ff000000 1,1 2,1");
+		draw("unknown elements", HEADER + "<title>t</title><desc>d</desc><filter id=\"f\"><feFlood/></filter>"
+				+ "<foo><rect " + SQUARE + "/></foo><rect x=\"1\" y=\"1\" width=\"1\" height=\"1\"/></svg>",
+				"rect FILL #ff000000 1,1 2,2");
+		SvgDecoder d = load("<svg><rect x=\"1\"");
+		Canvas c = new Canvas();
+		d.draw(c);
+		check("malformed", "draws nothing", c.getOps().isEmpty());
+	}
+
+	private static void paths() {
+		draw("path lines", HEADER + "<path d=\"M10 20 L30 40 h10 v-5 z\"/></svg>",
+				"path FILL #ff000000 10,20 30,40 40,40 40,35 10,20");
+		draw("path relative", HEADER + "<path d=\"m10,20 l20,20 H50 V0 l-5-5\"/></svg>",
+				"path FILL #ff000000 10,20 30,40 50,40 50,0 45,-5");
+		draw("path implied lineto", HEADER + "<path d=\"M0 0 10 10 20 0 m5 5 1 1\"/></svg>",
+				"path FILL #ff000000 0,0 10,10 20,0 25,5 26,6");
+		draw("path no separators", HEADER + "<path d=\"M.5.5L-1-1.5\"/></svg>",
+				"path FILL #ff000000 0.5,0.5 -1,-1.5");
+		String[][] curves = {
+				{ "M0 0 C10 0 20 10 20 20", "20,20" },
+				{ "M0 0 c10 0 20 10 20 20 s0 10 10 10", "30,30" },
+				{ "M0 0 C0 10 10 10 10 0 S20-10 20 0", "20,0" },
+				{ "M10 0 A10 10 0 0 1 0 10", "0,10" },
+				{ "M10 0 a10 10 0 1 1 -10 10", "0,10" },
+				{ "M0 0 L10 0 A5 5 0 0 0 20 0", "20,0" },
+		};
+		for(String[] curve : curves) {
+			SvgDecoder d = load(HEADER + "<path d=\"" + curve[0] + "\"/></svg>");
+			List<Canvas.Op> ops = ops(d, -1);
+			check("path " + curve[0], "one op", ops.size() == 1);
+			if(ops.size() == 1) {
+				float[] p = ops.get(0).points;
+				String end = round(p[p.length - 2]) + "," + round(p[p.length - 1]);
+				check("path " + curve[0], "ends at " + end, end.equals(curve[1]));
+			}
+		}
+		SvgDecoder d = load(HEADER + "<path d=\"M0 0 L10 10\"/><path d=\"M0 0 L10 10\" fill=\"red\"/>"
+				+ "<path d=\"M0 0 L10 11\"/></svg>");
+		List<Canvas.Op> ops = ops(d, -1);
+		check("shared path", "same data, same Path", ops.size() == 3 && ops.get(0).source == ops.get(1).source);
+		check("shared path", "other data, other Path", ops.size() == 3 && ops.get(0).source != ops.get(2).source);
+	}
+
+	private static void transforms() {
+		draw("translate scale", HEADER + "<g transform=\"translate(10,20) scale(2)\"><rect x=\"1\" y=\"1\" width=\"2\" "
+				+ "height=\"2\"/></g></svg>", "rect FILL #ff000000 12,22 16,26");
+		draw("nested", HEADER + "<g transform=\"translate(10)\"><g transform=\"scale(2 3)\"><circle cx=\"1\" cy=\"1\" r=\"1\""
+				+ " transform=\"translate(1,1)\"/></g></g></svg>", "circle FILL #ff000000 14,6 16,6");
+		draw("rotate", HEADER + "<rect x=\"1\" y=\"0\" width=\"1\" height=\"1\" transform=\"rotate(90)\"/></svg>",
+				"rect FILL #ff000000 0,1 -1,2");
+		draw("rotate center", HEADER + "<rect " + SQUARE + " transform=\"rotate(90, 5, 5)\"/></svg>",
+				"rect FILL #ff000000 10,0 0,10");
+		draw("matrix", HEADER + "<rect " + SQUARE + " transform=\"matrix(1 0 0 1 5 6)\"/></svg>",
+				"rect FILL #ff000000 5,6 15,16");
+		draw("skewX", HEADER + "<rect " + SQUARE + " transform=\"skewX(45)\"/></svg>",
+				"rect FILL #ff000000 0,0 20,10");
+		draw("bad transform", HEADER + "<rect " + SQUARE + " transform=\"wobble(3) translate(1 2)\"/></svg>",
+				"rect FILL #ff000000 1,2 11,12");
+	}
+
+	private static void gradients() {
+		String stops = "<stop offset=\"0\" style=\"stop-color:#ff0000\"/>"
+				+ "<stop offset=\"1\" style=\"stop-color:#0000ff;stop-opacity:0.5\"/>";
+		draw("linear gradient", HEADER + "<rect " + SQUARE + " fill=\"url(#g)\"/><defs><linearGradient id=\"g\" "
+				+ "x1=\"0\" y1=\"0\" x2=\"100%\" y2=\"0\">" + stops + "</linearGradient></defs></svg>",
+				"rect FILL #ff000000 LinearGradient(0.0, 0.0, 100.0, 0.0, [#ffff0000, #800000ff], [0.0, 1.0]) 0,0 10,10");
+		draw("radial gradient", HEADER + "<defs><radialGradient id=\"r\" cx=\"5\" cy=\"5\" r=\"5\">" + stops
+				+ "</radialGradient></defs><rect " + SQUARE + " fill=\"url(#r)\"/></svg>",
+				"rect FILL #ff000000 RadialGradient(5.0, 5.0, 5.0, [#ffff0000, #800000ff], [0.0, 1.0]) 0,0 10,10");
+		draw("gradient href", HEADER + "<rect " + SQUARE + " fill=\"url(#h)\"/><defs><linearGradient id=\"h\" "
+				+ "xlink:href=\"#g\" x1=\"0\" y1=\"0\" x2=\"0\" y2=\"10\"/><linearGradient id=\"g\">" + stops
+				+ "</linearGradient></defs></svg>",
+				"rect FILL #ff000000 LinearGradient(0.0, 0.0, 0.0, 10.0, [#ffff0000, #800000ff], [0.0, 1.0]) 0,0 10,10");
+		draw("missing gradient", HEADER + "<rect " + SQUARE + " fill=\"url(#none)\"/></svg>",
+				"rect FILL #ff000000 0,0 10,10");
+		draw("duplicate id", HEADER + "<rect id=\"a\" " + SQUARE + "/><rect id=\"a\" x=\"20\" y=\"0\" width=\"1\" height=\"1\"/>"
+				+ "<use xlink:href=\"#a\" x=\"50\"/></svg>",
+				"rect FILL #ff000000 0,0 10,10", "rect FILL #ff000000 20,0 21,1", "rect FILL #ff000000 50,0 60,10");
+	}
+
+	private static void uses() {
+		draw("use", HEADER + "<defs><path id=\"p\" d=\"M0 0 L10 0\"/></defs><use xlink:href=\"#p\" x=\"5\" y=\"5\"/>"
+				+ "<use xlink:href=\"#p\" transform=\"scale(2)\"/></svg>",
+				"path FILL #ff000000 5,5 15,5", "path FILL #ff000000 0,0 20,0");
+		draw("use symbol", HEADER + "<symbol id=\"s\"><rect " + SQUARE + "/><circle cx=\"1\" cy=\"1\" r=\"1\"/></symbol>"
+				+ "<use xlink:href=\"#s\" x=\"20\"/></svg>",
+				"rect FILL #ff000000 20,0 30,10", "circle FILL #ff000000 21,1 22,1");
+		draw("use group", HEADER + "<g id=\"g\" transform=\"translate(1 1)\"><rect " + SQUARE + "/></g>"
+				+ "<use xlink:href=\"#g\" y=\"20\"/></svg>",
+				"rect FILL #ff000000 1,1 11,11", "rect FILL #ff000000 1,21 11,31");
+		draw("use loop", HEADER + "<g id=\"g\"><rect " + SQUARE + "/><use xlink:href=\"#g\" x=\"5\"/></g></svg>",
+				"rect FILL #ff000000 0,0 10,10");
+		draw("use missing", HEADER + "<use xlink:href=\"#nothing\"/></svg>");
+		SvgDecoder d = load(HEADER + "<defs><path id=\"p\" d=\"M0 0 L10 0\"/></defs><use xlink:href=\"#p\"/>"
+				+ "<use xlink:href=\"#p\" x=\"1\"/></svg>");
+		List<Canvas.Op> ops = ops(d, -1);
+		check("use instances", "share the Path", ops.size() == 2 && ops.get(0).source == ops.get(1).source);
+	}
+
+	/**
+	 * The SMIL timeline: interpolation, key times, discrete steps, begin, repeats, freeze,
+	 * to and by animations from the base value, colors and the precedence of later
+	 * animations on the same attribute.
+	 */
+	private static void timeline() {
+		String name = "from-to";
+		SvgDecoder d = start(HEADER + "<rect " + SQUARE + "><animate attributeName=\"x\" from=\"0\" to=\"100\" dur=\"1s\" "
+				+ "fill=\"freeze\"/></rect></svg>");
+		expect(name, d, 0, "rect FILL #ff000000 0,0 10,10");
+		expect(name, d, 250, "rect FILL #ff000000 25,0 35,10");
+		expect(name, d, 1000, "rect FILL #ff000000 100,0 110,10");
+		expect(name, d, 5000, "rect FILL #ff000000 100,0 110,10");
+		check(name, "delay when over", d.getDelay(0) == Integer.MAX_VALUE);
+
+		name = "no freeze";
+		d = start(HEADER + "<rect x=\"5\" y=\"0\" width=\"10\" height=\"10\"><animate attributeName=\"x\" from=\"0\" "
+				+ "to=\"100\" dur=\"1s\"/></rect></svg>");
+		expect(name, d, 0, "rect FILL #ff000000 0,0 10,10");
+		expect(name, d, 500, "rect FILL #ff000000 50,0 60,10");
+		expect(name, d, 1000, "rect FILL #ff000000 5,0 15,10");
+
+		name = "keyTimes";
+		d = start(HEADER + "<rect " + SQUARE + "><animate attributeName=\"x\" values=\"0;10;100\" keyTimes=\"0;0.8;1\" "
+				+ "dur=\"1s\" repeatCount=\"indefinite\"/></rect></svg>");
+		expect(name, d, 0, "rect FILL #ff000000 0,0 10,10");
+		expect(name, d, 400, "rect FILL #ff000000 5,0 15,10");
+		expect(name, d, 900, "rect FILL #ff000000 55,0 65,10");
+		expect(name, d, 1400, "rect FILL #ff000000 5,0 15,10");
+
+		name = "discrete";
+		d = start(HEADER + "<rect " + SQUARE + "><animate attributeName=\"x\" values=\"0;10;20\" calcMode=\"discrete\" "
+				+ "dur=\"3s\" fill=\"freeze\"/></rect></svg>");
+		expect(name, d, 0, "rect FILL #ff000000 0,0 10,10");
+		expect(name, d, 1500, "rect FILL #ff000000 10,0 20,10");
+		expect(name, d, 2999, "rect FILL #ff000000 20,0 30,10");
+
+		name = "begin repeatCount";
+		d = start(HEADER + "<rect x=\"50\" y=\"0\" width=\"10\" height=\"10\"><animate attributeName=\"x\" from=\"0\" "
+				+ "to=\"10\" begin=\"1s\" dur=\"1s\" repeatCount=\"2\"/></rect></svg>");
+		expect(name, d, 0, "rect FILL #ff000000 50,0 60,10");
+		expect(name, d, 1500, "rect FILL #ff000000 5,0 15,10");
+		expect(name, d, 2500, "rect FILL #ff000000 5,0 15,10");
+		expect(name, d, 3500, "rect FILL #ff000000 50,0 60,10");
+
+		name = "set";
+		d = start(HEADER + "<rect " + SQUARE + "><set attributeName=\"fill\" to=\"#ff0000\" begin=\"1s\"/></rect></svg>");
+		expect(name, d, 0, "rect FILL #ff000000 0,0 10,10");
+		expect(name, d, 1000, "rect FILL #ffff0000 0,0 10,10");
+		expect(name, d, 60000, "rect FILL #ffff0000 0,0 10,10");
+
+		name = "animateColor";
+		d = start(HEADER + "<rect " + SQUARE + " fill=\"#000000\"><animateColor attributeName=\"fill\" from=\"#000000\" "
+				+ "to=\"red\" dur=\"1s\" fill=\"freeze\"/></rect></svg>");
+		expect(name, d, 0, "rect FILL #ff000000 0,0 10,10");
+		expect(name, d, 500, "rect FILL #ff800000 0,0 10,10");
+		expect(name, d, 1000, "rect FILL #ffff0000 0,0 10,10");
+
+		name = "opacity";
+		d = start(HEADER + "<rect " + SQUARE + " fill=\"#0000ff\"><animate attributeName=\"fill-opacity\" from=\"1\" "
+				+ "to=\"0\" dur=\"1s\"/></rect></svg>");
+		expect(name, d, 0, "rect FILL #ff0000ff 0,0 10,10");
+		expect(name, d, 500, "rect FILL #7f0000ff 0,0 10,10");
+
+		name = "to from base";
+		d = start(HEADER + "<rect x=\"10\" y=\"0\" width=\"10\" height=\"10\"><animate attributeName=\"x\" to=\"20\" "
+				+ "dur=\"1s\"/></rect></svg>");
+		expect(name, d, 0, "rect FILL #ff000000 10,0 20,10");
+		expect(name, d, 500, "rect FILL #ff000000 15,0 25,10");
+
+		name = "by";
+		d = start(HEADER + "<rect x=\"10\" y=\"0\" width=\"10\" height=\"10\"><animate attributeName=\"x\" by=\"5\" "
+				+ "dur=\"1s\" fill=\"freeze\"/></rect></svg>");
+		expect(name, d, 0, "rect FILL #ff000000 10,0 20,10");
+		expect(name, d, 2000, "rect FILL #ff000000 15,0 25,10");
+
+		name = "later wins";
+		d = start(HEADER + "<rect " + SQUARE + "><animate attributeName=\"x\" from=\"0\" to=\"10\" dur=\"4s\"/>"
+				+ "<animate attributeName=\"x\" from=\"50\" to=\"60\" begin=\"1s\" dur=\"1s\"/></rect></svg>");
+		expect(name, d, 0, "rect FILL #ff000000 0,0 10,10");
+		expect(name, d, 1500, "rect FILL #ff000000 55,0 65,10");
+		expect(name, d, 2500, "rect FILL #ff000000 6.25,0 16.25,10");
+
+		name = "href target";
+		d = start(HEADER + "<rect id=\"r\" " + SQUARE + "/><circle cx=\"1\" cy=\"1\" r=\"1\"/>"
+				+ "<animate xlink:href=\"#r\" attributeName=\"y\" from=\"0\" to=\"10\" dur=\"1s\"/></svg>");
+		expect(name, d, 0, "rect FILL #ff000000 0,0 10,10", "circle FILL #ff000000 1,1 2,1");
+		expect(name, d, 500, "rect FILL #ff000000 0,5 10,15", "circle FILL #ff000000 1,1 2,1");
+
+		name = "path data";
+		d = start(HEADER + "<path d=\"M0 0 L10 0\"><animate attributeName=\"d\" from=\"M0 0 L10 0\" to=\"M0 0 L30 0\" "
+				+ "dur=\"1s\"/></path></svg>");
+		// path data is not interpolated, it changes half way
+		expect(name, d, 0, "path FILL #ff000000 0,0 10,0");
+		expect(name, d, 499, "path FILL #ff000000 0,0 10,0");
+		expect(name, d, 500, "path FILL #ff000000 0,0 30,0");
+	}
+
+	/**
+	 * animateTransform, added to or replacing the transform attribute, and animateMotion
+	 * along a path, turned with it or not.
+	 */
+	private static void transformTracks() {
+		String name = "animateTransform sum";
+		SvgDecoder d = start(HEADER + "<rect " + SQUARE + " transform=\"translate(100,0)\"><animateTransform "
+				+ "attributeName=\"transform\" type=\"translate\" from=\"0 0\" to=\"10 0\" dur=\"1s\" additive=\"sum\"/>"
+				+ "</rect></svg>");
+		expect(name, d, 0, "rect FILL #ff000000 100,0 110,10");
+		expect(name, d, 500, "rect FILL #ff000000 105,0 115,10");
+		expect(name, d, 1000, "rect FILL #ff000000 100,0 110,10");
+
+		name = "animateTransform replace";
+		d = start(HEADER + "<rect " + SQUARE + " transform=\"translate(100,0)\"><animateTransform "
+				+ "attributeName=\"transform\" type=\"translate\" from=\"0 0\" to=\"10 0\" dur=\"1s\"/></rect></svg>");
+		expect(name, d, 500, "rect FILL #ff000000 5,0 15,10");
+
+		name = "animateTransform scale";
+		d = start(HEADER + "<rect " + SQUARE + "><animateTransform attributeName=\"transform\" type=\"scale\" "
+				+ "values=\"1;3\" dur=\"1s\"/></rect></svg>");
+		expect(name, d, 500, "rect FILL #ff000000 0,0 20,20");
+
+		name = "animateTransform rotate by";
+		d = start(HEADER + "<rect " + SQUARE + "><animateTransform attributeName=\"transform\" type=\"rotate\" "
+				+ "by=\"90 5 5\" dur=\"1s\" fill=\"freeze\"/></rect></svg>");
+		expect(name, d, 0, "rect FILL #ff000000 0,0 10,10");
+		expect(name, d, 1000, "rect FILL #ff000000 10,0 0,10");
+
+		name = "animateTransform in group";
+		d = start(HEADER + "<g><animateTransform attributeName=\"transform\" type=\"translate\" from=\"0\" to=\"10\" "
+				+ "dur=\"1s\"/><rect " + SQUARE + "/></g></svg>");
+		expect(name, d, 500, "rect FILL #ff000000 5,0 15,10");
+
+		name = "animateMotion";
+		d = start(HEADER + "<rect " + SQUARE + "><animateMotion path=\"M0 0 L100 0\" dur=\"1s\" fill=\"freeze\"/></rect></svg>");
+		expect(name, d, 0, "rect FILL #ff000000 0,0 10,10");
+		expect(name, d, 500, "rect FILL #ff000000 50,0 60,10");
+		expect(name, d, 1000, "rect FILL #ff000000 100,0 110,10");
+
+		name = "animateMotion auto";
+		d = start(HEADER + "<rect " + SQUARE + "><animateMotion path=\"M0 0 L0 100\" rotate=\"auto\" dur=\"1s\"/></rect></svg>");
+		expect(name, d, 500, "rect FILL #ff000000 0,50 -10,60");
+
+		name = "animateMotion values";
+		d = start(HEADER + "<rect " + SQUARE + "><animateMotion values=\"0,0;10,0;10,30\" calcMode=\"linear\" dur=\"2s\"/>"
+				+ "</rect></svg>");
+		expect(name, d, 500, "rect FILL #ff000000 5,0 15,10");
+		expect(name, d, 1500, "rect FILL #ff000000 10,15 20,25");
+
+		name = "animateMotion mpath";
+		d = start(HEADER + "<path id=\"track\" d=\"M0 0 L0 40\" fill=\"none\"/><rect " + SQUARE + "><animateMotion "
+				+ "dur=\"1s\"><mpath xlink:href=\"#track\"/></animateMotion></rect></svg>");
+		expect(name, d, 250, "path FILL #0 0,0 0,40", "rect FILL #ff000000 0,10 10,20");
+	}
+
+	/**
+	 * Static children are recorded into pictures once the animations are known; drawing
+	 * from them gives the draw calls of the live document.
+	 */
+	private static void staticCache() {
+		String doc = HEADER + "<rect " + SQUARE + " fill=\"red\"/><g transform=\"translate(-50,-50)\"><circle cx=\"1\" "
+				+ "cy=\"1\" r=\"1\"/></g><rect x=\"20\" y=\"0\" width=\"10\" height=\"10\"><animate attributeName=\"y\" "
+				+ "from=\"0\" to=\"10\" dur=\"1s\"/></rect><path d=\"M0 0 L5 5\" stroke=\"blue\"/></svg>";
+		String[] expected = { "rect FILL #ffff0000 0,0 10,10", "circle FILL #ff000000 -49,-49 -48,-49",
+				"rect FILL #ff000000 20,5 30,15", "path FILL #ff000000 0,0 5,5", "path STROKE #ff0000ff width=0.0 0,0 5,5" };
+		SvgDecoder d = load(doc);
+		expect("static cache", d, 0, expected[0], expected[1], "rect FILL #ff000000 20,0 30,10", expected[3], expected[4]);
+		expect("static cache", d, 500, expected);
+		Canvas c = new Canvas();
+		d.frame.draw(c);
+		check("static cache", "drawn from 2 pictures, " + c.getPictureCount(), c.getPictureCount() == 2);
+		check("static cache", "drawn again", strings(c.getOps()).equals(Arrays.asList(expected)));
+
+		String still = HEADER + "<rect " + SQUARE + "/><path d=\"M0 0 L5 5\"/></svg>";
+		SvgDecoder live = load(still);
+		SvgDecoder cached = load(still);
+		cached.frame.animate(0);
+		c = new Canvas();
+		cached.frame.draw(c);
+		check("static document", "one picture", c.getPictureCount() == 1);
+		check("static document", "same as live", strings(c.getOps()).equals(strings(ops(live, -1))));
+
+		Picture p = cached.getFramePicture(0);
+		c = new Canvas();
+		p.draw(c);
+		check("getFramePicture", "same as live", strings(c.getOps()).equals(strings(ops(live, -1))));
+	}
+
+	/**
+	 * Once every animated value has been seen, stepping the timeline allocates nothing:
+	 * colors, opacities, widths, lengths and matrices are interpolated in place. Points are
+	 * left out, the Path stand-in keeps its contours in new arrays where Android's does not.
+	 * The least of a few rounds is taken, as the compiler may allocate on the thread.
+	 */
+	private static void allocation() {
+		String name = "allocation";
+		SvgDecoder d = start(HEADER + "<rect " + SQUARE + " fill=\"red\" stroke=\"blue\" transform=\"translate(5,5)\">"
+				+ "<animateColor attributeName=\"fill\" values=\"red;#00ff00;red\" dur=\"1s\" repeatCount=\"indefinite\"/>"
+				+ "<animate attributeName=\"opacity\" values=\"1;0.2;1\" dur=\"0.7s\" repeatCount=\"indefinite\"/>"
+				+ "<animate attributeName=\"stroke-width\" values=\"1;4;1\" dur=\"0.9s\" repeatCount=\"indefinite\"/>"
+				+ "<animate attributeName=\"x\" values=\"0;50%;0\" dur=\"1.1s\" repeatCount=\"indefinite\"/>"
+				+ "<animateTransform attributeName=\"transform\" type=\"rotate\" from=\"0 5 5\" to=\"360 5 5\" dur=\"2s\" "
+				+ "additive=\"sum\" repeatCount=\"indefinite\"/></rect>"
+				+ "<polygon points=\"0,0 10,0 5,5\"><set attributeName=\"display\" to=\"none\" begin=\"1s\" "
+				+ "dur=\"0.5s\" repeatCount=\"indefinite\"/></polygon>"
+				+ "<g><animate attributeName=\"transform\" values=\"scale(1);scale(2)\" dur=\"1s\" repeatCount=\"indefinite\"/>"
+				+ "<circle cx=\"5\" cy=\"5\" r=\"5\"><animate attributeName=\"r\" from=\"1\" to=\"5\" dur=\"0.8s\" "
+				+ "repeatCount=\"indefinite\"/></circle></g></svg>");
+		long time = 0;
+		for(; time < 10000; time += 7) {
+			d.frame.animate(time);
+		}
+		long thread = Thread.currentThread().getId();
+		long bytes = Long.MAX_VALUE;
+		for(int round = 0; round < 5; round++) {
+			long before = threads.getThreadAllocatedBytes(thread);
+			for(long end = time + 5000; time < end; time += 7) {
+				d.frame.animate(time);
+			}
+			bytes = Math.min(bytes, threads.getThreadAllocatedBytes(thread) - before);
+		}
+		check(name, "animate: " + bytes + " bytes for " + (5000 / 7) + " frames", bytes == 0);
+	}
+
+	private static void scaling() {
+		SvgDecoder d = load("<svg><rect " + SQUARE.replace("10", "50") + "/><path d=\"M0 0 L50 50\"/>"
+				+ "<circle cx=\"5\" cy=\"5\" r=\"5\" transform=\"translate(10 0)\"/></svg>");
+		d.setWidthHeight(200, 100);
+		check("scaling", "size", d.getWidth() == 200 && d.getHeight() == 100);
+		d.setScaling(true);
+		check("scaling", "scale " + d.getScale(), d.getScale() == 2f);
+		List<String> actual = strings(ops(d, -1));
+		List<String> expected = Arrays.asList("rect FILL #ff000000 0,0 100,100", "path FILL #ff000000 0,0 100,100",
+				"circle FILL #ff000000 30,10 40,10");
+		check("scaling", "drawn " + actual, actual.equals(expected));
+		d.setScaling(false);
+		actual = strings(ops(d, -1));
+		check("scaling", "back to 1: " + actual, actual.equals(Arrays.asList("rect FILL #ff000000 0,0 50,50",
+				"path FILL #ff000000 0,0 50,50", "circle FILL #ff000000 15,5 20,5")));
+	}
+
+	/**
+	 * Loads an animated document and starts its timeline: time 0 is the first animate call.
+	 */
+	private static SvgDecoder start(String svg) {
+		SvgDecoder d = load(svg);
+		d.frame.animate(0);
+		return d;
+	}
+
+	private static SvgDecoder load(String svg) {
+		SvgDecoder d = new SvgDecoder();
+		d.parse(new ByteArrayInputStream(svg.getBytes()));
+		return d;
+	}
+
+	/**
+	 * Draws a document at a time of its timeline, or live without animating it when time is negative.
+	 */
+	private static List<Canvas.Op> ops(SvgDecoder d, long time) {
+		if(time >= 0) {
+			d.frame.animate(time);
+		}
+		Canvas c = new Canvas();
+		d.frame.draw(c);
+		return c.getOps();
+	}
+
+	private static List<String> strings(List<Canvas.Op> ops) {
+		List<String> s = new ArrayList<String>();
+		for(Canvas.Op op : ops) {
+			s.add(op.toString());
+		}
+		return s;
+	}
+
+	private static void draw(String name, String svg, String... expected) {
+		expect(name, load(svg), -1, expected);
+	}
+
+	private static void expect(String name, SvgDecoder d, long time, String... expected) {
+		List<String> actual = strings(ops(d, time));
+		String what = ((time >= 0) ? "at " + time + " ms " : "") + "drawn " + actual;
+		check(name, what, actual.equals(Arrays.asList(expected)));
+	}
+
+	private static String round(float f) {
+		float r = Math.round(f * 100) / 100f;
+		return (r == (int)r) ? Integer.toString((int)r) : Float.toString(r);
+	}
+
+	private static void check(String name, String what, boolean ok) {
+		checks++;
+		if(!ok) {
+			failures++;
+			System.out.println("FAIL " + name + " [SvgDecoder] " + what);
+		}
+	}
+}
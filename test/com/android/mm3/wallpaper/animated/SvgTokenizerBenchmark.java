@@ -0,0 +1,339 @@
+package com.android.mm3.wallpaper.animated;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Microbenchmark of the number lists of SvgDecoder: polygon and polyline points and
+ * transform lists, read by {@link SvgDecoder.ParserHelper} as SvgDecoder reads them now,
+ * against the substring, Float.parseFloat and ArrayList&lt;Float&gt; parsing it had before.
+ * <p>The attribute values are those of a large path heavy document: COUNT shapes of up to
+ * 200 points each and a transform list per group. The fastest of RUNS passes over all of
+ * them is reported in MB of text and millions of numbers per second. Path data already
+ * went through ParserHelper before, so it is not timed here.</p>
+ * <pre>
+ * usage: SvgTokenizerBenchmark
+ * </pre>
+ * The exit status is 1 when the two read different numbers or the tokenizer is slower.
+ */
+public class SvgTokenizerBenchmark {
+	private static final long SEED = 0x23;
+	private static final int COUNT = 2000;
+	private static final int WARMUP = 20;
+	private static final int RUNS = 30;
+	/** the tokenizer may take this times the old parsing's time, for timer noise */
+	private static final double TIME_SLACK = 1.1;
+
+	private static final String[] TRANSFORMS = { "translate", "scale", "rotate", "skewX", "skewY", "matrix" };
+	private static final int[] ARGUMENTS = { 2, 1, 3, 1, 1, 6 };
+
+	private static int failures = 0;
+
+	public static void main(String[] args) {
+		Random random = new Random(SEED);
+		String[] points = new String[COUNT];
+		String[] transforms = new String[COUNT];
+		for(int i = 0; i < COUNT; i++) {
+			points[i] = points(random, 2 + random.nextInt(199));
+			transforms[i] = transforms(random, 1 + random.nextInt(4));
+		}
+
+		Tokenizer tokenizer = new Tokenizer();
+		OldParser old = new OldParser();
+		for(int i = 0; i < COUNT; i++) {
+			check("points " + i, same(old.parseNumbers(points[i]), tokenizer.readNumbers(points[i], 0), tokenizer.numbers));
+			ArrayList<Float> expected = old.parseTransform(transforms[i]);
+			int count = tokenizer.parseTransform(transforms[i]);
+			check("transform " + transforms[i], same(expected, count, tokenizer.numbers));
+		}
+		// compile both before the first measure
+		for(int i = 0; i < WARMUP; i++) {
+			readPoints(points, tokenizer);
+			readPoints(points, old);
+			readTransforms(transforms, tokenizer);
+			readTransforms(transforms, old);
+		}
+
+		System.out.println(String.format("%-10s %8s %8s %10s %10s %10s %10s %8s", "values", "KB", "numbers", "old MB/s",
+				"new MB/s", "old M/s", "new M/s", "speedup"));
+		bench("points", points, tokenizer, old, false);
+		bench("transform", transforms, tokenizer, old, true);
+		if(failures > 0) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static void bench(String name, String[] values, Tokenizer tokenizer, OldParser old, boolean transform) {
+		long chars = 0;
+		for(String v : values) {
+			chars += v.length();
+		}
+		long numbers = 0;
+		long oldTime = Long.MAX_VALUE;
+		long newTime = Long.MAX_VALUE;
+		for(int i = 0; i < RUNS; i++) {
+			long start = System.nanoTime();
+			numbers = transform ? readTransforms(values, old) : readPoints(values, old);
+			oldTime = Math.min(oldTime, System.nanoTime() - start);
+			start = System.nanoTime();
+			numbers = transform ? readTransforms(values, tokenizer) : readPoints(values, tokenizer);
+			newTime = Math.min(newTime, System.nanoTime() - start);
+		}
+		System.out.println(String.format("%-10s %8d %8d %10.1f %10.1f %10.2f %10.2f %8.2f", name, chars / 1024, numbers,
+				chars * 1e3 / oldTime, chars * 1e3 / newTime, numbers * 1e3 / oldTime, numbers * 1e3 / newTime,
+				(double)oldTime / newTime));
+		check(name + String.format(": tokenizer %.2f x the old time", (double)newTime / oldTime),
+				newTime <= oldTime * TIME_SLACK);
+	}
+
+	private static long readPoints(String[] values, Tokenizer tokenizer) {
+		long numbers = 0;
+		for(String v : values) {
+			numbers += tokenizer.readNumbers(v, 0);
+		}
+		return numbers;
+	}
+
+	private static long readPoints(String[] values, OldParser old) {
+		long numbers = 0;
+		for(String v : values) {
+			numbers += old.parseNumbers(v).size();
+		}
+		return numbers;
+	}
+
+	private static long readTransforms(String[] values, Tokenizer tokenizer) {
+		long numbers = 0;
+		for(String v : values) {
+			numbers += tokenizer.parseTransform(v);
+		}
+		return numbers;
+	}
+
+	private static long readTransforms(String[] values, OldParser old) {
+		long numbers = 0;
+		for(String v : values) {
+			numbers += old.parseTransform(v).size();
+		}
+		return numbers;
+	}
+
+	/**
+	 * Writes a points value the way drawing tools do: comma in a pair, space between pairs.
+	 */
+	private static String points(Random random, int count) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < count; i++) {
+			if(i > 0) {
+				sb.append(random.nextInt(8) == 0 ? "\n\t" : " ");
+			}
+			sb.append(number(random)).append(',').append(number(random));
+		}
+		return sb.toString();
+	}
+
+	private static String transforms(Random random, int count) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < count; i++) {
+			if(i > 0) {
+				sb.append(random.nextBoolean() ? " " : ", ");
+			}
+			int t = random.nextInt(TRANSFORMS.length);
+			sb.append(TRANSFORMS[t]).append('(');
+			for(int k = 0; k < ARGUMENTS[t]; k++) {
+				if(k > 0) {
+					sb.append(random.nextBoolean() ? " " : ",");
+				}
+				sb.append(number(random));
+			}
+			sb.append(')');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Gets a coordinate with up to three decimals, sometimes negative or in exponent form.
+	 */
+	private static String number(Random random) {
+		int n = random.nextInt(2000000) - 500000;
+		switch(random.nextInt(4)) {
+		case 0:
+			return Integer.toString(n / 1000);
+		case 1:
+			return (n / 1000) + "." + Math.abs(n % 10);
+		case 2:
+			return (n / 10) + "e-2";
+		default:
+			return String.format("%.3f", n / 1000f);
+		}
+	}
+
+	private static boolean same(ArrayList<Float> expected, int count, float[] actual) {
+		if(expected.size() != count) {
+			return false;
+		}
+		for(int i = 0; i < count; i++) {
+			float e = expected.get(i);
+			if(Math.abs(actual[i] - e) > Math.abs(e) * 1e-6f) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void check(String what, boolean ok) {
+		if(!ok) {
+			failures++;
+			System.out.println("FAIL " + what);
+		}
+	}
+
+	/**
+	 * SvgDecoder.readNumbers and the walk of SvgDecoder.parseTransform, collecting the
+	 * arguments of all the transforms of a list instead of applying them.
+	 */
+	private static class Tokenizer {
+		private final SvgDecoder.ParserHelper parser = new SvgDecoder().new ParserHelper();
+		float[] numbers = new float[32];
+		private int count;
+
+		int readNumbers(String s, int start) {
+			count = 0;
+			return readMore(s, start);
+		}
+
+		int parseTransform(String s) {
+			count = 0;
+			int n = s.length();
+			int i = 0;
+			while(i < n) {
+				char c = s.charAt(i);
+				if(c == ',' || Character.isWhitespace(c)) {
+					i++;
+					continue;
+				}
+				int open = s.indexOf('(', i);
+				if(open < 0) {
+					break;
+				}
+				readMore(s, open + 1);
+				int close = s.indexOf(')', parser.pos);
+				if(close < 0) {
+					break;
+				}
+				i = close + 1;
+			}
+			return count;
+		}
+
+		private int readMore(String s, int start) {
+			SvgDecoder.ParserHelper ph = this.parser;
+			ph.reset(s, start);
+			ph.skipWhitespace();
+			while(ph.pos < s.length()) {
+				float f = ph.parseFloat();
+				if(Float.isNaN(f)) {
+					break;
+				}
+				if(count == numbers.length) {
+					float[] grown = new float[count * 2];
+					System.arraycopy(numbers, 0, grown, 0, count);
+					numbers = grown;
+				}
+				numbers[count++] = f;
+				ph.skipWhitespace();
+				ph.skipNumberSeparator();
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * SvgDecoder.parseNumbers and parseTransform as they were before ParserHelper read
+	 * them, collecting the arguments of all the transforms of a list instead of applying them.
+	 */
+	private static class OldParser {
+		/** getScale() of a document drawn at its own size */
+		private float scale = 1;
+
+		ArrayList<Float> parseTransform(String s) {
+			ArrayList<Float> all = new ArrayList<Float>();
+			while(true) {
+				for(String name : TRANSFORMS) {
+					if(s.startsWith(name + "(")) {
+						all.addAll(parseNumbers(s.substring(name.length() + 1)));
+						break;
+					}
+				}
+				int rparen = s.indexOf(")");
+				if(rparen > 0 && s.length() > rparen + 1) {
+					s = s.substring(rparen + 1).replaceFirst("[\\s,]*", "");
+				} else {
+					break;
+				}
+			}
+			return all;
+		}
+
+		ArrayList<Float> parseNumbers(String s) {
+			int n = s.length();
+			int p = 0;
+			ArrayList<Float> numbers = new ArrayList<Float>();
+			boolean skipChar = false;
+			for(int i = 1; i < n; i++) {
+				if(skipChar) {
+					skipChar = false;
+					continue;
+				}
+				char c = s.charAt(i);
+				switch(c) {
+				// This ends the parsing, as we are on the next element
+				case 'M': case 'm': case 'Z': case 'z':
+				case 'L': case 'l': case 'H': case 'h':
+				case 'V': case 'v': case 'C': case 'c':
+				case 'S': case 's': case 'Q': case 'q':
+				case 'T': case 't': case 'a': case 'A':
+				case ')': {
+					String str = s.substring(p, i);
+					if(str.trim().length() > 0) {
+						Float f = Float.parseFloat(str);
+						f = f * scale;
+						numbers.add(f);
+					}
+					p = i;
+					return numbers;
+				}
+				case '\n': case '\t': case ' ': case ',': {
+					String str = s.substring(p, i);
+					// Just keep moving if multiple whitespace
+					if(str.trim().length() > 0) {
+						Float f = Float.parseFloat(str);
+						f = f * scale;
+						numbers.add(f);
+						p = i + 1;
+						skipChar = true;
+					} else {
+						p++;
+					}
+					break;
+				}
+				default:
+					break;
+				}
+			}
+			String last = s.substring(p);
+			if(last.length() > 0) {
+				try {
+					Float f = Float.parseFloat(last);
+					f = f * scale;
+					numbers.add(f);
+				} catch(NumberFormatException nfe) {
+					// Just white-space, forget it
+				}
+			}
+			return numbers;
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package org.xmlpull.v1;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * JVM stand-in for the XmlPull interface Android ships, with the part the SVG decoder uses.
+ * {@link android.util.Xml#newPullParser()} gives an implementation.
+ */
+public interface XmlPullParser {
+	String FEATURE_PROCESS_NAMESPACES = "http://xmlpull.org/v1/doc/features.html#process-namespaces";
+
+	int START_DOCUMENT = 0;
+	int END_DOCUMENT = 1;
+	int START_TAG = 2;
+	int END_TAG = 3;
+	int TEXT = 4;
+
+	void setFeature(String name, boolean state) throws XmlPullParserException;
+
+	void setInput(InputStream inputStream, String inputEncoding) throws XmlPullParserException;
+
+	int getEventType() throws XmlPullParserException;
+
+	int next() throws XmlPullParserException, IOException;
+
+	int nextTag() throws XmlPullParserException, IOException;
+
+	void require(int type, String namespace, String name) throws XmlPullParserException, IOException;
+
+	String getName();
+
+	String getText();
+
+	int getAttributeCount();
+
+	String getAttributeName(int index);
+
+	String getAttributeValue(int index);
+}
@@ -0,0 +1,16 @@
+package org.xmlpull.v1;
+
+/**
+ * JVM stand-in for the XmlPull exception.
+ */
+public class XmlPullParserException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	public XmlPullParserException(String s) {
+		super(s);
+	}
+
+	public XmlPullParserException(String s, Throwable cause) {
+		super(s, cause);
+	}
+}
@@ -0,0 +1,37 @@
+#!/bin/sh
+# Builds the decoders with the JVM stand-ins under test/android and runs the suites. The
+# PNG suite runs once on one processor, with the benchmark, and once on four, where
+# ApngDecoder inflates frames on its worker pool; PngPixelDecoder's unfilter and convert
+# kernels are timed against the generic ones they replaced, and the bytes ApngDecoder
+# allocates per frame are counted. The GIF suite runs on one and four processors, the
+# second time with GifDecoder's decode pool, and the GIF LZW decoder is timed against the
+# one it replaced; then the SVG suite runs once and its number tokenizer is timed against
+# the parsing it replaced.
+#
+# usage: test/run.sh [--record]    --record rewrites the benchmark baseline
+set -e
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+SRC=$ROOT/src/com/android/mm3/wallpaper/animated
+TEST=$ROOT/test
+OUT=${TMPDIR:-/tmp}/apng-suite
+BASELINE=$TEST/com/android/mm3/wallpaper/animated/apng-baseline.properties
+
+rm -rf "$OUT"
+mkdir -p "$OUT"
+javac -Xlint:all -Werror -encoding UTF-8 -d "$OUT" \
+	"$SRC/Decoder.java" "$SRC/ApngDecoder.java" "$SRC/ApngCompositor.java" "$SRC/ColorQuantizer.java" \
+	"$SRC/PngChunkReader.java" "$SRC/PngPixelDecoder.java" "$SRC/Test2PngDecoder.java" "$SRC/ApngSinpleDecoder.java" \
+	"$SRC/GifDecoder.java" "$SRC/GifFrameIndex.java" "$SRC/GifLzwDecoder.java" "$SRC/GifStreamDecoder.java" \
+	"$SRC/SvgDecoder.java" \
+	$(find "$TEST" -name '*.java')
+
+java -Xmx512m -XX:ActiveProcessorCount=1 -cp "$OUT" com.android.mm3.wallpaper.animated.ApngDecoderSuite \
+	--baseline "$BASELINE" "$@"
+java -Xmx512m -XX:ActiveProcessorCount=4 -cp "$OUT" com.android.mm3.wallpaper.animated.ApngDecoderSuite --no-bench
+java -Xmx512m -XX:ActiveProcessorCount=1 -cp "$OUT" com.android.mm3.wallpaper.animated.PngKernelBenchmark
+java -Xmx512m -XX:ActiveProcessorCount=1 -cp "$OUT" com.android.mm3.wallpaper.animated.ApngAllocationTest
+java -Xmx512m -XX:ActiveProcessorCount=1 -cp "$OUT" com.android.mm3.wallpaper.animated.GifDecoderSuite
+java -Xmx512m -XX:ActiveProcessorCount=4 -cp "$OUT" com.android.mm3.wallpaper.animated.GifDecoderSuite
+java -Xmx512m -XX:ActiveProcessorCount=1 -cp "$OUT" com.android.mm3.wallpaper.animated.GifLzwBenchmark
+java -Xmx512m -cp "$OUT" com.android.mm3.wallpaper.animated.SvgDecoderSuite
+java -Xmx512m -XX:ActiveProcessorCount=1 -cp "$OUT" com.android.mm3.wallpaper.animated.SvgTokenizerBenchmark